@@ -0,0 +1,24 @@
+package android.media.midi;
+
+/**
+ * JVM stand-in of the Android MidiInputPort, counts the sent bytes instead of writing to the device
+ */
+public class MidiInputPort extends MidiReceiver {
+    private final int maxMessageSize;
+    public long sentBytes;
+    public int checksum;
+
+    public MidiInputPort(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    @Override
+    public void onSend(byte[] msg, int offset, int count, long timestamp) {
+        sentBytes += count;
+        checksum = checksum * 31 + msg[offset + count - 1];
+    }
+}
@@ -0,0 +1,21 @@
+package android.media.midi;
+
+import java.io.IOException;
+
+/**
+ * JVM stand-in of the Android MidiReceiver, for the benchmarks
+ */
+public abstract class MidiReceiver {
+    public abstract void onSend(byte[] msg, int offset, int count, long timestamp) throws IOException;
+
+    public void send(byte[] msg, int offset, int count, long timestamp) throws IOException {
+        onSend(msg, offset, count, timestamp);
+    }
+
+    public void flush() throws IOException {
+        onFlush();
+    }
+
+    public void onFlush() throws IOException {
+    }
+}
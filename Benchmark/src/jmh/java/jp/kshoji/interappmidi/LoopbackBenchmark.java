@@ -0,0 +1,174 @@
+package jp.kshoji.interappmidi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the send and receive paths through the {@link LoopbackMidiTransport}, with the concurrent senders<br />
+ * One operation is a packet of the Control Change messages, sent to a loopback port and parsed by the receiver of the port.
+ * With the "overload" load, the {@link MidiLoadGenerator} floods the other devices with the Control Change, the fragmented System Exclusive and the MIDI clock,
+ * and adds and removes a device repeatedly.<br />
+ * The trial fails if a receiver has detected a broken message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+public class LoopbackBenchmark {
+    static final String NONE = "none";
+    static final String OVERLOAD = "overload";
+
+    private static final int MESSAGES_PER_PACKET = 16;
+
+    @Param({"1", "4"})
+    public int deviceCount;
+
+    @Param({NONE, OVERLOAD})
+    public String load;
+
+    private LoopbackMidiTransport transport;
+    private MidiLoadGenerator loadGenerator;
+    private MidiTransport.InputPort[] inputPorts;
+    private final List<CountingReceiver> receivers = new ArrayList<>();
+    private final AtomicInteger nextThreadIndex = new AtomicInteger();
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Parses the received packets, and counts the messages
+     */
+    private static final class CountingReceiver implements MidiTransport.Receiver, MidiParser.OnMidiEventListener {
+        private final MidiParser midiParser = new MidiParser(this, new SystemExclusiveBufferPool(64 * 1024, 4));
+        // written by the receiving thread only
+        private volatile long messageCount;
+
+        @Override
+        public void onSend(byte[] data, int offset, int count, long timestamp) {
+            midiParser.parse(data, offset, count, timestamp);
+        }
+
+        @Override
+        public void onFlush() {
+            midiParser.reset();
+        }
+
+        @Override
+        public void onMidiMessage(int status, int data1, int data2, long timestamp) {
+            messageCount = messageCount + 1;
+        }
+
+        @Override
+        public void onMidiSystemExclusive(byte[] data, int offset, int length, long timestamp) {
+            messageCount = messageCount + 1;
+        }
+
+        @Override
+        public void onMidiSystemExclusiveChunk(byte[] data, int offset, int length, boolean last, long timestamp) {
+        }
+    }
+
+    private MidiTransport.Device openDevice(MidiTransport.DeviceInfo deviceInfo) {
+        final MidiTransport.Device[] opened = new MidiTransport.Device[1];
+        transport.openDevice(deviceInfo, new MidiTransport.OnDeviceOpenedListener() {
+            @Override
+            public void onDeviceOpened(MidiTransport.Device device) {
+                opened[0] = device;
+            }
+        }, DIRECT);
+        return opened[0];
+    }
+
+    private void connectReceivers(MidiTransport.Device device) {
+        for (int i = 0; i < device.getInfo().getOutputPortCount(); i++) {
+            CountingReceiver receiver = new CountingReceiver();
+            device.openOutputPort(i).connect(receiver);
+            receivers.add(receiver);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        transport = new LoopbackMidiTransport();
+        inputPorts = new MidiTransport.InputPort[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            MidiTransport.Device device = openDevice(transport.addDevice("Loopback " + i, 1));
+            connectReceivers(device);
+            inputPorts[i] = device.openInputPort(0);
+        }
+
+        loadGenerator = new MidiLoadGenerator(transport);
+        if (OVERLOAD.equals(load)) {
+            MidiTransport.Device loadDevice = openDevice(transport.addDevice("Load", 2));
+            connectReceivers(loadDevice);
+            MidiTransport.DeviceInfo loadDeviceInfo = loadDevice.getInfo();
+            loadGenerator.addControlChangeFlood(loadDeviceInfo, 0, 0, MESSAGES_PER_PACKET);
+            loadGenerator.addClock(loadDeviceInfo, 0, 300);
+            loadGenerator.addSystemExclusive(loadDeviceInfo, 1, 4096, 64, 0, true);
+            loadGenerator.addHotPlugChurn("Churn", 4, 10);
+        }
+        loadGenerator.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        loadGenerator.stop();
+        for (CountingReceiver receiver : receivers) {
+            if (receiver.midiParser.getErrorCount() != 0) {
+                throw new IllegalStateException("Broken messages: " + receiver.midiParser.getErrorCount());
+            }
+            if (receiver.messageCount == 0) {
+                throw new IllegalStateException("No messages received");
+            }
+        }
+    }
+
+    /**
+     * The port and the packet of the sending thread
+     */
+    @State(Scope.Thread)
+    public static class Sender {
+        private final byte[] packet = new byte[MESSAGES_PER_PACKET * 3];
+        private MidiTransport.InputPort inputPort;
+        private int sequence;
+
+        @Setup(Level.Trial)
+        public void setup(LoopbackBenchmark benchmark) {
+            int index = benchmark.nextThreadIndex.getAndIncrement();
+            inputPort = benchmark.inputPorts[index % benchmark.inputPorts.length];
+        }
+    }
+
+    @Benchmark
+    public int send(Sender sender) throws IOException {
+        byte[] packet = sender.packet;
+        for (int i = 0; i < MESSAGES_PER_PACKET; i++) {
+            int sequence = sender.sequence++;
+            packet[i * 3] = (byte) (0xb0 | (sequence & 0xf));
+            packet[i * 3 + 1] = (byte) ((sequence >>> 4) % 120);
+            packet[i * 3 + 2] = (byte) (sequence & 0x7f);
+        }
+        sender.inputPort.send(packet, 0, packet.length, System.nanoTime());
+        return sender.sequence;
+    }
+}
@@ -0,0 +1,103 @@
+package jp.kshoji.interappmidi;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Realistic received packets and sent messages, for the benchmarks
+ */
+final class MidiTraffic {
+    static final String CLOCK = "clock";
+    static final String CC_SWEEP = "ccSweep";
+    static final String SYSEX = "sysex";
+    static final String CHORDS = "chords";
+
+    private static final int PACKET_COUNT = 1024;
+
+    private MidiTraffic() {
+    }
+
+    /**
+     * Creates the received packets
+     *
+     * @param traffic the traffic mix
+     * @param maxPacketSize the maximum size of a packet
+     * @return the packets
+     */
+    static byte[][] createPackets(String traffic, int maxPacketSize) {
+        if (SYSEX.equals(traffic)) {
+            // 16KB bulk dumps, split by the framework
+            byte[] dump = new byte[16 * 1024];
+            dump[0] = (byte) 0xf0;
+            for (int i = 1; i < dump.length - 1; i++) {
+                dump[i] = (byte) (i & 0x7f);
+            }
+            dump[dump.length - 1] = (byte) 0xf7;
+            return split(dump, maxPacketSize);
+        }
+
+        int[] messages = createMessages(traffic);
+        byte[][] packets = new byte[messages.length][];
+        for (int i = 0; i < messages.length; i++) {
+            // one message per packet, as most of the senders do
+            int length = MidiMessageEncoder.getMessageLength(messages[i] & 0xff);
+            packets[i] = new byte[length];
+            for (int j = 0; j < length; j++) {
+                packets[i][j] = (byte) (messages[i] >> (j * 8));
+            }
+        }
+        return packets;
+    }
+
+    /**
+     * Creates the packed messages to send
+     *
+     * @param traffic the traffic mix, except {@link #SYSEX}
+     * @return the packed messages, see {@link MidiMessageEncoder}
+     */
+    static int[] createMessages(String traffic) {
+        int[] messages = new int[PACKET_COUNT];
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            if (CLOCK.equals(traffic)) {
+                // 24 ppqn clock, with a note every 6 clocks
+                switch (i % 8) {
+                    case 6:
+                        messages[i] = MidiMessageEncoder.pack(0x99, 36 + (i >> 3) % 12, 100);
+                        break;
+                    case 7:
+                        messages[i] = MidiMessageEncoder.pack(0x89, 36 + (i >> 3) % 12, 0);
+                        break;
+                    default:
+                        messages[i] = MidiMessageEncoder.pack(0xf8, 0, 0);
+                        break;
+                }
+            } else if (CC_SWEEP.equals(traffic)) {
+                // filter sweeps on 4 channels, with pitch wheel
+                if (i % 4 == 3) {
+                    int bend = (i * 37) & 0x3fff;
+                    messages[i] = MidiMessageEncoder.pack(0xe0 | (i >> 2) & 3, bend & 0x7f, bend >> 7);
+                } else {
+                    messages[i] = MidiMessageEncoder.pack(0xb0 | (i & 3), 74, (i >> 2) & 0x7f);
+                }
+            } else if (CHORDS.equals(traffic)) {
+                // 4-note chords, note on then note off
+                int chord = i >> 3;
+                int note = 48 + chord % 24 + (i & 3) * 4;
+                messages[i] = (i & 4) == 0 ? MidiMessageEncoder.pack(0x90, note, 64 + (i & 0x3f)) : MidiMessageEncoder.pack(0x80, note, 0);
+            } else {
+                throw new IllegalArgumentException(traffic);
+            }
+        }
+        return messages;
+    }
+
+    private static byte[][] split(byte[] data, int maxPacketSize) {
+        int count = (data.length + maxPacketSize - 1) / maxPacketSize;
+        byte[][] packets = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            packet.write(data, i * maxPacketSize, Math.min(maxPacketSize, data.length - i * maxPacketSize));
+            packets[i] = packet.toByteArray();
+        }
+        return packets;
+    }
+}
@@ -0,0 +1,112 @@
+package jp.kshoji.interappmidi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the receive path of {@link InterAppMidiManager}: parsing the packets of a port, and delivering to Unity<br />
+ * The packets are delivered from a {@link LoopbackMidiTransport} device to the receiver of the manager, on the benchmark thread as the receiving thread of the port.
+ * The manager runs with the {@link JvmMidiHost}, which counts the messages sent with UnitySendMessage.<br />
+ * One operation is all packets of the traffic mix.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReceiveBenchmark {
+    @Param({MidiTraffic.CLOCK, MidiTraffic.CC_SWEEP, MidiTraffic.SYSEX, MidiTraffic.CHORDS})
+    public String traffic;
+
+    private byte[][] packets;
+    private JvmMidiHost host;
+    private LoopbackMidiTransport stringTransport;
+    private InterAppMidiManager stringManager;
+    private MidiTransport.DeviceInfo stringDevice;
+    private LoopbackMidiTransport pollingTransport;
+    private InterAppMidiManager pollingManager;
+    private MidiTransport.DeviceInfo pollingDevice;
+    private ByteBuffer pollBuffer;
+
+    /**
+     * Creates the manager with the loopback device, the receiving port of the device is opened on initialize
+     */
+    private InterAppMidiManager createManager(LoopbackMidiTransport transport) {
+        InterAppMidiManager manager = new InterAppMidiManager(host);
+        manager.initialize(null, false, InterAppMidiManager.DISPATCH_INLINE, 0, InterAppMidiManager.OVERFLOW_DROP_NEWEST, transport);
+        return manager;
+    }
+
+    private static void checkPortOpened(InterAppMidiManager manager, MidiTransport.DeviceInfo device) {
+        if (manager.getPortHandle("in:" + device.getId() + "-0") < 0) {
+            throw new IllegalStateException("The port of " + device.getName() + " is not opened");
+        }
+    }
+
+    @Setup
+    public void setup() throws InterruptedException {
+        host = new JvmMidiHost();
+        stringTransport = new LoopbackMidiTransport();
+        stringManager = createManager(stringTransport);
+        stringDevice = stringTransport.addDevice("Receive", 1);
+
+        pollingTransport = new LoopbackMidiTransport();
+        pollingManager = createManager(pollingTransport);
+        pollingManager.enableEventPolling(4096);
+        pollingManager.enableSystemExclusivePolling(64 * 1024);
+        pollingDevice = pollingTransport.addDevice("Poll", 1);
+
+        host.awaitIdle();
+        checkPortOpened(stringManager, stringDevice);
+        checkPortOpened(pollingManager, pollingDevice);
+
+        packets = MidiTraffic.createPackets(traffic, LoopbackMidiTransport.DEFAULT_MAX_MESSAGE_SIZE);
+        pollBuffer = ByteBuffer.allocateDirect(128 * 1024);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        stringManager.terminate();
+        pollingManager.terminate();
+        host.awaitIdle();
+        host.quit();
+        if (!host.failures.isEmpty()) {
+            throw new IllegalStateException("Failed: " + new ArrayList<>(host.failures));
+        }
+    }
+
+    /**
+     * UnitySendMessage with the formatted string for each event
+     */
+    @Benchmark
+    public int unitySendMessage() {
+        for (byte[] packet : packets) {
+            stringTransport.transmit(stringDevice, 0, packet, 0, packet.length, System.nanoTime());
+        }
+        return host.getMessageCount();
+    }
+
+    /**
+     * Binary records in the ring buffers, polled once per operation as once per frame
+     */
+    @Benchmark
+    public int eventPolling() {
+        for (byte[] packet : packets) {
+            pollingTransport.transmit(pollingDevice, 0, packet, 0, packet.length, System.nanoTime());
+        }
+        pollBuffer.clear();
+        int count = pollingManager.pollEvents(pollBuffer);
+        pollBuffer.clear();
+        count += pollingManager.pollSystemExclusives(pollBuffer);
+        return count;
+    }
+}
@@ -0,0 +1,83 @@
+package jp.kshoji.interappmidi;
+
+import android.media.midi.MidiInputPort;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the send path: encoding the messages and writing to the port<br />
+ * One operation is all messages of the traffic mix.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SendBenchmark {
+    private static final int MAX_PACKET_SIZE = 1015;
+
+    @Param({MidiTraffic.CLOCK, MidiTraffic.CC_SWEEP, MidiTraffic.CHORDS})
+    public String traffic;
+
+    private int[] messages;
+    private MidiInputPort midiInputPort;
+    private MidiMessageEncoder encoder;
+    private MidiMessageEncoder.PacketSender sender;
+
+    @Setup
+    public void setup() {
+        messages = MidiTraffic.createMessages(traffic);
+        midiInputPort = new MidiInputPort(MAX_PACKET_SIZE);
+        encoder = new MidiMessageEncoder(midiInputPort.getMaxMessageSize());
+        sender = new MidiMessageEncoder.PacketSender() {
+            @Override
+            public void send(byte[] data, int offset, int count, long timestamp) throws IOException {
+                midiInputPort.onSend(data, offset, count, timestamp);
+            }
+        };
+    }
+
+    /**
+     * A new array for each message, as the sendMidi* methods did before the encoder
+     */
+    @Benchmark
+    public long allocatingSend() throws IOException {
+        for (int message : messages) {
+            int length = MidiMessageEncoder.getMessageLength(message & 0xff);
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = (byte) (message >> (i * 8));
+            }
+            midiInputPort.onSend(data, 0, length, System.nanoTime());
+        }
+        return midiInputPort.sentBytes;
+    }
+
+    /**
+     * A packet for each message, with the reusable buffer
+     */
+    @Benchmark
+    public long singleSend() throws IOException {
+        for (int message : messages) {
+            encoder.encode(message, System.nanoTime(), sender);
+        }
+        return midiInputPort.sentBytes;
+    }
+
+    /**
+     * All messages in as few packets as possible, with the running status
+     */
+    @Benchmark
+    public long batchSend() throws IOException {
+        encoder.encode(messages, 0, messages.length, System.nanoTime(), sender);
+        return midiInputPort.sentBytes;
+    }
+}
@@ -0,0 +1,90 @@
+package jp.kshoji.interappmidi;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import com.unity3d.player.UnityPlayer;
+
+/**
+ * {@link MidiHost} backed by android.os and Unity
+ */
+final class AndroidMidiHost implements MidiHost {
+    static final AndroidMidiHost INSTANCE = new AndroidMidiHost();
+
+    // shared, so the callbacks posted by the previous initialization can be removed
+    private EventLoop mainEventLoop;
+
+    private AndroidMidiHost() {
+    }
+
+    private static class HandlerEventLoop implements EventLoop {
+        private final Handler handler;
+        // null for the main thread
+        private final HandlerThread handlerThread;
+
+        private HandlerEventLoop(Looper looper, HandlerThread handlerThread) {
+            handler = new Handler(looper);
+            this.handlerThread = handlerThread;
+        }
+
+        @Override
+        public void post(Runnable task) {
+            handler.post(task);
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            handler.postDelayed(task, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            handler.removeCallbacks(task);
+        }
+
+        @Override
+        public boolean isCurrentThread() {
+            return Looper.myLooper() == handler.getLooper();
+        }
+
+        @Override
+        public void quitSafely() {
+            if (handlerThread != null) {
+                handlerThread.quitSafely();
+            }
+        }
+    }
+
+    @Override
+    public int getSdkVersion() {
+        return Build.VERSION.SDK_INT;
+    }
+
+    @Override
+    public synchronized EventLoop getMainEventLoop() {
+        if (mainEventLoop == null) {
+            mainEventLoop = new HandlerEventLoop(Looper.getMainLooper(), null);
+        }
+        return mainEventLoop;
+    }
+
+    @Override
+    public EventLoop startEventLoop(String name, int priority) {
+        HandlerThread handlerThread = new HandlerThread(name, priority);
+        handlerThread.start();
+        return new HandlerEventLoop(handlerThread.getLooper(), handlerThread);
+    }
+
+    @Override
+    public void setThreadPriority(int priority) {
+        Process.setThreadPriority(priority);
+    }
+
+    @Override
+    public void sendMessage(String gameObjectName, String method, String message) {
+        UnityPlayer.UnitySendMessage(gameObjectName, method, message);
+    }
+}
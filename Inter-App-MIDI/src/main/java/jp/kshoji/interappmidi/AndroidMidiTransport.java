@@ -0,0 +1,284 @@
+package jp.kshoji.interappmidi;
+
+import android.content.Context;
+import android.media.midi.MidiDevice;
+import android.media.midi.MidiDeviceInfo;
+import android.media.midi.MidiDeviceStatus;
+import android.media.midi.MidiInputPort;
+import android.media.midi.MidiManager;
+import android.media.midi.MidiOutputPort;
+import android.media.midi.MidiReceiver;
+import android.os.Build;
+import android.os.Bundle;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link MidiTransport} backed by android.media.midi<br />
+ * On Android 13 or later, the devices of the byte stream and the Universal MIDI Packet transports are listed.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+final class AndroidMidiTransport implements MidiTransport {
+    private final MidiManager midiManager;
+    // guarded by itself
+    private final Map<DeviceCallback, List<MidiManager.DeviceCallback>> deviceCallbacks = new HashMap<>();
+
+    /**
+     * Creates the transport
+     *
+     * @param context the context
+     * @return the transport, null if the MIDI service is not available
+     */
+    static AndroidMidiTransport create(Context context) {
+        MidiManager midiManager = (MidiManager) context.getSystemService(Context.MIDI_SERVICE);
+        return midiManager != null ? new AndroidMidiTransport(midiManager) : null;
+    }
+
+    private AndroidMidiTransport(MidiManager midiManager) {
+        this.midiManager = midiManager;
+    }
+
+    /**
+     * Keeps the {@link MidiDeviceInfo} to open the device
+     */
+    private static final class AndroidDeviceInfo extends DeviceInfo {
+        private final MidiDeviceInfo midiDeviceInfo;
+
+        private AndroidDeviceInfo(MidiDeviceInfo midiDeviceInfo, Bundle properties, int protocol) {
+            super(midiDeviceInfo.getId(), properties.getString(MidiDeviceInfo.PROPERTY_NAME), properties.getString(MidiDeviceInfo.PROPERTY_PRODUCT), properties.getString(MidiDeviceInfo.PROPERTY_MANUFACTURER),
+                    midiDeviceInfo.getInputPortCount(), midiDeviceInfo.getOutputPortCount(), protocol, midiDeviceInfo.getType() == MidiDeviceInfo.TYPE_VIRTUAL);
+            this.midiDeviceInfo = midiDeviceInfo;
+        }
+    }
+
+    private static DeviceInfo toDeviceInfo(MidiDeviceInfo midiDeviceInfo) {
+        // the device with the known protocol uses the Universal MIDI Packets
+        int protocol = Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU ? midiDeviceInfo.getDefaultProtocol() : MidiDeviceInfo.PROTOCOL_UNKNOWN;
+        return new AndroidDeviceInfo(midiDeviceInfo, midiDeviceInfo.getProperties(), protocol);
+    }
+
+    @Override
+    public Set<DeviceInfo> getDevices() {
+        Set<MidiDeviceInfo> midiDeviceInfos;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            midiDeviceInfos = new HashSet<>(midiManager.getDevicesForTransport(MidiManager.TRANSPORT_MIDI_BYTE_STREAM));
+            midiDeviceInfos.addAll(midiManager.getDevicesForTransport(MidiManager.TRANSPORT_UNIVERSAL_MIDI_PACKETS));
+        } else {
+            midiDeviceInfos = new HashSet<>();
+            Collections.addAll(midiDeviceInfos, midiManager.getDevices());
+        }
+
+        Set<DeviceInfo> devices = new HashSet<>();
+        for (MidiDeviceInfo midiDeviceInfo : midiDeviceInfos) {
+            devices.add(toDeviceInfo(midiDeviceInfo));
+        }
+        return devices;
+    }
+
+    private static MidiManager.DeviceCallback createDeviceCallback(final DeviceCallback callback, final Executor executor) {
+        return new MidiManager.DeviceCallback() {
+            @Override
+            public void onDeviceAdded(final MidiDeviceInfo device) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onDeviceAdded(toDeviceInfo(device));
+                    }
+                });
+            }
+
+            @Override
+            public void onDeviceRemoved(final MidiDeviceInfo device) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onDeviceRemoved(toDeviceInfo(device));
+                    }
+                });
+            }
+
+            @Override
+            public void onDeviceStatusChanged(final MidiDeviceStatus status) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onDeviceStatusChanged(toDeviceInfo(status.getDeviceInfo()));
+                    }
+                });
+            }
+        };
+    }
+
+    @Override
+    public void registerDeviceCallback(DeviceCallback callback, Executor executor) {
+        List<MidiManager.DeviceCallback> registered = new ArrayList<>();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            // the callback is notified of the devices of the specified transport only
+            MidiManager.DeviceCallback byteStreamCallback = createDeviceCallback(callback, executor);
+            midiManager.registerDeviceCallback(MidiManager.TRANSPORT_MIDI_BYTE_STREAM, executor, byteStreamCallback);
+            registered.add(byteStreamCallback);
+            MidiManager.DeviceCallback universalMidiPacketCallback = createDeviceCallback(callback, executor);
+            midiManager.registerDeviceCallback(MidiManager.TRANSPORT_UNIVERSAL_MIDI_PACKETS, executor, universalMidiPacketCallback);
+            registered.add(universalMidiPacketCallback);
+        } else {
+            MidiManager.DeviceCallback deviceCallback = createDeviceCallback(callback, executor);
+            midiManager.registerDeviceCallback(deviceCallback, null);
+            registered.add(deviceCallback);
+        }
+        synchronized (deviceCallbacks) {
+            deviceCallbacks.put(callback, registered);
+        }
+    }
+
+    @Override
+    public void unregisterDeviceCallback(DeviceCallback callback) {
+        List<MidiManager.DeviceCallback> registered;
+        synchronized (deviceCallbacks) {
+            registered = deviceCallbacks.remove(callback);
+        }
+        if (registered != null) {
+            for (MidiManager.DeviceCallback deviceCallback : registered) {
+                midiManager.unregisterDeviceCallback(deviceCallback);
+            }
+        }
+    }
+
+    @Override
+    public void openDevice(final DeviceInfo device, final OnDeviceOpenedListener listener, final Executor executor) {
+        if (!(device instanceof AndroidDeviceInfo)) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onDeviceOpened(null);
+                }
+            });
+            return;
+        }
+
+        midiManager.openDevice(((AndroidDeviceInfo) device).midiDeviceInfo, new MidiManager.OnDeviceOpenedListener() {
+            @Override
+            public void onDeviceOpened(final MidiDevice midiDevice) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDeviceOpened(midiDevice != null ? new AndroidDevice(device, midiDevice) : null);
+                    }
+                });
+            }
+        }, null);
+    }
+
+    private static final class AndroidDevice implements Device {
+        private final DeviceInfo deviceInfo;
+        private final MidiDevice midiDevice;
+
+        private AndroidDevice(DeviceInfo deviceInfo, MidiDevice midiDevice) {
+            this.deviceInfo = deviceInfo;
+            this.midiDevice = midiDevice;
+        }
+
+        @Override
+        public DeviceInfo getInfo() {
+            return deviceInfo;
+        }
+
+        @Override
+        public InputPort openInputPort(int index) {
+            MidiInputPort midiInputPort = midiDevice.openInputPort(index);
+            return midiInputPort != null ? new AndroidInputPort(midiInputPort) : null;
+        }
+
+        @Override
+        public OutputPort openOutputPort(int index) {
+            MidiOutputPort midiOutputPort = midiDevice.openOutputPort(index);
+            return midiOutputPort != null ? new AndroidOutputPort(midiOutputPort) : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            midiDevice.close();
+        }
+    }
+
+    private static final class AndroidInputPort implements InputPort {
+        private final MidiInputPort midiInputPort;
+
+        private AndroidInputPort(MidiInputPort midiInputPort) {
+            this.midiInputPort = midiInputPort;
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return midiInputPort.getMaxMessageSize();
+        }
+
+        @Override
+        public void send(byte[] data, int offset, int count, long timestamp) throws IOException {
+            // the length is checked by the caller
+            midiInputPort.onSend(data, offset, count, timestamp);
+        }
+
+        @Override
+        public void close() throws IOException {
+            midiInputPort.close();
+        }
+    }
+
+    private static final class AndroidOutputPort implements OutputPort {
+        private final MidiOutputPort midiOutputPort;
+        // guarded by itself
+        private final Map<Receiver, MidiReceiver> midiReceivers = new HashMap<>();
+
+        private AndroidOutputPort(MidiOutputPort midiOutputPort) {
+            this.midiOutputPort = midiOutputPort;
+        }
+
+        @Override
+        public void connect(final Receiver receiver) {
+            MidiReceiver midiReceiver = new MidiReceiver() {
+                @Override
+                public void onSend(byte[] message, int offset, int count, long timestamp) throws IOException {
+                    receiver.onSend(message, offset, count, timestamp);
+                }
+
+                @Override
+                public void onFlush() throws IOException {
+                    receiver.onFlush();
+                }
+            };
+            synchronized (midiReceivers) {
+                if (midiReceivers.containsKey(receiver)) {
+                    return;
+                }
+                midiReceivers.put(receiver, midiReceiver);
+            }
+            midiOutputPort.onConnect(midiReceiver);
+        }
+
+        @Override
+        public void disconnect(Receiver receiver) {
+            MidiReceiver midiReceiver;
+            synchronized (midiReceivers) {
+                midiReceiver = midiReceivers.remove(receiver);
+            }
+            if (midiReceiver != null) {
+                midiOutputPort.onDisconnect(midiReceiver);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            midiOutputPort.close();
+        }
+    }
+}
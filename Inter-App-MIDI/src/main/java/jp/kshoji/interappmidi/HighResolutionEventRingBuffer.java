@@ -0,0 +1,162 @@
+package jp.kshoji.interappmidi;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer / single-consumer ring buffer of the MIDI 2.0 Channel Voice event records<br />
+ * The MIDI 1.0 channel messages are stored with the values scaled up to the MIDI 2.0 resolution.
+ * The records are stored in a direct {@link ByteBuffer} with the native byte order.<br />
+ * <br />
+ * Record layout ({@link #EVENT_SIZE} bytes):
+ * <pre>
+ * offset  size  content
+ *      0     4  port handle (int)
+ *      4     1  status, the MIDI 2.0 opcode and the channel: 0x8n-0xen, 0x2n for RPN, 0x3n for NRPN, 0x4n for relative RPN, 0x5n for relative NRPN
+ *      5     1  index, the note number, the controller number, the program number, or the RPN/NRPN index(LSB)
+ *      6     1  bank, the note attribute type, the bank valid flag of Program Change, or the RPN/NRPN bank(MSB)
+ *      7     1  group
+ *      8     4  value (int), the 16-bit velocity, the bank(MSB &lt;&lt; 7 | LSB) of Program Change, the signed step of relative RPN/NRPN, or the unsigned 32-bit value
+ *     12     4  extra (int), the note attribute data, 0 for the other messages
+ *     16     8  timestamp, System.nanoTime() base (long)
+ * </pre>
+ */
+final class HighResolutionEventRingBuffer {
+    static final int EVENT_SIZE = 24;
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer readBuffer;
+    private final int capacity;
+    private final int mask;
+
+    // written by the consumer only
+    private final AtomicLong head = new AtomicLong();
+    // written by the producer only
+    private final AtomicLong tail = new AtomicLong();
+    // written by the producer only
+    private volatile long droppedEventCount;
+
+    /**
+     * Constructor
+     *
+     * @param capacity the number of the records, rounded up to the power of two
+     */
+    HighResolutionEventRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        buffer = ByteBuffer.allocateDirect(size * EVENT_SIZE).order(ByteOrder.nativeOrder());
+        readBuffer = buffer.duplicate();
+    }
+
+    /**
+     * Writes an event, called from the producer thread
+     *
+     * @return false if the buffer is full and the event has been dropped
+     */
+    boolean offer(int portHandle, int group, int status, int index, int bank, int value, int extra, long timestamp) {
+        final long currentTail = tail.get();
+        if (currentTail - head.get() >= capacity) {
+            // single writer: no need to be atomic
+            droppedEventCount = droppedEventCount + 1;
+            return false;
+        }
+
+        final int position = (int) (currentTail & mask) * EVENT_SIZE;
+        buffer.putInt(position, portHandle);
+        buffer.put(position + 4, (byte) status);
+        buffer.put(position + 5, (byte) index);
+        buffer.put(position + 6, (byte) bank);
+        buffer.put(position + 7, (byte) group);
+        buffer.putInt(position + 8, value);
+        buffer.putInt(position + 12, extra);
+        buffer.putLong(position + 16, timestamp);
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    /**
+     * Writes an event record to the current position of the destination
+     *
+     * @param destination the buffer, must have at least {@link #EVENT_SIZE} bytes remaining
+     */
+    static void putEvent(ByteBuffer destination, int portHandle, int group, int status, int index, int bank, int value, int extra, long timestamp) {
+        destination.putInt(portHandle);
+        destination.put((byte) status);
+        destination.put((byte) index);
+        destination.put((byte) bank);
+        destination.put((byte) group);
+        destination.putInt(value);
+        destination.putInt(extra);
+        destination.putLong(timestamp);
+    }
+
+    /**
+     * Writes a MIDI 1.0 channel message, with the values scaled up to the MIDI 2.0 resolution
+     *
+     * @return false if the buffer is full and the event has been dropped
+     */
+    boolean offerMidi1(int portHandle, int status, int data1, int data2, long timestamp) {
+        final int channel = status & 0xf;
+        switch (status & 0xf0) {
+            case 0x80:
+                return offer(portHandle, 0, status, data1, 0, UmpEncoder.scaleUp(data2, 7, 16), 0, timestamp);
+            case 0x90:
+                if (data2 == 0) {
+                    // Note Off with the default velocity
+                    return offer(portHandle, 0, 0x80 | channel, data1, 0, UmpEncoder.scaleUp(64, 7, 16), 0, timestamp);
+                }
+                return offer(portHandle, 0, status, data1, 0, UmpEncoder.scaleUp(data2, 7, 16), 0, timestamp);
+            case 0xa0:
+            case 0xb0:
+                return offer(portHandle, 0, status, data1, 0, UmpEncoder.scaleUp(data2, 7, 32), 0, timestamp);
+            case 0xc0:
+                return offer(portHandle, 0, status, data1, 0, 0, 0, timestamp);
+            case 0xd0:
+                return offer(portHandle, 0, status, 0, 0, UmpEncoder.scaleUp(data1, 7, 32), 0, timestamp);
+            case 0xe0:
+                return offer(portHandle, 0, status, 0, 0, UmpEncoder.scaleUp(data1 | (data2 << 7), 14, 32), 0, timestamp);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Copies the events to the destination, called from the consumer thread<br />
+     * The destination's position is advanced by the copied bytes.
+     *
+     * @param destination the buffer to fill, records are written as long as the remaining space allows
+     * @return the number of the copied events
+     */
+    int drainTo(ByteBuffer destination) {
+        final long currentHead = head.get();
+        final int available = (int) (tail.get() - currentHead);
+        final int count = Math.min(available, destination.remaining() / EVENT_SIZE);
+        if (count <= 0) {
+            return 0;
+        }
+
+        final int start = (int) (currentHead & mask);
+        final int firstCount = Math.min(count, capacity - start);
+        readBuffer.limit((start + firstCount) * EVENT_SIZE).position(start * EVENT_SIZE);
+        destination.put(readBuffer);
+        if (firstCount < count) {
+            readBuffer.limit((count - firstCount) * EVENT_SIZE).position(0);
+            destination.put(readBuffer);
+        }
+
+        head.lazySet(currentHead + count);
+        return count;
+    }
+
+    /**
+     * @return the number of the events dropped because the buffer was full
+     */
+    long getDroppedEventCount() {
+        return droppedEventCount;
+    }
+}
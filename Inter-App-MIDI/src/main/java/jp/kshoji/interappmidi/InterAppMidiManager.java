@@ -1,85 +1,406 @@
 package jp.kshoji.interappmidi;
 
 import android.content.Context;
-import android.media.midi.MidiDevice;
 import android.media.midi.MidiDeviceInfo;
-import android.media.midi.MidiInputPort;
-import android.media.midi.MidiManager;
-import android.media.midi.MidiOutputPort;
-import android.media.midi.MidiReceiver;
 import android.os.Build;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
+import android.os.Process;
 
+import androidx.annotation.ChecksSdkIntAtLeast;
 import androidx.annotation.RequiresApi;
 
-import com.unity3d.player.UnityPlayer;
-
+import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Inter-App MIDI Plugin for Unity
  */
 public class InterAppMidiManager {
-    private MidiManager midiManager;
-    private final Handler handler = new Handler(Looper.getMainLooper());
-
-    private final Map<String, MidiInputPort> inputPortMap = new HashMap<>();
-    private final Map<String, InterAppMidiReceiver> receiverMap = new HashMap<>();
-    private final Map<String, MidiOutputPort> outputPortMap = new HashMap<>();
-    private final Map<MidiDeviceInfo, MidiDevice> openedDeviceMap = new HashMap<>();
-    private final Map<String, String> deviceNameMap = new HashMap<>();
-    private final Map<String, String> productIdMap = new HashMap<>();
-    private final Map<String, String> vendorIdMap = new HashMap<>();
+    /**
+     * Latency from the packet timestamp to the dispatch on the receiving thread
+     */
+    public static final int LATENCY_DISPATCH = 0;
+    /**
+     * Latency from the packet timestamp to the consumption by Unity
+     */
+    public static final int LATENCY_CONSUME = 1;
+
+    /**
+     * Delivers the received events on the receiving thread, the device events on the main thread
+     */
+    public static final int DISPATCH_INLINE = 0;
+    /**
+     * Delivers the received events on a dedicated elevated priority thread, the device events on the main thread
+     */
+    public static final int DISPATCH_THREAD = 1;
+    /**
+     * Delivers the received events and the device events on a dedicated {@link android.os.HandlerThread}, instead of the main thread
+     */
+    public static final int DISPATCH_HANDLER_THREAD = 2;
+
+    /**
+     * Discards the oldest queued event when the dispatch queue is full
+     */
+    public static final int OVERFLOW_DROP_OLDEST = MidiEventDispatcher.POLICY_DROP_OLDEST;
+    /**
+     * Discards the new event when the dispatch queue is full
+     */
+    public static final int OVERFLOW_DROP_NEWEST = MidiEventDispatcher.POLICY_DROP_NEWEST;
+    /**
+     * Keeps only the latest value of the continuous events for each channel and controller,
+     * and discards the other new events when the dispatch queue is full
+     */
+    public static final int OVERFLOW_COALESCE = MidiEventDispatcher.POLICY_COALESCE;
+    /**
+     * Blocks the receiving thread until the dispatch queue has room
+     */
+    public static final int OVERFLOW_BLOCK = MidiEventDispatcher.POLICY_BLOCK;
+
+    /**
+     * The default name of the GameObject receiving the messages sent with UnitySendMessage
+     */
+    public static final String DEFAULT_GAME_OBJECT_NAME = "MidiManager";
+
+    /**
+     * Receives the System Exclusive messages longer than the maximum length, in chunks
+     */
+    public interface OnMidiSystemExclusiveChunkListener {
+        /**
+         * Called on the receiving thread, when a part of the long System Exclusive message has been received<br />
+         * The first chunk starts with 0xf0, and the last chunk ends with 0xf7.
+         * If the message has been interrupted, an empty chunk is delivered as the last chunk.
+         *
+         * @param portHandle the port handle
+         * @param data the buffer, the contents are valid only while this call
+         * @param offset the offset of the chunk
+         * @param length the length of the chunk
+         * @param last true if this is the last chunk of the message
+         * @param timestamp the timestamp of the chunk
+         */
+        void onMidiSystemExclusiveChunk(int portHandle, byte[] data, int offset, int length, boolean last, long timestamp);
+    }
+
+    /**
+     * Receives the parsed MIDI events as the primitive values, without formatting to the strings<br />
+     * Called on the receiving thread of the port, for the messages passing the message filter, so the listener should return quickly.
+     * The MIDI 2.0 messages are delivered as translated to MIDI 1.0.
+     */
+    public interface OnMidiInputEventListener {
+        void onMidiNoteOff(int portHandle, int channel, int note, int velocity, long timestamp);
+
+        void onMidiNoteOn(int portHandle, int channel, int note, int velocity, long timestamp);
+
+        void onMidiPolyphonicAftertouch(int portHandle, int channel, int note, int pressure, long timestamp);
+
+        void onMidiControlChange(int portHandle, int channel, int function, int value, long timestamp);
+
+        void onMidiProgramChange(int portHandle, int channel, int program, long timestamp);
+
+        void onMidiChannelAftertouch(int portHandle, int channel, int pressure, long timestamp);
+
+        /**
+         * @param amount the amount, 0-16383 and 8192 is the center
+         */
+        void onMidiPitchWheel(int portHandle, int channel, int amount, long timestamp);
+
+        /**
+         * Called for the System Common and the System Realtime messages
+         *
+         * @param status the status byte, 0xf1-0xff
+         * @param data1 the first data byte, 0 if not used
+         * @param data2 the second data byte, 0 if not used
+         */
+        void onMidiSystemMessage(int portHandle, int status, int data1, int data2, long timestamp);
+
+        /**
+         * Called for the System Exclusive messages not longer than the maximum length
+         *
+         * @param data the buffer, the contents are valid only while this call
+         * @param offset the offset of the message, starts with 0xf0
+         * @param length the length of the message, including 0xf0 and 0xf7
+         */
+        void onMidiSystemExclusive(int portHandle, byte[] data, int offset, int length, long timestamp);
+    }
+
+    /**
+     * {@link OnMidiInputEventListener} doing nothing, override the methods of the needed events
+     */
+    public static class MidiInputEventAdapter implements OnMidiInputEventListener {
+        @Override
+        public void onMidiNoteOff(int portHandle, int channel, int note, int velocity, long timestamp) {
+        }
+
+        @Override
+        public void onMidiNoteOn(int portHandle, int channel, int note, int velocity, long timestamp) {
+        }
+
+        @Override
+        public void onMidiPolyphonicAftertouch(int portHandle, int channel, int note, int pressure, long timestamp) {
+        }
+
+        @Override
+        public void onMidiControlChange(int portHandle, int channel, int function, int value, long timestamp) {
+        }
+
+        @Override
+        public void onMidiProgramChange(int portHandle, int channel, int program, long timestamp) {
+        }
+
+        @Override
+        public void onMidiChannelAftertouch(int portHandle, int channel, int pressure, long timestamp) {
+        }
+
+        @Override
+        public void onMidiPitchWheel(int portHandle, int channel, int amount, long timestamp) {
+        }
+
+        @Override
+        public void onMidiSystemMessage(int portHandle, int status, int data1, int data2, long timestamp) {
+        }
+
+        @Override
+        public void onMidiSystemExclusive(int portHandle, byte[] data, int offset, int length, long timestamp) {
+        }
+    }
+
+    private static final int DEFAULT_MAX_SYSTEM_EXCLUSIVE_LENGTH = 64 * 1024;
+    private static final int SYSTEM_EXCLUSIVE_BUFFER_POOL_SIZE = 4;
+    private static final MidiRoute[] NO_ROUTES = new MidiRoute[0];
+    private static final OnMidiInputEventListener[] NO_INPUT_EVENT_LISTENERS = new OnMidiInputEventListener[0];
+
+    private final MidiHost host;
+    // written by the calling thread of initialize and terminate, read by the handler thread and the connection watcher
+    private volatile MidiTransport transport;
+    private volatile MidiHost.EventLoop handler;
+    private final Executor handlerExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    };
+    // the dedicated handler thread, null while the handler runs on the main thread
+    private MidiHost.EventLoop handlerThread;
+    private volatile MidiEventDispatcher dispatcher;
+
+    // read lock-free from any thread, written with the lock of portTable
+    // the lock also serializes the settings pushed to the receivers with the port registration
+    private final MidiPortTable<MidiPort> portTable = new MidiPortTable<>();
+    private final Map<String, MidiPort> portMap = new ConcurrentHashMap<>();
+    private final MidiPortTable<MidiRoute> routeTable = new MidiPortTable<>();
+    // accessed on the handler thread only
+    private final Map<MidiTransport.DeviceInfo, MidiTransport.Device> openedDeviceMap = new HashMap<>();
+    private final Set<MidiTransport.DeviceInfo> openingDeviceSet = new HashSet<>();
+    // the devices of the registered ports
+    private final Set<MidiTransport.DeviceInfo> discoveredDeviceSet = new HashSet<>();
+    private MidiTransport.DeviceCallback deviceCallback;
     private Thread connectionWatcher;
     private volatile boolean connectionWatcherEnabled;
+    private volatile boolean portHandleMessageEnabled;
+    private volatile boolean lazyPortOpeningEnabled;
+    private volatile long idlePortTimeout;
+    private final Runnable idlePortCheckTask = new Runnable() {
+        @Override
+        public void run() {
+            if (isMidiSupported()) {
+                closeIdleMidiPorts();
+            }
+        }
+    };
+    private final AtomicBoolean expiredAggregationFlushScheduled = new AtomicBoolean();
+    private final Runnable expiredAggregationFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            expiredAggregationFlushScheduled.set(false);
+            if (isMidiSupported()) {
+                flushExpiredAggregations();
+            }
+        }
+    };
+    private volatile int eventBufferCapacity;
+    private volatile int highResolutionEventBufferCapacity;
+    private volatile boolean coalescingEnabled;
+    private volatile boolean latencyTrackingEnabled;
+    private volatile SystemExclusiveBufferPool systemExclusiveBufferPool = new SystemExclusiveBufferPool(DEFAULT_MAX_SYSTEM_EXCLUSIVE_LENGTH, SYSTEM_EXCLUSIVE_BUFFER_POOL_SIZE);
+    private volatile int systemExclusiveBufferCapacity;
+    private volatile OnMidiSystemExclusiveChunkListener systemExclusiveChunkListener;
+    private volatile int clockTrackingBeatsPerBar;
+    private volatile int globalTypeMask = MidiMessageFilter.ALL_TYPES;
+    private volatile int globalChannelMask = MidiMessageFilter.ALL_CHANNELS;
+    private volatile boolean clockForwardingEnabled = true;
+    // copy-on-write, written with the lock of portTable
+    private volatile OnMidiInputEventListener[] inputEventListeners = NO_INPUT_EVENT_LISTENERS;
+    private volatile boolean unityMessageEnabled = true;
+    private volatile String gameObjectName = DEFAULT_GAME_OBJECT_NAME;
+    // guarded by portTable
+    private MidiFileRecorder recorder;
+    // guarded by this
+    private MidiFilePlayer midiFilePlayer;
+    private long midiFileLookAhead = MidiFilePlayer.DEFAULT_LOOK_AHEAD;
+    private final CoalescedEventWriter coalescedEventWriter = new CoalescedEventWriter();
+    private final HighResolutionControllerEventWriter highResolutionControllerEventWriter = new HighResolutionControllerEventWriter();
+    private MidiOutputScheduler outputScheduler;
+    private final SystemExclusiveTransferEngine systemExclusiveTransferEngine = new SystemExclusiveTransferEngine();
+
+    public InterAppMidiManager() {
+        this(AndroidMidiHost.INSTANCE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param host the platform services, replaced to run on the JVM
+     */
+    InterAppMidiManager(MidiHost host) {
+        this.host = host;
+        handler = host.getMainEventLoop();
+    }
 
     public void initialize(Context context) {
-        inputPortMap.clear();
-        receiverMap.clear();
-        outputPortMap.clear();
-        openedDeviceMap.clear();
-        deviceNameMap.clear();
-        productIdMap.clear();
-        vendorIdMap.clear();
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            midiManager = (MidiManager) context.getSystemService(Context.MIDI_SERVICE);
-
-            if (midiManager != null) {
+        initialize(context, false);
+    }
+
+    /**
+     * Initializes the plugin
+     *
+     * @param context the context
+     * @param connectionPollingEnabled true: detects the device connections by polling every second(fallback mode), false: with the {@link android.media.midi.MidiManager.DeviceCallback}
+     */
+    public void initialize(Context context, boolean connectionPollingEnabled) {
+        initialize(context, connectionPollingEnabled, DISPATCH_INLINE, 0, OVERFLOW_DROP_NEWEST);
+    }
+
+    /**
+     * Initializes the plugin, with the threading model of the event delivery<br />
+     * With {@link #DISPATCH_THREAD} and {@link #DISPATCH_HANDLER_THREAD}, the received events are queued on the receiving thread,
+     * and sent with UnitySendMessage from the dispatching thread, so the stalls of Unity don't block the receiving thread.
+     * The parsing, the routing, the recording and the event polling still run on the receiving thread.
+     *
+     * @param context the context
+     * @param connectionPollingEnabled true: detects the device connections by polling every second(fallback mode), false: with the {@link android.media.midi.MidiManager.DeviceCallback}
+     * @param dispatchMode {@link #DISPATCH_INLINE}, {@link #DISPATCH_THREAD} or {@link #DISPATCH_HANDLER_THREAD}
+     * @param queueCapacity the maximum number of the queued events, ignored with {@link #DISPATCH_INLINE}
+     * @param overflowPolicy the behavior when the queue is full: {@link #OVERFLOW_DROP_OLDEST}, {@link #OVERFLOW_DROP_NEWEST}, {@link #OVERFLOW_COALESCE} or {@link #OVERFLOW_BLOCK}
+     */
+    public void initialize(Context context, boolean connectionPollingEnabled, int dispatchMode, int queueCapacity, int overflowPolicy) {
+        initialize(context, connectionPollingEnabled, dispatchMode, queueCapacity, overflowPolicy, null);
+    }
+
+    /**
+     * Initializes the plugin, with the source of the devices<br />
+     * LoopbackMidiTransport of the test fixtures provides the simulated devices, to run the plugin on the JVM without the other applications.
+     * If already initialized, {@link #terminate()} is called first.
+     *
+     * @param context the context
+     * @param connectionPollingEnabled true: detects the device connections by polling every second(fallback mode), false: with the {@link android.media.midi.MidiManager.DeviceCallback}
+     * @param dispatchMode {@link #DISPATCH_INLINE}, {@link #DISPATCH_THREAD} or {@link #DISPATCH_HANDLER_THREAD}
+     * @param queueCapacity the maximum number of the queued events, ignored with {@link #DISPATCH_INLINE}
+     * @param overflowPolicy the behavior when the queue is full: {@link #OVERFLOW_DROP_OLDEST}, {@link #OVERFLOW_DROP_NEWEST}, {@link #OVERFLOW_COALESCE} or {@link #OVERFLOW_BLOCK}
+     * @param midiTransport the source of the devices, or null for android.media.midi
+     * @see #initialize(Context, boolean, int, int, int)
+     */
+    void initialize(Context context, boolean connectionPollingEnabled, int dispatchMode, int queueCapacity, int overflowPolicy, MidiTransport midiTransport) {
+        if (transport != null || dispatcher != null || handlerThread != null) {
+            // initialized again: stops the threads and closes the devices of the previous initialization
+            terminate();
+        }
+
+        if (dispatchMode == DISPATCH_HANDLER_THREAD) {
+            handler.removeCallbacks(idlePortCheckTask);
+            handlerThread = host.startEventLoop("InterAppMidiManager", Process.THREAD_PRIORITY_AUDIO);
+            handler = handlerThread;
+            dispatcher = new MidiEventDispatcher(queueCapacity, overflowPolicy, handlerExecutor);
+        } else if (dispatchMode == DISPATCH_THREAD) {
+            final MidiEventDispatcher eventDispatcher = new MidiEventDispatcher(queueCapacity, overflowPolicy, null);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    host.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                    eventDispatcher.run();
+                }
+            }, "MidiEventDispatcher");
+            thread.start();
+            dispatcher = eventDispatcher;
+        }
+        scheduleIdlePortCheck();
+
+        runOnHandlerThread(new Runnable() {
+            @Override
+            public void run() {
+                portTable.clear();
+                portMap.clear();
+                openedDeviceMap.clear();
+                openingDeviceSet.clear();
+                discoveredDeviceSet.clear();
+            }
+        });
+
+        if (isMidiSupported()) {
+            final MidiTransport watchedTransport = midiTransport != null ? midiTransport : AndroidMidiTransport.create(context);
+            transport = watchedTransport;
+
+            if (watchedTransport != null) {
+                if (!connectionPollingEnabled) {
+                    deviceCallback = createDeviceCallback();
+                    watchedTransport.registerDeviceCallback(deviceCallback, handlerExecutor);
+
+                    // opens the devices already connected
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (transport != watchedTransport) {
+                                return;
+                            }
+                            for (MidiTransport.DeviceInfo device : watchedTransport.getDevices()) {
+                                openMidiDevice(device);
+                            }
+                        }
+                    });
+                    return;
+                }
+
+                // enabled before started, so terminate called before the thread runs stops it
+                connectionWatcherEnabled = true;
                 connectionWatcher = new Thread(new Runnable() {
                     @Override
                     public void run() {
-                        connectionWatcherEnabled = true;
-                        while (connectionWatcherEnabled) {
-                            Set<MidiDeviceInfo> devices;
-                            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-                                devices = midiManager.getDevicesForTransport(MidiManager.TRANSPORT_MIDI_BYTE_STREAM);
-                            } else {
-                                devices = new HashSet<>();
-                                Collections.addAll(devices, midiManager.getDevices());
-                            }
+                        // the transport of this initialization: terminate clears the field, and the next initialization may set another
+                        while (connectionWatcherEnabled && transport == watchedTransport) {
+                            final Set<MidiTransport.DeviceInfo> devices = watchedTransport.getDevices();
+                            handler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (!connectionWatcherEnabled || transport != watchedTransport) {
+                                        return;
+                                    }
 
-                            // detect opened
-                            for (MidiDeviceInfo device : devices) {
-                                openMidiDevice(device);
-                            }
+                                    // detect opened
+                                    for (MidiTransport.DeviceInfo device : devices) {
+                                        openMidiDevice(device);
+                                    }
 
-                            // detect closed
-                            for (MidiDeviceInfo connectedDevice : openedDeviceMap.keySet()) {
-                                if (!devices.contains(connectedDevice)) {
-                                    MidiDevice removed = openedDeviceMap.remove(connectedDevice);
-                                    if (removed != null) {
-                                        closeMidiDevice(removed);
+                                    // detect closed
+                                    List<MidiTransport.DeviceInfo> closedDevices = new ArrayList<>();
+                                    for (MidiTransport.DeviceInfo connectedDevice : discoveredDeviceSet) {
+                                        if (!devices.contains(connectedDevice)) {
+                                            closedDevices.add(connectedDevice);
+                                        }
+                                    }
+                                    for (MidiTransport.DeviceInfo closedDevice : closedDevices) {
+                                        removeMidiDevice(closedDevice);
                                     }
                                 }
-                            }
+                            });
 
                             try {
                                 Thread.sleep(1000);
@@ -93,411 +414,3423 @@ public class InterAppMidiManager {
         }
     }
 
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private MidiTransport.DeviceCallback createDeviceCallback() {
+        return new MidiTransport.DeviceCallback() {
+            @Override
+            public void onDeviceAdded(MidiTransport.DeviceInfo device) {
+                openMidiDevice(device);
+            }
+
+            @Override
+            public void onDeviceRemoved(MidiTransport.DeviceInfo device) {
+                removeMidiDevice(device);
+            }
+
+            @Override
+            public void onDeviceStatusChanged(MidiTransport.DeviceInfo device) {
+                // the device may have become available
+                openMidiDevice(device);
+            }
+        };
+    }
+
     public void terminate() {
-        if (midiManager != null) {
+        stopRecording();
+
+        handler.removeCallbacks(idlePortCheckTask);
+        handler.removeCallbacks(expiredAggregationFlushTask);
+        expiredAggregationFlushScheduled.set(false);
+
+        MidiEventDispatcher eventDispatcher = dispatcher;
+        if (eventDispatcher != null) {
+            // releases the blocked receiving threads
+            eventDispatcher.close();
+            dispatcher = null;
+        }
+
+        synchronized (this) {
+            systemExclusiveTransferEngine.cancel(null);
+            if (midiFilePlayer != null) {
+                midiFilePlayer.close();
+                midiFilePlayer = null;
+            }
+            if (outputScheduler != null) {
+                outputScheduler.stop();
+                outputScheduler = null;
+            }
+        }
+
+        if (transport != null) {
             connectionWatcherEnabled = false;
             if (connectionWatcher != null) {
                 connectionWatcher.interrupt();
                 connectionWatcher = null;
             }
+            if (deviceCallback != null) {
+                transport.unregisterDeviceCallback(deviceCallback);
+                deviceCallback = null;
+            }
+            transport = null;
         }
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            for (MidiDeviceInfo connectedDevice : openedDeviceMap.keySet()) {
-                MidiDevice removed = openedDeviceMap.remove(connectedDevice);
-                if (removed != null) {
-                    closeMidiDevice(removed);
+        if (isMidiSupported()) {
+            runOnHandlerThread(new Runnable() {
+                @Override
+                public void run() {
+                    // the devices being opened are closed on opened
+                    openingDeviceSet.clear();
+                    for (MidiTransport.DeviceInfo device : new ArrayList<>(discoveredDeviceSet)) {
+                        removeMidiDevice(device);
+                    }
+                    for (MidiTransport.Device removed : openedDeviceMap.values()) {
+                        try {
+                            removed.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                    openedDeviceMap.clear();
                 }
-            }
+            });
+        }
+
+        if (handlerThread != null) {
+            // the tasks already posted are processed before quitting
+            handlerThread.quitSafely();
+            handlerThread = null;
+            handler = host.getMainEventLoop();
         }
     }
 
+    /**
+     * Runs the task on the handler thread, which owns the port registry<br />
+     * The task runs immediately if called on the handler thread.
+     */
+    private void runOnHandlerThread(Runnable task) {
+        if (handler.isCurrentThread()) {
+            task.run();
+        } else {
+            handler.post(task);
+        }
+    }
+
+    /**
+     * @return true if the API level supports android.media.midi
+     */
+    @ChecksSdkIntAtLeast(api = Build.VERSION_CODES.M)
+    private boolean isMidiSupported() {
+        return host.getSdkVersion() >= Build.VERSION_CODES.M;
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.M)
-    private static class InterAppMidiReceiver extends MidiReceiver {
-        private final String deviceId;
-        private InterAppMidiReceiver(String deviceId) {
-            this.deviceId = deviceId;
+    private static class InterAppMidiReceiver implements MidiTransport.Receiver, UmpParser.OnUmpEventListener, MidiClockTracker.OnClockEventListener, MidiEventDispatcher.Target {
+        private final MidiHost host;
+        private final int portHandle;
+        private volatile String portIdentifier;
+        private final MidiParser midiParser;
+        private final MidiPortMetrics metrics = new MidiPortMetrics();
+        private final StringBuilder stringBuilder = new StringBuilder();
+        private volatile MidiEventRingBuffer eventBuffer;
+        private volatile HighResolutionEventRingBuffer highResolutionEventBuffer;
+        private volatile SystemExclusiveRingBuffer systemExclusiveBuffer;
+        // set for the Universal MIDI Packet port, before connected
+        private volatile UmpParser umpParser;
+        // true while delivering the translation of a MIDI 2.0 message, used by the receiving thread only
+        private boolean translating;
+        private volatile OnMidiSystemExclusiveChunkListener systemExclusiveChunkListener;
+        private volatile MidiRoute[] routes = NO_ROUTES;
+        private volatile MidiClockTracker clockTracker;
+        private volatile boolean clockForwarding = true;
+        private volatile MidiFileRecorder.Source recordSource;
+        // the masks of this port
+        private int portTypeMask = MidiMessageFilter.ALL_TYPES;
+        private int portChannelMask = MidiMessageFilter.ALL_CHANNELS;
+        // the masks combined with the global masks
+        private volatile int typeMask = MidiMessageFilter.ALL_TYPES;
+        private volatile int channelMask = MidiMessageFilter.ALL_CHANNELS;
+        private volatile boolean coalescing;
+        private boolean coalescingEnabled;
+        // null for the inline delivery
+        private volatile MidiEventDispatcher dispatcher;
+        private volatile boolean latencyTracking;
+        private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+        private final LatencyHistogram consumeLatency = new LatencyHistogram();
+        private volatile MidiEventCoalescer coalescer;
+        private volatile MidiControllerAggregator controllerAggregator;
+        private volatile MidiControllerState controllerState;
+        private volatile OnMidiInputEventListener[] inputEventListeners = NO_INPUT_EVENT_LISTENERS;
+        private volatile boolean unityMessageEnabled = true;
+        private volatile String gameObjectName = DEFAULT_GAME_OBJECT_NAME;
+        private final AggregatedEventSender aggregatedEventSender = new AggregatedEventSender(stringBuilder);
+        // used by the handler thread delivering the expired values of the aggregator
+        private final AggregatedEventSender expiredAggregatedEventSender = new AggregatedEventSender(new StringBuilder());
+        // used by the receiving thread, writes the combined events to the high resolution event polling buffer
+        private final HighResolutionControllerEventWriter highResolutionControllerEventWriter = new HighResolutionControllerEventWriter();
+        // used by the thread delivering the coalesced events, or the dispatching thread
+        private final StringBuilder flushStringBuilder = new StringBuilder();
+        private final MidiEventCoalescer.OnMidiMessageListener coalescedEventSender = new MidiEventCoalescer.OnMidiMessageListener() {
+            @Override
+            public void onMidiMessage(int status, int data1, int data2, long timestamp) {
+                if (latencyTracking) {
+                    consumeLatency.record(System.nanoTime() - timestamp);
+                }
+                sendUnityMessage(flushStringBuilder, status, data1, data2, timestamp);
+            }
+        };
+        // used by the receiving thread, passes the coalesced values of a channel before the other events of the channel
+        private final MidiEventCoalescer.OnMidiMessageListener channelFlushSender = new MidiEventCoalescer.OnMidiMessageListener() {
+            @Override
+            public void onMidiMessage(int status, int data1, int data2, long timestamp) {
+                passThrough(status, data1, data2, timestamp);
+            }
+        };
+
+        /**
+         * Sends the combined events of the high resolution controllers
+         */
+        private class AggregatedEventSender implements MidiControllerAggregator.OnControllerEventListener {
+            private final StringBuilder stringBuilder;
+
+            private AggregatedEventSender(StringBuilder stringBuilder) {
+                this.stringBuilder = stringBuilder;
+            }
+
+            @Override
+            public void onHighResolutionControlChange(int channel, int controller, int value, long timestamp) {
+                sendUnityMessage("OnMidiHighResolutionControlChange", formatMessage(stringBuilder, timestamp, channel, controller, value));
+            }
+
+            @Override
+            public void onParameterChange(int channel, boolean registered, int parameter, int value, long timestamp) {
+                sendUnityMessage(registered ? "OnMidiRpnChange" : "OnMidiNrpnChange", formatMessage(stringBuilder, timestamp, channel, parameter, value));
+            }
+
+            @Override
+            public void onParameterStep(int channel, boolean registered, int parameter, int step, long timestamp) {
+                sendUnityMessage(registered ? "OnMidiRpnStep" : "OnMidiNrpnStep", formatMessage(stringBuilder, timestamp, channel, parameter, step));
+            }
+        }
+
+        private InterAppMidiReceiver(MidiHost host, String portIdentifier, int portHandle, SystemExclusiveBufferPool systemExclusiveBufferPool, MidiEventRingBuffer eventBuffer, boolean coalescing, boolean latencyTracking) {
+            this.host = host;
+            this.portIdentifier = portIdentifier;
+            this.portHandle = portHandle;
+            midiParser = new MidiParser(this, systemExclusiveBufferPool);
+            highResolutionControllerEventWriter.portHandle = portHandle;
+            this.eventBuffer = eventBuffer;
+            this.latencyTracking = latencyTracking;
+            setCoalescing(coalescing);
+        }
+
+        private void setCoalescing(boolean enabled) {
+            coalescingEnabled = enabled;
+            MidiEventDispatcher eventDispatcher = dispatcher;
+            // the coalescing overflow policy always coalesces the continuous events
+            final boolean coalesce = enabled || (eventDispatcher != null && eventDispatcher.getPolicy() == MidiEventDispatcher.POLICY_COALESCE);
+            if (coalesce && coalescer == null) {
+                coalescer = new MidiEventCoalescer();
+            }
+            coalescing = coalesce;
+        }
+
+        private void setDispatcher(MidiEventDispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+            setCoalescing(coalescingEnabled);
+        }
+
+        @Override
+        public void dispatchMidiMessage(int status, int data1, int data2, long timestamp) {
+            if (latencyTracking) {
+                consumeLatency.record(System.nanoTime() - timestamp);
+            }
+            sendUnityMessage(flushStringBuilder, status, data1, data2, timestamp);
+        }
+
+        @Override
+        public void dispatchMessage(String method, String message) {
+            host.sendMessage(gameObjectName, method, message);
+        }
+
+        @Override
+        public void flushCoalescedEvents() {
+            MidiEventCoalescer eventCoalescer = coalescer;
+            if (eventCoalescer != null && eventBuffer == null) {
+                eventCoalescer.flush(coalescedEventSender, Integer.MAX_VALUE);
+            }
+        }
+
+        /**
+         * Sends the formatted message with UnitySendMessage, or queues it to the dispatcher
+         */
+        private void sendUnityMessage(String method, String message) {
+            if (!unityMessageEnabled) {
+                return;
+            }
+            MidiEventDispatcher eventDispatcher = dispatcher;
+            if (eventDispatcher != null) {
+                eventDispatcher.offer(this, method, message);
+            } else {
+                host.sendMessage(gameObjectName, method, message);
+            }
         }
 
         @Override
         public void onSend(byte[] message, int offset, int count, long timestamp) throws IOException {
-            byte[] midiData = new byte[count];
-            System.arraycopy(message, offset, midiData, 0, count);
+            metrics.recordReceivedBytes(count);
+            UmpParser parser = umpParser;
+            if (parser != null) {
+                parser.parse(message, offset, count, timestamp);
+            } else {
+                midiParser.parse(message, offset, count, timestamp);
+            }
+        }
+
+        @Override
+        public void onFlush() throws IOException {
+            UmpParser parser = umpParser;
+            if (parser != null) {
+                parser.reset();
+            } else {
+                midiParser.reset();
+            }
+        }
+
+        @Override
+        public void onMidi2Message(int group, int status, int index, int bank, int value, int extra, long timestamp) {
+            HighResolutionEventRingBuffer buffer = highResolutionEventBuffer;
+            // RPN and NRPN are filtered as Control Change
+            if (buffer != null && MidiMessageFilter.accepts(status >= 0x80 ? status : 0xb0 | (status & 0xf), typeMask, channelMask)) {
+                buffer.offer(portHandle, group, status, index, bank, value, extra, timestamp);
+            }
+
+            translating = true;
+            try {
+                UmpParser.translate(status, index, bank, value, timestamp, this);
+            } finally {
+                translating = false;
+            }
+        }
+
+        @Override
+        public void onMidiMessage(int status, int data1, int data2, long timestamp) {
+            metrics.recordReceived(status);
+            MidiFileRecorder.Source source = recordSource;
+            if (source != null && status < 0xf0) {
+                source.events.offer(portHandle, status, data1, data2, timestamp);
+            }
+            for (MidiRoute route : routes) {
+                try {
+                    route.route(status, data1, data2, timestamp);
+                } catch (IOException ignored) {
+                }
+            }
+
+            // updated before the filter, so the filtered types can be queried
+            MidiControllerState state = controllerState;
+            if (state != null) {
+                state.update(status, data1, data2);
+            }
+
+            MidiClockTracker tracker = clockTracker;
+            if (tracker != null) {
+                tracker.onMidiMessage(status, data1, data2, timestamp);
+                if (status == 0xf8 && !clockForwarding) {
+                    return;
+                }
+            }
+
+            if (!MidiMessageFilter.accepts(status, typeMask, channelMask)) {
+                return;
+            }
+
+            OnMidiInputEventListener[] listeners = inputEventListeners;
+            if (listeners.length > 0) {
+                dispatchInputEvent(listeners, status, data1, data2, timestamp);
+            }
+
+            HighResolutionEventRingBuffer highResolutionBuffer = highResolutionEventBuffer;
+            if (highResolutionBuffer != null && status < 0xf0) {
+                // the translated messages have been stored with the full resolution
+                if (!translating) {
+                    MidiControllerAggregator aggregator = controllerAggregator;
+                    highResolutionControllerEventWriter.buffer = highResolutionBuffer;
+                    if (aggregator == null || !aggregator.offer(status, data1, data2, timestamp, highResolutionControllerEventWriter)) {
+                        highResolutionBuffer.offerMidi1(portHandle, status, data1, data2, timestamp);
+                    }
+                }
+                return;
+            }
+
+            // the polling buffer still receives the events without the Unity messages
+            if (!unityMessageEnabled && eventBuffer == null) {
+                return;
+            }
 
-            for (int i = 0; i < midiData.length;) {
-                switch (midiData[i] & 0xf0) {
+            MidiControllerAggregator aggregator = controllerAggregator;
+            if (aggregator != null && eventBuffer == null && aggregator.offer(status, data1, data2, timestamp, aggregatedEventSender)) {
+                return;
+            }
+
+            MidiEventCoalescer eventCoalescer = coalescer;
+            if (eventCoalescer != null) {
+                if (coalescing && eventCoalescer.offer(status, data1, data2, timestamp)) {
+                    MidiEventDispatcher eventDispatcher = dispatcher;
+                    if (eventDispatcher != null && eventBuffer == null) {
+                        eventDispatcher.requestFlush(this);
+                    }
+                    return;
+                }
+
+                final int type = status & 0xf0;
+                if (type == 0x80 || type == 0x90 || type == 0xc0) {
+                    // the notes and the program changes must follow the preceding continuous events of the channel
+                    eventCoalescer.flushChannel(status & 0xf, channelFlushSender);
+                }
+            }
+
+            passThrough(status, data1, data2, timestamp);
+        }
+
+        /**
+         * Delivers the event to the polling buffer, the dispatcher, or UnitySendMessage, called from the receiving thread
+         */
+        private void passThrough(int status, int data1, int data2, long timestamp) {
+            if (latencyTracking) {
+                dispatchLatency.record(System.nanoTime() - timestamp);
+            }
+
+            MidiEventRingBuffer buffer = eventBuffer;
+            if (buffer != null) {
+                buffer.offer(portHandle, status, data1, data2, timestamp);
+                return;
+            }
+
+            MidiEventDispatcher eventDispatcher = dispatcher;
+            if (eventDispatcher != null) {
+                eventDispatcher.offer(this, status, data1, data2, timestamp);
+                return;
+            }
+
+            sendUnityMessage(stringBuilder, status, data1, data2, timestamp);
+        }
+
+        /**
+         * Delivers the event to the listeners, in the registered order
+         */
+        private void dispatchInputEvent(OnMidiInputEventListener[] listeners, int status, int data1, int data2, long timestamp) {
+            final int channel = status & 0xf;
+            for (OnMidiInputEventListener listener : listeners) {
+                switch (status & 0xf0) {
                     case 0x80:
-                        if (midiData.length >= i + 3) {
-                            String data = new StringBuilder().append(deviceId).append(",0,")
-                                    .append(midiData[i] & 0xf).append(",")
-                                    .append(midiData[i + 1]).append(",")
-                                    .append(midiData[i + 2]).toString();
-                            UnityPlayer.UnitySendMessage("MidiManager", "OnMidiNoteOff", data);
-                        }
-                        i += 3;
+                        listener.onMidiNoteOff(portHandle, channel, data1, data2, timestamp);
                         break;
                     case 0x90:
-                        if (midiData.length >= i + 3) {
-                            String data = new StringBuilder().append(deviceId).append(",0,")
-                                    .append(midiData[i] & 0xf).append(",")
-                                    .append(midiData[i + 1]).append(",")
-                                    .append(midiData[i + 2]).toString();
-                            UnityPlayer.UnitySendMessage("MidiManager", "OnMidiNoteOn", data);
-                        }
-                        i += 3;
+                        listener.onMidiNoteOn(portHandle, channel, data1, data2, timestamp);
                         break;
                     case 0xa0: // Polyphonic Aftertouch
-                        if (midiData.length >= i + 3) {
-                            String data = new StringBuilder().append(deviceId).append(",0,")
-                                    .append(midiData[i] & 0xf).append(",")
-                                    .append(midiData[i + 1]).append(",")
-                                    .append(midiData[i + 2]).toString();
-                            UnityPlayer.UnitySendMessage("MidiManager", "OnMidiPolyphonicAftertouch", data);
-                        }
-                        i += 3;
+                        listener.onMidiPolyphonicAftertouch(portHandle, channel, data1, data2, timestamp);
                         break;
                     case 0xb0: // Control Change
-                        if (midiData.length >= i + 3) {
-                            String data = new StringBuilder().append(deviceId).append(",0,")
-                                    .append(midiData[i] & 0xf).append(",")
-                                    .append(midiData[i + 1]).append(",")
-                                    .append(midiData[i + 2]).toString();
-                            UnityPlayer.UnitySendMessage("MidiManager", "OnMidiControlChange", data);
-                        }
-                        i += 3;
+                        listener.onMidiControlChange(portHandle, channel, data1, data2, timestamp);
                         break;
                     case 0xc0: // Program Change
-                        if (midiData.length >= i + 2) {
-                            String data = new StringBuilder().append(deviceId).append(",0,")
-                                    .append(midiData[i] & 0xf).append(",")
-                                    .append(midiData[i + 1]).toString();
-                            UnityPlayer.UnitySendMessage("MidiManager", "OnMidiProgramChange", data);
-                        }
-                        i += 2;
+                        listener.onMidiProgramChange(portHandle, channel, data1, timestamp);
                         break;
                     case 0xd0: // Channel Aftertouch
-                        if (midiData.length >= i + 2) {
-                            String data = new StringBuilder().append(deviceId).append(",0,")
-                                    .append(midiData[i] & 0xf).append(",")
-                                    .append(midiData[i + 1]).toString();
-                            UnityPlayer.UnitySendMessage("MidiManager", "OnMidiChannelAftertouch", data);
-                        }
-                        i += 2;
+                        listener.onMidiChannelAftertouch(portHandle, channel, data1, timestamp);
                         break;
                     case 0xe0: // Pitch Wheel
-                        if (midiData.length >= i + 3) {
-                            String data = new StringBuilder().append(deviceId).append(",0,")
-                                    .append(midiData[i] & 0xf).append(",")
-                                    .append(midiData[i + 1] | (midiData[i + 2] << 7)).toString();
-                            UnityPlayer.UnitySendMessage("MidiManager", "OnMidiPitchWheel", data);
-                        }
-                        i += 3;
+                        listener.onMidiPitchWheel(portHandle, channel, data1 | (data2 << 7), timestamp);
                         break;
                     case 0xf0:
-                        switch (midiData[i] & 0xff) {
-                            case 0xf0: // Sysex
-                            {
-                                StringBuilder stringBuffer = new StringBuilder();
-                                stringBuffer.append(deviceId);
-                                stringBuffer.append(",0");
-                                boolean hasNextData = false;
-                                for (int j = i; j < midiData.length; j++) {
-                                    stringBuffer.append(",");
-                                    stringBuffer.append(midiData[j]);
-                                    if ((midiData[j] & 0xff) == 0xf7) {
-                                        i += j;
-                                        hasNextData = true;
-                                        break;
-                                    }
-                                }
-                                UnityPlayer.UnitySendMessage("MidiManager", "OnMidiSystemExclusive", stringBuffer.toString());
+                        listener.onMidiSystemMessage(portHandle, status, data1, data2, timestamp);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
 
-                                if (!hasNextData) {
-                                    i = midiData.length;
-                                }
-                            }
+        private void routeSystemExclusive(byte[] data, int offset, int length, boolean last, long timestamp) {
+            for (MidiRoute route : routes) {
+                try {
+                    route.routeSystemExclusive(data, offset, length, last, timestamp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public void onBeat(long beat, long timestamp) {
+            stringBuilder.setLength(0);
+            sendUnityMessage("OnMidiBeat", stringBuilder.append(portIdentifier).append(",").append(timestamp).append(",").append(beat).toString());
+        }
+
+        @Override
+        public void onBar(long bar, long timestamp) {
+            stringBuilder.setLength(0);
+            sendUnityMessage("OnMidiBar", stringBuilder.append(portIdentifier).append(",").append(timestamp).append(",").append(bar).toString());
+        }
+
+        @Override
+        public void onTempoChanged(float bpm, long timestamp) {
+            stringBuilder.setLength(0);
+            sendUnityMessage("OnMidiTempoChanged", stringBuilder.append(portIdentifier).append(",").append(timestamp).append(",").append(bpm).toString());
+        }
+
+        private void sendUnityMessage(StringBuilder stringBuilder, int status, int data1, int data2, long timestamp) {
+            switch (status & 0xf0) {
+                case 0x80:
+                    host.sendMessage(gameObjectName, "OnMidiNoteOff", formatMessage(stringBuilder, timestamp, status & 0xf, data1, data2));
+                    break;
+                case 0x90:
+                    host.sendMessage(gameObjectName, "OnMidiNoteOn", formatMessage(stringBuilder, timestamp, status & 0xf, data1, data2));
+                    break;
+                case 0xa0: // Polyphonic Aftertouch
+                    host.sendMessage(gameObjectName, "OnMidiPolyphonicAftertouch", formatMessage(stringBuilder, timestamp, status & 0xf, data1, data2));
+                    break;
+                case 0xb0: // Control Change
+                    host.sendMessage(gameObjectName, "OnMidiControlChange", formatMessage(stringBuilder, timestamp, status & 0xf, data1, data2));
+                    break;
+                case 0xc0: // Program Change
+                    host.sendMessage(gameObjectName, "OnMidiProgramChange", formatMessage(stringBuilder, timestamp, status & 0xf, data1));
+                    break;
+                case 0xd0: // Channel Aftertouch
+                    host.sendMessage(gameObjectName, "OnMidiChannelAftertouch", formatMessage(stringBuilder, timestamp, status & 0xf, data1));
+                    break;
+                case 0xe0: // Pitch Wheel
+                    host.sendMessage(gameObjectName, "OnMidiPitchWheel", formatMessage(stringBuilder, timestamp, status & 0xf, data1 | (data2 << 7)));
+                    break;
+                case 0xf0:
+                    switch (status) {
+                        case 0xf1: // Time Code Quarter Frame
+                            host.sendMessage(gameObjectName, "OnMidiTimeCodeQuarterFrame", formatMessage(stringBuilder, timestamp, data1));
                             break;
-                            case 0xf1: // Time Code Quarter Frame
-                                if (midiData.length >= i + 2) {
-                                    String data = new StringBuilder().append(deviceId).append(",0,")
-                                            .append(midiData[i + 1]).toString();
-                                    UnityPlayer.UnitySendMessage("MidiManager", "OnMidiTimeCodeQuarterFrame", data);
-                                }
-                                i += 2;
-                                break;
-                            case 0xf2: // Song Position Pointer
-                                if (midiData.length >= i + 3) {
-                                    String data = new StringBuilder().append(deviceId).append(",0,")
-                                            .append(midiData[i + 1] | (midiData[i + 2] << 7)).toString();
-                                    UnityPlayer.UnitySendMessage("MidiManager", "OnMidiSongPositionPointer", data);
-                                }
-                                i += 3;
-                                break;
-                            case 0xf3: // Song Select
-                                if (midiData.length >= i + 2) {
-                                    String data = new StringBuilder().append(deviceId).append(",0,")
-                                            .append(midiData[i + 1]).toString();
-                                    UnityPlayer.UnitySendMessage("MidiManager", "OnMidiSongSelect", data);
-                                }
-                                i += 2;
-                                break;
-                            case 0xf6: // Tune Request
-                                UnityPlayer.UnitySendMessage("MidiManager", "OnMidiTuneRequest", new StringBuilder().append(deviceId).append(",0").toString());
-                                i++;
-                                break;
-                            case 0xf8: // Timing Clock
-                                UnityPlayer.UnitySendMessage("MidiManager", "OnMidiTimingClock", new StringBuilder().append(deviceId).append(",0").toString());
-                                i++;
-                                break;
-                            case 0xfa: // Start
-                                UnityPlayer.UnitySendMessage("MidiManager", "OnMidiStart", new StringBuilder().append(deviceId).append(",0").toString());
-                                i++;
-                                break;
-                            case 0xfb: // Continue
-                                UnityPlayer.UnitySendMessage("MidiManager", "OnMidiContinue", new StringBuilder().append(deviceId).append(",0").toString());
-                                i++;
-                                break;
-                            case 0xfc: // Stop
-                                UnityPlayer.UnitySendMessage("MidiManager", "OnMidiStop", new StringBuilder().append(deviceId).append(",0").toString());
-                                i++;
-                                break;
-                            case 0xfe: // Active Sensing
-                                UnityPlayer.UnitySendMessage("MidiManager", "OnMidiActiveSensing", new StringBuilder().append(deviceId).append(",0").toString());
-                                i++;
-                                break;
-                            case 0xff: // Reset
-                                UnityPlayer.UnitySendMessage("MidiManager", "OnMidiReset", new StringBuilder().append(deviceId).append(",0").toString());
-                                i++;
-                                break;
-
-                            default:
-                                i++;
-                                break;
-                        }
-                        break;
+                        case 0xf2: // Song Position Pointer
+                            host.sendMessage(gameObjectName, "OnMidiSongPositionPointer", formatMessage(stringBuilder, timestamp, data1 | (data2 << 7)));
+                            break;
+                        case 0xf3: // Song Select
+                            host.sendMessage(gameObjectName, "OnMidiSongSelect", formatMessage(stringBuilder, timestamp, data1));
+                            break;
+                        case 0xf6: // Tune Request
+                            host.sendMessage(gameObjectName, "OnMidiTuneRequest", formatMessage(stringBuilder, timestamp));
+                            break;
+                        case 0xf8: // Timing Clock
+                            host.sendMessage(gameObjectName, "OnMidiTimingClock", formatMessage(stringBuilder, timestamp));
+                            break;
+                        case 0xfa: // Start
+                            host.sendMessage(gameObjectName, "OnMidiStart", formatMessage(stringBuilder, timestamp));
+                            break;
+                        case 0xfb: // Continue
+                            host.sendMessage(gameObjectName, "OnMidiContinue", formatMessage(stringBuilder, timestamp));
+                            break;
+                        case 0xfc: // Stop
+                            host.sendMessage(gameObjectName, "OnMidiStop", formatMessage(stringBuilder, timestamp));
+                            break;
+                        case 0xfe: // Active Sensing
+                            host.sendMessage(gameObjectName, "OnMidiActiveSensing", formatMessage(stringBuilder, timestamp));
+                            break;
+                        case 0xff: // Reset
+                            host.sendMessage(gameObjectName, "OnMidiReset", formatMessage(stringBuilder, timestamp));
+                            break;
+                        default:
+                            break;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void onMidiSystemExclusive(byte[] data, int offset, int length, long timestamp) {
+            metrics.recordReceived(0xf0);
+            MidiFileRecorder.Source source = recordSource;
+            if (source != null) {
+                source.systemExclusives.offer(portHandle, data, offset, length, 0, timestamp);
+            }
+            routeSystemExclusive(data, offset, length, true, timestamp);
+            if ((typeMask & MidiMessageFilter.SYSTEM_EXCLUSIVE) == 0) {
+                return;
+            }
+
+            for (OnMidiInputEventListener listener : inputEventListeners) {
+                listener.onMidiSystemExclusive(portHandle, data, offset, length, timestamp);
+            }
+
+            if (latencyTracking) {
+                dispatchLatency.record(System.nanoTime() - timestamp);
+            }
+
+            SystemExclusiveRingBuffer buffer = systemExclusiveBuffer;
+            if (buffer != null) {
+                buffer.offer(portHandle, data, offset, length, 0, timestamp);
+                return;
+            }
+
+            if (!unityMessageEnabled) {
+                return;
+            }
+
+            stringBuilder.setLength(0);
+            stringBuilder.append(portIdentifier).append(",").append(timestamp);
+            for (int i = offset; i < offset + length; i++) {
+                stringBuilder.append(",").append(data[i]);
+            }
+            sendUnityMessage("OnMidiSystemExclusive", stringBuilder.toString());
+        }
+
+        @Override
+        public void onMidiSystemExclusiveChunk(byte[] data, int offset, int length, boolean last, long timestamp) {
+            if (last && length > 0) {
+                metrics.recordReceived(0xf0);
+            }
+            MidiFileRecorder.Source source = recordSource;
+            if (source != null) {
+                source.systemExclusives.offer(portHandle, data, offset, length, last ? SystemExclusiveRingBuffer.FLAG_CHUNK | SystemExclusiveRingBuffer.FLAG_LAST_CHUNK : SystemExclusiveRingBuffer.FLAG_CHUNK, timestamp);
+            }
+            routeSystemExclusive(data, offset, length, last, timestamp);
+            if ((typeMask & MidiMessageFilter.SYSTEM_EXCLUSIVE) == 0) {
+                return;
+            }
+
+            SystemExclusiveRingBuffer buffer = systemExclusiveBuffer;
+            if (buffer != null) {
+                buffer.offer(portHandle, data, offset, length, last ? SystemExclusiveRingBuffer.FLAG_CHUNK | SystemExclusiveRingBuffer.FLAG_LAST_CHUNK : SystemExclusiveRingBuffer.FLAG_CHUNK, timestamp);
+            }
+
+            OnMidiSystemExclusiveChunkListener listener = systemExclusiveChunkListener;
+            if (listener != null) {
+                listener.onMidiSystemExclusiveChunk(portHandle, data, offset, length, last, timestamp);
+            }
+        }
+
+        private String formatMessage(StringBuilder stringBuilder, long timestamp) {
+            stringBuilder.setLength(0);
+            return stringBuilder.append(portIdentifier).append(",").append(timestamp).toString();
+        }
+
+        private String formatMessage(StringBuilder stringBuilder, long timestamp, int value) {
+            stringBuilder.setLength(0);
+            return stringBuilder.append(portIdentifier).append(",").append(timestamp).append(",").append(value).toString();
+        }
+
+        private String formatMessage(StringBuilder stringBuilder, long timestamp, int channel, int value) {
+            stringBuilder.setLength(0);
+            return stringBuilder.append(portIdentifier).append(",").append(timestamp).append(",").append(channel).append(",").append(value).toString();
+        }
+
+        private String formatMessage(StringBuilder stringBuilder, long timestamp, int channel, int data1, int data2) {
+            stringBuilder.setLength(0);
+            return stringBuilder.append(portIdentifier).append(",").append(timestamp).append(",").append(channel).append(",").append(data1).append(",").append(data2).toString();
+        }
+    }
+
+    /**
+     * Sends the encoded messages to the {@link MidiTransport.InputPort}, with the reusable buffer
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private static class MidiInputPortSender implements MidiMessageEncoder.PacketSender, MidiOutputScheduler.Target, SystemExclusiveTransferEngine.Target, MidiRoute.Destination {
+        // null while the port is closed
+        private volatile MidiTransport.InputPort midiInputPort;
+        private final boolean universalMidiPacket;
+        private final boolean midi2;
+        // created when the port is opened, guarded by this
+        private MidiMessageEncoder encoder;
+        // for the Universal MIDI Packet port, null for the byte stream port
+        private UmpEncoder umpEncoder;
+        // requests to open the port, called when sending to the closed port
+        private final Runnable openRequest;
+        private volatile boolean openRequested;
+        private volatile long lastSendTime = System.nanoTime();
+        private final MidiPortMetrics metrics = new MidiPortMetrics();
+        private volatile int transferChunkSize;
+        private volatile int transferBytesPerSecond;
+
+        // the sources of the System Exclusive messages, or the route id for the routed messages
+        private static final int NO_SOURCE = 0;
+        private static final int SOURCE_MESSAGE = -1;
+        private static final int SOURCE_TRANSFER = -2;
+        // the entry of the held System Exclusive: followed by the source, the offset in deferredBytes, the length and the last flag
+        private static final int DEFERRED_SYSTEM_EXCLUSIVE = 0xf0;
+        private static final int DEFERRED_SYSTEM_EXCLUSIVE_LENGTH = 5;
+        // the entry of the held MIDI 2.0 Channel Voice Message: followed by the status, the index and the value
+        private static final int DEFERRED_MIDI2 = 0xf4;
+        private static final int DEFERRED_MIDI2_LENGTH = 4;
+        // the limits of the messages held while opening the port, the messages over the limits are discarded
+        private static final int MAX_OPENING_ENTRIES = 4096;
+        private static final int MAX_OPENING_BYTES = 65536;
+
+        // the source in the middle of a System Exclusive message, guarded by this
+        private int systemExclusiveSource = NO_SOURCE;
+        // the messages held until the port is opened, or until the end of the System Exclusive message, guarded by this
+        private int[] deferredMessages = new int[16];
+        private int deferredMessageCount;
+        private byte[] deferredBytes = new byte[256];
+        private int deferredByteCount;
+
+        // the sounding notes, 128 bits for each channel, guarded by this
+        private final long[] soundingNotes = new long[16 * 2];
+        private int soundingNoteCount;
+
+        private MidiInputPortSender(int protocol, Runnable openRequest) {
+            universalMidiPacket = protocol != MidiTransport.PROTOCOL_UNKNOWN;
+            midi2 = protocol == MidiDeviceInfo.PROTOCOL_UMP_MIDI_2_0 || protocol == MidiDeviceInfo.PROTOCOL_UMP_MIDI_2_0_AND_JRTS;
+            this.openRequest = openRequest;
+        }
+
+        /**
+         * Starts sending to the opened port, called on the handler thread
+         */
+        private synchronized void bind(MidiTransport.InputPort midiInputPort) {
+            encoder = new MidiMessageEncoder(midiInputPort.getMaxMessageSize());
+            umpEncoder = universalMidiPacket ? new UmpEncoder(midiInputPort.getMaxMessageSize(), midi2) : null;
+            if (transferChunkSize == 0) {
+                transferChunkSize = midiInputPort.getMaxMessageSize();
+            }
+            lastSendTime = System.nanoTime();
+            this.midiInputPort = midiInputPort;
+            openRequested = false;
+            try {
+                // the messages sent while opening
+                flushDeferred();
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * Stops sending, called on the handler thread before closing the port
+         */
+        private synchronized void unbind() {
+            midiInputPort = null;
+            systemExclusiveSource = NO_SOURCE;
+            deferredMessageCount = 0;
+            deferredByteCount = 0;
+            openRequested = false;
+        }
+
+        /**
+         * Stops sending if nothing has been sent for the period, called on the handler thread before closing the idle port<br />
+         * The port is kept opened while the notes are sounding, or in the middle of a System Exclusive message.
+         *
+         * @return true if stopped
+         */
+        private synchronized boolean unbindIfIdle(long now, long timeout) {
+            if (midiInputPort == null || now - lastSendTime <= timeout || soundingNoteCount > 0 || systemExclusiveSource != NO_SOURCE || deferredMessageCount > 0) {
+                return false;
+            }
+            unbind();
+            return true;
+        }
+
+        /**
+         * Discards the messages held while opening, called on the handler thread when the port has failed to open
+         */
+        private synchronized void cancelOpening() {
+            openRequested = false;
+            if (midiInputPort == null) {
+                deferredMessageCount = 0;
+                deferredByteCount = 0;
+            }
+        }
+
+        /**
+         * Checks the port is opened, and requests to open the closed port<br />
+         * Called with the lock, before using the encoders.
+         *
+         * @return false if the port is closed, then the messages should be held until the port is opened
+         */
+        private boolean checkOpened() {
+            lastSendTime = System.nanoTime();
+            if (midiInputPort == null && !openRequested) {
+                openRequested = true;
+                openRequest.run();
+            }
+            return midiInputPort != null;
+        }
+
+        /**
+         * Tracks the sounding notes, called with the lock
+         */
+        private void trackNotes(int status, int data1, int data2) {
+            switch (status & 0xf0) {
+                case 0x80:
+                    setNoteSounding(status & 0xf, data1, false);
+                    break;
+                case 0x90:
+                    setNoteSounding(status & 0xf, data1, data2 != 0);
+                    break;
+                case 0xb0:
+                    // All Sound Off, All Notes Off
+                    if (data1 == 120 || data1 == 123) {
+                        clearSoundingNotes(status & 0xf);
+                    }
+                    break;
+                case 0xf0:
+                    // Reset
+                    if (status == 0xff) {
+                        for (int channel = 0; channel < 16; channel++) {
+                            clearSoundingNotes(channel);
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void setNoteSounding(int channel, int note, boolean sounding) {
+            final int index = (channel << 1) | ((note >> 6) & 1);
+            final long bit = 1L << (note & 0x3f);
+            if (sounding != ((soundingNotes[index] & bit) != 0)) {
+                soundingNotes[index] ^= bit;
+                soundingNoteCount += sounding ? 1 : -1;
+            }
+        }
+
+        private void clearSoundingNotes(int channel) {
+            for (int index = channel << 1; index < (channel << 1) + 2; index++) {
+                soundingNoteCount -= Long.bitCount(soundingNotes[index]);
+                soundingNotes[index] = 0;
+            }
+        }
+
+        @Override
+        public void send(byte[] data, int offset, int count, long timestamp) throws IOException {
+            write(data, offset, count, timestamp);
+        }
+
+        /**
+         * Writes to the port, with the metrics<br />
+         * The bytes longer than the maximum length of the port are split into the packets.
+         */
+        private void write(byte[] data, int offset, int count, long timestamp) throws IOException {
+            MidiTransport.InputPort port = midiInputPort;
+            if (port == null) {
+                throw new IOException("The port is not opened");
+            }
+            final int maxMessageSize = port.getMaxMessageSize();
+            for (int sent = 0; sent < count; ) {
+                final int length = Math.min(count - sent, maxMessageSize);
+                try {
+                    port.send(data, offset + sent, length, timestamp);
+                } catch (IOException e) {
+                    metrics.recordIoError();
+                    throw e;
+                }
+                metrics.recordSent(0, length);
+                sent += length;
+            }
+        }
+
+        private synchronized int send(int[] messages, int offset, int count, long timestamp) throws IOException {
+            for (int i = offset; i < offset + count; i++) {
+                final int message = messages[i];
+                trackNotes(message & 0xff, (message >> 8) & 0x7f, (message >> 16) & 0x7f);
+            }
+            // the Universal MIDI Packets may be interleaved with the System Exclusive packets
+            if (!checkOpened() || (systemExclusiveSource != NO_SOURCE && !universalMidiPacket)) {
+                int deferred = 0;
+                for (int i = offset; i < offset + count; i++) {
+                    if (defer(messages[i], timestamp)) {
+                        deferred++;
+                    }
+                }
+                return deferred;
+            }
+            int encoded;
+            try {
+                encoded = umpEncoder != null ? umpEncoder.encode(messages, offset, count, timestamp, this) : encoder.encode(messages, offset, count, timestamp, this);
+            } catch (IOException e) {
+                // the rest of the messages are discarded, the messages in the packets sent before the failure are counted
+                encoded = umpEncoder != null ? umpEncoder.getSentMessageCount() : encoder.getSentMessageCount();
+            }
+            metrics.recordSent(encoded, 0);
+            return encoded;
+        }
+
+        private synchronized void send(int message, long timestamp) throws IOException {
+            trackNotes(message & 0xff, (message >> 8) & 0x7f, (message >> 16) & 0x7f);
+            if (!checkOpened() || (systemExclusiveSource != NO_SOURCE && !universalMidiPacket)) {
+                defer(message, timestamp);
+                return;
+            }
+            if (umpEncoder != null ? umpEncoder.encode(message, timestamp, this) : encoder.encode(message, timestamp, this)) {
+                metrics.recordSent(1, 0);
+            }
+        }
+
+        /**
+         * Sends a MIDI 2.0 Channel Voice Message, translated to MIDI 1.0 for the MIDI 1.0 port
+         *
+         * @param status the MIDI 2.0 status, the opcode(0x8-0xe) and the channel
+         * @param index the note number, or the controller number
+         * @param value the 16-bit velocity, or the 32-bit value
+         */
+        private synchronized void sendMidi2(int status, int index, int value, long timestamp) throws IOException {
+            if (universalMidiPacket) {
+                // the velocity 0 is not the Note Off in MIDI 2.0
+                trackNotes(status, index, (status & 0xf0) == 0x90 ? 1 : value);
+                if (!checkOpened()) {
+                    deferMidi2(status, index, value);
+                    return;
+                }
+                if (umpEncoder.encodeMidi2(status, index, value, timestamp, this)) {
+                    metrics.recordSent(1, 0);
+                }
+                return;
+            }
+            int message = UmpEncoder.toMidi1Message(status, index, value);
+            if (message != 0) {
+                send(message, timestamp);
+            }
+        }
+
+        /**
+         * Writes the System Exclusive bytes, or holds them until the end of the System Exclusive message of the other source<br />
+         * Called with the lock.
+         *
+         * @param source the source, the messages of a source are sent in order
+         * @param last false if the message continues in the next bytes of the source
+         */
+        private void writeSystemExclusive(int source, byte[] data, int offset, int count, boolean last, long timestamp) throws IOException {
+            if (!checkOpened() || (systemExclusiveSource != NO_SOURCE && systemExclusiveSource != source)) {
+                deferSystemExclusive(source, data, offset, count, last);
+                return;
+            }
+            try {
+                putSystemExclusive(source, data, offset, count, last, timestamp);
+            } finally {
+                if (last) {
+                    flushDeferred();
+                }
+            }
+        }
+
+        /**
+         * Writes the System Exclusive bytes, as the packets for the Universal MIDI Packet port
+         */
+        private void putSystemExclusive(int source, byte[] data, int offset, int count, boolean last, long timestamp) throws IOException {
+            systemExclusiveSource = last ? NO_SOURCE : source;
+            if (count == 0) {
+                return;
+            }
+            if (umpEncoder != null) {
+                umpEncoder.encodeSystemExclusive(data, offset, count, timestamp, this);
+            } else {
+                write(data, offset, count, timestamp);
+            }
+            if (last) {
+                metrics.recordSent(1, 0);
+            }
+        }
+
+        /**
+         * Holds the message until the port is opened, or until the end of the System Exclusive message<br />
+         * System Realtime messages are sent immediately to the opened port.
+         *
+         * @return false if the message is invalid, or discarded
+         */
+        private boolean defer(int message, long timestamp) throws IOException {
+            if ((message & 0xff) >= 0xf8 && midiInputPort != null) {
+                encoder.encode(message, timestamp, this);
+                metrics.recordSent(1, 0);
+                return true;
+            }
+            if (MidiMessageEncoder.getMessageLength(message & 0xff) == 0 || !canDefer(1, 0)) {
+                return false;
+            }
+            ensureDeferredCapacity(1, 0);
+            deferredMessages[deferredMessageCount++] = message;
+            return true;
+        }
+
+        /**
+         * Holds the MIDI 2.0 Channel Voice Message until the port is opened
+         */
+        private void deferMidi2(int status, int index, int value) {
+            if (!canDefer(DEFERRED_MIDI2_LENGTH, 0)) {
+                return;
+            }
+            ensureDeferredCapacity(DEFERRED_MIDI2_LENGTH, 0);
+            deferredMessages[deferredMessageCount++] = DEFERRED_MIDI2;
+            deferredMessages[deferredMessageCount++] = status;
+            deferredMessages[deferredMessageCount++] = index;
+            deferredMessages[deferredMessageCount++] = value;
+        }
+
+        /**
+         * Holds the System Exclusive bytes until the port is opened, or until the end of the System Exclusive message of the other source
+         */
+        private void deferSystemExclusive(int source, byte[] data, int offset, int count, boolean last) {
+            if (count == 0 && !isDeferred(source, deferredMessageCount)) {
+                // the source has nothing to close
+                return;
+            }
+            if (!canDefer(DEFERRED_SYSTEM_EXCLUSIVE_LENGTH, count)) {
+                return;
+            }
+            ensureDeferredCapacity(DEFERRED_SYSTEM_EXCLUSIVE_LENGTH, count);
+            System.arraycopy(data, offset, deferredBytes, deferredByteCount, count);
+            deferredMessages[deferredMessageCount++] = DEFERRED_SYSTEM_EXCLUSIVE;
+            deferredMessages[deferredMessageCount++] = source;
+            deferredMessages[deferredMessageCount++] = deferredByteCount;
+            deferredMessages[deferredMessageCount++] = count;
+            deferredMessages[deferredMessageCount++] = last ? 1 : 0;
+            deferredByteCount += count;
+        }
+
+        /**
+         * @return false if the messages held while opening the port exceed the limits
+         */
+        private boolean canDefer(int messageCount, int byteCount) {
+            return midiInputPort != null || (deferredMessageCount + messageCount <= MAX_OPENING_ENTRIES && deferredByteCount + byteCount <= MAX_OPENING_BYTES);
+        }
+
+        /**
+         * @return the length of the held entry at the index
+         */
+        private int getDeferredEntryLength(int index) {
+            switch (deferredMessages[index]) {
+                case DEFERRED_SYSTEM_EXCLUSIVE:
+                    return DEFERRED_SYSTEM_EXCLUSIVE_LENGTH;
+                case DEFERRED_MIDI2:
+                    return DEFERRED_MIDI2_LENGTH;
+                default:
+                    return 1;
+            }
+        }
+
+        private void ensureDeferredCapacity(int messageCount, int byteCount) {
+            if (deferredMessageCount + messageCount > deferredMessages.length) {
+                int[] newMessages = new int[Math.max(deferredMessages.length * 2, deferredMessageCount + messageCount)];
+                System.arraycopy(deferredMessages, 0, newMessages, 0, deferredMessageCount);
+                deferredMessages = newMessages;
+            }
+            if (deferredByteCount + byteCount > deferredBytes.length) {
+                byte[] newBytes = new byte[Math.max(deferredBytes.length * 2, deferredByteCount + byteCount)];
+                System.arraycopy(deferredBytes, 0, newBytes, 0, deferredByteCount);
+                deferredBytes = newBytes;
+            }
+        }
+
+        /**
+         * @param source the source, NO_SOURCE for the channel messages
+         * @param end the end of the entries to search
+         * @return true if the entries before the end contain the message of the source
+         */
+        private boolean isDeferred(int source, int end) {
+            for (int i = 0; i < end; i += getDeferredEntryLength(i)) {
+                if (deferredMessages[i] == DEFERRED_SYSTEM_EXCLUSIVE ? deferredMessages[i + 1] == source : source == NO_SOURCE) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Sends the held messages after the port has been opened, or after the end of the System Exclusive message<br />
+         * A held System Exclusive may start another System Exclusive message, then the messages of the other sources are still held.
+         * The messages of each source are sent in order.
+         */
+        private void flushDeferred() throws IOException {
+            if (midiInputPort == null) {
+                return;
+            }
+            try {
+                boolean flushed = true;
+                while (flushed && deferredMessageCount > 0) {
+                    flushed = false;
+                    int keptCount = 0;
+                    for (int i = 0; i < deferredMessageCount; ) {
+                        final int message = deferredMessages[i];
+                        final boolean systemExclusive = message == DEFERRED_SYSTEM_EXCLUSIVE;
+                        final int length = getDeferredEntryLength(i);
+                        final int source = systemExclusive ? deferredMessages[i + 1] : NO_SOURCE;
+                        // the Universal MIDI Packets may be interleaved with the System Exclusive packets
+                        final boolean ready = systemExclusiveSource == NO_SOURCE || (systemExclusive ? systemExclusiveSource == source : universalMidiPacket);
+                        if (ready && !isDeferred(source, keptCount)) {
+                            flushed = true;
+                            if (systemExclusive) {
+                                putSystemExclusive(source, deferredBytes, deferredMessages[i + 2], deferredMessages[i + 3], deferredMessages[i + 4] != 0, System.nanoTime());
+                            } else if (message == DEFERRED_MIDI2 ? umpEncoder.encodeMidi2(deferredMessages[i + 1], deferredMessages[i + 2], deferredMessages[i + 3], System.nanoTime(), this)
+                                    : umpEncoder != null ? umpEncoder.encode(message, System.nanoTime(), this) : encoder.encode(message, System.nanoTime(), this)) {
+                                metrics.recordSent(1, 0);
+                            }
+                        } else {
+                            System.arraycopy(deferredMessages, i, deferredMessages, keptCount, length);
+                            keptCount += length;
+                        }
+                        i += length;
+                    }
+                    deferredMessageCount = keptCount;
+                }
+            } catch (IOException e) {
+                // the port has failed, the held messages are discarded
+                deferredMessageCount = 0;
+                systemExclusiveSource = NO_SOURCE;
+                throw e;
+            } finally {
+                if (deferredMessageCount == 0) {
+                    deferredByteCount = 0;
+                }
+            }
+        }
+
+        @Override
+        public synchronized void sendTransferChunk(byte[] data, int offset, int count, boolean systemExclusiveOpen) throws IOException {
+            writeSystemExclusive(SOURCE_TRANSFER, data, offset, count, !systemExclusiveOpen, System.nanoTime());
+        }
+
+        private synchronized void send(byte[] data, long timestamp) throws IOException {
+            writeSystemExclusive(SOURCE_MESSAGE, data, 0, data.length, true, timestamp);
+        }
+
+        @Override
+        public void sendRouted(int message, long timestamp) throws IOException {
+            send(message, timestamp);
+        }
+
+        @Override
+        public synchronized void sendRouted(int routeId, byte[] data, int offset, int length, boolean last, long timestamp) throws IOException {
+            if (length == 0 && midiInputPort == null && !isDeferred(routeId, deferredMessageCount)) {
+                // nothing to close on the closed port
+                return;
+            }
+            writeSystemExclusive(routeId, data, offset, length, last, timestamp);
+        }
+
+        @Override
+        public void sendScheduled(int message, long timestamp) throws IOException {
+            send(message, timestamp);
+        }
+
+        @Override
+        public void sendScheduled(byte[] data, long timestamp) throws IOException {
+            send(data, timestamp);
+        }
+    }
+
+    /**
+     * Registered port and its metadata<br />
+     * The sender and the receiver are kept while the port is registered, the underlying port is opened and closed on the handler thread.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private static class MidiPort {
+        private final int portHandle;
+        private final String deviceId;
+        private final String deviceName;
+        private final String productId;
+        private final String vendorId;
+        // MidiTransport.PROTOCOL_UNKNOWN for the byte stream port
+        private final int protocol;
+
+        private final MidiTransport.DeviceInfo deviceInfo;
+        private final int portIndex;
+
+        // the port for sending, null while closed
+        private volatile MidiTransport.InputPort midiInputPort;
+        private final MidiInputPortSender sender;
+
+        // the port for receiving, null while closed
+        private volatile MidiTransport.OutputPort midiOutputPort;
+        private final InterAppMidiReceiver receiver;
+
+        // accessed on the handler thread only
+        private boolean openRequested;
+
+        private MidiPort(int portHandle, String deviceId, String deviceName, String productId, String vendorId, int protocol, MidiTransport.DeviceInfo deviceInfo, int portIndex, MidiInputPortSender sender, InterAppMidiReceiver receiver) {
+            this.portHandle = portHandle;
+            this.deviceId = deviceId;
+            this.deviceName = deviceName;
+            this.productId = productId;
+            this.vendorId = vendorId;
+            this.protocol = protocol;
+            this.deviceInfo = deviceInfo;
+            this.portIndex = portIndex;
+            this.sender = sender;
+            this.receiver = receiver;
+        }
+
+        private boolean isOpened() {
+            return midiInputPort != null || midiOutputPort != null;
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private static InterAppMidiReceiver getReceiver(Object port) {
+        return port != null ? ((MidiPort) port).receiver : null;
+    }
+
+    /**
+     * Action for each receiving port, see {@link #forEachReceiver(ReceiverAction)}
+     */
+    private abstract static class ReceiverAction {
+        // summed up by the action, returned from forEachReceiver
+        long count;
+
+        public abstract void run(InterAppMidiReceiver receiver);
+    }
+
+    /**
+     * Runs the action for the receivers of the registered ports, lock-free<br />
+     * To push a setting to the receivers, the caller must hold the lock of portTable,
+     * so the port registered at the same time reads either the new setting or receives it from the action.
+     *
+     * @param action the action
+     * @return the count of the action
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private long forEachReceiver(ReceiverAction action) {
+        for (Object port : portTable.entries()) {
+            InterAppMidiReceiver receiver = getReceiver(port);
+            if (receiver != null) {
+                action.run(receiver);
+            }
+        }
+        return action.count;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private MidiInputPortSender getSender(int portHandle) {
+        MidiPort port = portTable.get(portHandle);
+        return port != null ? port.sender : null;
+    }
+
+    private static String getDeviceId(int deviceId, boolean isInput, int portId) {
+        return new StringBuilder().append(isInput ? "in" : "out").append(":").append(deviceId).append("-").append(portId).toString();
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void openMidiDevice(final MidiTransport.DeviceInfo device) {
+        if (transport == null) {
+            // terminated, the callback posted before the termination
+            return;
+        }
+        if (device.isVirtual()) {
+            if (discoveredDeviceSet.contains(device) || openingDeviceSet.contains(device)) {
+                return;
+            }
+
+            if (lazyPortOpeningEnabled) {
+                // the ports are opened on demand
+                discoveredDeviceSet.add(device);
+                registerMidiPorts(device, null);
+                return;
+            }
+
+            openDevice(device);
+        }
+    }
+
+    /**
+     * Opens the device, then registers and opens all ports of the new device, or opens the requested ports of the registered device
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void openDevice(final MidiTransport.DeviceInfo device) {
+        MidiTransport currentTransport = transport;
+        if (currentTransport == null) {
+            // terminated, the ports are removed with the devices
+            return;
+        }
+        openingDeviceSet.add(device);
+        currentTransport.openDevice(device, new MidiTransport.OnDeviceOpenedListener() {
+            @Override
+            public void onDeviceOpened(MidiTransport.Device midiDevice) {
+                if (!openingDeviceSet.remove(device) || midiDevice == null) {
+                    // removed while opening, or failed to open
+                    if (midiDevice != null) {
+                        try {
+                            midiDevice.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                    for (Object entry : portTable.entries()) {
+                        MidiPort port = (MidiPort) entry;
+                        if (port != null && port.deviceInfo.equals(device)) {
+                            port.openRequested = false;
+                            if (port.sender != null) {
+                                port.sender.cancelOpening();
+                            }
+                        }
+                    }
+                    return;
+                }
+                openedDeviceMap.put(device, midiDevice);
+
+                if (discoveredDeviceSet.add(device)) {
+                    registerMidiPorts(midiDevice.getInfo(), midiDevice);
+                } else {
+                    for (Object entry : portTable.entries()) {
+                        MidiPort port = (MidiPort) entry;
+                        if (port != null && port.openRequested && port.deviceInfo.equals(device)) {
+                            openMidiPort(port, midiDevice);
+                        }
+                    }
+                }
+                closeUnusedMidiDevice(device);
+            }
+        }, handlerExecutor);
+    }
+
+    /**
+     * Registers the ports of the device, and sends the attached messages
+     *
+     * @param midiDeviceInfo the device
+     * @param midiDevice the opened device, or null to register the ports without opening
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void registerMidiPorts(MidiTransport.DeviceInfo midiDeviceInfo, MidiTransport.Device midiDevice) {
+        String deviceName = midiDeviceInfo.getName();
+        String product = midiDeviceInfo.getProduct();
+        String vendor = midiDeviceInfo.getManufacturer();
+        // the device with the known protocol uses the Universal MIDI Packets
+        int protocol = midiDeviceInfo.getProtocol();
+
+        int midiDeviceInfoId = midiDeviceInfo.getId();
+        for (int i = 0; i < midiDeviceInfo.getInputPortCount(); i++) {
+            // MidiInputPort: used for MIDI sending
+            String deviceId = getDeviceId(midiDeviceInfoId, false, i);
+            if (!portMap.containsKey(deviceId)) {
+                MidiTransport.InputPort midiInputPort = midiDevice != null ? midiDevice.openInputPort(i) : null;
+                if (midiDevice != null && midiInputPort == null) {
+                    continue;
+                }
+                MidiPort port;
+                synchronized (portTable) {
+                    final int portHandle = portTable.allocate();
+                    MidiInputPortSender sender = new MidiInputPortSender(protocol, new Runnable() {
+                        @Override
+                        public void run() {
+                            openMidiPort(portHandle);
+                        }
+                    });
+                    port = new MidiPort(portHandle, deviceId, deviceName, product, vendor, protocol, midiDeviceInfo, i, sender, null);
+                    if (midiInputPort != null) {
+                        sender.bind(midiInputPort);
+                        port.midiInputPort = midiInputPort;
+                    }
+                    portTable.put(portHandle, port);
+                }
+                portMap.put(deviceId, port);
+                host.sendMessage(gameObjectName, "OnMidiOutputDeviceAttached", portHandleMessageEnabled ? String.valueOf(port.portHandle) : deviceId);
+            }
+        }
+
+        for (int i = 0; i < midiDeviceInfo.getOutputPortCount(); i++) {
+            // MidiOutputPort: used for MIDI receiving
+            String deviceId = getDeviceId(midiDeviceInfoId, true, i);
+            if (!portMap.containsKey(deviceId)) {
+                MidiTransport.OutputPort midiOutputPort = midiDevice != null ? midiDevice.openOutputPort(i) : null;
+                if (midiDevice != null && midiOutputPort == null) {
+                    continue;
+                }
+                MidiPort port;
+                String portIdentifier;
+                synchronized (portTable) {
+                    int portHandle = portTable.allocate();
+                    int capacity = eventBufferCapacity;
+                    portIdentifier = portHandleMessageEnabled ? String.valueOf(portHandle) : deviceId;
+                    InterAppMidiReceiver receiver = new InterAppMidiReceiver(host, portIdentifier, portHandle, systemExclusiveBufferPool, capacity > 0 ? new MidiEventRingBuffer(capacity) : null, coalescingEnabled, latencyTrackingEnabled);
+                    int systemExclusiveCapacity = systemExclusiveBufferCapacity;
+                    if (systemExclusiveCapacity > 0) {
+                        receiver.systemExclusiveBuffer = new SystemExclusiveRingBuffer(systemExclusiveCapacity);
+                    }
+                    receiver.systemExclusiveChunkListener = systemExclusiveChunkListener;
+                    receiver.inputEventListeners = inputEventListeners;
+                    receiver.unityMessageEnabled = unityMessageEnabled;
+                    receiver.gameObjectName = gameObjectName;
+                    int beatsPerBar = clockTrackingBeatsPerBar;
+                    if (beatsPerBar > 0) {
+                        receiver.clockTracker = new MidiClockTracker(receiver, beatsPerBar);
+                    }
+                    receiver.clockForwarding = clockForwardingEnabled;
+                    receiver.setDispatcher(dispatcher);
+                    receiver.typeMask = globalTypeMask;
+                    receiver.channelMask = globalChannelMask;
+                    int highResolutionCapacity = highResolutionEventBufferCapacity;
+                    if (highResolutionCapacity > 0) {
+                        receiver.highResolutionEventBuffer = new HighResolutionEventRingBuffer(highResolutionCapacity);
+                    }
+                    if (protocol != MidiTransport.PROTOCOL_UNKNOWN) {
+                        receiver.umpParser = new UmpParser(receiver, receiver.midiParser);
+                    }
+                    port = new MidiPort(portHandle, deviceId, deviceName, product, vendor, protocol, midiDeviceInfo, i, null, receiver);
+                    portTable.put(portHandle, port);
+                    if (recorder != null) {
+                        try {
+                            receiver.recordSource = recorder.addSource(deviceName + " (" + deviceId + ")");
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+                if (midiOutputPort != null) {
+                    midiOutputPort.connect(port.receiver);
+                    port.midiOutputPort = midiOutputPort;
+                }
+                portMap.put(deviceId, port);
+                host.sendMessage(gameObjectName, "OnMidiInputDeviceAttached", portIdentifier);
+            }
+        }
+    }
+
+    /**
+     * Opens the registered port, called on the handler thread<br />
+     * The device is opened if needed.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void openMidiPort(MidiPort port) {
+        if (port == null || port.isOpened() || portTable.get(port.portHandle) != port) {
+            return;
+        }
+
+        MidiTransport.Device midiDevice = openedDeviceMap.get(port.deviceInfo);
+        if (midiDevice != null) {
+            openMidiPort(port, midiDevice);
+            return;
+        }
+
+        // opened with the device
+        port.openRequested = true;
+        if (!openingDeviceSet.contains(port.deviceInfo)) {
+            openDevice(port.deviceInfo);
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void openMidiPort(MidiPort port, MidiTransport.Device midiDevice) {
+        port.openRequested = false;
+        if (port.sender != null) {
+            MidiTransport.InputPort midiInputPort = midiDevice.openInputPort(port.portIndex);
+            if (midiInputPort != null) {
+                port.sender.bind(midiInputPort);
+                port.midiInputPort = midiInputPort;
+            } else {
+                port.sender.cancelOpening();
+            }
+        }
+        if (port.receiver != null) {
+            MidiTransport.OutputPort midiOutputPort = midiDevice.openOutputPort(port.portIndex);
+            if (midiOutputPort != null) {
+                midiOutputPort.connect(port.receiver);
+                port.midiOutputPort = midiOutputPort;
+            }
+        }
+    }
+
+    /**
+     * Closes the underlying port, called on the handler thread<br />
+     * The port is kept registered, and may be opened again.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void closeMidiPort(MidiPort port) {
+        port.openRequested = false;
+        MidiTransport.InputPort midiInputPort = port.midiInputPort;
+        if (midiInputPort != null) {
+            port.midiInputPort = null;
+            port.sender.unbind();
+            try {
+                midiInputPort.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        MidiTransport.OutputPort midiOutputPort = port.midiOutputPort;
+        if (midiOutputPort != null) {
+            port.midiOutputPort = null;
+            try {
+                port.receiver.onFlush();
+            } catch (IOException ignored) {
+            }
+            midiOutputPort.disconnect(port.receiver);
+            try {
+                midiOutputPort.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Closes the device if none of its ports is opened or being opened, called on the handler thread
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void closeUnusedMidiDevice(MidiTransport.DeviceInfo device) {
+        for (Object entry : portTable.entries()) {
+            MidiPort port = (MidiPort) entry;
+            if (port != null && (port.isOpened() || port.openRequested) && port.deviceInfo.equals(device)) {
+                return;
+            }
+        }
+
+        MidiTransport.Device midiDevice = openedDeviceMap.remove(device);
+        if (midiDevice != null) {
+            try {
+                midiDevice.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Cancels the pending messages of the sending port
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void cancelSending(MidiPort port) {
+        synchronized (this) {
+            if (outputScheduler != null) {
+                outputScheduler.cancel(port.sender);
+            }
+            if (midiFilePlayer != null) {
+                midiFilePlayer.stop(port.sender);
+            }
+        }
+        systemExclusiveTransferEngine.cancel(port.sender);
+    }
+
+    /**
+     * Unregisters the ports of the device and closes the device, called on the handler thread
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void removeMidiDevice(MidiTransport.DeviceInfo midiDeviceInfo) {
+        openingDeviceSet.remove(midiDeviceInfo);
+        discoveredDeviceSet.remove(midiDeviceInfo);
+        int midiDeviceInfoId = midiDeviceInfo.getId();
+        for (int i = 0; i < midiDeviceInfo.getInputPortCount(); i++) {
+            String deviceId = getDeviceId(midiDeviceInfoId, false, i);
+            MidiPort port = portMap.remove(deviceId);
+            if (port != null) {
+                portTable.remove(port.portHandle);
+                removeRoutes(port.portHandle);
+                cancelSending(port);
+                closeMidiPort(port);
+            }
+        }
+
+        for (int i = 0; i < midiDeviceInfo.getOutputPortCount(); i++) {
+            String deviceId = getDeviceId(midiDeviceInfoId, true, i);
+            MidiPort port = portMap.remove(deviceId);
+            if (port != null) {
+                portTable.remove(port.portHandle);
+                removeRoutes(port.portHandle);
+                closeMidiPort(port);
+                MidiEventDispatcher eventDispatcher = dispatcher;
+                if (eventDispatcher != null) {
+                    eventDispatcher.cancel(port.receiver);
+                }
+            }
+        }
+
+        MidiTransport.Device midiDevice = openedDeviceMap.remove(midiDeviceInfo);
+        if (midiDevice != null) {
+            try {
+                midiDevice.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public String getDeviceName(String deviceId) {
+        return getDeviceName(getPortHandle(deviceId));
+    }
+
+    public String getProductId(String deviceId) {
+        return getProductId(getPortHandle(deviceId));
+    }
+
+    public String getVendorId(String deviceId) {
+        return getVendorId(getPortHandle(deviceId));
+    }
+
+    public String getDeviceName(int portHandle) {
+        if (isMidiSupported()) {
+            MidiPort port = portTable.get(portHandle);
+            if (port != null) {
+                return port.deviceName;
+            }
+        }
+
+        return null;
+    }
+
+    public String getProductId(int portHandle) {
+        if (isMidiSupported()) {
+            MidiPort port = portTable.get(portHandle);
+            if (port != null) {
+                return port.productId;
+            }
+        }
+
+        return null;
+    }
+
+    public String getVendorId(int portHandle) {
+        if (isMidiSupported()) {
+            MidiPort port = portTable.get(portHandle);
+            if (port != null) {
+                return port.vendorId;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Obtains the protocol of the port<br />
+     * The Universal MIDI Packet ports are available on Android 13 or later.
+     *
+     * @param deviceId the device id
+     * @return one of the MidiDeviceInfo.PROTOCOL_UMP_* constants, or MidiDeviceInfo.PROTOCOL_UNKNOWN(-1) for the MIDI 1.0 byte stream port
+     */
+    public int getMidiProtocol(String deviceId) {
+        return getMidiProtocol(getPortHandle(deviceId));
+    }
+
+    public int getMidiProtocol(int portHandle) {
+        if (isMidiSupported()) {
+            MidiPort port = portTable.get(portHandle);
+            if (port != null) {
+                return port.protocol;
+            }
+        }
+
+        return MidiTransport.PROTOCOL_UNKNOWN;
+    }
+
+    /**
+     * Obtains the port handle of the device<br />
+     * The port handle can be used instead of the device id, without the string lookup.
+     *
+     * @param deviceId the device id
+     * @return the port handle, -1 if not found
+     */
+    public int getPortHandle(String deviceId) {
+        if (isMidiSupported()) {
+            MidiPort port = portMap.get(deviceId);
+            if (port != null) {
+                return port.portHandle;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Obtains the device id of the port handle
+     *
+     * @param portHandle the port handle
+     * @return the device id, null if not found
+     */
+    public String getDeviceId(int portHandle) {
+        if (isMidiSupported()) {
+            MidiPort port = portTable.get(portHandle);
+            if (port != null) {
+                return port.deviceId;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Sets the identifier of the ports used in the messages sent with UnitySendMessage<br />
+     * When enabled, the attached messages and the received MIDI event messages contain the port handle instead of the device id.
+     *
+     * @param enabled true: port handle, false: device id
+     */
+    public void setPortHandleMessageEnabled(boolean enabled) {
+        synchronized (portTable) {
+            portHandleMessageEnabled = enabled;
+            for (Object entry : portTable.entries()) {
+                MidiPort port = (MidiPort) entry;
+                if (port != null && port.receiver != null) {
+                    port.receiver.portIdentifier = enabled ? String.valueOf(port.portHandle) : port.deviceId;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the discovery-only mode, should be called before {@link #initialize(Context)}<br />
+     * When enabled, the devices are listed and the attached messages are sent without opening the ports.
+     * The sending port is opened on the first send, and the receiving port is opened with {@link #openMidiPort(int)}.
+     * The messages sent before the port has been opened are held, and sent in order when the port has been opened.<br />
+     * The port settings such as the filters and the routes can be set before the port is opened.
+     *
+     * @param enabled true: opens the ports on demand, false: opens all ports on attached(default)
+     */
+    public void setLazyPortOpeningEnabled(boolean enabled) {
+        lazyPortOpeningEnabled = enabled;
+    }
+
+    /**
+     * Opens the port asynchronously, does nothing if the port is already opened
+     *
+     * @param deviceId the device id
+     */
+    public void openMidiPort(String deviceId) {
+        openMidiPort(getPortHandle(deviceId));
+    }
+
+    public void openMidiPort(final int portHandle) {
+        if (isMidiSupported()) {
+            runOnHandlerThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (transport != null) {
+                        openMidiPort(portTable.get(portHandle));
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Closes the port asynchronously, the port is kept attached and may be opened again<br />
+     * The scheduled messages and the System Exclusive transfers of the port are canceled.
+     *
+     * @param deviceId the device id
+     */
+    public void closeMidiPort(String deviceId) {
+        closeMidiPort(getPortHandle(deviceId));
+    }
+
+    public void closeMidiPort(final int portHandle) {
+        if (isMidiSupported()) {
+            runOnHandlerThread(new Runnable() {
+                @Override
+                public void run() {
+                    MidiPort port = portTable.get(portHandle);
+                    if (port == null) {
+                        return;
+                    }
+                    if (port.sender != null) {
+                        cancelSending(port);
+                    }
+                    closeMidiPort(port);
+                    closeUnusedMidiDevice(port.deviceInfo);
+                }
+            });
+        }
+    }
+
+    /**
+     * Checks the port is opened
+     *
+     * @param deviceId the device id
+     * @return true if opened, false if closed or not found
+     */
+    public boolean isMidiPortOpened(String deviceId) {
+        return isMidiPortOpened(getPortHandle(deviceId));
+    }
+
+    public boolean isMidiPortOpened(int portHandle) {
+        if (isMidiSupported()) {
+            MidiPort port = portTable.get(portHandle);
+            return port != null && port.isOpened();
+        }
+
+        return false;
+    }
+
+    /**
+     * Sets the idle period to close the sending ports<br />
+     * The sending port is closed when nothing has been sent for the period, and opened again on the next send.
+     * The port is kept opened while the notes are sounding, or in the middle of a System Exclusive message.
+     * The receiving ports are kept opened until {@link #closeMidiPort(int)} is called.
+     *
+     * @param milliseconds the idle period, 0 to keep the ports opened(default)
+     */
+    public void setIdlePortTimeout(long milliseconds) {
+        idlePortTimeout = TimeUnit.MILLISECONDS.toNanos(milliseconds);
+        scheduleIdlePortCheck();
+    }
+
+    /**
+     * Schedules the delivery of the MSB expired waiting for the LSB, called from the receiving thread when the MSB is kept
+     *
+     * @param timeout the timeout of the aggregation, in nanoseconds
+     */
+    private void scheduleExpiredAggregationFlush(long timeout) {
+        if (expiredAggregationFlushScheduled.compareAndSet(false, true)) {
+            handler.postDelayed(expiredAggregationFlushTask, Math.max(TimeUnit.NANOSECONDS.toMillis(timeout), 1));
+        }
+    }
+
+    /**
+     * Sends the MSB expired waiting for the LSB with UnitySendMessage, called on the handler thread
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void flushExpiredAggregations() {
+        final long now = System.nanoTime();
+        forEachReceiver(new ReceiverAction() {
+            @Override
+            public void run(InterAppMidiReceiver receiver) {
+                MidiControllerAggregator aggregator = receiver.controllerAggregator;
+                // the high resolution event polling writes the expired values on polling
+                if (aggregator == null || receiver.highResolutionEventBuffer != null) {
+                    return;
+                }
+                aggregator.flushExpired(now, receiver.expiredAggregatedEventSender, Integer.MAX_VALUE);
+                if (aggregator.hasPendingValues()) {
+                    // kept after the scheduling, or not expired yet
+                    scheduleExpiredAggregationFlush(aggregator.getTimeout());
+                }
+            }
+        });
+    }
+
+    private void scheduleIdlePortCheck() {
+        MidiHost.EventLoop currentHandler = handler;
+        currentHandler.removeCallbacks(idlePortCheckTask);
+        long timeout = idlePortTimeout;
+        if (timeout > 0) {
+            currentHandler.postDelayed(idlePortCheckTask, Math.max(TimeUnit.NANOSECONDS.toMillis(timeout) / 2, 100));
+        }
+    }
+
+    /**
+     * Closes the sending ports idle for the period, called on the handler thread
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void closeIdleMidiPorts() {
+        long timeout = idlePortTimeout;
+        if (timeout <= 0) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        for (Object entry : portTable.entries()) {
+            MidiPort port = (MidiPort) entry;
+            if (port != null && port.midiInputPort != null && port.sender.unbindIfIdle(now, timeout)) {
+                closeMidiPort(port);
+                closeUnusedMidiDevice(port.deviceInfo);
+            }
+        }
+        scheduleIdlePortCheck();
+    }
+
+    /**
+     * Enables the event polling mode<br />
+     * In this mode, the received MIDI events(except System Exclusive) are not sent with UnitySendMessage,
+     * but stored to the per-port ring buffers, and should be read with {@link #pollEvents(ByteBuffer)} once per frame.
+     *
+     * @param capacity the number of the events which can be stored for each port
+     */
+    public void enableEventPolling(int capacity) {
+        synchronized (portTable) {
+            eventBufferCapacity = capacity;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.eventBuffer = new MidiEventRingBuffer(capacity);
+                }
+            });
+        }
+    }
+
+    /**
+     * Disables the event polling mode, and resumes sending events with UnitySendMessage
+     */
+    public void disableEventPolling() {
+        synchronized (portTable) {
+            eventBufferCapacity = 0;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.eventBuffer = null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the received MIDI events in the event polling mode<br />
+     * Each event is written as a {@link MidiEventRingBuffer#EVENT_SIZE} bytes record, with the native byte order:
+     * port handle(int), status(byte), data1(byte), data2(byte), reserved(byte), timestamp(long).<br />
+     * If the coalescing is enabled, the coalesced events are written after the other events of the port.
+     *
+     * @param destination the buffer to fill, the position is advanced by the written records, and the byte order is set to the native order
+     * @return the number of the written events
+     */
+    public int pollEvents(ByteBuffer destination) {
+        destination.order(ByteOrder.nativeOrder());
+        return (int) forEachReceiver(new ReceiverAction() {
+            @Override
+            public void run(InterAppMidiReceiver receiver) {
+                MidiEventRingBuffer eventBuffer = receiver.eventBuffer;
+                if (eventBuffer != null) {
+                    int start = destination.position();
+                    int portCount = eventBuffer.drainTo(destination);
+                    MidiEventCoalescer coalescer = receiver.coalescer;
+                    if (coalescer != null) {
+                        coalescedEventWriter.destination = destination;
+                        coalescedEventWriter.portHandle = receiver.portHandle;
+                        portCount += coalescer.flush(coalescedEventWriter, destination.remaining() / MidiEventRingBuffer.EVENT_SIZE);
+                        coalescedEventWriter.destination = null;
+                    }
+
+                    if (receiver.latencyTracking && portCount > 0) {
+                        long now = System.nanoTime();
+                        for (int i = 0; i < portCount; i++) {
+                            receiver.consumeLatency.record(now - destination.getLong(start + i * MidiEventRingBuffer.EVENT_SIZE + 8));
+                        }
+                    }
+                    count += portCount;
+                }
+            }
+        });
+    }
+
+    /**
+     * Enables the high resolution event polling<br />
+     * In this mode, the received channel messages are not delivered as the MIDI 1.0 events, but stored to the per-port ring buffers with the MIDI 2.0 resolution,
+     * and should be read with {@link #pollHighResolutionEvents(ByteBuffer)} once per frame.
+     * The messages from the MIDI 1.0 ports are scaled up, so both kinds of the ports are read in the same format.<br />
+     * The other messages are delivered as before.
+     *
+     * @param capacity the number of the events which can be stored for each port
+     */
+    public void enableHighResolutionEventPolling(int capacity) {
+        synchronized (portTable) {
+            highResolutionEventBufferCapacity = capacity;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.highResolutionEventBuffer = new HighResolutionEventRingBuffer(capacity);
+                }
+            });
+        }
+    }
+
+    /**
+     * Disables the high resolution event polling, and resumes delivering the channel messages as the MIDI 1.0 events
+     */
+    public void disableHighResolutionEventPolling() {
+        synchronized (portTable) {
+            highResolutionEventBufferCapacity = 0;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.highResolutionEventBuffer = null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the received channel messages in the high resolution event polling mode<br />
+     * Each event is written as a {@link HighResolutionEventRingBuffer#EVENT_SIZE} bytes record, with the native byte order:
+     * port handle(int), status(byte), index(byte), bank(byte), group(byte), value(int), extra(int), timestamp(long).
+     * The status is the MIDI 2.0 opcode and the channel: 0x8n-0xen as MIDI 1.0, 0x2n for RPN, 0x3n for NRPN, 0x4n for relative RPN, 0x5n for relative NRPN.
+     * The value is the 16-bit velocity for the notes, the signed step for the relative RPN/NRPN, and the unsigned 32-bit value for the others.<br />
+     * With the controller aggregation, the combined events of the port are written instead of the Control Change sequences,
+     * and the MSB expired waiting for the LSB is written after the other events of the port.
+     *
+     * @param destination the buffer to fill, the position is advanced by the written records, and the byte order is set to the native order
+     * @return the number of the written events
+     */
+    public int pollHighResolutionEvents(ByteBuffer destination) {
+        destination.order(ByteOrder.nativeOrder());
+        final long now = System.nanoTime();
+        return (int) forEachReceiver(new ReceiverAction() {
+            @Override
+            public void run(InterAppMidiReceiver receiver) {
+                HighResolutionEventRingBuffer buffer = receiver.highResolutionEventBuffer;
+                if (buffer != null) {
+                    count += buffer.drainTo(destination);
+                    MidiControllerAggregator aggregator = receiver.controllerAggregator;
+                    if (aggregator != null) {
+                        highResolutionControllerEventWriter.destination = destination;
+                        highResolutionControllerEventWriter.portHandle = receiver.portHandle;
+                        count += aggregator.flushExpired(now, highResolutionControllerEventWriter, destination.remaining() / HighResolutionEventRingBuffer.EVENT_SIZE);
+                        highResolutionControllerEventWriter.destination = null;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Enables the coalescing of the continuous events<br />
+     * Control Change, Polyphonic Aftertouch, Channel Aftertouch and Pitch Wheel events are not delivered immediately,
+     * only the latest value for each channel and controller is delivered with {@link #flushCoalescedEvents()} or {@link #pollEvents(ByteBuffer)}.<br />
+     * The other events are delivered immediately in the received order.
+     * The values stored for a channel are delivered before the Note On, the Note Off and the Program Change of the channel, so they aren't reordered across the notes.
+     */
+    public void enableCoalescing() {
+        synchronized (portTable) {
+            coalescingEnabled = true;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.setCoalescing(true);
+                }
+            });
+        }
+    }
+
+    /**
+     * Disables the coalescing of the continuous events<br />
+     * The values already stored are delivered with the next {@link #flushCoalescedEvents()} or {@link #pollEvents(ByteBuffer)}.
+     */
+    public void disableCoalescing() {
+        synchronized (portTable) {
+            coalescingEnabled = false;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.setCoalescing(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sends the coalesced events with UnitySendMessage, should be called once per frame<br />
+     * In the event polling mode, use {@link #pollEvents(ByteBuffer)} instead.
+     * With {@link #DISPATCH_THREAD} and {@link #DISPATCH_HANDLER_THREAD}, the coalesced events are sent from the dispatching thread without calling this.
+     */
+    public void flushCoalescedEvents() {
+        forEachReceiver(new ReceiverAction() {
+            @Override
+            public void run(InterAppMidiReceiver receiver) {
+                // the dispatching thread flushes the coalesced events
+                if (receiver.dispatcher == null) {
+                    receiver.flushCoalescedEvents();
+                }
+            }
+        });
+    }
+
+    /**
+     * Obtains the number of the events dropped because the dispatch queue was full
+     *
+     * @return the number of the dropped events, 0 with {@link #DISPATCH_INLINE}
+     */
+    public long getDispatchDroppedEventCount() {
+        MidiEventDispatcher eventDispatcher = dispatcher;
+        return eventDispatcher == null ? 0 : eventDispatcher.getDroppedEventCount();
+    }
+
+    /**
+     * Enables the latency tracking of the received events<br />
+     * Two latencies are recorded for each port, from the timestamp of the received packet:<br />
+     * {@link #LATENCY_DISPATCH}: to the time the event is dispatched on the receiving thread<br />
+     * {@link #LATENCY_CONSUME}: to the time the event is read with {@link #pollEvents(ByteBuffer)}, the coalesced event is flushed, or the event is sent from the dispatching thread
+     */
+    public void enableLatencyTracking() {
+        synchronized (portTable) {
+            latencyTrackingEnabled = true;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.latencyTracking = true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Disables the latency tracking, the recorded values are kept
+     */
+    public void disableLatencyTracking() {
+        synchronized (portTable) {
+            latencyTrackingEnabled = false;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.latencyTracking = false;
+                }
+            });
+        }
+    }
+
+    /**
+     * Clears the recorded latencies of all ports
+     */
+    public void resetLatencyHistograms() {
+        forEachReceiver(new ReceiverAction() {
+            @Override
+            public void run(InterAppMidiReceiver receiver) {
+                receiver.dispatchLatency.reset();
+                receiver.consumeLatency.reset();
+            }
+        });
+    }
+
+    /**
+     * Obtains the recorded latency at the percentile
+     *
+     * @param deviceId the device id of the input device
+     * @param stage {@link #LATENCY_DISPATCH} or {@link #LATENCY_CONSUME}
+     * @param percentile 0.0 - 100.0, e.g. 99.0
+     * @return the latency in nanoseconds, 0 if nothing recorded, -1 if the device is not found
+     */
+    public long getLatencyAtPercentile(String deviceId, int stage, double percentile) {
+        return getLatencyAtPercentile(getPortHandle(deviceId), stage, percentile);
+    }
+
+    /**
+     * Obtains the recorded latency at the percentile
+     *
+     * @param portHandle the port handle of the input device
+     * @param stage {@link #LATENCY_DISPATCH} or {@link #LATENCY_CONSUME}
+     * @param percentile 0.0 - 100.0, e.g. 99.0
+     * @return the latency in nanoseconds, 0 if nothing recorded, -1 if the device is not found
+     */
+    public long getLatencyAtPercentile(int portHandle, int stage, double percentile) {
+        MidiPort port = portTable.get(portHandle);
+        if (port == null || port.receiver == null) {
+            return -1;
+        }
+        InterAppMidiReceiver receiver = port.receiver;
+
+        return (stage == LATENCY_CONSUME ? receiver.consumeLatency : receiver.dispatchLatency).getValueAtPercentile(percentile);
+    }
+
+    /**
+     * Obtains the number of the recorded latencies
+     *
+     * @param deviceId the device id of the input device
+     * @param stage {@link #LATENCY_DISPATCH} or {@link #LATENCY_CONSUME}
+     * @return the number of the recorded latencies, -1 if the device is not found
+     */
+    public long getLatencyCount(String deviceId, int stage) {
+        return getLatencyCount(getPortHandle(deviceId), stage);
+    }
+
+    /**
+     * Obtains the number of the recorded latencies
+     *
+     * @param portHandle the port handle of the input device
+     * @param stage {@link #LATENCY_DISPATCH} or {@link #LATENCY_CONSUME}
+     * @return the number of the recorded latencies, -1 if the device is not found
+     */
+    public long getLatencyCount(int portHandle, int stage) {
+        MidiPort port = portTable.get(portHandle);
+        if (port == null || port.receiver == null) {
+            return -1;
+        }
+        InterAppMidiReceiver receiver = port.receiver;
+
+        return (stage == LATENCY_CONSUME ? receiver.consumeLatency : receiver.dispatchLatency).getTotalCount();
+    }
+
+    /**
+     * Writes the coalesced events as the event records
+     */
+    private static class CoalescedEventWriter implements MidiEventCoalescer.OnMidiMessageListener {
+        private ByteBuffer destination;
+        private int portHandle;
+
+        @Override
+        public void onMidiMessage(int status, int data1, int data2, long timestamp) {
+            MidiEventRingBuffer.putEvent(destination, portHandle, status, data1, data2, timestamp);
+        }
+    }
+
+    /**
+     * Writes the combined events of the controller aggregation as the high resolution event records<br />
+     * The 14-bit values are scaled up to 32 bits, and RPN/NRPN are written with the MIDI 2.0 opcodes.
+     */
+    private static class HighResolutionControllerEventWriter implements MidiControllerAggregator.OnControllerEventListener {
+        // the polled buffer, or null to write to the ring buffer
+        private ByteBuffer destination;
+        private HighResolutionEventRingBuffer buffer;
+        private int portHandle;
+
+        @Override
+        public void onHighResolutionControlChange(int channel, int controller, int value, long timestamp) {
+            write(0xb0 | channel, controller, 0, UmpEncoder.scaleUp(value, 14, 32), timestamp);
+        }
+
+        @Override
+        public void onParameterChange(int channel, boolean registered, int parameter, int value, long timestamp) {
+            write((registered ? 0x20 : 0x30) | channel, parameter & 0x7f, parameter >> 7, UmpEncoder.scaleUp(value, 14, 32), timestamp);
+        }
+
+        @Override
+        public void onParameterStep(int channel, boolean registered, int parameter, int step, long timestamp) {
+            write((registered ? 0x40 : 0x50) | channel, parameter & 0x7f, parameter >> 7, step, timestamp);
+        }
+
+        private void write(int status, int index, int bank, int value, long timestamp) {
+            if (destination != null) {
+                HighResolutionEventRingBuffer.putEvent(destination, portHandle, 0, status, index, bank, value, 0, timestamp);
+            } else {
+                buffer.offer(portHandle, 0, status, index, bank, value, 0, timestamp);
+            }
+        }
+    }
+
+    /**
+     * Sets the filter of the received messages for all ports<br />
+     * The messages not passing both the global filter and the port filter are not delivered to Unity,
+     * neither formatted nor stored to the polling buffers. The routes and the clock tracking still receive them.
+     *
+     * @param typeMask the combination of {@link MidiMessageFilter} type constants, {@link MidiMessageFilter#ALL_TYPES} to pass all
+     * @param channelMask the bit {@code 1 << channel} for each channel, {@link MidiMessageFilter#ALL_CHANNELS} to pass all
+     */
+    public void setGlobalMessageFilter(int typeMask, int channelMask) {
+        synchronized (portTable) {
+            globalTypeMask = typeMask;
+            globalChannelMask = channelMask;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.typeMask = receiver.portTypeMask & typeMask;
+                    receiver.channelMask = receiver.portChannelMask & channelMask;
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets the filter of the received messages for the port, combined with the global filter
+     *
+     * @param deviceId the device id
+     * @param typeMask the combination of {@link MidiMessageFilter} type constants, {@link MidiMessageFilter#ALL_TYPES} to pass all
+     * @param channelMask the bit {@code 1 << channel} for each channel, {@link MidiMessageFilter#ALL_CHANNELS} to pass all
+     * @see #setGlobalMessageFilter(int, int)
+     */
+    public void setMessageFilter(String deviceId, int typeMask, int channelMask) {
+        setMessageFilter(getPortHandle(deviceId), typeMask, channelMask);
+    }
+
+    public void setMessageFilter(int portHandle, int typeMask, int channelMask) {
+        if (isMidiSupported()) {
+            synchronized (portTable) {
+                InterAppMidiReceiver receiver = getReceiver(portTable.get(portHandle));
+                if (receiver == null) {
+                    return;
+                }
+
+                receiver.portTypeMask = typeMask;
+                receiver.portChannelMask = channelMask;
+                receiver.typeMask = typeMask & globalTypeMask;
+                receiver.channelMask = channelMask & globalChannelMask;
+            }
+        }
+    }
+
+    /**
+     * Enables the aggregation of the high resolution controllers for the port<br />
+     * The Control Change sequences are combined and sent with UnitySendMessage as the single events, instead of "OnMidiControlChange":<br />
+     * "OnMidiHighResolutionControlChange": the MSB(0-31) and LSB(32-63) pair, with the channel, the MSB controller number and the 14-bit value<br />
+     * "OnMidiRpnChange", "OnMidiNrpnChange": the parameter selection and the Data Entry(6/38), with the channel, the 14-bit parameter number and the 14-bit value<br />
+     * "OnMidiRpnStep", "OnMidiNrpnStep": the Data Increment(96) and Decrement(97), with the channel, the 14-bit parameter number and 1 or -1<br />
+     * The MSB waiting for the LSB is sent alone when another message of the channel arrives, or from the handler thread after 10 milliseconds.<br />
+     * With the high resolution event polling, the combined events are stored to its buffer instead, see {@link #pollHighResolutionEvents(ByteBuffer)}.
+     * The MIDI 1.0 event polling mode is not affected.
+     *
+     * @param deviceId the device id
+     */
+    public void enableControllerAggregation(String deviceId) {
+        enableControllerAggregation(getPortHandle(deviceId));
+    }
+
+    public void enableControllerAggregation(int portHandle) {
+        enableControllerAggregation(portHandle, TimeUnit.NANOSECONDS.toMillis(MidiControllerAggregator.DEFAULT_TIMEOUT));
+    }
+
+    /**
+     * Enables the aggregation of the high resolution controllers for the port, with the timeout
+     *
+     * @param deviceId the device id
+     * @param timeoutMillis the time to wait for the LSB, in milliseconds
+     * @see #enableControllerAggregation(int)
+     */
+    public void enableControllerAggregation(String deviceId, long timeoutMillis) {
+        enableControllerAggregation(getPortHandle(deviceId), timeoutMillis);
+    }
+
+    public void enableControllerAggregation(int portHandle, long timeoutMillis) {
+        if (isMidiSupported()) {
+            InterAppMidiReceiver receiver = getReceiver(portTable.get(portHandle));
+            if (receiver != null) {
+                final long timeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                receiver.controllerAggregator = new MidiControllerAggregator(timeout, new Runnable() {
+                    @Override
+                    public void run() {
+                        scheduleExpiredAggregationFlush(timeout);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Disables the aggregation of the high resolution controllers for the port, the MSB waiting for the LSB is discarded
+     *
+     * @param deviceId the device id
+     */
+    public void disableControllerAggregation(String deviceId) {
+        disableControllerAggregation(getPortHandle(deviceId));
+    }
+
+    public void disableControllerAggregation(int portHandle) {
+        if (isMidiSupported()) {
+            InterAppMidiReceiver receiver = getReceiver(portTable.get(portHandle));
+            if (receiver != null) {
+                receiver.controllerAggregator = null;
+            }
+        }
+    }
+
+    /**
+     * Enables the tracking of the channel state for the port<br />
+     * The latest Control Change values, Program Change, Pitch Wheel, Channel Aftertouch and the sounding notes are kept for each channel,
+     * and can be read with {@link #getMidiState(int, int[])} or the single value getters without the events.
+     * The state is updated before the message filter, so the event delivery of the tracked types can be disabled with {@link #setMessageFilter(int, int, int)}.
+     *
+     * @param deviceId the device id
+     */
+    public void enableMidiStateTracking(String deviceId) {
+        enableMidiStateTracking(getPortHandle(deviceId));
+    }
+
+    public void enableMidiStateTracking(int portHandle) {
+        if (isMidiSupported()) {
+            InterAppMidiReceiver receiver = getReceiver(portTable.get(portHandle));
+            if (receiver != null && receiver.controllerState == null) {
+                receiver.controllerState = new MidiControllerState();
+            }
+        }
+    }
+
+    /**
+     * Disables the tracking of the channel state for the port, the state is discarded
+     *
+     * @param deviceId the device id
+     */
+    public void disableMidiStateTracking(String deviceId) {
+        disableMidiStateTracking(getPortHandle(deviceId));
+    }
+
+    public void disableMidiStateTracking(int portHandle) {
+        if (isMidiSupported()) {
+            InterAppMidiReceiver receiver = getReceiver(portTable.get(portHandle));
+            if (receiver != null) {
+                receiver.controllerState = null;
+            }
+        }
+    }
+
+    private MidiControllerState getMidiControllerState(int portHandle) {
+        if (isMidiSupported()) {
+            InterAppMidiReceiver receiver = getReceiver(portTable.get(portHandle));
+            if (receiver != null) {
+                return receiver.controllerState;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Obtains the version of the channel state, incremented with each update<br />
+     * Compare with the last version to skip reading the unchanged state.
+     *
+     * @param deviceId the device id
+     * @return the version, -1 if the state is not tracked
+     */
+    public long getMidiStateVersion(String deviceId) {
+        return getMidiStateVersion(getPortHandle(deviceId));
+    }
+
+    public long getMidiStateVersion(int portHandle) {
+        MidiControllerState state = getMidiControllerState(portHandle);
+        return state != null ? state.getVersion() : -1;
+    }
+
+    /**
+     * Copies the whole channel state with one call<br />
+     * Each value is the latest one, the values updated while copying may be from the different messages.
+     *
+     * @param deviceId the device id
+     * @param state the destination, indexed with the constants of {@link MidiControllerState}, should have {@link MidiControllerState#SIZE} elements
+     * @return the version of the copied state, -1 if the state is not tracked
+     */
+    public long getMidiState(String deviceId, int[] state) {
+        return getMidiState(getPortHandle(deviceId), state);
+    }
+
+    public long getMidiState(int portHandle, int[] state) {
+        MidiControllerState controllerState = getMidiControllerState(portHandle);
+        return controllerState != null ? controllerState.copyTo(state) : -1;
+    }
+
+    /**
+     * Copies the sounding notes as the bitset<br />
+     * The note is sounding if the bit {@code note & 63} of {@code notes[channel * 2 + (note >> 6)]} is set.
+     *
+     * @param deviceId the device id
+     * @param notes the destination, should have 32 elements
+     * @return the version of the copied state, -1 if the state is not tracked
+     */
+    public long getActiveNotes(String deviceId, long[] notes) {
+        return getActiveNotes(getPortHandle(deviceId), notes);
+    }
+
+    public long getActiveNotes(int portHandle, long[] notes) {
+        MidiControllerState controllerState = getMidiControllerState(portHandle);
+        return controllerState != null ? controllerState.copyActiveNotesTo(notes) : -1;
+    }
+
+    private int getMidiStateValue(int portHandle, int index) {
+        MidiControllerState state = getMidiControllerState(portHandle);
+        return state != null ? state.get(index) : -1;
+    }
+
+    /**
+     * Obtains the latest Control Change value
+     *
+     * @param deviceId the device id
+     * @param channel the channel, 0-15
+     * @param controller the controller number, 0-127
+     * @return the value, -1 if the state is not tracked
+     */
+    public int getControllerValue(String deviceId, int channel, int controller) {
+        return getControllerValue(getPortHandle(deviceId), channel, controller);
+    }
+
+    public int getControllerValue(int portHandle, int channel, int controller) {
+        return getMidiStateValue(portHandle, MidiControllerState.CONTROLLER_OFFSET + ((channel & 0xf) << 7) + (controller & 0x7f));
+    }
+
+    /**
+     * Obtains the latest Program Change number
+     *
+     * @param deviceId the device id
+     * @param channel the channel, 0-15
+     * @return the program number, -1 if the state is not tracked
+     */
+    public int getProgram(String deviceId, int channel) {
+        return getProgram(getPortHandle(deviceId), channel);
+    }
+
+    public int getProgram(int portHandle, int channel) {
+        return getMidiStateValue(portHandle, MidiControllerState.PROGRAM_OFFSET + (channel & 0xf));
+    }
+
+    /**
+     * Obtains the latest Pitch Wheel value
+     *
+     * @param deviceId the device id
+     * @param channel the channel, 0-15
+     * @return the value 0-16383, the center is 8192, -1 if the state is not tracked
+     */
+    public int getPitchWheel(String deviceId, int channel) {
+        return getPitchWheel(getPortHandle(deviceId), channel);
+    }
+
+    public int getPitchWheel(int portHandle, int channel) {
+        return getMidiStateValue(portHandle, MidiControllerState.PITCH_WHEEL_OFFSET + (channel & 0xf));
+    }
+
+    /**
+     * Obtains the latest Channel Aftertouch value
+     *
+     * @param deviceId the device id
+     * @param channel the channel, 0-15
+     * @return the value, -1 if the state is not tracked
+     */
+    public int getChannelPressure(String deviceId, int channel) {
+        return getChannelPressure(getPortHandle(deviceId), channel);
+    }
+
+    public int getChannelPressure(int portHandle, int channel) {
+        return getMidiStateValue(portHandle, MidiControllerState.CHANNEL_PRESSURE_OFFSET + (channel & 0xf));
+    }
+
+    /**
+     * Obtains the velocity of the sounding note
+     *
+     * @param deviceId the device id
+     * @param channel the channel, 0-15
+     * @param note the note number, 0-127
+     * @return the velocity, 0 if the note is not sounding, -1 if the state is not tracked
+     */
+    public int getNoteVelocity(String deviceId, int channel, int note) {
+        return getNoteVelocity(getPortHandle(deviceId), channel, note);
+    }
+
+    public int getNoteVelocity(int portHandle, int channel, int note) {
+        return getMidiStateValue(portHandle, MidiControllerState.NOTE_VELOCITY_OFFSET + ((channel & 0xf) << 7) + (note & 0x7f));
+    }
+
+    /**
+     * Adds a route, the received messages of the source port are sent to the destination port directly on the receiving thread<br />
+     * The route is removed when the source or the destination port is closed.
+     *
+     * @param sourceDeviceId the device id of the receiving port
+     * @param destinationDeviceId the device id of the sending port
+     * @return the route id, -1 if the port is not found
+     */
+    public int addRoute(String sourceDeviceId, String destinationDeviceId) {
+        return addRoute(getPortHandle(sourceDeviceId), getPortHandle(destinationDeviceId));
+    }
+
+    public int addRoute(int sourcePortHandle, int destinationPortHandle) {
+        if (isMidiSupported()) {
+            MidiInputPortSender sender = getSender(destinationPortHandle);
+            if (sender == null || getReceiver(portTable.get(sourcePortHandle)) == null) {
+                return -1;
+            }
+
+            synchronized (routeTable) {
+                int routeId = routeTable.allocate();
+                routeTable.put(routeId, new MidiRoute(routeId, sourcePortHandle, destinationPortHandle, sender));
+                updateRoutes(sourcePortHandle);
+                return routeId;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Removes the route
+     *
+     * @param routeId the route id
+     */
+    public void removeRoute(int routeId) {
+        if (isMidiSupported()) {
+            synchronized (routeTable) {
+                MidiRoute route = routeTable.remove(routeId);
+                if (route != null) {
+                    updateRoutes(route.sourcePortHandle);
+                    route.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all routes
+     */
+    public void clearRoutes() {
+        if (isMidiSupported()) {
+            synchronized (routeTable) {
+                Object[] routes = routeTable.entries();
+                routeTable.clear();
+                forEachReceiver(new ReceiverAction() {
+                    @Override
+                    public void run(InterAppMidiReceiver receiver) {
+                        receiver.routes = NO_ROUTES;
+                    }
+                });
+                for (Object route : routes) {
+                    if (route != null) {
+                        ((MidiRoute) route).close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes the channel of the routed channel messages
+     *
+     * @param routeId the route id
+     * @param sourceChannel 0-15
+     * @param destinationChannel 0-15, or -1 to drop the messages of the source channel
+     */
+    public void setRouteChannelMap(int routeId, int sourceChannel, int destinationChannel) {
+        MidiRoute route = routeTable.get(routeId);
+        if (route != null) {
+            route.setChannelMap(sourceChannel, destinationChannel);
+        }
+    }
+
+    /**
+     * Transposes the routed Note On, Note Off and Polyphonic Aftertouch, the notes out of the range are dropped
+     *
+     * @param routeId the route id
+     * @param semitones the transposition
+     */
+    public void setRouteTranspose(int routeId, int semitones) {
+        MidiRoute route = routeTable.get(routeId);
+        if (route != null) {
+            route.setTranspose(semitones);
+        }
+    }
+
+    /**
+     * Sets the velocity curve of the routed Note On
+     *
+     * @param routeId the route id
+     * @param exponent the exponent of the curve, 1.0 for linear, less than 1.0 to increase the soft velocities
+     */
+    public void setRouteVelocityCurve(int routeId, float exponent) {
+        MidiRoute route = routeTable.get(routeId);
+        if (route != null) {
+            route.setVelocityCurve(exponent == 1.0f ? null : MidiRoute.createVelocityCurve(exponent));
+        }
+    }
+
+    /**
+     * Sets the velocity curve of the routed Note On, with the table
+     *
+     * @param routeId the route id
+     * @param velocityCurve 128 velocities indexed by the received velocity, null to keep the velocity
+     */
+    public void setRouteVelocityCurve(int routeId, byte[] velocityCurve) {
+        MidiRoute route = routeTable.get(routeId);
+        if (route != null) {
+            if (velocityCurve == null) {
+                route.setVelocityCurve(null);
+                return;
+            }
+
+            byte[] curve = new byte[128];
+            for (int i = 1; i < curve.length && i < velocityCurve.length; i++) {
+                curve[i] = (byte) Math.max(1, velocityCurve[i] & 0x7f);
+            }
+            route.setVelocityCurve(curve);
+        }
+    }
+
+    /**
+     * Filters the routed messages
+     *
+     * @param routeId the route id
+     * @param typeMask the combination of {@link MidiMessageFilter} type constants
+     * @param channelMask the bit {@code 1 << channel} for each source channel
+     */
+    public void setRouteFilter(int routeId, int typeMask, int channelMask) {
+        MidiRoute route = routeTable.get(routeId);
+        if (route != null) {
+            route.setFilter(typeMask, channelMask);
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void removeRoutes(int portHandle) {
+        synchronized (routeTable) {
+            Object[] routes = routeTable.entries();
+            for (int i = 0; i < routes.length; i++) {
+                MidiRoute route = (MidiRoute) routes[i];
+                if (route != null && (route.sourcePortHandle == portHandle || route.destinationPortHandle == portHandle)) {
+                    routeTable.remove(route.routeId);
+                    updateRoutes(route.sourcePortHandle);
+                    route.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes the routes of the source port to the receiver, called with the lock of the route table
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void updateRoutes(int sourcePortHandle) {
+        InterAppMidiReceiver receiver = getReceiver(portTable.get(sourcePortHandle));
+        if (receiver == null) {
+            return;
+        }
+
+        List<MidiRoute> routes = new ArrayList<>();
+        for (Object route : routeTable.entries()) {
+            if (route != null && ((MidiRoute) route).sourcePortHandle == sourcePortHandle) {
+                routes.add((MidiRoute) route);
+            }
+        }
+        receiver.routes = routes.toArray(NO_ROUTES);
+    }
+
+    /**
+     * Enables the MIDI clock tracking<br />
+     * The received Timing Clock, Start, Continue, Stop and Song Position Pointer are tracked for each port,
+     * and "OnMidiBeat", "OnMidiBar" and "OnMidiTempoChanged" are sent with UnitySendMessage, with the beat number, the bar number, or the tempo(BPM).<br />
+     * The tracking is restarted if already enabled.
+     *
+     * @param beatsPerBar the number of the beats in a bar
+     * @param clockForwarding false: the Timing Clock events are not delivered as "OnMidiTimingClock" nor to the event polling buffers
+     */
+    public void enableClockTracking(int beatsPerBar, boolean clockForwarding) {
+        synchronized (portTable) {
+            clockTrackingBeatsPerBar = Math.max(beatsPerBar, 1);
+            clockForwardingEnabled = clockForwarding;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.clockTracker = new MidiClockTracker(receiver, clockTrackingBeatsPerBar);
+                    receiver.clockForwarding = clockForwarding;
+                }
+            });
+        }
+    }
+
+    /**
+     * Disables the MIDI clock tracking, and resumes delivering the Timing Clock events
+     */
+    public void disableClockTracking() {
+        synchronized (portTable) {
+            clockTrackingBeatsPerBar = 0;
+            clockForwardingEnabled = true;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.clockTracker = null;
+                    receiver.clockForwarding = true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Obtains the tempo tracked from the MIDI clock
+     *
+     * @param deviceId the device id
+     * @return the tempo in beats per minute, 0 if not known
+     */
+    public float getTempo(String deviceId) {
+        return getTempo(getPortHandle(deviceId));
+    }
+
+    public float getTempo(int portHandle) {
+        if (isMidiSupported()) {
+            InterAppMidiReceiver receiver = getReceiver(portTable.get(portHandle));
+            if (receiver != null) {
+                MidiClockTracker tracker = receiver.clockTracker;
+                if (tracker != null) {
+                    return tracker.getTempo();
+                }
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Obtains the song position tracked from the MIDI clock
+     *
+     * @param deviceId the device id
+     * @return the song position in clocks(24 per beat), 0 if not known
+     */
+    public long getClockPosition(String deviceId) {
+        return getClockPosition(getPortHandle(deviceId));
+    }
+
+    public long getClockPosition(int portHandle) {
+        if (isMidiSupported()) {
+            InterAppMidiReceiver receiver = getReceiver(portTable.get(portHandle));
+            if (receiver != null) {
+                MidiClockTracker tracker = receiver.clockTracker;
+                if (tracker != null) {
+                    return tracker.getClockPosition();
+                }
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Starts recording the received messages of all the receiving ports to a Standard MIDI File<br />
+     * The ports opened while recording are also recorded. The file is written by a background thread,
+     * and the receiving threads only put the events to the queues.<br />
+     * The channel messages and System Exclusive are recorded, at 960 ticks per quarter note, 120 BPM.
+     *
+     * @param path the path of the file, overwritten if exists
+     * @param format 0: all ports in a track, 1: a track for each port
+     * @return false if already recording, or failed to create the file
+     */
+    public boolean startRecording(String path, int format) {
+        if (!isMidiSupported()) {
+            return false;
+        }
+
+        synchronized (portTable) {
+            if (recorder != null) {
+                return false;
+            }
+
+            MidiFileRecorder newRecorder = new MidiFileRecorder(new File(path), format, System.nanoTime());
+            List<InterAppMidiReceiver> receivers = new ArrayList<>();
+            List<MidiFileRecorder.Source> sources = new ArrayList<>();
+            try {
+                for (Object entry : portTable.entries()) {
+                    InterAppMidiReceiver receiver = getReceiver(entry);
+                    if (receiver == null) {
+                        continue;
+                    }
+
+                    MidiPort port = (MidiPort) entry;
+                    receivers.add(receiver);
+                    sources.add(newRecorder.addSource(port.deviceName + " (" + port.deviceId + ")"));
+                }
+            } catch (IOException e) {
+                try {
+                    newRecorder.stop();
+                } catch (IOException ignored) {
+                }
+                return false;
+            }
+
+            newRecorder.start();
+            for (int i = 0; i < receivers.size(); i++) {
+                receivers.get(i).recordSource = sources.get(i);
+            }
+            recorder = newRecorder;
+            return true;
+        }
+    }
+
+    /**
+     * Stops recording, and completes the file<br />
+     * Blocks until the rest of the events are written.
+     *
+     * @return false if not recording, or failed to write the file
+     */
+    public boolean stopRecording() {
+        MidiFileRecorder stoppedRecorder;
+        synchronized (portTable) {
+            stoppedRecorder = recorder;
+            if (stoppedRecorder == null) {
+                return false;
+            }
+
+            recorder = null;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.recordSource = null;
+                }
+            });
+        }
+
+        try {
+            stoppedRecorder.stop();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if recording
+     */
+    public boolean isRecording() {
+        synchronized (portTable) {
+            return recorder != null;
+        }
+    }
+
+    /**
+     * Obtains the number of the events not recorded, because the writer thread couldn't keep up
+     *
+     * @return the number of the dropped events, 0 if not recording
+     */
+    public long getRecordingDroppedEventCount() {
+        synchronized (portTable) {
+            return recorder != null ? recorder.getDroppedEventCount() : 0;
+        }
+    }
+
+    /**
+     * Loads a Standard MIDI File to play, the file loaded previously is closed<br />
+     * Only the headers are read, the tracks are read while playing.
+     * "OnMidiFilePlaybackFinished" is sent with UnitySendMessage, with the path, when the playback has reached the end of the file.
+     *
+     * @param path the path of the file
+     * @return false if the file can't be read, or isn't a Standard MIDI File
+     */
+    public boolean loadMidiFile(final String path) {
+        MidiFilePlayer player;
+        try {
+            player = new MidiFilePlayer(new File(path));
+        } catch (IOException e) {
+            return false;
+        }
+        player.setOnPlaybackListener(new MidiFilePlayer.OnPlaybackListener() {
+            @Override
+            public void onPlaybackFinished() {
+                host.sendMessage(gameObjectName, "OnMidiFilePlaybackFinished", path);
+            }
+        });
+
+        synchronized (this) {
+            if (midiFilePlayer != null) {
+                midiFilePlayer.close();
+            }
+            player.setLookAhead(midiFileLookAhead);
+            midiFilePlayer = player;
+        }
+
+        final MidiFilePlayer runningPlayer = player;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                host.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                runningPlayer.run();
+            }
+        }, "MidiFilePlayer");
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Stops playing, and closes the loaded Standard MIDI File
+     */
+    public synchronized void unloadMidiFile() {
+        if (midiFilePlayer != null) {
+            midiFilePlayer.close();
+            midiFilePlayer = null;
+        }
+    }
+
+    /**
+     * Starts playing the loaded Standard MIDI File from the current position, or restarts from the beginning if at the end<br />
+     * The events are sent from the player thread, ahead of their time with the exact timestamps.
+     * If already playing to another port, the destination is changed.
+     *
+     * @param deviceId the device id
+     */
+    public void playMidiFile(String deviceId) {
+        playMidiFile(getPortHandle(deviceId));
+    }
+
+    public void playMidiFile(int portHandle) {
+        if (isMidiSupported()) {
+            MidiInputPortSender sender = getSender(portHandle);
+            if (sender == null) {
+                return;
+            }
+
+            synchronized (this) {
+                if (midiFilePlayer != null) {
+                    midiFilePlayer.play(sender);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops playing the Standard MIDI File, the position is kept<br />
+     * The sounding notes are released.
+     */
+    public synchronized void stopMidiFile() {
+        if (midiFilePlayer != null) {
+            midiFilePlayer.stop();
+        }
+    }
+
+    /**
+     * Moves the playing position of the Standard MIDI File<br />
+     * The last Program Change, Control Change and Pitch Wheel of each channel before the position are sent when played.
+     *
+     * @param tick the position in ticks
+     */
+    public synchronized void seekMidiFile(long tick) {
+        if (midiFilePlayer != null) {
+            midiFilePlayer.seek(tick);
+        }
+    }
+
+    /**
+     * Sets the tempo scale of the Standard MIDI File playback
+     *
+     * @param tempoScale 1.0 for the original tempo, 2.0 for double speed
+     */
+    public synchronized void setMidiFileTempoScale(float tempoScale) {
+        if (midiFilePlayer != null) {
+            midiFilePlayer.setTempoScale(tempoScale);
+        }
+    }
+
+    /**
+     * Sets the looping of the Standard MIDI File playback
+     *
+     * @param looping true to loop
+     * @param startTick the loop start in ticks
+     * @param endTick the loop end in ticks, 0 for the end of the file
+     */
+    public synchronized void setMidiFileLoop(boolean looping, long startTick, long endTick) {
+        if (midiFilePlayer != null) {
+            midiFilePlayer.setLoop(looping, startTick, endTick);
+        }
+    }
+
+    /**
+     * Sets how long the events of the Standard MIDI File are sent before their time<br />
+     * The receiver should schedule the events with the timestamps. Set 0 if the receiver ignores the timestamps.
+     *
+     * @param lookAheadNanos the time in nanoseconds, default 10 milliseconds
+     */
+    public synchronized void setMidiFileLookAhead(long lookAheadNanos) {
+        midiFileLookAhead = Math.max(lookAheadNanos, 0);
+        if (midiFilePlayer != null) {
+            midiFilePlayer.setLookAhead(lookAheadNanos);
+        }
+    }
+
+    /**
+     * @return true if playing the Standard MIDI File
+     */
+    public synchronized boolean isMidiFilePlaying() {
+        return midiFilePlayer != null && midiFilePlayer.isPlaying();
+    }
+
+    /**
+     * Obtains the playing position of the Standard MIDI File
+     *
+     * @return the position in ticks, 0 if not loaded
+     */
+    public synchronized long getMidiFilePosition() {
+        return midiFilePlayer != null ? midiFilePlayer.getPosition() : 0;
+    }
+
+    /**
+     * Obtains the time division of the Standard MIDI File
+     *
+     * @return the ticks per quarter note, or the ticks per second for the SMPTE time division, 0 if not loaded
+     */
+    public synchronized int getMidiFileDivision() {
+        return midiFilePlayer != null ? midiFilePlayer.getDivision() : 0;
+    }
 
-                    default:
-                        i++;
-                        break;
-                }
+    /**
+     * Obtains the runtime metrics of the port
+     *
+     * @param deviceId the device id
+     * @param metrics the destination, indexed with the constants of {@link MidiPortMetrics}, should have {@link MidiPortMetrics#COUNT} elements
+     * @return the number of the written metrics, 0 if the port is not found
+     */
+    public int getMetrics(String deviceId, long[] metrics) {
+        return getMetrics(getPortHandle(deviceId), metrics);
+    }
+
+    public int getMetrics(int portHandle, long[] metrics) {
+        if (isMidiSupported()) {
+            MidiPort port = portTable.get(portHandle);
+            if (port == null) {
+                return 0;
+            }
+
+            InterAppMidiReceiver receiver = port.receiver;
+            if (receiver == null) {
+                port.sender.metrics.copyTo(metrics);
+                return Math.min(metrics.length, MidiPortMetrics.COUNT);
+            }
+
+            receiver.metrics.copyTo(metrics);
+            putMetric(metrics, MidiPortMetrics.PARSE_ERRORS, receiver.midiParser.getErrorCount());
+            putMetric(metrics, MidiPortMetrics.SKIPPED_BYTES, receiver.midiParser.getSkippedByteCount());
+            MidiEventRingBuffer eventBuffer = receiver.eventBuffer;
+            if (eventBuffer != null) {
+                putMetric(metrics, MidiPortMetrics.DROPPED_EVENTS, eventBuffer.getDroppedEventCount());
+                putMetric(metrics, MidiPortMetrics.EVENT_QUEUE_DEPTH, eventBuffer.size());
+            }
+            SystemExclusiveRingBuffer systemExclusiveBuffer = receiver.systemExclusiveBuffer;
+            if (systemExclusiveBuffer != null) {
+                putMetric(metrics, MidiPortMetrics.DROPPED_SYSTEM_EXCLUSIVES, systemExclusiveBuffer.getDroppedRecordCount());
+                putMetric(metrics, MidiPortMetrics.SYSTEM_EXCLUSIVE_QUEUE_BYTES, systemExclusiveBuffer.size());
             }
+            MidiEventCoalescer coalescer = receiver.coalescer;
+            if (coalescer != null) {
+                putMetric(metrics, MidiPortMetrics.COALESCED_EVENTS, coalescer.getCoalescedEventCount());
+            }
+            return Math.min(metrics.length, MidiPortMetrics.COUNT);
         }
-    }
 
-    private static String getDeviceId(int deviceId, boolean isInput, int portId) {
-        return new StringBuilder().append(isInput ? "in" : "out").append(":").append(deviceId).append("-").append(portId).toString();
+        return 0;
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.M)
-    private void openMidiDevice(final MidiDeviceInfo device) {
-        if (device.getType() == MidiDeviceInfo.TYPE_VIRTUAL) {
-            if (openedDeviceMap.containsKey(device)) {
-                return;
-            }
+    private static void putMetric(long[] metrics, int index, long value) {
+        if (index < metrics.length) {
+            metrics[index] = value;
+        }
+    }
 
-            midiManager.openDevice(device, new MidiManager.OnDeviceOpenedListener() {
+    /**
+     * Sets the maximum length of the System Exclusive message delivered at once<br />
+     * The longer messages are delivered in chunks, to the System Exclusive polling buffers
+     * and the {@link OnMidiSystemExclusiveChunkListener}.<br />
+     * The message currently being received keeps the previous maximum length.
+     *
+     * @param maxLength the maximum length in bytes, includes 0xf0 and 0xf7, default 65536
+     */
+    public void setMaxSystemExclusiveLength(int maxLength) {
+        synchronized (portTable) {
+            SystemExclusiveBufferPool bufferPool = new SystemExclusiveBufferPool(maxLength, SYSTEM_EXCLUSIVE_BUFFER_POOL_SIZE);
+            systemExclusiveBufferPool = bufferPool;
+            forEachReceiver(new ReceiverAction() {
                 @Override
-                public void onDeviceOpened(MidiDevice midiDevice) {
-                    openedDeviceMap.put(device, midiDevice);
-
-                    MidiDeviceInfo midiDeviceInfo = midiDevice.getInfo();
-                    Bundle properties = midiDeviceInfo.getProperties();
-                    String deviceName = properties.getString(MidiDeviceInfo.PROPERTY_NAME);
-                    String product = properties.getString(MidiDeviceInfo.PROPERTY_PRODUCT);
-                    String vendor = properties.getString(MidiDeviceInfo.PROPERTY_MANUFACTURER);
-
-                    int midiDeviceInfoId = midiDeviceInfo.getId();
-                    for (int i = 0; i < midiDeviceInfo.getInputPortCount(); i++) {
-                        // MidiInputPort: used for MIDI sending
-                        String deviceId = getDeviceId(midiDeviceInfoId, false, i);
-                        if (!inputPortMap.containsKey(deviceId)) {
-                            MidiInputPort midiInputPort = midiDevice.openInputPort(i);
-                            if (midiInputPort != null) {
-                                inputPortMap.put(deviceId, midiInputPort);
-                                if (deviceName != null) {
-                                    deviceNameMap.put(deviceId, deviceName);
-                                }
-                                if (product != null) {
-                                    productIdMap.put(deviceId, product);
-                                }
-                                if (vendor != null) {
-                                    vendorIdMap.put(deviceId, vendor);
-                                }
-                                UnityPlayer.UnitySendMessage("MidiManager", "OnMidiOutputDeviceAttached", deviceId);
-                            }
-                        }
-                    }
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.midiParser.setBufferPool(bufferPool);
+                }
+            });
+        }
+    }
 
-                    for (int i = 0; i < midiDeviceInfo.getOutputPortCount(); i++) {
-                        // MidiOutputPort: used for MIDI receiving
-                        String deviceId = getDeviceId(midiDeviceInfoId, true, i);
-                        if (!outputPortMap.containsKey(deviceId)) {
-                            MidiOutputPort midiOutputPort = midiDevice.openOutputPort(i);
-                            if (midiOutputPort != null) {
-                                InterAppMidiReceiver receiver = new InterAppMidiReceiver(deviceId);
-                                receiverMap.put(deviceId, receiver);
-                                midiOutputPort.onConnect(receiver);
-                                outputPortMap.put(deviceId, midiOutputPort);
-                                if (deviceName != null) {
-                                    deviceNameMap.put(deviceId, deviceName);
-                                }
-                                if (product != null) {
-                                    productIdMap.put(deviceId, product);
-                                }
-                                if (vendor != null) {
-                                    vendorIdMap.put(deviceId, vendor);
-                                }
-                                UnityPlayer.UnitySendMessage("MidiManager", "OnMidiInputDeviceAttached", deviceId);
-                            }
-                        }
-                    }
+    /**
+     * Sets the listener of the System Exclusive messages longer than the maximum length
+     *
+     * @param listener the listener, null to remove
+     * @see #setMaxSystemExclusiveLength(int)
+     */
+    public void setOnMidiSystemExclusiveChunkListener(OnMidiSystemExclusiveChunkListener listener) {
+        synchronized (portTable) {
+            systemExclusiveChunkListener = listener;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.systemExclusiveChunkListener = listener;
                 }
-            }, handler);
+            });
         }
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.M)
-    private void closeMidiDevice(final MidiDevice device) {
-        MidiDeviceInfo midiDeviceInfo = device.getInfo();
-        int midiDeviceInfoId = midiDeviceInfo.getId();
-        for (int i = 0; i < midiDeviceInfo.getInputPortCount(); i++) {
-            String deviceId = getDeviceId(midiDeviceInfoId, false, i);
-            MidiInputPort inputPort = inputPortMap.remove(deviceId);
-            if (inputPort != null) {
-                try {
-                    inputPort.close();
-                } catch (IOException ignored) {
+    /**
+     * Adds the listener of the received MIDI events, the listeners are called in the added order<br />
+     * Each event is parsed once and delivered to all listeners, before being sent with UnitySendMessage or stored to the polling buffers.
+     * The listeners are called for the events passing the message filter, regardless of the polling modes and {@link #setUnityMessageEnabled(boolean)}.
+     * The System Exclusive messages longer than the maximum length are delivered to {@link OnMidiSystemExclusiveChunkListener} instead.
+     *
+     * @param listener the listener, does nothing if already added
+     * @see #setGlobalMessageFilter(int, int)
+     */
+    public void addMidiInputEventListener(OnMidiInputEventListener listener) {
+        if (listener == null) {
+            return;
+        }
+        synchronized (portTable) {
+            OnMidiInputEventListener[] listeners = inputEventListeners;
+            for (OnMidiInputEventListener added : listeners) {
+                if (added == listener) {
+                    return;
                 }
             }
+            OnMidiInputEventListener[] newListeners = new OnMidiInputEventListener[listeners.length + 1];
+            System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+            newListeners[listeners.length] = listener;
+            setInputEventListeners(newListeners);
         }
+    }
 
-        for (int i = 0; i < midiDeviceInfo.getOutputPortCount(); i++) {
-            String deviceId = getDeviceId(midiDeviceInfoId, true, i);
-            MidiOutputPort outputPort = outputPortMap.remove(deviceId);
-            if (outputPort != null) {
-                MidiReceiver receiver = receiverMap.remove(deviceId);
-                if (receiver != null) {
-                    try {
-                        receiver.flush();
-                    } catch (IOException ignored) {
-                    }
-                    outputPort.onDisconnect(receiver);
-                }
-                try {
-                    outputPort.close();
-                } catch (IOException ignored) {
+    /**
+     * Removes the listener of the received MIDI events<br />
+     * The listener may be called once more by the receiving thread delivering an event at the same time.
+     *
+     * @param listener the listener
+     */
+    public void removeMidiInputEventListener(OnMidiInputEventListener listener) {
+        synchronized (portTable) {
+            OnMidiInputEventListener[] listeners = inputEventListeners;
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] == listener) {
+                    OnMidiInputEventListener[] newListeners = new OnMidiInputEventListener[listeners.length - 1];
+                    System.arraycopy(listeners, 0, newListeners, 0, i);
+                    System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+                    setInputEventListeners(newListeners);
+                    return;
                 }
             }
         }
+    }
 
-        try {
-            device.close();
-        } catch (IOException ignored) {
-        }
+    /**
+     * Replaces the listeners of all ports, called with the lock of portTable
+     */
+    private void setInputEventListeners(OnMidiInputEventListener[] listeners) {
+        inputEventListeners = listeners;
+        forEachReceiver(new ReceiverAction() {
+            @Override
+            public void run(InterAppMidiReceiver receiver) {
+                receiver.inputEventListeners = listeners;
+            }
+        });
     }
 
-    public String getDeviceName(String deviceId) {
-        if (deviceNameMap.containsKey(deviceId)) {
-            return deviceNameMap.get(deviceId);
+    /**
+     * Sets whether the received MIDI events are sent with UnitySendMessage<br />
+     * When disabled, the received events are delivered only to the listeners added with {@link #addMidiInputEventListener(OnMidiInputEventListener)},
+     * and to the polling buffers if the polling modes are enabled, without formatting the strings.
+     * The attached messages and "OnMidiFilePlaybackFinished" are still sent.
+     *
+     * @param enabled true: sends the received events with UnitySendMessage(default), false: doesn't send
+     */
+    public void setUnityMessageEnabled(boolean enabled) {
+        synchronized (portTable) {
+            unityMessageEnabled = enabled;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.unityMessageEnabled = enabled;
+                }
+            });
         }
-
-        return null;
     }
 
-    public String getProductId(String deviceId) {
-        if (productIdMap.containsKey(deviceId)) {
-            return productIdMap.get(deviceId);
+    /**
+     * Sets the name of the GameObject receiving the messages sent with UnitySendMessage, should be called before {@link #initialize(Context)}<br />
+     * The messages queued to the dispatching thread before this call are sent to the new GameObject.
+     *
+     * @param name the name of the GameObject, null for {@link #DEFAULT_GAME_OBJECT_NAME}
+     */
+    public void setUnityGameObjectName(String name) {
+        final String objectName = name != null ? name : DEFAULT_GAME_OBJECT_NAME;
+        synchronized (portTable) {
+            gameObjectName = objectName;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.gameObjectName = objectName;
+                }
+            });
         }
-
-        return null;
     }
 
-    public String getVendorId(String deviceId) {
-        if (vendorIdMap.containsKey(deviceId)) {
-            return vendorIdMap.get(deviceId);
+    /**
+     * Enables the System Exclusive polling mode<br />
+     * In this mode, the received System Exclusive messages are not sent with UnitySendMessage,
+     * but stored to the per-port ring buffers as binary, and should be read with {@link #pollSystemExclusives(ByteBuffer)}.<br />
+     * The messages longer than the maximum length are stored in chunks.
+     *
+     * @param capacity the size in bytes of the buffer for each port, should be larger than the maximum length
+     */
+    public void enableSystemExclusivePolling(int capacity) {
+        synchronized (portTable) {
+            systemExclusiveBufferCapacity = capacity;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.systemExclusiveBuffer = new SystemExclusiveRingBuffer(capacity);
+                }
+            });
         }
-
-        return null;
     }
 
-    public void sendMidiNoteOff(String deviceId, int channel, int note, int velocity) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) (0x80 | (channel & 0x0f)), (byte) (note & 0x7f), (byte) (velocity & 0x7f)}, 0, 3, System.nanoTime());
+    /**
+     * Disables the System Exclusive polling mode, and resumes sending System Exclusive messages with UnitySendMessage
+     */
+    public void disableSystemExclusivePolling() {
+        synchronized (portTable) {
+            systemExclusiveBufferCapacity = 0;
+            forEachReceiver(new ReceiverAction() {
+                @Override
+                public void run(InterAppMidiReceiver receiver) {
+                    receiver.systemExclusiveBuffer = null;
                 }
-            } catch (IOException ignored) {
-            }
+            });
         }
     }
 
-    public void sendMidiNoteOn(String deviceId, int channel, int note, int velocity) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) (0x90 | (channel & 0x0f)), (byte) (note & 0x7f), (byte) (velocity & 0x7f)}, 0, 3, System.nanoTime());
+    /**
+     * Reads the received System Exclusive messages in the System Exclusive polling mode<br />
+     * Each message is written as a record with the native byte order:
+     * port handle(int), data length(int), flags(int), reserved(int), timestamp(long), and the data padded to the multiple of 8 bytes.<br />
+     * The flags are 0 for a complete message, 1 for a chunk, and 3 for the last chunk.
+     *
+     * @param destination the buffer to fill, the position is advanced by the written records, and the byte order is set to the native order
+     * @return the number of the written records
+     */
+    public int pollSystemExclusives(ByteBuffer destination) {
+        destination.order(ByteOrder.nativeOrder());
+        return (int) forEachReceiver(new ReceiverAction() {
+            @Override
+            public void run(InterAppMidiReceiver receiver) {
+                SystemExclusiveRingBuffer systemExclusiveBuffer = receiver.systemExclusiveBuffer;
+                if (systemExclusiveBuffer != null) {
+                    count += systemExclusiveBuffer.drainTo(destination);
                 }
-            } catch (IOException ignored) {
             }
-        }
+        });
     }
 
-    public void sendMidiPolyphonicAftertouch(String deviceId, int channel, int note, int pressure) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) (0xa0 | (channel & 0x0f)), (byte) (note & 0x7f), (byte) (pressure & 0x7f)}, 0, 3, System.nanoTime());
+    /**
+     * Obtains the number of the System Exclusive records dropped because the ring buffers were full
+     *
+     * @return the total number of the dropped records
+     */
+    public long getDroppedSystemExclusiveCount() {
+        return forEachReceiver(new ReceiverAction() {
+            @Override
+            public void run(InterAppMidiReceiver receiver) {
+                SystemExclusiveRingBuffer systemExclusiveBuffer = receiver.systemExclusiveBuffer;
+                if (systemExclusiveBuffer != null) {
+                    count += systemExclusiveBuffer.getDroppedRecordCount();
                 }
-            } catch (IOException ignored) {
             }
-        }
+        });
     }
 
-    public void sendMidiControlChange(String deviceId, int channel, int func, int value) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) (0xb0 | (channel & 0x0f)), (byte) (func & 0x7f), (byte) (value & 0x7f)}, 0, 3, System.nanoTime());
+    /**
+     * Obtains the number of the events dropped because the ring buffers were full
+     *
+     * @return the total number of the dropped events
+     */
+    public long getDroppedEventCount() {
+        return forEachReceiver(new ReceiverAction() {
+            @Override
+            public void run(InterAppMidiReceiver receiver) {
+                MidiEventRingBuffer eventBuffer = receiver.eventBuffer;
+                if (eventBuffer != null) {
+                    count += eventBuffer.getDroppedEventCount();
                 }
-            } catch (IOException ignored) {
             }
-        }
+        });
+    }
+
+    public void sendMidiNoteOff(String deviceId, int channel, int note, int velocity) {
+        sendMidiNoteOff(getPortHandle(deviceId), channel, note, velocity);
+    }
+
+    public void sendMidiNoteOff(int portHandle, int channel, int note, int velocity) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0x80 | (channel & 0x0f), note, velocity));
+    }
+
+    public void sendMidiNoteOn(String deviceId, int channel, int note, int velocity) {
+        sendMidiNoteOn(getPortHandle(deviceId), channel, note, velocity);
+    }
+
+    public void sendMidiNoteOn(int portHandle, int channel, int note, int velocity) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0x90 | (channel & 0x0f), note, velocity));
+    }
+
+    public void sendMidiPolyphonicAftertouch(String deviceId, int channel, int note, int pressure) {
+        sendMidiPolyphonicAftertouch(getPortHandle(deviceId), channel, note, pressure);
+    }
+
+    public void sendMidiPolyphonicAftertouch(int portHandle, int channel, int note, int pressure) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0xa0 | (channel & 0x0f), note, pressure));
+    }
+
+    public void sendMidiControlChange(String deviceId, int channel, int func, int value) {
+        sendMidiControlChange(getPortHandle(deviceId), channel, func, value);
+    }
+
+    public void sendMidiControlChange(int portHandle, int channel, int func, int value) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0xb0 | (channel & 0x0f), func, value));
     }
 
     public void sendMidiProgramChange(String deviceId, int channel, int program) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) (0xc0 | (channel & 0x0f)), (byte) (program & 0x7f)}, 0, 2, System.nanoTime());
-                }
-            } catch (IOException ignored) {
-            }
-        }
+        sendMidiProgramChange(getPortHandle(deviceId), channel, program);
+    }
+
+    public void sendMidiProgramChange(int portHandle, int channel, int program) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0xc0 | (channel & 0x0f), program, 0));
     }
 
     public void sendMidiChannelAftertouch(String deviceId, int channel, int pressure) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) (0xd0 | (channel & 0x0f)), (byte) (pressure & 0x7f)}, 0, 2, System.nanoTime());
-                }
-            } catch (IOException ignored) {
-            }
-        }
+        sendMidiChannelAftertouch(getPortHandle(deviceId), channel, pressure);
+    }
+
+    public void sendMidiChannelAftertouch(int portHandle, int channel, int pressure) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0xd0 | (channel & 0x0f), pressure, 0));
     }
 
     public void sendMidiPitchWheel(String deviceId, int channel, int amount) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+        sendMidiPitchWheel(getPortHandle(deviceId), channel, amount);
+    }
+
+    public void sendMidiPitchWheel(int portHandle, int channel, int amount) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0xe0 | (channel & 0x0f), amount, amount >> 7));
+    }
+
+    /**
+     * Sends a Note On with the 16-bit velocity<br />
+     * Sent as the MIDI 2.0 message to the MIDI 2.0 port, and translated to MIDI 1.0 for the other ports.
+     *
+     * @param deviceId the device id
+     * @param channel 0-15
+     * @param note 0-127
+     * @param velocity 0-65535
+     */
+    public void sendMidi2NoteOn(String deviceId, int channel, int note, int velocity) {
+        sendMidi2NoteOn(getPortHandle(deviceId), channel, note, velocity);
+    }
+
+    public void sendMidi2NoteOn(int portHandle, int channel, int note, int velocity) {
+        sendMidi2Message(portHandle, 0x90 | (channel & 0x0f), note, velocity);
+    }
+
+    /**
+     * Sends a Note Off with the 16-bit velocity
+     *
+     * @param deviceId the device id
+     * @param channel 0-15
+     * @param note 0-127
+     * @param velocity 0-65535
+     */
+    public void sendMidi2NoteOff(String deviceId, int channel, int note, int velocity) {
+        sendMidi2NoteOff(getPortHandle(deviceId), channel, note, velocity);
+    }
+
+    public void sendMidi2NoteOff(int portHandle, int channel, int note, int velocity) {
+        sendMidi2Message(portHandle, 0x80 | (channel & 0x0f), note, velocity);
+    }
+
+    /**
+     * Sends a Polyphonic Aftertouch with the 32-bit value
+     *
+     * @param deviceId the device id
+     * @param channel 0-15
+     * @param note 0-127
+     * @param pressure the unsigned 32-bit value
+     */
+    public void sendMidi2PolyphonicAftertouch(String deviceId, int channel, int note, int pressure) {
+        sendMidi2PolyphonicAftertouch(getPortHandle(deviceId), channel, note, pressure);
+    }
+
+    public void sendMidi2PolyphonicAftertouch(int portHandle, int channel, int note, int pressure) {
+        sendMidi2Message(portHandle, 0xa0 | (channel & 0x0f), note, pressure);
+    }
+
+    /**
+     * Sends a Control Change with the 32-bit value
+     *
+     * @param deviceId the device id
+     * @param channel 0-15
+     * @param func the controller number, 0-127
+     * @param value the unsigned 32-bit value
+     */
+    public void sendMidi2ControlChange(String deviceId, int channel, int func, int value) {
+        sendMidi2ControlChange(getPortHandle(deviceId), channel, func, value);
+    }
+
+    public void sendMidi2ControlChange(int portHandle, int channel, int func, int value) {
+        sendMidi2Message(portHandle, 0xb0 | (channel & 0x0f), func, value);
+    }
+
+    /**
+     * Sends a Channel Aftertouch with the 32-bit value
+     *
+     * @param deviceId the device id
+     * @param channel 0-15
+     * @param pressure the unsigned 32-bit value
+     */
+    public void sendMidi2ChannelAftertouch(String deviceId, int channel, int pressure) {
+        sendMidi2ChannelAftertouch(getPortHandle(deviceId), channel, pressure);
+    }
+
+    public void sendMidi2ChannelAftertouch(int portHandle, int channel, int pressure) {
+        sendMidi2Message(portHandle, 0xd0 | (channel & 0x0f), 0, pressure);
+    }
+
+    /**
+     * Sends a Pitch Wheel with the 32-bit value
+     *
+     * @param deviceId the device id
+     * @param channel 0-15
+     * @param amount the unsigned 32-bit value, 0x80000000 for the center
+     */
+    public void sendMidi2PitchWheel(String deviceId, int channel, int amount) {
+        sendMidi2PitchWheel(getPortHandle(deviceId), channel, amount);
+    }
+
+    public void sendMidi2PitchWheel(int portHandle, int channel, int amount) {
+        sendMidi2Message(portHandle, 0xe0 | (channel & 0x0f), 0, amount);
+    }
+
+    private void sendMidi2Message(int portHandle, int status, int index, int value) {
+        if (isMidiSupported()) {
             try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) (0xe0 | (channel & 0x0f)), (byte) (amount & 0x7f), (byte) ((amount >> 7) & 0x7f)}, 0, 3, System.nanoTime());
+                MidiInputPortSender sender = getSender(portHandle);
+                if (sender != null) {
+                    sender.sendMidi2(status, index, value, System.nanoTime());
                 }
             } catch (IOException ignored) {
             }
@@ -505,133 +3838,346 @@ public class InterAppMidiManager {
     }
 
     public void sendMidiSystemExclusive(String deviceId, byte[] data) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+        sendMidiSystemExclusive(getPortHandle(deviceId), data);
+    }
+
+    public void sendMidiSystemExclusive(int portHandle, byte[] data) {
+        if (isMidiSupported()) {
             try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(data, 0, data.length, System.nanoTime());
+                MidiInputPortSender sender = getSender(portHandle);
+                if (sender != null) {
+                    sender.send(data, System.nanoTime());
                 }
             } catch (IOException ignored) {
             }
         }
     }
 
-    public void sendMidiTimeCodeQuarterFrame(String deviceId, int value) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) 0xf1, (byte) value}, 0, 2, System.nanoTime());
-                }
-            } catch (IOException ignored) {
+    /**
+     * Sets the pacing of the asynchronous System Exclusive transfers of the port<br />
+     * The transfers already started keep the previous pacing.
+     *
+     * @param deviceId the device id
+     * @param chunkSize the maximum length of a chunk, default the maximum message size of the port
+     * @param bytesPerSecond the target rate, 0 to send the chunks without pacing(default)
+     */
+    public void setSystemExclusiveTransferPacing(String deviceId, int chunkSize, int bytesPerSecond) {
+        setSystemExclusiveTransferPacing(getPortHandle(deviceId), chunkSize, bytesPerSecond);
+    }
+
+    public void setSystemExclusiveTransferPacing(int portHandle, int chunkSize, int bytesPerSecond) {
+        if (isMidiSupported()) {
+            MidiInputPortSender sender = getSender(portHandle);
+            if (sender != null) {
+                sender.transferChunkSize = chunkSize;
+                sender.transferBytesPerSecond = bytesPerSecond;
             }
         }
     }
 
-    public void sendMidiSongPositionPointer(String deviceId, int position) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) 0xf2, (byte) (position & 0x7f), (byte) ((position >> 7) & 0x7f)}, 0, 3, System.nanoTime());
-                }
-            } catch (IOException ignored) {
+    /**
+     * Sends the System Exclusive data asynchronously, in chunks paced with {@link #setSystemExclusiveTransferPacing(int, int, int)}<br />
+     * The transfers of the same port are sent in order, and the transfers of the different ports run concurrently.
+     * The other messages sent to the port in the middle of a System Exclusive message are held until the end of the message,
+     * except the System Realtime messages. The System Exclusive messages sent with the other methods and the routes are also held.
+     *
+     * @param deviceId the device id
+     * @param data the data, may contain multiple System Exclusive messages, must not be modified until done
+     * @return the transfer handle, null if the port is not found
+     */
+    public SystemExclusiveTransfer sendMidiSystemExclusiveAsync(String deviceId, byte[] data) {
+        return sendMidiSystemExclusiveAsync(getPortHandle(deviceId), data);
+    }
+
+    public SystemExclusiveTransfer sendMidiSystemExclusiveAsync(int portHandle, byte[] data) {
+        if (isMidiSupported()) {
+            MidiInputPortSender sender = getSender(portHandle);
+            if (sender != null) {
+                return systemExclusiveTransferEngine.submit(sender, data, sender.transferChunkSize, sender.transferBytesPerSecond);
             }
         }
+
+        return null;
+    }
+
+    public void sendMidiTimeCodeQuarterFrame(String deviceId, int value) {
+        sendMidiTimeCodeQuarterFrame(getPortHandle(deviceId), value);
+    }
+
+    public void sendMidiTimeCodeQuarterFrame(int portHandle, int value) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0xf1, value, 0));
+    }
+
+    public void sendMidiSongPositionPointer(String deviceId, int position) {
+        sendMidiSongPositionPointer(getPortHandle(deviceId), position);
+    }
+
+    public void sendMidiSongPositionPointer(int portHandle, int position) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0xf2, position, position >> 7));
     }
 
     public void sendMidiSongSelect(String deviceId, int song) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) 0xf3, (byte) song}, 0, 2, System.nanoTime());
-                }
-            } catch (IOException ignored) {
-            }
-        }
+        sendMidiSongSelect(getPortHandle(deviceId), song);
+    }
+
+    public void sendMidiSongSelect(int portHandle, int song) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0xf3, song, 0));
     }
 
     public void sendMidiTuneRequest(String deviceId) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+        sendMidiTuneRequest(getPortHandle(deviceId));
+    }
+
+    public void sendMidiTuneRequest(int portHandle) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0xf6, 0, 0));
+    }
+
+    public void sendMidiTimingClock(String deviceId) {
+        sendMidiTimingClock(getPortHandle(deviceId));
+    }
+
+    public void sendMidiTimingClock(int portHandle) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0xf8, 0, 0));
+    }
+
+    public void sendMidiStart(String deviceId) {
+        sendMidiStart(getPortHandle(deviceId));
+    }
+
+    public void sendMidiStart(int portHandle) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0xfa, 0, 0));
+    }
+
+    public void sendMidiContinue(String deviceId) {
+        sendMidiContinue(getPortHandle(deviceId));
+    }
+
+    public void sendMidiContinue(int portHandle) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0xfb, 0, 0));
+    }
+
+    public void sendMidiStop(String deviceId) {
+        sendMidiStop(getPortHandle(deviceId));
+    }
+
+    public void sendMidiStop(int portHandle) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0xfc, 0, 0));
+    }
+
+    public void sendMidiActiveSensing(String deviceId) {
+        sendMidiActiveSensing(getPortHandle(deviceId));
+    }
+
+    public void sendMidiActiveSensing(int portHandle) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0xfe, 0, 0));
+    }
+
+    public void sendMidiReset(String deviceId) {
+        sendMidiReset(getPortHandle(deviceId));
+    }
+
+    public void sendMidiReset(int portHandle) {
+        sendMidiMessage(portHandle, MidiMessageEncoder.pack(0xff, 0, 0));
+    }
+
+    private void sendMidiMessage(int portHandle, int message) {
+        if (isMidiSupported()) {
             try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) 0xf6}, 0, 1, System.nanoTime());
+                MidiInputPortSender sender = getSender(portHandle);
+                if (sender != null) {
+                    sender.send(message, System.nanoTime());
                 }
             } catch (IOException ignored) {
             }
         }
     }
 
-    public void sendMidiTimingClock(String deviceId) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+    /**
+     * Sends the packed MIDI messages with as few packets as possible
+     *
+     * @param deviceId the device id
+     * @param messages the packed messages, see {@link #sendMidiMessages(int, int[], int, int)}
+     * @param offset the offset of the messages
+     * @param count the number of the messages
+     * @return the number of the sent messages
+     */
+    public int sendMidiMessages(String deviceId, int[] messages, int offset, int count) {
+        return sendMidiMessages(getPortHandle(deviceId), messages, offset, count);
+    }
+
+    /**
+     * Sends the packed MIDI messages with as few packets as possible
+     *
+     * @param deviceId the device id
+     * @param messages the packed messages, see {@link #sendMidiMessages(int, int[], int, int)}
+     * @return the number of the sent messages
+     */
+    public int sendMidiMessages(String deviceId, int[] messages) {
+        return sendMidiMessages(getPortHandle(deviceId), messages, 0, messages.length);
+    }
+
+    /**
+     * Sends the packed MIDI messages with as few packets as possible<br />
+     * Each message is packed into an int: {@code status | (data1 << 8) | (data2 << 16)}.
+     * System Exclusive can't be packed, use {@link #sendMidiSystemExclusive(int, byte[])}.<br />
+     * The channel messages are compressed with the running status.
+     *
+     * @param portHandle the port handle
+     * @param messages the packed messages
+     * @param offset the offset of the messages
+     * @param count the number of the messages
+     * @return the number of the sent messages, if the port has failed, the number of the messages sent before the failure
+     */
+    public int sendMidiMessages(int portHandle, int[] messages, int offset, int count) {
+        if (isMidiSupported()) {
             try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) 0xf8}, 0, 1, System.nanoTime());
+                MidiInputPortSender sender = getSender(portHandle);
+                if (sender != null) {
+                    return sender.send(messages, offset, count, System.nanoTime());
                 }
             } catch (IOException ignored) {
             }
         }
+        return 0;
     }
 
-    public void sendMidiStart(String deviceId) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) 0xfa}, 0, 1, System.nanoTime());
+    /**
+     * Obtains the current time, used as the base of the scheduled timestamps
+     *
+     * @return the current {@link System#nanoTime()}
+     */
+    public long getCurrentTimestamp() {
+        return System.nanoTime();
+    }
+
+    private synchronized MidiOutputScheduler getOutputScheduler() {
+        if (outputScheduler == null) {
+            final MidiOutputScheduler scheduler = new MidiOutputScheduler();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    host.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                    scheduler.run();
                 }
-            } catch (IOException ignored) {
+            }, "MidiOutputScheduler");
+            thread.start();
+            outputScheduler = scheduler;
+        }
+        return outputScheduler;
+    }
+
+    public void scheduleMidiMessage(String deviceId, int message, long timestamp) {
+        scheduleMidiMessage(getPortHandle(deviceId), message, timestamp);
+    }
+
+    public void scheduleMidiMessages(String deviceId, int[] messages, long[] timestamps, int offset, int count) {
+        scheduleMidiMessages(getPortHandle(deviceId), messages, timestamps, offset, count);
+    }
+
+    public void scheduleMidiSystemExclusive(String deviceId, byte[] data, long timestamp) {
+        scheduleMidiSystemExclusive(getPortHandle(deviceId), data, timestamp);
+    }
+
+    public void sendMidiMessageDelayed(String deviceId, int message, long delayNanos) {
+        scheduleMidiMessage(getPortHandle(deviceId), message, System.nanoTime() + delayNanos);
+    }
+
+    /**
+     * Schedules the packed MIDI message to be sent at the timestamp<br />
+     * The message is sent from the dedicated thread, with the timestamp as the packet timestamp.
+     *
+     * @param portHandle the port handle
+     * @param message the packed message, see {@link #sendMidiMessages(int, int[], int, int)}
+     * @param timestamp the time to send, in {@link #getCurrentTimestamp()} base, nanoseconds
+     */
+    public void scheduleMidiMessage(int portHandle, int message, long timestamp) {
+        if (isMidiSupported()) {
+            MidiInputPortSender sender = getSender(portHandle);
+            if (sender != null) {
+                getOutputScheduler().schedule(sender, message, timestamp);
             }
         }
     }
 
-    public void sendMidiContinue(String deviceId) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) 0xfb}, 0, 1, System.nanoTime());
-                }
-            } catch (IOException ignored) {
+    /**
+     * Schedules the packed MIDI messages to be sent at the timestamps
+     *
+     * @param portHandle the port handle
+     * @param messages the packed messages, see {@link #sendMidiMessages(int, int[], int, int)}
+     * @param timestamps the times to send, in {@link #getCurrentTimestamp()} base, nanoseconds
+     * @param offset the offset of the messages and the timestamps
+     * @param count the number of the messages
+     */
+    public void scheduleMidiMessages(int portHandle, int[] messages, long[] timestamps, int offset, int count) {
+        if (isMidiSupported()) {
+            MidiInputPortSender sender = getSender(portHandle);
+            if (sender != null) {
+                getOutputScheduler().schedule(sender, messages, timestamps, offset, count);
             }
         }
     }
 
-    public void sendMidiStop(String deviceId) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) 0xfc}, 0, 1, System.nanoTime());
-                }
-            } catch (IOException ignored) {
+    /**
+     * Schedules the System Exclusive to be sent at the timestamp
+     *
+     * @param portHandle the port handle
+     * @param data the data, must not be modified until sent
+     * @param timestamp the time to send, in {@link #getCurrentTimestamp()} base, nanoseconds
+     */
+    public void scheduleMidiSystemExclusive(int portHandle, byte[] data, long timestamp) {
+        if (isMidiSupported()) {
+            MidiInputPortSender sender = getSender(portHandle);
+            if (sender != null) {
+                getOutputScheduler().schedule(sender, data, timestamp);
             }
         }
     }
 
-    public void sendMidiActiveSensing(String deviceId) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) 0xfe}, 0, 1, System.nanoTime());
+    /**
+     * Schedules the packed MIDI message to be sent after the delay
+     *
+     * @param portHandle the port handle
+     * @param message the packed message, see {@link #sendMidiMessages(int, int[], int, int)}
+     * @param delayNanos the delay in nanoseconds
+     */
+    public void sendMidiMessageDelayed(int portHandle, int message, long delayNanos) {
+        scheduleMidiMessage(portHandle, message, System.nanoTime() + delayNanos);
+    }
+
+    /**
+     * Cancels the scheduled messages for the device
+     *
+     * @param deviceId the device id, or null to cancel the messages for all devices
+     */
+    public void cancelScheduledMessages(String deviceId) {
+        if (deviceId == null) {
+            synchronized (this) {
+                if (outputScheduler != null) {
+                    outputScheduler.cancel(null);
                 }
-            } catch (IOException ignored) {
             }
+            return;
         }
+
+        cancelScheduledMessages(getPortHandle(deviceId));
     }
 
-    public void sendMidiReset(String deviceId) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            try {
-                MidiInputPort midiInputPort = inputPortMap.get(deviceId);
-                if (midiInputPort != null) {
-                    midiInputPort.onSend(new byte[]{(byte) 0xff}, 0, 1, System.nanoTime());
+    /**
+     * Cancels the scheduled messages for the port
+     *
+     * @param portHandle the port handle
+     */
+    public void cancelScheduledMessages(int portHandle) {
+        if (isMidiSupported()) {
+            MidiInputPortSender sender = getSender(portHandle);
+            if (sender == null) {
+                return;
+            }
+
+            synchronized (this) {
+                if (outputScheduler != null) {
+                    outputScheduler.cancel(sender);
                 }
-            } catch (IOException ignored) {
             }
         }
     }
@@ -0,0 +1,100 @@
+package jp.kshoji.interappmidi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram, similar to HdrHistogram<br />
+ * Values are recorded in microseconds, with 32 sub-buckets per power of two (relative error below 1/16).<br />
+ * {@link #record(long)} must be called from a single thread, the other methods may be called from any thread.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT >> 1;
+    // about 19 hours in microseconds
+    private static final int MAX_VALUE_BITS = 36;
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    private static final int BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 2) * SUB_BUCKET_HALF_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Records a latency
+     *
+     * @param latencyNanos the latency in nanoseconds, negative values are recorded as 0
+     */
+    void record(long latencyNanos) {
+        long value = latencyNanos / 1000;
+        if (value < 0) {
+            value = 0;
+        } else if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        final int index = indexOf(value);
+        // single writer: no need to be atomic
+        counts.lazySet(index, counts.get(index) + 1);
+    }
+
+    /**
+     * Clears all recorded values
+     */
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.lazySet(i, 0);
+        }
+    }
+
+    /**
+     * @return the number of the recorded values
+     */
+    long getTotalCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Obtains the value at the percentile
+     *
+     * @param percentile 0.0 - 100.0
+     * @return the highest value equivalent to the bucket, in nanoseconds, 0 if nothing recorded
+     */
+    long getValueAtPercentile(double percentile) {
+        final long total = getTotalCount();
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = (long) Math.ceil(Math.min(Math.max(percentile, 0.0), 100.0) / 100.0 * total);
+        if (target < 1) {
+            target = 1;
+        }
+        long accumulated = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            accumulated += counts.get(i);
+            if (accumulated >= target) {
+                return highestValueOf(i) * 1000;
+            }
+        }
+        return highestValueOf(BUCKET_COUNT - 1) * 1000;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        return exponent * SUB_BUCKET_HALF_COUNT + (int) (value >> exponent);
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKET_HALF_COUNT - 1;
+        final long subBucket = index - exponent * SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << exponent) - 1;
+    }
+}
@@ -0,0 +1,179 @@
+package jp.kshoji.interappmidi;
+
+/**
+ * Tracks the tempo and the song position from the MIDI clock(24 ppqn)<br />
+ * The clock interval is the least-squares fit of the packet timestamps over the last two beats,
+ * so the jitter of each clock is cancelled, and the tempo is reported only when it changes more than the threshold.<br />
+ * The song position is advanced only while the transport is running(Start or Continue, until Stop),
+ * and is set with Song Position Pointer.<br />
+ * This class is not thread-safe except the getters, and depends only on the Java runtime, not on android.*.
+ */
+final class MidiClockTracker {
+    /**
+     * Listener for the clock events, called on the thread which calls {@link #onMidiMessage(int, int, int, long)}
+     */
+    interface OnClockEventListener {
+        /**
+         * Called on the first clock of each beat, while the transport is running
+         *
+         * @param beat the beat number from the song start, 0-based
+         * @param timestamp the timestamp of the clock
+         */
+        void onBeat(long beat, long timestamp);
+
+        /**
+         * Called on the first clock of each bar, after {@link #onBeat(long, long)}
+         *
+         * @param bar the bar number from the song start, 0-based
+         * @param timestamp the timestamp of the clock
+         */
+        void onBar(long bar, long timestamp);
+
+        /**
+         * Called when the tempo has been changed more than the threshold
+         *
+         * @param bpm the tempo in beats per minute
+         * @param timestamp the timestamp of the clock
+         */
+        void onTempoChanged(float bpm, long timestamp);
+    }
+
+    static final int CLOCKS_PER_BEAT = 24;
+    private static final int CLOCKS_PER_MIDI_BEAT = 6;
+    private static final int WINDOW_SIZE = CLOCKS_PER_BEAT * 2;
+    private static final float TEMPO_CHANGE_THRESHOLD = 0.25f;
+    // clock intervals longer than this(10 BPM) are treated as a pause
+    private static final long MAX_CLOCK_INTERVAL = 60_000_000_000L / 10 / CLOCKS_PER_BEAT;
+
+    private final OnClockEventListener listener;
+    private final int beatsPerBar;
+
+    // timestamps of the last clocks
+    private final long[] clockTimestamps = new long[WINDOW_SIZE];
+    private int clockTimestampCount;
+    private int clockTimestampIndex;
+
+    private boolean running;
+    private volatile long clockPosition;
+    private volatile float tempo;
+
+    /**
+     * Constructor
+     *
+     * @param listener the listener
+     * @param beatsPerBar the number of the beats in a bar
+     */
+    MidiClockTracker(OnClockEventListener listener, int beatsPerBar) {
+        this.listener = listener;
+        this.beatsPerBar = Math.max(beatsPerBar, 1);
+    }
+
+    /**
+     * @return the current tempo in beats per minute, 0 if not known yet
+     */
+    float getTempo() {
+        return tempo;
+    }
+
+    /**
+     * @return the song position in clocks(24 per beat) from the song start
+     */
+    long getClockPosition() {
+        return clockPosition;
+    }
+
+    /**
+     * Processes a received message
+     *
+     * @param status the status byte
+     * @param data1 the first data byte
+     * @param data2 the second data byte
+     * @param timestamp the timestamp of the message
+     */
+    void onMidiMessage(int status, int data1, int data2, long timestamp) {
+        switch (status) {
+            case 0xf8: // Timing Clock
+                onClock(timestamp);
+                break;
+            case 0xfa: // Start
+                clockPosition = 0;
+                running = true;
+                break;
+            case 0xfb: // Continue
+                running = true;
+                break;
+            case 0xfc: // Stop
+                running = false;
+                break;
+            case 0xf2: // Song Position Pointer, in MIDI beats(6 clocks)
+                clockPosition = (long) (data1 | (data2 << 7)) * CLOCKS_PER_MIDI_BEAT;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onClock(long timestamp) {
+        updateTempo(timestamp);
+
+        if (!running) {
+            return;
+        }
+
+        final long position = clockPosition;
+        if (position % CLOCKS_PER_BEAT == 0) {
+            final long beat = position / CLOCKS_PER_BEAT;
+            listener.onBeat(beat, timestamp);
+            if (beat % beatsPerBar == 0) {
+                listener.onBar(beat / beatsPerBar, timestamp);
+            }
+        }
+        clockPosition = position + 1;
+    }
+
+    private void updateTempo(long timestamp) {
+        if (clockTimestampCount > 0) {
+            final long lastTimestamp = clockTimestamps[(clockTimestampIndex + clockTimestamps.length - 1) % clockTimestamps.length];
+            if (timestamp - lastTimestamp > MAX_CLOCK_INTERVAL || timestamp - lastTimestamp < 0) {
+                // paused, or the timestamps are not continuous: start over
+                clockTimestampCount = 0;
+            }
+        }
+
+        clockTimestamps[clockTimestampIndex] = timestamp;
+        clockTimestampIndex = (clockTimestampIndex + 1) % clockTimestamps.length;
+        if (clockTimestampCount < clockTimestamps.length) {
+            clockTimestampCount++;
+        }
+        if (clockTimestampCount < CLOCKS_PER_MIDI_BEAT + 1) {
+            // too few clocks to estimate
+            return;
+        }
+
+        // least-squares slope of the timestamps over the clock index, relative to the oldest timestamp
+        final int first = (clockTimestampIndex + clockTimestamps.length - clockTimestampCount) % clockTimestamps.length;
+        final long firstTimestamp = clockTimestamps[first];
+        final double meanIndex = (clockTimestampCount - 1) / 2.0;
+        double meanTime = 0;
+        for (int i = 0; i < clockTimestampCount; i++) {
+            meanTime += clockTimestamps[(first + i) % clockTimestamps.length] - firstTimestamp;
+        }
+        meanTime /= clockTimestampCount;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < clockTimestampCount; i++) {
+            final double deviation = i - meanIndex;
+            covariance += deviation * (clockTimestamps[(first + i) % clockTimestamps.length] - firstTimestamp - meanTime);
+            variance += deviation * deviation;
+        }
+        final double clockInterval = covariance / variance;
+        if (clockInterval <= 0) {
+            return;
+        }
+        final float bpm = (float) (60_000_000_000.0 / CLOCKS_PER_BEAT / clockInterval);
+        if (Math.abs(bpm - tempo) >= TEMPO_CHANGE_THRESHOLD) {
+            tempo = bpm;
+            listener.onTempoChanged(bpm, timestamp);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package jp.kshoji.interappmidi;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Combines the Control Change sequences of the high resolution controllers into the single events<br />
+ * The MSB(0-31) and LSB(32-63) pairs are combined to the 14-bit values,
+ * and the RPN/NRPN selections(101/100, 99/98) with the Data Entry(6/38) and the Data Increment/Decrement(96/97) are combined to the parameter events.<br />
+ * The MSB(and the Data Entry MSB) is delivered immediately until the LSB of the controller has been received, and then kept until the LSB arrives.
+ * The kept MSB is delivered alone when another message of the channel arrives, or with {@link #flushExpired(long, OnControllerEventListener, int)} after the timeout.<br />
+ * The state is stored in the flat primitive arrays indexed by the channel and the controller number.<br />
+ * <br />
+ * {@link #offer(int, int, int, long, OnControllerEventListener)} is called from the receiving thread,
+ * and {@link #flushExpired(long, OnControllerEventListener, int)} from any other single thread, requested with the expiration request.
+ * The kept values are claimed atomically, so each value is delivered once.
+ */
+final class MidiControllerAggregator {
+    /**
+     * Listener for the combined events
+     */
+    interface OnControllerEventListener {
+        /**
+         * @param channel the channel
+         * @param controller the controller number of the MSB, 0-31
+         * @param value the 14-bit value
+         * @param timestamp the timestamp of the last message of the sequence
+         */
+        void onHighResolutionControlChange(int channel, int controller, int value, long timestamp);
+
+        /**
+         * @param channel the channel
+         * @param registered true: RPN, false: NRPN
+         * @param parameter the 14-bit parameter number
+         * @param value the 14-bit value
+         * @param timestamp the timestamp of the last message of the sequence
+         */
+        void onParameterChange(int channel, boolean registered, int parameter, int value, long timestamp);
+
+        /**
+         * @param channel the channel
+         * @param registered true: RPN, false: NRPN
+         * @param parameter the 14-bit parameter number
+         * @param step 1 for Data Increment, -1 for Data Decrement
+         * @param timestamp the timestamp of the message
+         */
+        void onParameterStep(int channel, boolean registered, int parameter, int step, long timestamp);
+    }
+
+    static final long DEFAULT_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final int CONTROLLER_COUNT = 32;
+    // the kept MSB of each controller, and the kept Data Entry MSB
+    private static final int SLOTS_PER_CHANNEL = CONTROLLER_COUNT + 1;
+    private static final int DATA_ENTRY_SLOT = CONTROLLER_COUNT;
+    private static final int NULL_PARAMETER = 0x3fff;
+
+    private final long timeout;
+    private final Runnable expirationRequest;
+
+    // the kept values, -1 if none: the MSB, or the packed registered flag, the parameter and the MSB for the Data Entry
+    private final AtomicIntegerArray pendingValues = new AtomicIntegerArray(16 * SLOTS_PER_CHANNEL);
+    // written before the pending value
+    private final long[] pendingTimestamps = new long[16 * SLOTS_PER_CHANNEL];
+
+    // used by the receiving thread only
+    private final int[] msbValues = new int[16 * CONTROLLER_COUNT];
+    // the controllers whose LSB has been received
+    private final int[] highResolutionMasks = new int[16];
+    private final int[] parameters = new int[16];
+    private final boolean[] registeredParameters = new boolean[16];
+    private final boolean[] parameterSelected = new boolean[16];
+    private final int[] dataEntryMsbValues = new int[16];
+    // the channels whose Data Entry LSB has been received
+    private int highResolutionDataEntryMask;
+    // the channels which may have the kept values
+    private int pendingChannelMask;
+
+    /**
+     * Constructor
+     *
+     * @param timeout the time to keep the MSB waiting for the LSB, in nanoseconds
+     * @param expirationRequest called from the receiving thread when a value is kept, to schedule {@link #flushExpired(long, OnControllerEventListener, int)} after the timeout, may be null
+     */
+    MidiControllerAggregator(long timeout, Runnable expirationRequest) {
+        this.timeout = timeout;
+        this.expirationRequest = expirationRequest;
+        for (int i = 0; i < pendingValues.length(); i++) {
+            pendingValues.set(i, -1);
+        }
+    }
+
+    /**
+     * Processes the message, called from the receiving thread<br />
+     * For the other messages of the channel, the kept values are delivered before returning.
+     *
+     * @return true if the message has been consumed, false if the message should be passed through
+     */
+    boolean offer(int status, int data1, int data2, long timestamp, OnControllerEventListener listener) {
+        if (status >= 0xf0) {
+            return false;
+        }
+        final int channel = status & 0xf;
+        if ((status & 0xf0) != 0xb0) {
+            resolve(channel, listener);
+            return false;
+        }
+
+        if (data1 < CONTROLLER_COUNT) {
+            if (data1 == 6 && parameterSelected[channel]) {
+                // Data Entry MSB
+                dataEntryMsbValues[channel] = data2;
+                if ((highResolutionDataEntryMask & (1 << channel)) == 0) {
+                    // the LSB has not been received: 7-bit Data Entry
+                    listener.onParameterChange(channel, registeredParameters[channel], parameters[channel], data2 << 7, timestamp);
+                    return true;
+                }
+                final int slot = channel * SLOTS_PER_CHANNEL + DATA_ENTRY_SLOT;
+                deliver(slot, pendingValues.getAndSet(slot, -1), pendingTimestamps[slot], listener);
+                keep(channel, slot, (registeredParameters[channel] ? 1 << 21 : 0) | (parameters[channel] << 7) | data2, timestamp);
+                return true;
+            }
+
+            msbValues[channel * CONTROLLER_COUNT + data1] = data2;
+            if ((highResolutionMasks[channel] & (1 << data1)) == 0) {
+                // the LSB has not been received: 7-bit controller
+                listener.onHighResolutionControlChange(channel, data1, data2 << 7, timestamp);
+                return true;
+            }
+            final int slot = channel * SLOTS_PER_CHANNEL + data1;
+            deliver(slot, pendingValues.getAndSet(slot, -1), pendingTimestamps[slot], listener);
+            keep(channel, slot, data2, timestamp);
+            return true;
+        }
+
+        if (data1 < CONTROLLER_COUNT * 2) {
+            final int controller = data1 - CONTROLLER_COUNT;
+            if (controller == 6 && parameterSelected[channel]) {
+                // Data Entry LSB
+                highResolutionDataEntryMask |= 1 << channel;
+                final int pending = pendingValues.getAndSet(channel * SLOTS_PER_CHANNEL + DATA_ENTRY_SLOT, -1);
+                if (pending >= 0) {
+                    listener.onParameterChange(channel, (pending >> 21) != 0, (pending >> 7) & 0x3fff, ((pending & 0x7f) << 7) | data2, timestamp);
+                } else {
+                    listener.onParameterChange(channel, registeredParameters[channel], parameters[channel], (dataEntryMsbValues[channel] << 7) | data2, timestamp);
+                }
+                return true;
+            }
+
+            highResolutionMasks[channel] |= 1 << controller;
+            pendingValues.set(channel * SLOTS_PER_CHANNEL + controller, -1);
+            listener.onHighResolutionControlChange(channel, controller, (msbValues[channel * CONTROLLER_COUNT + controller] << 7) | data2, timestamp);
+            return true;
+        }
+
+        switch (data1) {
+            case 96: // Data Increment
+            case 97: // Data Decrement
+                if (!parameterSelected[channel]) {
+                    break;
+                }
+                resolve(channel, listener);
+                listener.onParameterStep(channel, registeredParameters[channel], parameters[channel], data1 == 96 ? 1 : -1, timestamp);
+                return true;
+            case 98: // NRPN LSB
+            case 99: // NRPN MSB
+            case 100: // RPN LSB
+            case 101: // RPN MSB
+                resolve(channel, listener);
+                final boolean registered = data1 >= 100;
+                if (registered != registeredParameters[channel]) {
+                    registeredParameters[channel] = registered;
+                    parameters[channel] = 0;
+                }
+                if ((data1 & 1) != 0) {
+                    parameters[channel] = (data2 << 7) | (parameters[channel] & 0x7f);
+                } else {
+                    parameters[channel] = (parameters[channel] & 0x3f80) | data2;
+                }
+                // RPN Null deselects the parameter
+                parameterSelected[channel] = !registered || parameters[channel] != NULL_PARAMETER;
+                return true;
+            default:
+                break;
+        }
+        resolve(channel, listener);
+        return false;
+    }
+
+    /**
+     * Delivers the kept values older than the timeout, called from the other thread
+     *
+     * @param now the current time, in {@link System#nanoTime()} base
+     * @param listener the listener
+     * @param maxCount the maximum number of the events to deliver, the rest are kept until the next flush
+     * @return the number of the delivered events
+     */
+    int flushExpired(long now, OnControllerEventListener listener, int maxCount) {
+        int count = 0;
+        for (int slot = 0; slot < pendingValues.length() && count < maxCount; slot++) {
+            final int value = pendingValues.get(slot);
+            if (value < 0) {
+                continue;
+            }
+            final long timestamp = pendingTimestamps[slot];
+            if (now - timestamp >= timeout && pendingValues.compareAndSet(slot, value, -1)) {
+                deliver(slot, value, timestamp, listener);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Checks the kept values, called from the other thread
+     *
+     * @return true if any value is waiting for the LSB or the timeout
+     */
+    boolean hasPendingValues() {
+        for (int slot = 0; slot < pendingValues.length(); slot++) {
+            if (pendingValues.get(slot) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the time to keep the MSB waiting for the LSB, in nanoseconds
+     */
+    long getTimeout() {
+        return timeout;
+    }
+
+    private void keep(int channel, int slot, int value, long timestamp) {
+        pendingTimestamps[slot] = timestamp;
+        pendingValues.set(slot, value);
+        pendingChannelMask |= 1 << channel;
+        if (expirationRequest != null) {
+            expirationRequest.run();
+        }
+    }
+
+    /**
+     * Delivers the kept values of the channel, to keep the order with the following message
+     */
+    private void resolve(int channel, OnControllerEventListener listener) {
+        if ((pendingChannelMask & (1 << channel)) == 0) {
+            return;
+        }
+        pendingChannelMask &= ~(1 << channel);
+        final int start = channel * SLOTS_PER_CHANNEL;
+        for (int slot = start; slot < start + SLOTS_PER_CHANNEL; slot++) {
+            if (pendingValues.get(slot) >= 0) {
+                deliver(slot, pendingValues.getAndSet(slot, -1), pendingTimestamps[slot], listener);
+            }
+        }
+    }
+
+    private void deliver(int slot, int value, long timestamp, OnControllerEventListener listener) {
+        if (value < 0) {
+            return;
+        }
+        final int channel = slot / SLOTS_PER_CHANNEL;
+        final int index = slot % SLOTS_PER_CHANNEL;
+        if (index == DATA_ENTRY_SLOT) {
+            listener.onParameterChange(channel, (value >> 21) != 0, (value >> 7) & 0x3fff, (value & 0x7f) << 7, timestamp);
+        } else {
+            listener.onHighResolutionControlChange(channel, index, value << 7, timestamp);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package jp.kshoji.interappmidi;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latest state of the channels of a receiving port<br />
+ * The constants are the offsets in the array filled with {@link InterAppMidiManager#getMidiState(int, int[])}.
+ * The state is stored in a flat int array with the same layout, and updated in place by the received channel messages:
+ * <pre>
+ * offset                    size      content
+ * CONTROLLER_OFFSET         16 * 128  the Control Change values, channel * 128 + controller
+ * PROGRAM_OFFSET            16        the Program Change numbers
+ * PITCH_WHEEL_OFFSET        16        the Pitch Wheel values, 0-16383, the center is 8192
+ * CHANNEL_PRESSURE_OFFSET   16        the Channel Aftertouch values
+ * NOTE_VELOCITY_OFFSET      16 * 128  the velocities of the sounding notes, channel * 128 + note, 0 if not sounding
+ * </pre>
+ * {@link #update(int, int, int)} is called from the receiving thread, and the getters from any thread.
+ * Each value is read as the latest value, the values updated while copying may be from the different messages.
+ * The version is incremented after each update, so the readers can skip copying the unchanged state.
+ */
+public final class MidiControllerState {
+    /**
+     * Control Change values, channel * 128 + controller
+     */
+    public static final int CONTROLLER_OFFSET = 0;
+    /**
+     * Program Change numbers, indexed by the channel
+     */
+    public static final int PROGRAM_OFFSET = CONTROLLER_OFFSET + 16 * 128;
+    /**
+     * Pitch Wheel values, indexed by the channel
+     */
+    public static final int PITCH_WHEEL_OFFSET = PROGRAM_OFFSET + 16;
+    /**
+     * Channel Aftertouch values, indexed by the channel
+     */
+    public static final int CHANNEL_PRESSURE_OFFSET = PITCH_WHEEL_OFFSET + 16;
+    /**
+     * Velocities of the sounding notes, channel * 128 + note
+     */
+    public static final int NOTE_VELOCITY_OFFSET = CHANNEL_PRESSURE_OFFSET + 16;
+    /**
+     * The length of the state
+     */
+    public static final int SIZE = NOTE_VELOCITY_OFFSET + 16 * 128;
+
+    private static final int PITCH_WHEEL_CENTER = 8192;
+
+    private final int[] values = new int[SIZE];
+    // written by the receiving thread only, after updating the values
+    private final AtomicLong version = new AtomicLong();
+
+    MidiControllerState() {
+        reset();
+    }
+
+    /**
+     * Updates the state with the received message, called from the receiving thread
+     */
+    void update(int status, int data1, int data2) {
+        final int channel = status & 0xf;
+        switch (status & 0xf0) {
+            case 0x80:
+                values[NOTE_VELOCITY_OFFSET + (channel << 7) + data1] = 0;
+                break;
+            case 0x90:
+                values[NOTE_VELOCITY_OFFSET + (channel << 7) + data1] = data2;
+                break;
+            case 0xb0:
+                values[CONTROLLER_OFFSET + (channel << 7) + data1] = data2;
+                if (data1 == 121) {
+                    resetControllers(channel);
+                } else if (data1 == 120 || data1 >= 123) {
+                    // All Sound Off, All Notes Off, and the mode messages
+                    Arrays.fill(values, NOTE_VELOCITY_OFFSET + (channel << 7), NOTE_VELOCITY_OFFSET + (channel << 7) + 128, 0);
+                }
+                break;
+            case 0xc0:
+                values[PROGRAM_OFFSET + channel] = data1;
+                break;
+            case 0xd0:
+                values[CHANNEL_PRESSURE_OFFSET + channel] = data1;
+                break;
+            case 0xe0:
+                values[PITCH_WHEEL_OFFSET + channel] = data1 | (data2 << 7);
+                break;
+            default:
+                if (status == 0xff) {
+                    // System Reset
+                    reset();
+                    break;
+                }
+                return;
+        }
+        version.lazySet(version.get() + 1);
+    }
+
+    /**
+     * Resets the controllers with Reset All Controllers, as recommended by RP-015
+     */
+    private void resetControllers(int channel) {
+        final int controllers = CONTROLLER_OFFSET + (channel << 7);
+        values[controllers + 1] = 0;
+        values[controllers + 11] = 127;
+        for (int controller = 64; controller <= 67; controller++) {
+            values[controllers + controller] = 0;
+        }
+        values[PITCH_WHEEL_OFFSET + channel] = PITCH_WHEEL_CENTER;
+        values[CHANNEL_PRESSURE_OFFSET + channel] = 0;
+    }
+
+    private void reset() {
+        Arrays.fill(values, 0);
+        Arrays.fill(values, PITCH_WHEEL_OFFSET, PITCH_WHEEL_OFFSET + 16, PITCH_WHEEL_CENTER);
+    }
+
+    /**
+     * @return the number of the updates
+     */
+    long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * @param index the index in the snapshot layout
+     * @return the value
+     */
+    int get(int index) {
+        version.get();
+        return values[index];
+    }
+
+    /**
+     * Copies the state in the snapshot layout
+     *
+     * @param destination the array, the values are written as long as the length allows
+     * @return the version of the copied state
+     */
+    long copyTo(int[] destination) {
+        final long currentVersion = version.get();
+        System.arraycopy(values, 0, destination, 0, Math.min(destination.length, SIZE));
+        return currentVersion;
+    }
+
+    /**
+     * Copies the sounding notes as the bitset, the bit {@code note & 63} of {@code destination[channel * 2 + (note >> 6)]}
+     *
+     * @param destination the array, the values are written as long as the length allows
+     * @return the version of the copied state
+     */
+    long copyActiveNotesTo(long[] destination) {
+        final long currentVersion = version.get();
+        final int count = Math.min(destination.length, 32);
+        for (int index = 0; index < count; index++) {
+            long notes = 0;
+            final int offset = NOTE_VELOCITY_OFFSET + (index << 6);
+            for (int bit = 0; bit < 64; bit++) {
+                if (values[offset + bit] != 0) {
+                    notes |= 1L << bit;
+                }
+            }
+            destination[index] = notes;
+        }
+        return currentVersion;
+    }
+}
@@ -0,0 +1,195 @@
+package jp.kshoji.interappmidi;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps only the latest value of the continuous MIDI events until flushed<br />
+ * Coalesced events: Control Change, Polyphonic Aftertouch, Channel Aftertouch and Pitch Wheel.<br />
+ * The values are stored in the flat primitive arrays indexed by the channel and the controller number.
+ * Each value is packed with the lower 48 bits of its timestamp into a long, so the value and the timestamp are published atomically.
+ * The timestamp is restored with the current time on flush, so the values older than 39 hours have the wrong timestamps.<br />
+ * <br />
+ * {@link #offer(int, int, int, long)} and {@link #flushChannel(int, OnMidiMessageListener)} are called from the receiving thread,
+ * and {@link #flush(OnMidiMessageListener, int)} from the other single thread.
+ * The all calls are lock-free.
+ */
+final class MidiEventCoalescer {
+    /**
+     * Listener for the flushed events
+     */
+    interface OnMidiMessageListener {
+        void onMidiMessage(int status, int data1, int data2, long timestamp);
+    }
+
+    private static final int CONTROL_CHANGE_OFFSET = 0;
+    private static final int POLYPHONIC_AFTERTOUCH_OFFSET = 16 * 128;
+    private static final int PITCH_WHEEL_OFFSET = 2 * 16 * 128;
+    private static final int CHANNEL_AFTERTOUCH_OFFSET = PITCH_WHEEL_OFFSET + 16;
+    private static final int KEY_COUNT = CHANNEL_AFTERTOUCH_OFFSET + 16;
+    // the keys of a channel: Control Change, Polyphonic Aftertouch, Pitch Wheel and Channel Aftertouch
+    private static final int CHANNEL_KEY_COUNT = 2 * 128 + 2;
+    // power of two, larger than KEY_COUNT
+    private static final int QUEUE_SIZE = 8192;
+
+    // the packed slot: timestamp(upper 48 bits), pending flag, value(14 bits)
+    private static final int TIMESTAMP_SHIFT = 16;
+    private static final long PENDING = 1 << 14;
+    private static final int VALUE_MASK = 0x3fff;
+
+    // 0 for the key without the pending value
+    private final AtomicLongArray slots = new AtomicLongArray(KEY_COUNT);
+    // 1 while the key is in the queue, set by the producer and cleared by the consumer
+    private final AtomicIntegerArray queued = new AtomicIntegerArray(KEY_COUNT);
+
+    // the keys in order of the first update in the window, each key is queued at most once
+    private final int[] queue = new int[QUEUE_SIZE];
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // the keys updated since the last flushChannel for each channel, used by the receiving thread only
+    private final int[][] channelKeys = new int[16][CHANNEL_KEY_COUNT];
+    private final int[] channelKeyCounts = new int[16];
+    private final boolean[] channelKeyListed = new boolean[KEY_COUNT];
+
+    // written by the receiving thread only
+    private volatile long coalescedEventCount;
+
+    /**
+     * Stores the event if it's a continuous event
+     *
+     * @return true if the event has been stored, false if the event should be passed through
+     */
+    boolean offer(int status, int data1, int data2, long timestamp) {
+        final int channel = status & 0xf;
+        final int key;
+        final int value;
+        switch (status & 0xf0) {
+            case 0xa0: // Polyphonic Aftertouch
+                key = POLYPHONIC_AFTERTOUCH_OFFSET + (channel << 7) + data1;
+                value = data2;
+                break;
+            case 0xb0: // Control Change
+                key = CONTROL_CHANGE_OFFSET + (channel << 7) + data1;
+                value = data2;
+                break;
+            case 0xd0: // Channel Aftertouch
+                key = CHANNEL_AFTERTOUCH_OFFSET + channel;
+                value = data1;
+                break;
+            case 0xe0: // Pitch Wheel
+                key = PITCH_WHEEL_OFFSET + channel;
+                value = data1 | (data2 << 7);
+                break;
+            default:
+                return false;
+        }
+
+        if ((slots.getAndSet(key, (timestamp << TIMESTAMP_SHIFT) | PENDING | value) & PENDING) != 0) {
+            // single writer: no need to be atomic
+            coalescedEventCount = coalescedEventCount + 1;
+        }
+        // the consumer clears the flag before taking the slot, so the value written above is delivered either way
+        if (queued.get(key) == 0) {
+            queued.set(key, 1);
+            final long currentTail = tail.get();
+            queue[(int) (currentTail & (QUEUE_SIZE - 1))] = key;
+            tail.lazySet(currentTail + 1);
+        }
+
+        if (!channelKeyListed[key]) {
+            channelKeyListed[key] = true;
+            channelKeys[channel][channelKeyCounts[channel]++] = key;
+        }
+        return true;
+    }
+
+    /**
+     * Delivers the latest values stored since the last flush, in order of their first update
+     *
+     * @param listener the listener
+     * @param maxCount the maximum number of the events to deliver, the rest are kept until the next flush
+     * @return the number of the delivered events
+     */
+    int flush(OnMidiMessageListener listener, int maxCount) {
+        long currentHead = head.get();
+        final long currentTail = tail.get();
+        final long now = System.nanoTime();
+        int count = 0;
+        while (currentHead < currentTail && count < maxCount) {
+            final int key = queue[(int) (currentHead & (QUEUE_SIZE - 1))];
+            currentHead++;
+            head.lazySet(currentHead);
+
+            queued.set(key, 0);
+            if (deliver(key, now, listener)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Delivers the latest values of the channel, called from the receiving thread<br />
+     * Should be called before passing through the other events of the channel, so they are delivered in the received order.
+     *
+     * @param channel the channel, 0-15
+     * @param listener the listener
+     * @return the number of the delivered events
+     */
+    int flushChannel(int channel, OnMidiMessageListener listener) {
+        final int keyCount = channelKeyCounts[channel];
+        if (keyCount == 0) {
+            return 0;
+        }
+
+        final int[] keys = channelKeys[channel];
+        final long now = System.nanoTime();
+        int count = 0;
+        for (int i = 0; i < keyCount; i++) {
+            final int key = keys[i];
+            channelKeyListed[key] = false;
+            // the key left in the queue is skipped by the consumer
+            if (deliver(key, now, listener)) {
+                count++;
+            }
+        }
+        channelKeyCounts[channel] = 0;
+        return count;
+    }
+
+    /**
+     * Takes the pending value of the key, and delivers it
+     *
+     * @return false if the key has no pending value
+     */
+    private boolean deliver(int key, long now, OnMidiMessageListener listener) {
+        final long slot = slots.getAndSet(key, 0);
+        if ((slot & PENDING) == 0) {
+            return false;
+        }
+
+        final int value = (int) slot & VALUE_MASK;
+        // the lower 48 bits of the difference from the current time, sign extended
+        final long timestamp = now - (((now << TIMESTAMP_SHIFT) - (slot & ~((1L << TIMESTAMP_SHIFT) - 1))) >> TIMESTAMP_SHIFT);
+        if (key < POLYPHONIC_AFTERTOUCH_OFFSET) {
+            listener.onMidiMessage(0xb0 | (key >> 7), key & 0x7f, value, timestamp);
+        } else if (key < PITCH_WHEEL_OFFSET) {
+            final int index = key - POLYPHONIC_AFTERTOUCH_OFFSET;
+            listener.onMidiMessage(0xa0 | (index >> 7), index & 0x7f, value, timestamp);
+        } else if (key < CHANNEL_AFTERTOUCH_OFFSET) {
+            listener.onMidiMessage(0xe0 | (key - PITCH_WHEEL_OFFSET), value & 0x7f, (value >> 7) & 0x7f, timestamp);
+        } else {
+            listener.onMidiMessage(0xd0 | (key - CHANNEL_AFTERTOUCH_OFFSET), value, 0, timestamp);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of the events overwritten by the later values
+     */
+    long getCoalescedEventCount() {
+        return coalescedEventCount;
+    }
+}
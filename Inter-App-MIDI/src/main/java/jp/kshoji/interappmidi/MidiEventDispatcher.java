@@ -0,0 +1,392 @@
+package jp.kshoji.interappmidi;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Moves the delivery of the received events from the receiving thread to the dispatching thread, through a bounded queue<br />
+ * The events are kept in a circular queue of the primitive arrays, and delivered in the queued order.
+ * The behavior when the queue is full is chosen with the overflow policy.<br />
+ * The events are delivered by {@link #run()} on a dedicated thread, or by the task posted to the {@link Executor} when the events are queued.<br />
+ * The coalesced events are kept in the {@link MidiEventCoalescer} of the target, and flushed on the dispatching thread after each batch.<br />
+ * This class depends only on the Java runtime, not on android.*.
+ */
+final class MidiEventDispatcher implements Runnable {
+    /**
+     * Destination of the queued events, called on the dispatching thread
+     */
+    interface Target {
+        /**
+         * @param status the status
+         * @param data1 the first data byte
+         * @param data2 the second data byte
+         * @param timestamp the timestamp of the event
+         */
+        void dispatchMidiMessage(int status, int data1, int data2, long timestamp);
+
+        /**
+         * @param method the method name
+         * @param message the formatted message
+         */
+        void dispatchMessage(String method, String message);
+
+        /**
+         * Delivers the coalesced events
+         */
+        void flushCoalescedEvents();
+    }
+
+    /**
+     * Discards the oldest queued event to queue the new event
+     */
+    static final int POLICY_DROP_OLDEST = 0;
+    /**
+     * Discards the new event
+     */
+    static final int POLICY_DROP_NEWEST = 1;
+    /**
+     * Keeps only the latest value of the continuous events with the {@link MidiEventCoalescer}, discards the other new events
+     */
+    static final int POLICY_COALESCE = 2;
+    /**
+     * Blocks the receiving thread until the queue has room
+     */
+    static final int POLICY_BLOCK = 3;
+
+    private static final int BATCH_SIZE = 64;
+
+    private final int capacity;
+    private final int policy;
+    private final Executor executor;
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    // circular queue, guarded by lock
+    private final Target[] targets;
+    private final int[] messages;
+    private final long[] timestamps;
+    private final String[] methods;
+    private final String[] texts;
+    private int head;
+    private int size;
+    private final ArrayList<Target> flushTargets = new ArrayList<>();
+    private boolean drainScheduled;
+    private boolean closed;
+    // written with the lock
+    private volatile long droppedEventCount;
+
+    // the batch, used by the dispatching thread only
+    private final Target[] batchTargets = new Target[BATCH_SIZE];
+    private final int[] batchMessages = new int[BATCH_SIZE];
+    private final long[] batchTimestamps = new long[BATCH_SIZE];
+    private final String[] batchMethods = new String[BATCH_SIZE];
+    private final String[] batchTexts = new String[BATCH_SIZE];
+    private final ArrayList<Target> batchFlushTargets = new ArrayList<>();
+
+    /**
+     * Constructor
+     *
+     * @param capacity the maximum number of the queued events
+     * @param policy the overflow policy, {@link #POLICY_DROP_OLDEST}, {@link #POLICY_DROP_NEWEST}, {@link #POLICY_COALESCE} or {@link #POLICY_BLOCK}
+     * @param executor runs the delivery when the events are queued, or null to deliver with {@link #run()}
+     */
+    MidiEventDispatcher(int capacity, int policy, Executor executor) {
+        this.capacity = Math.max(capacity, 1);
+        this.policy = policy;
+        this.executor = executor;
+        targets = new Target[this.capacity];
+        messages = new int[this.capacity];
+        timestamps = new long[this.capacity];
+        methods = new String[this.capacity];
+        texts = new String[this.capacity];
+    }
+
+    /**
+     * @return the overflow policy
+     */
+    int getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Queues a MIDI message, called from the receiving thread
+     *
+     * @param target the destination
+     * @param status the status
+     * @param data1 the first data byte
+     * @param data2 the second data byte
+     * @param timestamp the timestamp of the event
+     * @return false if the event has been dropped
+     */
+    boolean offer(Target target, int status, int data1, int data2, long timestamp) {
+        return push(target, MidiMessageEncoder.pack(status, data1, data2), timestamp, null, null);
+    }
+
+    /**
+     * Queues a formatted message, called from the receiving thread
+     *
+     * @param target the destination
+     * @param method the method name
+     * @param message the formatted message
+     * @return false if the event has been dropped
+     */
+    boolean offer(Target target, String method, String message) {
+        return push(target, 0, 0, method, message);
+    }
+
+    /**
+     * Requests to flush the coalesced events of the target on the dispatching thread
+     *
+     * @param target the destination
+     */
+    void requestFlush(Target target) {
+        lock.lock();
+        try {
+            if (closed || flushTargets.contains(target)) {
+                return;
+            }
+            flushTargets.add(target);
+            signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the queued events for the target
+     *
+     * @param target the destination
+     */
+    void cancel(Target target) {
+        lock.lock();
+        try {
+            int newSize = 0;
+            for (int i = 0; i < size; i++) {
+                final int from = (head + i) % capacity;
+                if (targets[from] != target) {
+                    final int to = (head + newSize++) % capacity;
+                    targets[to] = targets[from];
+                    messages[to] = messages[from];
+                    timestamps[to] = timestamps[from];
+                    methods[to] = methods[from];
+                    texts[to] = texts[from];
+                }
+            }
+            for (int i = newSize; i < size; i++) {
+                clear((head + i) % capacity);
+            }
+            size = newSize;
+            flushTargets.remove(target);
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the delivery, and releases the blocked receiving threads
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (int i = 0; i < size; i++) {
+                clear((head + i) % capacity);
+            }
+            size = 0;
+            flushTargets.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of the events dropped because the queue was full
+     */
+    long getDroppedEventCount() {
+        return droppedEventCount;
+    }
+
+    /**
+     * Delivers the events until {@link #close()} is called, should be run on an elevated priority thread
+     */
+    @Override
+    public void run() {
+        while (true) {
+            lock.lock();
+            try {
+                while (!closed && size == 0 && flushTargets.isEmpty()) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (closed) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            drain();
+        }
+    }
+
+    private boolean push(Target target, int message, long timestamp, String method, String text) {
+        lock.lock();
+        try {
+            while (size == capacity && !closed) {
+                switch (policy) {
+                    case POLICY_DROP_OLDEST:
+                        clear(head);
+                        head = (head + 1) % capacity;
+                        size--;
+                        droppedEventCount = droppedEventCount + 1;
+                        break;
+                    case POLICY_BLOCK:
+                        try {
+                            notFull.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            droppedEventCount = droppedEventCount + 1;
+                            return false;
+                        }
+                        break;
+                    default:
+                        droppedEventCount = droppedEventCount + 1;
+                        return false;
+                }
+            }
+            if (closed) {
+                return false;
+            }
+
+            final int index = (head + size) % capacity;
+            targets[index] = target;
+            messages[index] = message;
+            timestamps[index] = timestamp;
+            methods[index] = method;
+            texts[index] = text;
+            size++;
+            signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called with the lock
+    private void signal() {
+        if (executor == null) {
+            notEmpty.signal();
+        } else if (!drainScheduled) {
+            drainScheduled = true;
+            executor.execute(drainTask);
+        }
+    }
+
+    // called with the lock
+    private void clear(int index) {
+        targets[index] = null;
+        methods[index] = null;
+        texts[index] = null;
+    }
+
+    /**
+     * Delivers the queued events in batches, until the queue becomes empty
+     */
+    private void drain() {
+        while (true) {
+            int count;
+            lock.lock();
+            try {
+                count = Math.min(size, BATCH_SIZE);
+                for (int i = 0; i < count; i++) {
+                    final int index = (head + i) % capacity;
+                    batchTargets[i] = targets[index];
+                    batchMessages[i] = messages[index];
+                    batchTimestamps[i] = timestamps[index];
+                    batchMethods[i] = methods[index];
+                    batchTexts[i] = texts[index];
+                    clear(index);
+                }
+                head = (head + count) % capacity;
+                size -= count;
+                if (count > 0) {
+                    notFull.signalAll();
+                }
+                batchFlushTargets.addAll(flushTargets);
+                flushTargets.clear();
+                if (count == 0 && batchFlushTargets.isEmpty()) {
+                    drainScheduled = false;
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            boolean dispatched = false;
+            try {
+                for (int i = 0; i < count; i++) {
+                    final String method = batchMethods[i];
+                    try {
+                        if (method != null) {
+                            batchTargets[i].dispatchMessage(method, batchTexts[i]);
+                        } else {
+                            final int message = batchMessages[i];
+                            batchTargets[i].dispatchMidiMessage(message & 0xff, (message >> 8) & 0x7f, (message >> 16) & 0x7f, batchTimestamps[i]);
+                        }
+                    } catch (RuntimeException ignored) {
+                        // the event is dropped, the dispatching thread or the executor keeps delivering
+                    }
+                    batchTargets[i] = null;
+                    batchMethods[i] = null;
+                    batchTexts[i] = null;
+                }
+                for (int i = 0; i < batchFlushTargets.size(); i++) {
+                    try {
+                        batchFlushTargets.get(i).flushCoalescedEvents();
+                    } catch (RuntimeException ignored) {
+                    }
+                }
+                dispatched = true;
+            } finally {
+                batchFlushTargets.clear();
+                if (!dispatched) {
+                    abortBatch(count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the rest of the batch after an Error has been thrown from a target, and schedules the drain of the queued events again
+     *
+     * @param count the size of the batch
+     */
+    private void abortBatch(int count) {
+        for (int i = 0; i < count; i++) {
+            batchTargets[i] = null;
+            batchMethods[i] = null;
+            batchTexts[i] = null;
+        }
+
+        lock.lock();
+        try {
+            drainScheduled = false;
+            if (size > 0 || !flushTargets.isEmpty()) {
+                signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
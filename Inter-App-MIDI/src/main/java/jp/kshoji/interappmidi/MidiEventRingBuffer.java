@@ -0,0 +1,136 @@
+package jp.kshoji.interappmidi;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer / single-consumer ring buffer of fixed-size MIDI event records<br />
+ * The records are stored in a direct {@link ByteBuffer} with the native byte order.<br />
+ * <br />
+ * Record layout ({@link #EVENT_SIZE} bytes):
+ * <pre>
+ * offset  size  content
+ *      0     4  port handle (int)
+ *      4     1  status
+ *      5     1  data1
+ *      6     1  data2
+ *      7     1  reserved (0)
+ *      8     8  timestamp, System.nanoTime() base (long)
+ * </pre>
+ */
+final class MidiEventRingBuffer {
+    static final int EVENT_SIZE = 16;
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer readBuffer;
+    private final int capacity;
+    private final int mask;
+
+    // written by the consumer only
+    private final AtomicLong head = new AtomicLong();
+    // written by the producer only
+    private final AtomicLong tail = new AtomicLong();
+    // written by the producer only
+    private volatile long droppedEventCount;
+
+    /**
+     * Constructor
+     *
+     * @param capacity the number of the records, rounded up to the power of two
+     */
+    MidiEventRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        buffer = ByteBuffer.allocateDirect(size * EVENT_SIZE).order(ByteOrder.nativeOrder());
+        readBuffer = buffer.duplicate();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Writes an event, called from the producer thread
+     *
+     * @return false if the buffer is full and the event has been dropped
+     */
+    boolean offer(int portHandle, int status, int data1, int data2, long timestamp) {
+        final long currentTail = tail.get();
+        if (currentTail - head.get() >= capacity) {
+            // single writer: no need to be atomic
+            droppedEventCount = droppedEventCount + 1;
+            return false;
+        }
+
+        final int index = (int) (currentTail & mask) * EVENT_SIZE;
+        buffer.putInt(index, portHandle);
+        buffer.put(index + 4, (byte) status);
+        buffer.put(index + 5, (byte) data1);
+        buffer.put(index + 6, (byte) data2);
+        buffer.put(index + 7, (byte) 0);
+        buffer.putLong(index + 8, timestamp);
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    /**
+     * Writes an event record to the current position of the destination
+     *
+     * @param destination the buffer, must have at least {@link #EVENT_SIZE} bytes remaining
+     */
+    static void putEvent(ByteBuffer destination, int portHandle, int status, int data1, int data2, long timestamp) {
+        destination.putInt(portHandle);
+        destination.put((byte) status);
+        destination.put((byte) data1);
+        destination.put((byte) data2);
+        destination.put((byte) 0);
+        destination.putLong(timestamp);
+    }
+
+    /**
+     * Copies the events to the destination, called from the consumer thread<br />
+     * The destination's position is advanced by the copied bytes.
+     *
+     * @param destination the buffer to fill, records are written as long as the remaining space allows
+     * @return the number of the copied events
+     */
+    int drainTo(ByteBuffer destination) {
+        final long currentHead = head.get();
+        final int available = (int) (tail.get() - currentHead);
+        final int count = Math.min(available, destination.remaining() / EVENT_SIZE);
+        if (count <= 0) {
+            return 0;
+        }
+
+        final int start = (int) (currentHead & mask);
+        final int firstCount = Math.min(count, capacity - start);
+        readBuffer.limit((start + firstCount) * EVENT_SIZE).position(start * EVENT_SIZE);
+        destination.put(readBuffer);
+        if (firstCount < count) {
+            readBuffer.limit((count - firstCount) * EVENT_SIZE).position(0);
+            destination.put(readBuffer);
+        }
+
+        head.lazySet(currentHead + count);
+        return count;
+    }
+
+    /**
+     * @return the number of the events waiting to be drained
+     */
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * @return the number of the events dropped because the buffer was full
+     */
+    long getDroppedEventCount() {
+        return droppedEventCount;
+    }
+}
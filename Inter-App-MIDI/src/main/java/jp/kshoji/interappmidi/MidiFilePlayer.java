@@ -0,0 +1,840 @@
+package jp.kshoji.interappmidi;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Plays a Standard MIDI File to a port, from a dedicated timing thread<br />
+ * The tracks are read lazily from the file with a small buffer for each track, so the file is never loaded entirely.
+ * The events of the tracks are merged by tick, and the tick is converted to the time with the tempo map read while playing.<br />
+ * Each event is sent ahead of its time by the look-ahead, with the exact time as the timestamp, so the receiver can schedule it without the jitter of this thread.<br />
+ * The notes sounding are released on stop, seek and loop. On seek, the last Program Change, Control Change and Pitch Wheel of each channel are sent again.<br />
+ * Format 0, 1 and 2 are played as merged tracks. System Exclusive is played, but not sent again on seek.<br />
+ * This class depends only on the Java runtime, not on android.*; the caller should run {@link #run()} on an elevated priority thread.
+ */
+final class MidiFilePlayer implements Runnable {
+    /**
+     * Listener for the playback, called on the player thread
+     */
+    interface OnPlaybackListener {
+        /**
+         * Called when the playback has reached the end of the file, not called while looping
+         */
+        void onPlaybackFinished();
+    }
+
+    static final long DEFAULT_LOOK_AHEAD = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int TRACK_BUFFER_SIZE = 4096;
+    private static final int EVENT_MESSAGE = 0;
+    private static final int EVENT_SYSTEM_EXCLUSIVE = 1;
+    private static final int EVENT_TEMPO = 2;
+    private static final int DEFAULT_TEMPO = 500_000;
+
+    /**
+     * Reads the events of a track lazily, used with the player lock held
+     */
+    private static final class TrackReader {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final ByteBuffer buffer = ByteBuffer.allocate(TRACK_BUFFER_SIZE);
+        // the file offset of the buffer
+        private long bufferPosition;
+
+        private long position;
+        private long tick;
+        private int runningStatus;
+        private boolean ended;
+
+        // the pending event
+        private long eventStart;
+        private long eventPreviousTick;
+        private int eventRunningStatus;
+        private long eventTick;
+        private int eventType;
+        private int message;
+        private byte[] data;
+        private int tempo;
+
+        private TrackReader(FileChannel channel, long start, long length) {
+            this.channel = channel;
+            this.start = start;
+            this.end = start + length;
+            buffer.limit(0);
+        }
+
+        private void rewind() throws IOException {
+            restore(start, 0, 0);
+        }
+
+        /**
+         * Restores the state saved with the pending event
+         */
+        private void restore(long eventStart, long eventPreviousTick, int eventRunningStatus) throws IOException {
+            position = eventStart;
+            tick = eventPreviousTick;
+            runningStatus = eventRunningStatus;
+            ended = false;
+            next();
+        }
+
+        private int readByte() throws IOException {
+            if (position >= end) {
+                throw new EOFException();
+            }
+            if (position < bufferPosition || position >= bufferPosition + buffer.limit()) {
+                buffer.clear();
+                while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+                    // fill the buffer
+                }
+                buffer.flip();
+                bufferPosition = position;
+                if (!buffer.hasRemaining()) {
+                    throw new EOFException();
+                }
+            }
+            return buffer.get((int) (position++ - bufferPosition)) & 0xff;
+        }
+
+        private int readVariableLength() throws IOException {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                final int b = readByte();
+                value = (value << 7) | (b & 0x7f);
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            return value;
+        }
+
+        private void readBytes(byte[] destination, int offset) throws IOException {
+            for (int i = offset; i < destination.length; i++) {
+                destination[i] = (byte) readByte();
+            }
+        }
+
+        /**
+         * Reads the next event, except the meta events other than Set Tempo
+         */
+        private void next() throws IOException {
+            data = null;
+            try {
+                while (true) {
+                    eventStart = position;
+                    eventPreviousTick = tick;
+                    eventRunningStatus = runningStatus;
+                    tick += readVariableLength();
+                    eventTick = tick;
+
+                    int status = readByte();
+                    if (status < 0xf0) {
+                        int data1;
+                        if (status < 0x80) {
+                            if (runningStatus == 0) {
+                                // broken track
+                                ended = true;
+                                return;
+                            }
+                            data1 = status;
+                            status = runningStatus;
+                        } else {
+                            runningStatus = status;
+                            data1 = readByte();
+                        }
+                        final int data2 = MidiMessageEncoder.getMessageLength(status) == 3 ? readByte() : 0;
+                        eventType = EVENT_MESSAGE;
+                        message = MidiMessageEncoder.pack(status, data1, data2);
+                        return;
+                    }
+
+                    // the running status is kept over the meta and System Exclusive events, for the files which rely on it
+                    if (status == 0xf0 || status == 0xf7) {
+                        final int length = readVariableLength();
+                        if (length > end - position) {
+                            // broken track, the data is not allocated beyond the end of the track
+                            ended = true;
+                            return;
+                        }
+                        if (status == 0xf0) {
+                            data = new byte[length + 1];
+                            data[0] = (byte) 0xf0;
+                            readBytes(data, 1);
+                        } else {
+                            // escaped data, sent as is
+                            data = new byte[length];
+                            readBytes(data, 0);
+                        }
+                        eventType = EVENT_SYSTEM_EXCLUSIVE;
+                        return;
+                    }
+
+                    if (status != 0xff) {
+                        ended = true;
+                        return;
+                    }
+
+                    final int type = readByte();
+                    final int length = readVariableLength();
+                    if (type == 0x2f) {
+                        // End of Track
+                        ended = true;
+                        return;
+                    }
+                    if (type == 0x51 && length >= 3) {
+                        tempo = (readByte() << 16) | (readByte() << 8) | readByte();
+                        position += length - 3;
+                        eventType = EVENT_TEMPO;
+                        return;
+                    }
+                    position += length;
+                }
+            } catch (EOFException e) {
+                // the track without End of Track
+                eventTick = tick;
+                ended = true;
+            }
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final TrackReader[] tracks;
+    private final int division;
+    // the tick length for the SMPTE time division, 0 for the metrical time division
+    private final double smpteNanosPerTick;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    // guarded by lock
+    private MidiOutputScheduler.Target target;
+    private OnPlaybackListener listener;
+    private boolean playing;
+    private boolean closed;
+    private long lookAhead = DEFAULT_LOOK_AHEAD;
+    private float tempoScale = 1f;
+    private int tempo = DEFAULT_TEMPO;
+    private double nanosPerTick;
+    private long anchorTick;
+    private long anchorTime;
+    // the position while stopped, or the tick of the last sent event while playing
+    private long positionTick;
+    // the timestamp of the last sent event, may be ahead of the current time by the look-ahead
+    private long lastEventTime;
+    // the last tick of the file, known after the all tracks have ended
+    private long endTick;
+    private boolean looping;
+    private long loopStartTick;
+    private long loopEndTick;
+
+    // the channel state while seeking, sent on play
+    private final int[] programs = new int[16];
+    private final int[] pitchWheels = new int[16];
+    private final short[] controllers = new short[16 * 120];
+    private boolean chasePending;
+    private final long[] soundingNotes = new long[16 * 2];
+
+    // the state at the loop start, to jump without seeking from the beginning
+    private boolean loopSnapshotValid;
+    private final long[] loopEventStarts;
+    private final long[] loopEventPreviousTicks;
+    private final int[] loopEventRunningStatuses;
+    private int loopTempo;
+    private final int[] loopPrograms = new int[16];
+    private final int[] loopPitchWheels = new int[16];
+    private final short[] loopControllers = new short[16 * 120];
+
+    /**
+     * Opens the file, only the header and the track chunk headers are read
+     *
+     * @param file the Standard MIDI File
+     * @throws IOException if the file can't be read, or isn't a Standard MIDI File
+     */
+    MidiFilePlayer(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = this.file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(14);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != 0x4d546864 || header.getInt(4) < 6) {
+                throw new IOException("Not a Standard MIDI File");
+            }
+            final int trackCount = header.getShort(10) & 0xffff;
+            final int timeDivision = header.getShort(12);
+            if (timeDivision < 0) {
+                // SMPTE: -frames per second, ticks per frame
+                final int framesPerSecond = -(timeDivision >> 8);
+                final int ticksPerFrame = timeDivision & 0xff;
+                division = Math.max(ticksPerFrame, 1) * (framesPerSecond == 29 ? 30 : framesPerSecond);
+                smpteNanosPerTick = (framesPerSecond == 29 ? 1_000_000_000.0 / 29.97 : 1_000_000_000.0 / framesPerSecond) / Math.max(ticksPerFrame, 1);
+            } else {
+                division = Math.max(timeDivision, 1);
+                smpteNanosPerTick = 0;
+            }
+
+            // locate the track chunks
+            TrackReader[] readers = new TrackReader[trackCount];
+            int count = 0;
+            long position = 8 + header.getInt(4);
+            final long size = channel.size();
+            ByteBuffer chunkHeader = ByteBuffer.allocate(8);
+            while (count < trackCount && position + 8 <= size) {
+                chunkHeader.clear();
+                readFully(channel, chunkHeader, position);
+                final long length = chunkHeader.getInt(4) & 0xffffffffL;
+                if (chunkHeader.getInt(0) == 0x4d54726b) {
+                    readers[count++] = new TrackReader(channel, position + 8, Math.min(length, size - position - 8));
+                }
+                // the unknown chunks are skipped
+                position += 8 + length;
+            }
+            tracks = Arrays.copyOf(readers, count);
+            loopEventStarts = new long[count];
+            loopEventPreviousTicks = new long[count];
+            loopEventRunningStatuses = new int[count];
+
+            rewind();
+            updateNanosPerTick();
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * @return the ticks per quarter note, or the ticks per second for the SMPTE time division
+     */
+    int getDivision() {
+        return division;
+    }
+
+    /**
+     * @param listener the listener, null to remove
+     */
+    void setOnPlaybackListener(OnPlaybackListener listener) {
+        lock.lock();
+        try {
+            this.listener = listener;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how long the events are sent before their time
+     *
+     * @param lookAhead the time in nanoseconds, 0 to send at the time
+     */
+    void setLookAhead(long lookAhead) {
+        lock.lock();
+        try {
+            this.lookAhead = Math.max(lookAhead, 0);
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts playing from the current position, restarts from the beginning if at the end
+     *
+     * @param target the destination
+     */
+    void play(MidiOutputScheduler.Target target) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (playing) {
+                if (this.target == target) {
+                    return;
+                }
+                releaseNotes(getResumeTime(System.nanoTime()));
+            }
+            this.target = target;
+
+            if (nextTrack() == null && !(looping && loopEndTick > 0 && positionTick < loopEndTick)) {
+                seekTo(looping ? loopStartTick : 0);
+            }
+
+            playing = true;
+            anchorTick = positionTick;
+            anchorTime = getResumeTime(System.nanoTime() + lookAhead);
+            sendChase(anchorTime);
+            changed.signal();
+        } catch (IOException e) {
+            playing = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops playing, the position is kept
+     */
+    void stop() {
+        lock.lock();
+        try {
+            stopLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops playing, if the destination is the target
+     *
+     * @param target the destination
+     */
+    void stop(MidiOutputScheduler.Target target) {
+        lock.lock();
+        try {
+            if (this.target == target) {
+                stopLocked();
+                this.target = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void stopLocked() {
+        if (!playing) {
+            return;
+        }
+        final long now = System.nanoTime();
+        positionTick = getPositionLocked(now);
+        releaseNotes(getResumeTime(now));
+        playing = false;
+        // continue from the next event
+        chasePending = false;
+        changed.signal();
+    }
+
+    /**
+     * Moves the playing position
+     *
+     * @param tick the position in ticks
+     */
+    void seek(long tick) {
+        lock.lock();
+        try {
+            if (playing) {
+                releaseNotes(getResumeTime(System.nanoTime()));
+            }
+            seekTo(Math.max(tick, 0));
+            if (playing) {
+                anchorTick = positionTick;
+                anchorTime = getResumeTime(System.nanoTime() + lookAhead);
+                sendChase(anchorTime);
+            }
+            changed.signal();
+        } catch (IOException e) {
+            stopLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the tempo scale, applied to the tempo of the file
+     *
+     * @param tempoScale 1.0 for the original tempo, 2.0 for double speed
+     */
+    void setTempoScale(float tempoScale) {
+        if (!(tempoScale > 0)) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (playing) {
+                reanchor(System.nanoTime());
+            }
+            this.tempoScale = tempoScale;
+            updateNanosPerTick();
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the looping
+     *
+     * @param looping true to loop
+     * @param startTick the loop start in ticks
+     * @param endTick the loop end in ticks, 0 or less for the end of the file
+     */
+    void setLoop(boolean looping, long startTick, long endTick) {
+        lock.lock();
+        try {
+            this.looping = looping;
+            loopStartTick = Math.max(startTick, 0);
+            loopEndTick = endTick > loopStartTick ? endTick : 0;
+            loopSnapshotValid = false;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if playing
+     */
+    boolean isPlaying() {
+        lock.lock();
+        try {
+            return playing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current position in ticks
+     */
+    long getPosition() {
+        lock.lock();
+        try {
+            return playing ? getPositionLocked(System.nanoTime()) : positionTick;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the player thread, and closes the file
+     */
+    void close() {
+        lock.lock();
+        try {
+            stopLocked();
+            closed = true;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void run() {
+        OnPlaybackListener finishedListener = null;
+        while (true) {
+            if (finishedListener != null) {
+                finishedListener.onPlaybackFinished();
+                finishedListener = null;
+            }
+
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                if (!playing) {
+                    changed.await();
+                    continue;
+                }
+
+                final long now = System.nanoTime();
+                final TrackReader next = nextTrack();
+                final boolean atLoopEnd = looping && loopEndTick > 0 && (next == null || next.eventTick >= loopEndTick);
+                if (next == null || atLoopEnd) {
+                    final long boundaryTick = atLoopEnd ? loopEndTick : endTick;
+                    final long boundaryTime = timeOf(boundaryTick);
+                    final long wait = boundaryTime - lookAhead - now;
+                    if (wait > 0) {
+                        changed.awaitNanos(wait);
+                        continue;
+                    }
+
+                    releaseNotes(boundaryTime);
+                    if (looping) {
+                        seekTo(loopStartTick);
+                        anchorTick = positionTick;
+                        anchorTime = boundaryTime;
+                        sendChase(anchorTime);
+                    } else {
+                        positionTick = boundaryTick;
+                        playing = false;
+                        finishedListener = listener;
+                    }
+                    continue;
+                }
+
+                final long time = timeOf(next.eventTick);
+                final long wait = time - lookAhead - now;
+                if (wait > 0) {
+                    changed.awaitNanos(wait);
+                    continue;
+                }
+
+                emit(next, time);
+                next.next();
+                if (next.ended) {
+                    endTick = Math.max(endTick, next.eventTick);
+                }
+            } catch (InterruptedException ignored) {
+                // continue
+            } catch (IOException e) {
+                stopLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private TrackReader nextTrack() {
+        TrackReader next = null;
+        for (TrackReader track : tracks) {
+            if (!track.ended && (next == null || track.eventTick < next.eventTick)) {
+                next = track;
+            }
+        }
+        return next;
+    }
+
+    private void updateNanosPerTick() {
+        final double tickLength = smpteNanosPerTick > 0 ? smpteNanosPerTick : tempo * 1000.0 / division;
+        nanosPerTick = tickLength / tempoScale;
+    }
+
+    private long timeOf(long tick) {
+        return anchorTime + (long) ((tick - anchorTick) * nanosPerTick);
+    }
+
+    private long getPositionLocked(long now) {
+        final long tick = anchorTick + (long) ((now - anchorTime) / nanosPerTick);
+        final TrackReader next = nextTrack();
+        // not beyond the next event, nor back before the anchor while the look-ahead
+        return Math.max(Math.min(tick, next != null ? next.eventTick : endTick), anchorTick);
+    }
+
+    /**
+     * Obtains the time to send the events after a discontinuity, not before the events already sent
+     */
+    private long getResumeTime(long time) {
+        return playing && lastEventTime - time > 0 ? lastEventTime : time;
+    }
+
+    /**
+     * Moves the anchor to the current position, to change the tick length
+     */
+    private void reanchor(long now) {
+        if (lastEventTime - now > 0) {
+            // the events until the last sent event keep their time
+            anchorTime = lastEventTime;
+            anchorTick = positionTick;
+            return;
+        }
+        final long tick = Math.max(anchorTick + (long) ((now - anchorTime) / nanosPerTick), anchorTick);
+        anchorTime = timeOf(tick);
+        anchorTick = tick;
+    }
+
+    private void emit(TrackReader track, long time) {
+        positionTick = track.eventTick;
+        lastEventTime = time;
+        switch (track.eventType) {
+            case EVENT_TEMPO:
+                anchorTime = time;
+                anchorTick = track.eventTick;
+                tempo = track.tempo;
+                updateNanosPerTick();
+                break;
+            case EVENT_SYSTEM_EXCLUSIVE:
+                if (target != null && track.data.length > 0) {
+                    try {
+                        target.sendScheduled(track.data, time);
+                    } catch (IOException ignored) {
+                        // the port may be closed, the playback continues
+                    }
+                }
+                break;
+            default:
+                final int message = track.message;
+                final int status = message & 0xff;
+                final int type = status & 0xf0;
+                final int note = (message >> 8) & 0x7f;
+                final int index = ((status & 0xf) << 1) | (note >> 6);
+                if (type == 0x90 && ((message >> 16) & 0x7f) != 0) {
+                    soundingNotes[index] |= 1L << (note & 0x3f);
+                } else if (type == 0x80 || type == 0x90) {
+                    soundingNotes[index] &= ~(1L << (note & 0x3f));
+                }
+                if (target != null) {
+                    try {
+                        target.sendScheduled(message, time);
+                    } catch (IOException ignored) {
+                        // the port may be closed, the playback continues
+                    }
+                }
+                break;
+        }
+    }
+
+    private void releaseNotes(long time) {
+        for (int index = 0; index < soundingNotes.length; index++) {
+            long notes = soundingNotes[index];
+            while (notes != 0) {
+                final int bit = Long.numberOfTrailingZeros(notes);
+                notes &= notes - 1;
+                if (target != null) {
+                    try {
+                        target.sendScheduled(MidiMessageEncoder.pack(0x80 | (index >> 1), ((index & 1) << 6) | bit, 0), time);
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+            soundingNotes[index] = 0;
+        }
+    }
+
+    private void rewind() throws IOException {
+        for (TrackReader track : tracks) {
+            track.rewind();
+        }
+        endTick = 0;
+        for (TrackReader track : tracks) {
+            if (track.ended) {
+                endTick = Math.max(endTick, track.eventTick);
+            }
+        }
+        tempo = DEFAULT_TEMPO;
+        Arrays.fill(programs, -1);
+        Arrays.fill(pitchWheels, -1);
+        Arrays.fill(controllers, (short) -1);
+        positionTick = 0;
+    }
+
+    /**
+     * Moves the tracks to the first events at or after the tick, the channel state on the way is kept to be sent
+     */
+    private void seekTo(long tick) throws IOException {
+        if (looping && tick == loopStartTick && loopSnapshotValid) {
+            for (int i = 0; i < tracks.length; i++) {
+                tracks[i].restore(loopEventStarts[i], loopEventPreviousTicks[i], loopEventRunningStatuses[i]);
+            }
+            tempo = loopTempo;
+            System.arraycopy(loopPrograms, 0, programs, 0, programs.length);
+            System.arraycopy(loopPitchWheels, 0, pitchWheels, 0, pitchWheels.length);
+            System.arraycopy(loopControllers, 0, controllers, 0, controllers.length);
+        } else {
+            rewind();
+            TrackReader next;
+            while ((next = nextTrack()) != null && next.eventTick < tick) {
+                switch (next.eventType) {
+                    case EVENT_TEMPO:
+                        tempo = next.tempo;
+                        break;
+                    case EVENT_MESSAGE:
+                        keepChannelState(next.message);
+                        break;
+                    default:
+                        break;
+                }
+                next.next();
+                if (next.ended) {
+                    endTick = Math.max(endTick, next.eventTick);
+                }
+            }
+
+            if (looping && tick == loopStartTick) {
+                for (int i = 0; i < tracks.length; i++) {
+                    loopEventStarts[i] = tracks[i].eventStart;
+                    loopEventPreviousTicks[i] = tracks[i].eventPreviousTick;
+                    loopEventRunningStatuses[i] = tracks[i].eventRunningStatus;
+                }
+                loopTempo = tempo;
+                System.arraycopy(programs, 0, loopPrograms, 0, programs.length);
+                System.arraycopy(pitchWheels, 0, loopPitchWheels, 0, pitchWheels.length);
+                System.arraycopy(controllers, 0, loopControllers, 0, controllers.length);
+                loopSnapshotValid = true;
+            }
+        }
+
+        updateNanosPerTick();
+        positionTick = tick;
+        chasePending = true;
+    }
+
+    private void keepChannelState(int message) {
+        final int status = message & 0xff;
+        final int channel = status & 0xf;
+        final int data1 = (message >> 8) & 0x7f;
+        final int data2 = (message >> 16) & 0x7f;
+        switch (status & 0xf0) {
+            case 0xb0:
+                // the Channel Mode messages are not kept
+                if (data1 < 120) {
+                    controllers[channel * 120 + data1] = (short) data2;
+                }
+                break;
+            case 0xc0:
+                programs[channel] = data1;
+                break;
+            case 0xe0:
+                pitchWheels[channel] = data1 | (data2 << 7);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void sendChase(long time) {
+        if (!chasePending) {
+            return;
+        }
+        chasePending = false;
+        if (target == null) {
+            return;
+        }
+
+        try {
+            for (int channel = 0; channel < 16; channel++) {
+                // the Bank Select takes effect on the following Program Change
+                sendChaseController(channel, 0, time);
+                sendChaseController(channel, 32, time);
+                if (programs[channel] >= 0) {
+                    target.sendScheduled(MidiMessageEncoder.pack(0xc0 | channel, programs[channel], 0), time);
+                }
+                for (int controller = 0; controller < 120; controller++) {
+                    if (controller != 0 && controller != 32) {
+                        sendChaseController(channel, controller, time);
+                    }
+                }
+                if (pitchWheels[channel] >= 0) {
+                    target.sendScheduled(MidiMessageEncoder.pack(0xe0 | channel, pitchWheels[channel] & 0x7f, pitchWheels[channel] >> 7), time);
+                }
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void sendChaseController(int channel, int controller, long time) throws IOException {
+        final int value = controllers[channel * 120 + controller];
+        if (value >= 0) {
+            target.sendScheduled(MidiMessageEncoder.pack(0xb0 | channel, controller, value), time);
+        }
+    }
+}
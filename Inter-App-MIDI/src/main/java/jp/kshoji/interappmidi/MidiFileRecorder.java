@@ -0,0 +1,418 @@
+package jp.kshoji.interappmidi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the received MIDI events to a Standard MIDI File, from a background writer thread<br />
+ * The receiving threads write the events to the lock-free queues of the {@link Source}s, and never do I/O.
+ * The writer thread drains the queues periodically, merges them by timestamp, and writes the tracks incrementally to the temporary files,
+ * so the memory use is bounded regardless of the recording length. The tracks are joined to the file when stopped.<br />
+ * The time base is 960 ticks per quarter note at 120 BPM, computed from the event timestamps.
+ * Channel messages and System Exclusive are recorded, System Common and System Realtime are not.<br />
+ * This class depends only on the Java runtime, not on android.*.
+ */
+final class MidiFileRecorder implements Runnable {
+    private static final int DIVISION = 960;
+    private static final int TEMPO = 500_000;
+    private static final long NANOS_PER_QUARTER_NOTE = TimeUnit.MICROSECONDS.toNanos(TEMPO);
+    private static final long WRITE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int TRACK_BUFFER_SIZE = 16 * 1024;
+    private static final int EVENT_QUEUE_CAPACITY = 8192;
+    private static final int SYSTEM_EXCLUSIVE_QUEUE_CAPACITY = 64 * 1024;
+
+    /**
+     * Event queues of a receiving port
+     */
+    static final class Source {
+        final MidiEventRingBuffer events = new MidiEventRingBuffer(EVENT_QUEUE_CAPACITY);
+        final SystemExclusiveRingBuffer systemExclusives = new SystemExclusiveRingBuffer(SYSTEM_EXCLUSIVE_QUEUE_CAPACITY);
+        private final Track track;
+        // used by the writer thread only
+        private final ByteBuffer eventStaging = ByteBuffer.allocateDirect(EVENT_QUEUE_CAPACITY * MidiEventRingBuffer.EVENT_SIZE).order(ByteOrder.nativeOrder());
+        private final ByteBuffer systemExclusiveStaging = ByteBuffer.allocateDirect(SYSTEM_EXCLUSIVE_QUEUE_CAPACITY).order(ByteOrder.nativeOrder());
+        private final ByteBuffer systemExclusiveData = systemExclusiveStaging.duplicate();
+
+        private Source(Track track) {
+            this.track = track;
+        }
+
+        /**
+         * @return the timestamp of the next staged record, Long.MAX_VALUE if none
+         */
+        private long nextEventTimestamp() {
+            return eventStaging.hasRemaining() ? eventStaging.getLong(eventStaging.position() + 8) : Long.MAX_VALUE;
+        }
+
+        private long nextSystemExclusiveTimestamp() {
+            return systemExclusiveStaging.hasRemaining() ? systemExclusiveStaging.getLong(systemExclusiveStaging.position() + 16) : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * A track written to the temporary file, used by the writer thread only after created
+     */
+    private static final class Track {
+        private final File file;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(TRACK_BUFFER_SIZE);
+        private long length;
+        private long lastTick;
+        private int runningStatus;
+
+        private Track(File file) throws IOException {
+            this.file = file;
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            channel.truncate(0);
+        }
+
+        private void ensureRemaining(int size) throws IOException {
+            if (buffer.remaining() < size) {
+                flush();
+            }
+        }
+
+        private void put(byte value) throws IOException {
+            ensureRemaining(1);
+            buffer.put(value);
+        }
+
+        private void putVariableLength(long value) throws IOException {
+            ensureRemaining(5);
+            int shift = 28;
+            while (shift > 0 && (value >> shift) == 0) {
+                shift -= 7;
+            }
+            for (; shift > 0; shift -= 7) {
+                buffer.put((byte) (((value >> shift) & 0x7f) | 0x80));
+            }
+            buffer.put((byte) (value & 0x7f));
+        }
+
+        private void put(ByteBuffer source) throws IOException {
+            if (source.remaining() > buffer.remaining()) {
+                flush();
+            }
+            if (source.remaining() > buffer.remaining()) {
+                // larger than the buffer: write directly
+                length += source.remaining();
+                while (source.hasRemaining()) {
+                    channel.write(source);
+                }
+                return;
+            }
+            buffer.put(source);
+        }
+
+        private void putDeltaTime(long tick) throws IOException {
+            final long delta = Math.max(tick - lastTick, 0);
+            lastTick = Math.max(tick, lastTick);
+            putVariableLength(delta);
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            length += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    private final File file;
+    private final int format;
+    private final long startTime;
+    private final Object sourcesLock = new Object();
+    private volatile Source[] sources = new Source[0];
+    private Track[] tracks = new Track[0];
+
+    private volatile boolean running = true;
+    private volatile IOException error;
+    private Thread thread;
+
+    /**
+     * Constructor
+     *
+     * @param file the file to write
+     * @param format 0: all ports in a track, 1: a track for each port
+     * @param startTime the timestamp of the tick 0, in {@link System#nanoTime()} base
+     */
+    MidiFileRecorder(File file, int format, long startTime) {
+        this.file = file;
+        this.format = format == 0 ? 0 : 1;
+        this.startTime = startTime;
+    }
+
+    /**
+     * Starts the writer thread
+     */
+    void start() {
+        thread = new Thread(this, "MidiFileRecorder");
+        thread.start();
+    }
+
+    /**
+     * Adds a receiving port, may be called while recording
+     *
+     * @param name the name of the track, used in the format 1
+     * @return the source, the receiving thread should offer the events to the queues
+     * @throws IOException if the temporary file can't be created
+     */
+    Source addSource(String name) throws IOException {
+        synchronized (sourcesLock) {
+            Track track;
+            if (format == 0 && tracks.length > 0) {
+                track = tracks[0];
+            } else {
+                track = new Track(new File(file.getPath() + ".track" + tracks.length));
+                if (tracks.length == 0) {
+                    writeTempo(track);
+                }
+                if (format == 1 && name != null) {
+                    writeTrackName(track, name);
+                }
+                Track[] newTracks = new Track[tracks.length + 1];
+                System.arraycopy(tracks, 0, newTracks, 0, tracks.length);
+                newTracks[tracks.length] = track;
+                tracks = newTracks;
+            }
+
+            Source source = new Source(track);
+            Source[] newSources = new Source[sources.length + 1];
+            System.arraycopy(sources, 0, newSources, 0, sources.length);
+            newSources[sources.length] = source;
+            sources = newSources;
+            return source;
+        }
+    }
+
+    /**
+     * @return the number of the events dropped because the queues were full
+     */
+    long getDroppedEventCount() {
+        long count = 0;
+        for (Source source : sources) {
+            count += source.events.getDroppedEventCount() + source.systemExclusives.getDroppedRecordCount();
+        }
+        return count;
+    }
+
+    /**
+     * Stops the recording, writes the rest of the events and completes the file
+     *
+     * @throws IOException if failed to write
+     */
+    void stop() throws IOException {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (tracks.length == 0 && error == null) {
+            // no ports: an empty track
+            addSource(null);
+        }
+
+        synchronized (sourcesLock) {
+            try {
+                if (error == null) {
+                    writeFile();
+                }
+            } finally {
+                for (Track track : tracks) {
+                    try {
+                        track.channel.close();
+                    } catch (IOException ignored) {
+                    }
+                    //noinspection ResultOfMethodCallIgnored
+                    track.file.delete();
+                }
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                LockSupport.parkNanos(WRITE_INTERVAL);
+                drain();
+            }
+            drain();
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    private void drain() throws IOException {
+        synchronized (sourcesLock) {
+            final Source[] currentSources = sources;
+            for (Source source : currentSources) {
+                source.eventStaging.clear();
+                source.events.drainTo(source.eventStaging);
+                source.eventStaging.flip();
+                source.systemExclusiveStaging.clear();
+                source.systemExclusives.drainTo(source.systemExclusiveStaging);
+                source.systemExclusiveStaging.flip();
+            }
+
+            // merge the staged records by timestamp
+            while (true) {
+                Source next = null;
+                boolean nextIsSystemExclusive = false;
+                long nextTimestamp = Long.MAX_VALUE;
+                for (Source source : currentSources) {
+                    final long eventTimestamp = source.nextEventTimestamp();
+                    if (eventTimestamp != Long.MAX_VALUE && (next == null || eventTimestamp - nextTimestamp < 0)) {
+                        next = source;
+                        nextIsSystemExclusive = false;
+                        nextTimestamp = eventTimestamp;
+                    }
+                    final long systemExclusiveTimestamp = source.nextSystemExclusiveTimestamp();
+                    if (systemExclusiveTimestamp != Long.MAX_VALUE && (next == null || systemExclusiveTimestamp - nextTimestamp < 0)) {
+                        next = source;
+                        nextIsSystemExclusive = true;
+                        nextTimestamp = systemExclusiveTimestamp;
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+
+                if (nextIsSystemExclusive) {
+                    writeSystemExclusive(next.track, next.systemExclusiveStaging, next.systemExclusiveData);
+                } else {
+                    writeEvent(next.track, next.eventStaging);
+                }
+            }
+
+            for (Track track : tracks) {
+                track.flush();
+            }
+        }
+    }
+
+    private long toTick(long timestamp) {
+        return Math.max(timestamp - startTime, 0) * DIVISION / NANOS_PER_QUARTER_NOTE;
+    }
+
+    private void writeEvent(Track track, ByteBuffer staging) throws IOException {
+        final int position = staging.position();
+        final int status = staging.get(position + 4) & 0xff;
+        final int data1 = staging.get(position + 5);
+        final int data2 = staging.get(position + 6);
+        final long timestamp = staging.getLong(position + 8);
+        staging.position(position + MidiEventRingBuffer.EVENT_SIZE);
+
+        final int length = MidiMessageEncoder.getMessageLength(status);
+        if (status >= 0xf0 || length == 0) {
+            return;
+        }
+
+        track.putDeltaTime(toTick(timestamp));
+        if (status != track.runningStatus) {
+            track.put((byte) status);
+            track.runningStatus = status;
+        }
+        track.put((byte) data1);
+        if (length == 3) {
+            track.put((byte) data2);
+        }
+    }
+
+    private void writeSystemExclusive(Track track, ByteBuffer staging, ByteBuffer systemExclusiveData) throws IOException {
+        final int position = staging.position();
+        final int length = staging.getInt(position + 4);
+        final long timestamp = staging.getLong(position + 16);
+        staging.position(position + SystemExclusiveRingBuffer.getRecordSize(length));
+        if (length == 0) {
+            // the interrupted message
+            return;
+        }
+
+        final int dataPosition = position + SystemExclusiveRingBuffer.HEADER_SIZE;
+        systemExclusiveData.limit(dataPosition + length).position(dataPosition);
+
+        track.putDeltaTime(toTick(timestamp));
+        if ((staging.get(dataPosition) & 0xff) == 0xf0) {
+            // F0 <length> <data after F0>
+            track.put((byte) 0xf0);
+            track.putVariableLength(length - 1);
+            systemExclusiveData.position(dataPosition + 1);
+        } else {
+            // continuation: F7 <length> <data>
+            track.put((byte) 0xf7);
+            track.putVariableLength(length);
+        }
+        track.put(systemExclusiveData);
+        track.runningStatus = 0;
+    }
+
+    private static void writeTempo(Track track) throws IOException {
+        track.putVariableLength(0);
+        track.put(ByteBuffer.wrap(new byte[]{(byte) 0xff, 0x51, 0x03, (byte) (TEMPO >> 16), (byte) (TEMPO >> 8), (byte) TEMPO}));
+    }
+
+    private static void writeTrackName(Track track, String name) throws IOException {
+        byte[] bytes = name.getBytes(Charset.forName("UTF-8"));
+        track.putVariableLength(0);
+        track.put((byte) 0xff);
+        track.put((byte) 0x03);
+        track.putVariableLength(bytes.length);
+        track.put(ByteBuffer.wrap(bytes));
+    }
+
+    private void writeFile() throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(14).order(ByteOrder.BIG_ENDIAN);
+            header.put(new byte[]{'M', 'T', 'h', 'd'}).putInt(6).putShort((short) format).putShort((short) tracks.length).putShort((short) DIVISION);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            for (Track track : tracks) {
+                // End of Track
+                track.putVariableLength(0);
+                track.put(ByteBuffer.wrap(new byte[]{(byte) 0xff, 0x2f, 0x00}));
+                track.flush();
+
+                ByteBuffer trackHeader = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+                trackHeader.put(new byte[]{'M', 'T', 'r', 'k'}).putInt((int) track.length);
+                trackHeader.flip();
+                while (trackHeader.hasRemaining()) {
+                    channel.write(trackHeader);
+                }
+
+                long position = 0;
+                while (position < track.length) {
+                    position += track.channel.transferTo(position, track.length - position, channel);
+                }
+            }
+        }
+    }
+}
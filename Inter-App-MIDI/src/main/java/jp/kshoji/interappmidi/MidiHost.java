@@ -0,0 +1,71 @@
+package jp.kshoji.interappmidi;
+
+/**
+ * The platform services used by {@link InterAppMidiManager}: the handler threads, the API level, the thread priority and UnitySendMessage<br />
+ * {@link AndroidMidiHost} is backed by android.os and Unity, and JvmMidiHost of the test fixtures runs the manager on the JVM with LoopbackMidiTransport.<br />
+ * This interface depends only on the Java runtime, not on android.*.
+ */
+interface MidiHost {
+    /**
+     * The thread processing the posted tasks in order, like android.os.Handler with its Looper
+     */
+    interface EventLoop {
+        void post(Runnable task);
+
+        /**
+         * @param task the task
+         * @param delayMillis the delay, in milliseconds
+         */
+        void postDelayed(Runnable task, long delayMillis);
+
+        /**
+         * Removes the pending posts of the task
+         */
+        void removeCallbacks(Runnable task);
+
+        /**
+         * @return true if called on the thread of this loop
+         */
+        boolean isCurrentThread();
+
+        /**
+         * Quits after processing the tasks already due, the delayed tasks are discarded
+         */
+        void quitSafely();
+    }
+
+    /**
+     * @return the API level of the platform, compared with the Build.VERSION_CODES values
+     */
+    int getSdkVersion();
+
+    /**
+     * @return the loop of the main thread, never quit
+     */
+    EventLoop getMainEventLoop();
+
+    /**
+     * Starts a dedicated loop thread
+     *
+     * @param name the thread name
+     * @param priority the thread priority, one of the android.os.Process.THREAD_PRIORITY_* values
+     * @return the started loop
+     */
+    EventLoop startEventLoop(String name, int priority);
+
+    /**
+     * Sets the priority of the calling thread
+     *
+     * @param priority one of the android.os.Process.THREAD_PRIORITY_* values
+     */
+    void setThreadPriority(int priority);
+
+    /**
+     * Sends the message to the GameObject, with UnitySendMessage
+     *
+     * @param gameObjectName the name of the GameObject
+     * @param method the method name
+     * @param message the message
+     */
+    void sendMessage(String gameObjectName, String method, String message);
+}
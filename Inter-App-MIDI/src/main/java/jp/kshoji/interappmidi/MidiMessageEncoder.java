@@ -0,0 +1,192 @@
+package jp.kshoji.interappmidi;
+
+import java.io.IOException;
+
+/**
+ * Encodes the packed MIDI messages to the byte stream, with the running status<br />
+ * Each packed message is an int: {@code status | (data1 << 8) | (data2 << 16)}.<br />
+ * The messages are written to the reusable buffer, and sent when the buffer becomes full, so no objects are allocated.<br />
+ * The running status is restarted at the beginning of each packet.<br />
+ * This class is not thread-safe, and depends only on the Java runtime, not on android.*.
+ */
+final class MidiMessageEncoder {
+    /**
+     * Sends the encoded packet
+     */
+    interface PacketSender {
+        /**
+         * @param data the buffer of the encoder, the contents are valid only while this call
+         * @param offset the offset of the packet
+         * @param count the length of the packet
+         * @param timestamp the timestamp passed to the encoder
+         */
+        void send(byte[] data, int offset, int count, long timestamp) throws IOException;
+    }
+
+    private final byte[] buffer;
+    private int length;
+    private int runningStatus;
+    // the messages in the buffer, and the messages in the sent packets
+    private int packetMessageCount;
+    private int sentMessageCount;
+
+    /**
+     * Constructor
+     *
+     * @param maxPacketSize the maximum size of a packet, at least 3
+     */
+    MidiMessageEncoder(int maxPacketSize) {
+        buffer = new byte[Math.max(maxPacketSize, 3)];
+    }
+
+    /**
+     * Packs a MIDI message to an int
+     */
+    static int pack(int status, int data1, int data2) {
+        return (status & 0xff) | ((data1 & 0x7f) << 8) | ((data2 & 0x7f) << 16);
+    }
+
+    /**
+     * Obtains the length of the packed message
+     *
+     * @param status the status byte
+     * @return 1 - 3, or 0 if the status can't be packed (System Exclusive, undefined, or data byte)
+     */
+    static int getMessageLength(int status) {
+        switch (status & 0xf0) {
+            case 0x80:
+            case 0x90:
+            case 0xa0:
+            case 0xb0:
+            case 0xe0:
+                return 3;
+            case 0xc0:
+            case 0xd0:
+                return 2;
+            case 0xf0:
+                switch (status) {
+                    case 0xf1: // Time Code Quarter Frame
+                    case 0xf3: // Song Select
+                        return 2;
+                    case 0xf2: // Song Position Pointer
+                        return 3;
+                    case 0xf6: // Tune Request
+                    case 0xf8: // Timing Clock
+                    case 0xfa: // Start
+                    case 0xfb: // Continue
+                    case 0xfc: // Stop
+                    case 0xfe: // Active Sensing
+                    case 0xff: // Reset
+                        return 1;
+                    default:
+                        return 0;
+                }
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Encodes and sends the packed messages, with as few packets as possible
+     *
+     * @param messages the packed messages
+     * @param offset the offset of the messages
+     * @param count the number of the messages
+     * @param timestamp the timestamp of the packets
+     * @param sender the packet sender
+     * @return the number of the encoded messages, the invalid messages are skipped
+     * @throws IOException thrown by the sender, the rest of the messages are discarded, see {@link #getSentMessageCount()}
+     */
+    int encode(int[] messages, int offset, int count, long timestamp, PacketSender sender) throws IOException {
+        length = 0;
+        runningStatus = 0;
+        sentMessageCount = 0;
+        try {
+            for (int i = offset; i < offset + count; i++) {
+                append(messages[i], timestamp, sender);
+            }
+            if (length > 0) {
+                sender.send(buffer, 0, length, timestamp);
+                sentMessageCount += packetMessageCount;
+            }
+        } finally {
+            length = 0;
+            runningStatus = 0;
+            packetMessageCount = 0;
+        }
+        return sentMessageCount;
+    }
+
+    /**
+     * Obtains the number of the messages sent by the last {@link #encode(int[], int, int, long, PacketSender)}<br />
+     * If the sender has thrown, the messages in the packets sent before the failure are counted.
+     *
+     * @return the number of the sent messages
+     */
+    int getSentMessageCount() {
+        return sentMessageCount;
+    }
+
+    /**
+     * Encodes and sends a message
+     *
+     * @param message the packed message
+     * @param timestamp the timestamp of the packet
+     * @param sender the packet sender
+     * @return false if the message is invalid
+     */
+    boolean encode(int message, long timestamp, PacketSender sender) throws IOException {
+        length = 0;
+        runningStatus = 0;
+        try {
+            if (!append(message, timestamp, sender)) {
+                return false;
+            }
+            sender.send(buffer, 0, length, timestamp);
+            return true;
+        } finally {
+            length = 0;
+            runningStatus = 0;
+            packetMessageCount = 0;
+        }
+    }
+
+    private boolean append(int message, long timestamp, PacketSender sender) throws IOException {
+        final int status = message & 0xff;
+        final int messageLength = getMessageLength(status);
+        if (messageLength == 0) {
+            return false;
+        }
+
+        if (buffer.length - length < messageLength) {
+            sender.send(buffer, 0, length, timestamp);
+            sentMessageCount += packetMessageCount;
+            packetMessageCount = 0;
+            length = 0;
+            runningStatus = 0;
+        }
+
+        if (status < 0xf0) {
+            // Channel message: the status can be omitted
+            if (status != runningStatus) {
+                buffer[length++] = (byte) status;
+                runningStatus = status;
+            }
+        } else {
+            buffer[length++] = (byte) status;
+            if (status < 0xf8) {
+                // System Common cancels the running status, System Realtime doesn't
+                runningStatus = 0;
+            }
+        }
+
+        if (messageLength >= 2) {
+            buffer[length++] = (byte) ((message >> 8) & 0x7f);
+        }
+        if (messageLength == 3) {
+            buffer[length++] = (byte) ((message >> 16) & 0x7f);
+        }
+        packetMessageCount++;
+        return true;
+    }
+}
@@ -0,0 +1,72 @@
+package jp.kshoji.interappmidi;
+
+/**
+ * Message type bits of the filters<br />
+ * A type mask is a combination of the constants of this class, and a channel mask has the bit {@code 1 << channel} for each channel.
+ */
+public final class MidiMessageFilter {
+    public static final int NOTE_OFF = 1;
+    public static final int NOTE_ON = 1 << 1;
+    public static final int POLYPHONIC_AFTERTOUCH = 1 << 2;
+    public static final int CONTROL_CHANGE = 1 << 3;
+    public static final int PROGRAM_CHANGE = 1 << 4;
+    public static final int CHANNEL_AFTERTOUCH = 1 << 5;
+    public static final int PITCH_WHEEL = 1 << 6;
+    public static final int SYSTEM_EXCLUSIVE = 1 << 8;
+    public static final int TIME_CODE_QUARTER_FRAME = 1 << 9;
+    public static final int SONG_POSITION_POINTER = 1 << 10;
+    public static final int SONG_SELECT = 1 << 11;
+    public static final int TUNE_REQUEST = 1 << 14;
+    public static final int TIMING_CLOCK = 1 << 16;
+    public static final int START = 1 << 18;
+    public static final int CONTINUE = 1 << 19;
+    public static final int STOP = 1 << 20;
+    public static final int ACTIVE_SENSING = 1 << 22;
+    public static final int RESET = 1 << 23;
+
+    /**
+     * All channel messages
+     */
+    public static final int CHANNEL_MESSAGES = NOTE_OFF | NOTE_ON | POLYPHONIC_AFTERTOUCH | CONTROL_CHANGE | PROGRAM_CHANGE | CHANNEL_AFTERTOUCH | PITCH_WHEEL;
+    /**
+     * All System Common messages, except System Exclusive
+     */
+    public static final int SYSTEM_COMMON_MESSAGES = TIME_CODE_QUARTER_FRAME | SONG_POSITION_POINTER | SONG_SELECT | TUNE_REQUEST;
+    /**
+     * All System Realtime messages
+     */
+    public static final int SYSTEM_REALTIME_MESSAGES = TIMING_CLOCK | START | CONTINUE | STOP | ACTIVE_SENSING | RESET;
+    public static final int ALL_TYPES = -1;
+    public static final int ALL_CHANNELS = 0xffff;
+
+    private MidiMessageFilter() {
+    }
+
+    /**
+     * Obtains the type bit of the message
+     *
+     * @param status the status byte, 0x80-0xff
+     * @return one of the type constants
+     */
+    static int typeOf(int status) {
+        if (status < 0xf0) {
+            return 1 << ((status >> 4) - 8);
+        }
+        return 1 << (status - 0xf0 + 8);
+    }
+
+    /**
+     * Checks if the message passes the masks
+     *
+     * @param status the status byte, 0x80-0xff
+     * @param typeMask the type mask
+     * @param channelMask the channel mask, applied to the channel messages only
+     * @return true if the message passes
+     */
+    static boolean accepts(int status, int typeMask, int channelMask) {
+        if ((typeMask & typeOf(status)) == 0) {
+            return false;
+        }
+        return status >= 0xf0 || (channelMask & (1 << (status & 0xf))) != 0;
+    }
+}
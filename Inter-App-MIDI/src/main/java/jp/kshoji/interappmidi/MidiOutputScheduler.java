@@ -0,0 +1,369 @@
+package jp.kshoji.interappmidi;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends the MIDI messages at the scheduled time, from a dedicated thread<br />
+ * The events are kept in a binary min-heap of the primitive arrays, keyed on {@link System#nanoTime()}.
+ * The events with the same timestamp are sent in the scheduled order.<br />
+ * The thread sleeps until shortly before the next event, then spins to the exact time.<br />
+ * This class depends only on the Java runtime, not on android.*; the caller should run {@link #run()} on an elevated priority thread.
+ */
+final class MidiOutputScheduler implements Runnable {
+    /**
+     * Destination of the scheduled events
+     */
+    interface Target {
+        /**
+         * @param message the packed message, see {@link MidiMessageEncoder}
+         * @param timestamp the scheduled time
+         */
+        void sendScheduled(int message, long timestamp) throws IOException;
+
+        /**
+         * @param data the System Exclusive data
+         * @param timestamp the scheduled time
+         */
+        void sendScheduled(byte[] data, long timestamp) throws IOException;
+    }
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    // heap
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private long[] sequences = new long[INITIAL_CAPACITY];
+    private int[] messages = new int[INITIAL_CAPACITY];
+    private byte[][] systemExclusives = new byte[INITIAL_CAPACITY][];
+    private Target[] targets = new Target[INITIAL_CAPACITY];
+    private int size;
+    private long nextSequence;
+
+    // due events, used by the scheduler thread only
+    private long[] dueTimestamps = new long[INITIAL_CAPACITY];
+    private int[] dueMessages = new int[INITIAL_CAPACITY];
+    private byte[][] dueSystemExclusives = new byte[INITIAL_CAPACITY][];
+    private Target[] dueTargets = new Target[INITIAL_CAPACITY];
+
+    private volatile boolean running = true;
+
+    /**
+     * Schedules a packed message
+     *
+     * @param target the destination
+     * @param message the packed message, see {@link MidiMessageEncoder}
+     * @param timestamp the time to send, in {@link System#nanoTime()} base
+     */
+    void schedule(Target target, int message, long timestamp) {
+        lock.lock();
+        try {
+            push(target, message, null, timestamp);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Schedules the packed messages
+     *
+     * @param target the destination
+     * @param messages the packed messages, see {@link MidiMessageEncoder}
+     * @param timestamps the times to send, in {@link System#nanoTime()} base
+     * @param offset the offset of the messages and the timestamps
+     * @param count the number of the messages
+     */
+    void schedule(Target target, int[] messages, long[] timestamps, int offset, int count) {
+        lock.lock();
+        try {
+            for (int i = offset; i < offset + count; i++) {
+                push(target, messages[i], null, timestamps[i]);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Schedules a System Exclusive
+     *
+     * @param target the destination
+     * @param data the data, must not be modified until sent
+     * @param timestamp the time to send, in {@link System#nanoTime()} base
+     */
+    void schedule(Target target, byte[] data, long timestamp) {
+        lock.lock();
+        try {
+            push(target, 0, data, timestamp);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the scheduled events for the target
+     *
+     * @param target the destination, or null to remove all events
+     */
+    void cancel(Target target) {
+        lock.lock();
+        try {
+            if (target == null) {
+                for (int i = 0; i < size; i++) {
+                    systemExclusives[i] = null;
+                    targets[i] = null;
+                }
+                size = 0;
+            } else {
+                int newSize = 0;
+                for (int i = 0; i < size; i++) {
+                    if (targets[i] != target) {
+                        move(i, newSize++);
+                    }
+                }
+                for (int i = newSize; i < size; i++) {
+                    systemExclusives[i] = null;
+                    targets[i] = null;
+                }
+                size = newSize;
+                // rebuild the heap
+                for (int i = (size >> 1) - 1; i >= 0; i--) {
+                    siftDown(i);
+                }
+            }
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of the events waiting to be sent
+     */
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the scheduler thread, the events not sent yet are discarded
+     */
+    void stop() {
+        lock.lock();
+        try {
+            // written with the lock, so the thread checking it before waiting can't miss the signal
+            running = false;
+            cancel(null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            int dueCount = 0;
+            lock.lock();
+            try {
+                if (!running) {
+                    return;
+                }
+                if (size == 0) {
+                    changed.await();
+                    continue;
+                }
+
+                final long remaining = timestamps[0] - System.nanoTime();
+                if (remaining > SPIN_NANOS) {
+                    changed.awaitNanos(remaining - SPIN_NANOS);
+                    continue;
+                }
+
+                if (remaining > 0) {
+                    // spin to the exact time, without holding the lock
+                    lock.unlock();
+                    try {
+                        final long deadline = System.nanoTime() + remaining;
+                        while (System.nanoTime() < deadline) {
+                            Thread.yield();
+                        }
+                    } finally {
+                        lock.lock();
+                    }
+                }
+
+                final long now = System.nanoTime();
+                while (size > 0 && timestamps[0] - now <= 0) {
+                    ensureDueCapacity(dueCount + 1);
+                    dueTimestamps[dueCount] = timestamps[0];
+                    dueMessages[dueCount] = messages[0];
+                    dueSystemExclusives[dueCount] = systemExclusives[0];
+                    dueTargets[dueCount] = targets[0];
+                    dueCount++;
+                    pop();
+                }
+            } catch (InterruptedException ignored) {
+                continue;
+            } finally {
+                lock.unlock();
+            }
+
+            for (int i = 0; i < dueCount; i++) {
+                try {
+                    if (dueSystemExclusives[i] != null) {
+                        dueTargets[i].sendScheduled(dueSystemExclusives[i], dueTimestamps[i]);
+                    } else {
+                        dueTargets[i].sendScheduled(dueMessages[i], dueTimestamps[i]);
+                    }
+                } catch (IOException | RuntimeException ignored) {
+                    // the failure of an event doesn't stop the scheduler thread
+                }
+                dueSystemExclusives[i] = null;
+                dueTargets[i] = null;
+            }
+        }
+    }
+
+    private void push(Target target, int message, byte[] data, long timestamp) {
+        if (!running) {
+            return;
+        }
+        if (size == timestamps.length) {
+            grow();
+        }
+
+        int index = size++;
+        timestamps[index] = timestamp;
+        sequences[index] = nextSequence++;
+        messages[index] = message;
+        systemExclusives[index] = data;
+        targets[index] = target;
+        siftUp(index);
+        if (timestamps[0] == timestamp) {
+            // the earliest event has changed
+            changed.signal();
+        }
+    }
+
+    private void pop() {
+        size--;
+        if (size > 0) {
+            move(size, 0);
+        }
+        systemExclusives[size] = null;
+        targets[size] = null;
+        if (size > 0) {
+            siftDown(0);
+        }
+    }
+
+    private boolean less(int a, int b) {
+        if (timestamps[a] != timestamps[b]) {
+            return timestamps[a] - timestamps[b] < 0;
+        }
+        return sequences[a] < sequences[b];
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            final int parent = (index - 1) >> 1;
+            if (!less(index, parent)) {
+                break;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            final int left = (index << 1) + 1;
+            if (left >= size) {
+                break;
+            }
+            int smallest = left;
+            final int right = left + 1;
+            if (right < size && less(right, left)) {
+                smallest = right;
+            }
+            if (!less(smallest, index)) {
+                break;
+            }
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+
+    private void move(int from, int to) {
+        timestamps[to] = timestamps[from];
+        sequences[to] = sequences[from];
+        messages[to] = messages[from];
+        systemExclusives[to] = systemExclusives[from];
+        targets[to] = targets[from];
+    }
+
+    private void swap(int a, int b) {
+        final long timestamp = timestamps[a];
+        timestamps[a] = timestamps[b];
+        timestamps[b] = timestamp;
+        final long sequence = sequences[a];
+        sequences[a] = sequences[b];
+        sequences[b] = sequence;
+        final int message = messages[a];
+        messages[a] = messages[b];
+        messages[b] = message;
+        final byte[] data = systemExclusives[a];
+        systemExclusives[a] = systemExclusives[b];
+        systemExclusives[b] = data;
+        final Target target = targets[a];
+        targets[a] = targets[b];
+        targets[b] = target;
+    }
+
+    private void grow() {
+        final int capacity = timestamps.length * 2;
+        long[] newTimestamps = new long[capacity];
+        System.arraycopy(timestamps, 0, newTimestamps, 0, size);
+        timestamps = newTimestamps;
+        long[] newSequences = new long[capacity];
+        System.arraycopy(sequences, 0, newSequences, 0, size);
+        sequences = newSequences;
+        int[] newMessages = new int[capacity];
+        System.arraycopy(messages, 0, newMessages, 0, size);
+        messages = newMessages;
+        byte[][] newSystemExclusives = new byte[capacity][];
+        System.arraycopy(systemExclusives, 0, newSystemExclusives, 0, size);
+        systemExclusives = newSystemExclusives;
+        Target[] newTargets = new Target[capacity];
+        System.arraycopy(targets, 0, newTargets, 0, size);
+        targets = newTargets;
+    }
+
+    private void ensureDueCapacity(int capacity) {
+        if (capacity <= dueTimestamps.length) {
+            return;
+        }
+        final int newCapacity = Math.max(capacity, dueTimestamps.length * 2);
+        long[] newTimestamps = new long[newCapacity];
+        System.arraycopy(dueTimestamps, 0, newTimestamps, 0, dueTimestamps.length);
+        dueTimestamps = newTimestamps;
+        int[] newMessages = new int[newCapacity];
+        System.arraycopy(dueMessages, 0, newMessages, 0, dueMessages.length);
+        dueMessages = newMessages;
+        byte[][] newSystemExclusives = new byte[newCapacity][];
+        System.arraycopy(dueSystemExclusives, 0, newSystemExclusives, 0, dueSystemExclusives.length);
+        dueSystemExclusives = newSystemExclusives;
+        Target[] newTargets = new Target[newCapacity];
+        System.arraycopy(dueTargets, 0, newTargets, 0, dueTargets.length);
+        dueTargets = newTargets;
+    }
+}
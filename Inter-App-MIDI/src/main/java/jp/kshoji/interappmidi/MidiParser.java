@@ -0,0 +1,278 @@
+package jp.kshoji.interappmidi;
+
+/**
+ * Stateful MIDI 1.0 byte stream parser<br />
+ * Works in place on the received packets, and keeps the running status and the partial messages across the packets.<br />
+ * No objects are allocated per event, so the instance must be kept for each port.<br />
+ * System Exclusive messages are assembled in the buffers of the {@link SystemExclusiveBufferPool}.
+ * The messages longer than the buffer are delivered in chunks.<br />
+ * This class depends only on the Java runtime, not on android.*.
+ */
+final class MidiParser {
+    /**
+     * Listener for the parsed MIDI events<br />
+     * Called on the thread which calls {@link #parse(byte[], int, int, long)}.
+     */
+    interface OnMidiEventListener {
+        /**
+         * Called when a channel message, a system common message or a system realtime message has been parsed
+         *
+         * @param status the status byte, 0x80-0xff
+         * @param data1 the first data byte, 0 if the message has no data
+         * @param data2 the second data byte, 0 if the message has no second data
+         * @param timestamp the timestamp of the packet, in {@link System#nanoTime()} base
+         */
+        void onMidiMessage(int status, int data1, int data2, long timestamp);
+
+        /**
+         * Called when a System Exclusive message has been completed
+         *
+         * @param data the buffer of the parser, the contents are valid only while this call
+         * @param offset the offset of the message, points 0xf0
+         * @param length the length of the message, includes 0xf0 and 0xf7
+         * @param timestamp the timestamp of the packet which contains 0xf7
+         */
+        void onMidiSystemExclusive(byte[] data, int offset, int length, long timestamp);
+
+        /**
+         * Called when a part of the System Exclusive message longer than the buffer has been received<br />
+         * The first chunk starts with 0xf0, and the last chunk ends with 0xf7.
+         * If the message is interrupted by the other status byte, or discarded with {@link #reset()},
+         * an empty chunk is delivered as the last chunk.
+         *
+         * @param data the buffer of the parser, the contents are valid only while this call
+         * @param offset the offset of the chunk
+         * @param length the length of the chunk
+         * @param last true if this is the last chunk of the message
+         * @param timestamp the timestamp of the packet which contains the last byte of the chunk
+         */
+        void onMidiSystemExclusiveChunk(byte[] data, int offset, int length, boolean last, long timestamp);
+    }
+
+    private final OnMidiEventListener listener;
+    private volatile SystemExclusiveBufferPool bufferPool;
+
+    private int status;
+    private int dataLength;
+    private int dataIndex;
+    private int data1;
+
+    private boolean inSystemExclusive;
+    private byte[] systemExclusiveBuffer;
+    private SystemExclusiveBufferPool systemExclusiveBufferPool;
+    private int systemExclusiveLength;
+    private boolean systemExclusiveChunked;
+
+    // written by the parsing thread only
+    private volatile long errorCount;
+    private volatile long skippedByteCount;
+
+    /**
+     * Constructor
+     *
+     * @param listener the listener
+     * @param bufferPool the pool of the System Exclusive buffers
+     */
+    MidiParser(OnMidiEventListener listener, SystemExclusiveBufferPool bufferPool) {
+        this.listener = listener;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Changes the pool of the System Exclusive buffers<br />
+     * May be called from any thread, the pool is used from the next System Exclusive message.
+     *
+     * @param bufferPool the pool
+     */
+    void setBufferPool(SystemExclusiveBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * @return the number of the messages discarded because interrupted by the other status byte
+     */
+    long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * @return the number of the bytes skipped because undefined or without the status byte
+     */
+    long getSkippedByteCount() {
+        return skippedByteCount;
+    }
+
+    /**
+     * Discards the running status and the partial message
+     */
+    void reset() {
+        status = 0;
+        dataLength = 0;
+        dataIndex = 0;
+        if (inSystemExclusive) {
+            discardSystemExclusive(System.nanoTime());
+        }
+    }
+
+    /**
+     * Parses the received packet
+     *
+     * @param message the received data
+     * @param offset the offset of the data
+     * @param count the length of the data
+     * @param timestamp the timestamp of the packet
+     */
+    void parse(byte[] message, int offset, int count, long timestamp) {
+        final int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            parse(message[i] & 0xff, timestamp);
+        }
+    }
+
+    private void parse(int midiByte, long timestamp) {
+        if (midiByte >= 0xf8) {
+            // System Realtime: may appear between any bytes, and doesn't affect the running status
+            switch (midiByte) {
+                case 0xf8: // Timing Clock
+                case 0xfa: // Start
+                case 0xfb: // Continue
+                case 0xfc: // Stop
+                case 0xfe: // Active Sensing
+                case 0xff: // Reset
+                    listener.onMidiMessage(midiByte, 0, 0, timestamp);
+                    break;
+                default:
+                    // undefined
+                    skippedByteCount = skippedByteCount + 1;
+                    break;
+            }
+            return;
+        }
+
+        if (midiByte >= 0x80) {
+            if (inSystemExclusive) {
+                if (midiByte == 0xf7) {
+                    appendSystemExclusive(midiByte, timestamp);
+                    if (systemExclusiveChunked) {
+                        listener.onMidiSystemExclusiveChunk(systemExclusiveBuffer, 0, systemExclusiveLength, true, timestamp);
+                    } else {
+                        listener.onMidiSystemExclusive(systemExclusiveBuffer, 0, systemExclusiveLength, timestamp);
+                    }
+                    releaseSystemExclusive();
+                    status = 0;
+                    return;
+                }
+                // terminated with other status: the partial System Exclusive is discarded
+                errorCount = errorCount + 1;
+                discardSystemExclusive(timestamp);
+            } else if (dataIndex != 0) {
+                // terminated with other status: the partial message is discarded
+                errorCount = errorCount + 1;
+            }
+
+            dataIndex = 0;
+            if (midiByte < 0xf0) {
+                // Channel message
+                status = midiByte;
+                switch (midiByte & 0xf0) {
+                    case 0xc0: // Program Change
+                    case 0xd0: // Channel Aftertouch
+                        dataLength = 1;
+                        break;
+                    default:
+                        dataLength = 2;
+                        break;
+                }
+                return;
+            }
+
+            // System Common: cancels the running status
+            switch (midiByte) {
+                case 0xf0: // Sysex
+                    status = 0;
+                    inSystemExclusive = true;
+                    systemExclusiveBufferPool = bufferPool;
+                    systemExclusiveBuffer = systemExclusiveBufferPool.acquire();
+                    systemExclusiveLength = 0;
+                    systemExclusiveChunked = false;
+                    appendSystemExclusive(midiByte, timestamp);
+                    break;
+                case 0xf1: // Time Code Quarter Frame
+                case 0xf3: // Song Select
+                    status = midiByte;
+                    dataLength = 1;
+                    break;
+                case 0xf2: // Song Position Pointer
+                    status = midiByte;
+                    dataLength = 2;
+                    break;
+                case 0xf6: // Tune Request
+                    status = 0;
+                    listener.onMidiMessage(midiByte, 0, 0, timestamp);
+                    break;
+                default:
+                    // 0xf4, 0xf5: undefined, 0xf7: End of Exclusive without Sysex
+                    skippedByteCount = skippedByteCount + 1;
+                    status = 0;
+                    break;
+            }
+            return;
+        }
+
+        // Data byte
+        if (inSystemExclusive) {
+            appendSystemExclusive(midiByte, timestamp);
+            return;
+        }
+
+        if (status == 0) {
+            // no running status: skip
+            skippedByteCount = skippedByteCount + 1;
+            return;
+        }
+
+        if (dataIndex == 0 && dataLength == 2) {
+            data1 = midiByte;
+            dataIndex = 1;
+            return;
+        }
+
+        final int messageStatus = status;
+        if (messageStatus >= 0xf0) {
+            // System Common doesn't keep the running status
+            status = 0;
+        }
+        dataIndex = 0;
+        if (dataLength == 1) {
+            listener.onMidiMessage(messageStatus, midiByte, 0, timestamp);
+        } else {
+            listener.onMidiMessage(messageStatus, data1, midiByte, timestamp);
+        }
+    }
+
+    private void appendSystemExclusive(int midiByte, long timestamp) {
+        if (systemExclusiveLength == systemExclusiveBuffer.length) {
+            // the buffer is full: deliver as a chunk, and reuse the buffer
+            listener.onMidiSystemExclusiveChunk(systemExclusiveBuffer, 0, systemExclusiveLength, false, timestamp);
+            systemExclusiveChunked = true;
+            systemExclusiveLength = 0;
+        }
+        systemExclusiveBuffer[systemExclusiveLength++] = (byte) midiByte;
+    }
+
+    private void discardSystemExclusive(long timestamp) {
+        if (systemExclusiveChunked) {
+            listener.onMidiSystemExclusiveChunk(systemExclusiveBuffer, 0, 0, true, timestamp);
+        }
+        releaseSystemExclusive();
+    }
+
+    private void releaseSystemExclusive() {
+        inSystemExclusive = false;
+        systemExclusiveChunked = false;
+        systemExclusiveLength = 0;
+        systemExclusiveBufferPool.release(systemExclusiveBuffer);
+        systemExclusiveBuffer = null;
+        systemExclusiveBufferPool = null;
+    }
+}
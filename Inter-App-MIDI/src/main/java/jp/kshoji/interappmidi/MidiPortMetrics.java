@@ -0,0 +1,165 @@
+package jp.kshoji.interappmidi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runtime counters of a port<br />
+ * The constants are the indices of the array filled with {@link InterAppMidiManager#getMetrics(int, long[])}.<br />
+ * The receiving counters have a single writer, the receiving thread of the port, so they are recorded without the atomic operations.
+ * The sending counters are recorded with the atomic operations, because the messages may be sent from multiple threads.
+ * They are stored apart from the receiving counters, each on its own cache line, so the sending threads don't invalidate the lines written by the receiving thread.
+ */
+public final class MidiPortMetrics {
+    /**
+     * Received messages, includes System Exclusive
+     */
+    public static final int MESSAGES_IN = 0;
+    /**
+     * Received bytes
+     */
+    public static final int BYTES_IN = 1;
+    /**
+     * Sent messages, includes System Exclusive
+     */
+    public static final int MESSAGES_OUT = 2;
+    /**
+     * Sent bytes
+     */
+    public static final int BYTES_OUT = 3;
+    public static final int NOTE_OFF_IN = 4;
+    public static final int NOTE_ON_IN = 5;
+    public static final int POLYPHONIC_AFTERTOUCH_IN = 6;
+    public static final int CONTROL_CHANGE_IN = 7;
+    public static final int PROGRAM_CHANGE_IN = 8;
+    public static final int CHANNEL_AFTERTOUCH_IN = 9;
+    public static final int PITCH_WHEEL_IN = 10;
+    public static final int SYSTEM_COMMON_IN = 11;
+    public static final int SYSTEM_REALTIME_IN = 12;
+    public static final int SYSTEM_EXCLUSIVE_IN = 13;
+    /**
+     * Received messages discarded because interrupted by the other status byte
+     */
+    public static final int PARSE_ERRORS = 14;
+    /**
+     * Received bytes skipped because undefined or without the status byte
+     */
+    public static final int SKIPPED_BYTES = 15;
+    /**
+     * Events dropped because the event polling buffer was full
+     */
+    public static final int DROPPED_EVENTS = 16;
+    /**
+     * System Exclusive records dropped because the System Exclusive polling buffer was full
+     */
+    public static final int DROPPED_SYSTEM_EXCLUSIVES = 17;
+    /**
+     * Events replaced with the later value by the coalescing
+     */
+    public static final int COALESCED_EVENTS = 18;
+    /**
+     * Events waiting in the event polling buffer
+     */
+    public static final int EVENT_QUEUE_DEPTH = 19;
+    /**
+     * Bytes waiting in the System Exclusive polling buffer
+     */
+    public static final int SYSTEM_EXCLUSIVE_QUEUE_BYTES = 20;
+    /**
+     * IOExceptions thrown while sending
+     */
+    public static final int IO_ERRORS = 21;
+    /**
+     * The number of the metrics
+     */
+    public static final int COUNT = 22;
+
+    // the longs in a cache line
+    private static final int PADDING = 8;
+    // the indices in sentCounters, the first line is left empty to be apart from the other objects
+    private static final int SENT_MESSAGES = PADDING;
+    private static final int SENT_BYTES = PADDING * 2;
+    private static final int SENT_IO_ERRORS = PADDING * 3;
+
+    // written by the receiving thread only
+    private final AtomicLongArray counters = new AtomicLongArray(COUNT);
+    // written by the sending threads
+    private final AtomicLongArray sentCounters = new AtomicLongArray(PADDING * 5);
+
+    MidiPortMetrics() {
+    }
+
+    /**
+     * Records a received message, called from the receiving thread only
+     *
+     * @param status the status byte
+     */
+    void recordReceived(int status) {
+        increment(MESSAGES_IN);
+        if (status < 0xf0) {
+            increment(NOTE_OFF_IN + ((status >> 4) & 0x7));
+        } else if (status == 0xf0) {
+            increment(SYSTEM_EXCLUSIVE_IN);
+        } else if (status < 0xf8) {
+            increment(SYSTEM_COMMON_IN);
+        } else {
+            increment(SYSTEM_REALTIME_IN);
+        }
+    }
+
+    /**
+     * Records the received bytes, called from the receiving thread only
+     */
+    void recordReceivedBytes(int count) {
+        // single writer: no need to be atomic
+        counters.lazySet(BYTES_IN, counters.get(BYTES_IN) + count);
+    }
+
+    /**
+     * Records the sent messages and bytes, called from any thread
+     */
+    void recordSent(int messageCount, int byteCount) {
+        if (messageCount > 0) {
+            sentCounters.addAndGet(SENT_MESSAGES, messageCount);
+        }
+        if (byteCount > 0) {
+            sentCounters.addAndGet(SENT_BYTES, byteCount);
+        }
+    }
+
+    /**
+     * Records an IOException, called from any thread
+     */
+    void recordIoError() {
+        sentCounters.incrementAndGet(SENT_IO_ERRORS);
+    }
+
+    /**
+     * Copies the counters
+     *
+     * @param metrics the destination, indexed with the constants of this class
+     */
+    void copyTo(long[] metrics) {
+        final int count = Math.min(metrics.length, COUNT);
+        for (int i = 0; i < count; i++) {
+            switch (i) {
+                case MESSAGES_OUT:
+                    metrics[i] = sentCounters.get(SENT_MESSAGES);
+                    break;
+                case BYTES_OUT:
+                    metrics[i] = sentCounters.get(SENT_BYTES);
+                    break;
+                case IO_ERRORS:
+                    metrics[i] = sentCounters.get(SENT_IO_ERRORS);
+                    break;
+                default:
+                    metrics[i] = counters.get(i);
+                    break;
+            }
+        }
+    }
+
+    private void increment(int index) {
+        // single writer: no need to be atomic
+        counters.lazySet(index, counters.get(index) + 1);
+    }
+}
@@ -0,0 +1,136 @@
+package jp.kshoji.interappmidi;
+
+/**
+ * Table of the ports, indexed by the compact integer handle<br />
+ * A handle consists of the slot index(lower 16 bits) and the generation of the slot(upper 15 bits),
+ * so a handle of a removed port never matches the port opened later in the same slot.<br />
+ * <br />
+ * The table is copy-on-write: the reads are lock-free and see a consistent snapshot,
+ * and the writes are serialized with the lock of this table.
+ *
+ * @param <T> the port type
+ */
+final class MidiPortTable<T> {
+    private static final int SLOT_BITS = 16;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private static final int GENERATION_MASK = 0x7fff;
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Immutable contents of the table
+     */
+    private static final class Snapshot {
+        private final Object[] entries;
+        private final int[] generations;
+
+        private Snapshot(Object[] entries, int[] generations) {
+            this.entries = entries;
+            this.generations = generations;
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(new Object[INITIAL_CAPACITY], new int[INITIAL_CAPACITY]);
+
+    /**
+     * Reserves a handle for the next {@link #put(int, Object)}<br />
+     * The slot stays free until the put, so the caller should hold the lock of this table until then,
+     * otherwise another allocate may return the same slot.
+     *
+     * @return the handle, always positive
+     */
+    synchronized int allocate() {
+        final Snapshot current = snapshot;
+        int slot = -1;
+        for (int i = 0; i < current.entries.length; i++) {
+            if (current.entries[i] == null) {
+                slot = i;
+                break;
+            }
+        }
+        if (slot < 0) {
+            slot = current.entries.length;
+            if (slot > SLOT_MASK) {
+                throw new IllegalStateException("Too many ports");
+            }
+        }
+
+        final int generation = slot < current.generations.length ? current.generations[slot] : 0;
+        // the generation 0 is skipped on wraparound, so the handle is never 0
+        final int nextGeneration = (generation & GENERATION_MASK) == GENERATION_MASK ? 1 : generation + 1;
+        return (nextGeneration << SLOT_BITS) | slot;
+    }
+
+    /**
+     * Publishes the port with the handle reserved by {@link #allocate()}
+     *
+     * @param handle the handle
+     * @param entry the port, must be fully constructed
+     */
+    synchronized void put(int handle, T entry) {
+        final Snapshot current = snapshot;
+        final int slot = handle & SLOT_MASK;
+        int capacity = current.entries.length;
+        while (capacity <= slot) {
+            capacity *= 2;
+        }
+
+        Object[] entries = new Object[capacity];
+        System.arraycopy(current.entries, 0, entries, 0, current.entries.length);
+        int[] generations = new int[capacity];
+        System.arraycopy(current.generations, 0, generations, 0, current.generations.length);
+        entries[slot] = entry;
+        generations[slot] = handle >>> SLOT_BITS;
+        snapshot = new Snapshot(entries, generations);
+    }
+
+    /**
+     * Obtains the port, lock-free
+     *
+     * @param handle the handle
+     * @return the port, null if not found
+     */
+    @SuppressWarnings("unchecked")
+    T get(int handle) {
+        final Snapshot current = snapshot;
+        final int slot = handle & SLOT_MASK;
+        if (handle < 0 || slot >= current.entries.length || current.generations[slot] != handle >>> SLOT_BITS) {
+            return null;
+        }
+        return (T) current.entries[slot];
+    }
+
+    /**
+     * Removes the port
+     *
+     * @param handle the handle
+     * @return the removed port, null if not found
+     */
+    synchronized T remove(int handle) {
+        final T entry = get(handle);
+        if (entry != null) {
+            final Snapshot current = snapshot;
+            Object[] entries = current.entries.clone();
+            entries[handle & SLOT_MASK] = null;
+            snapshot = new Snapshot(entries, current.generations);
+        }
+        return entry;
+    }
+
+    /**
+     * Removes all ports
+     */
+    synchronized void clear() {
+        final Snapshot current = snapshot;
+        snapshot = new Snapshot(new Object[current.entries.length], current.generations);
+    }
+
+    /**
+     * Obtains the current ports, lock-free<br />
+     * The returned array must not be modified, and the empty slots are null.
+     *
+     * @return the ports indexed by the slot
+     */
+    Object[] entries() {
+        return snapshot.entries;
+    }
+}
@@ -0,0 +1,169 @@
+package jp.kshoji.interappmidi;
+
+import java.io.IOException;
+
+/**
+ * A route from a receiving port to a sending port, with the message transformations<br />
+ * {@link #route(int, int, int, long)} is called on the receiving thread, and doesn't allocate objects.
+ * The settings may be changed from any thread while routing, each setting takes effect from the next message.<br />
+ * This class depends only on the Java runtime, not on android.*.
+ */
+final class MidiRoute {
+    /**
+     * Destination of the routed messages
+     */
+    interface Destination {
+        /**
+         * @param message the packed message, see {@link MidiMessageEncoder}
+         * @param timestamp the timestamp of the received message
+         */
+        void sendRouted(int message, long timestamp) throws IOException;
+
+        /**
+         * The parts of a System Exclusive message are sent in order, the other messages are held until the last part
+         *
+         * @param routeId the route id
+         * @param data the System Exclusive data, may be a part of the message
+         * @param offset the offset of the data
+         * @param length the length of the data, 0 for the last part of the interrupted message
+         * @param last true for the complete message, or the last part of the message
+         * @param timestamp the timestamp of the received message
+         */
+        void sendRouted(int routeId, byte[] data, int offset, int length, boolean last, long timestamp) throws IOException;
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    final int routeId;
+    final int sourcePortHandle;
+    final int destinationPortHandle;
+    private final Destination destination;
+
+    // destination channel for each source channel, -1 to drop
+    private final byte[] channelMap = new byte[16];
+    private volatile byte[] velocityCurve;
+    private volatile int transpose;
+    private volatile int typeMask = MidiMessageFilter.ALL_TYPES;
+    private volatile int channelMask = MidiMessageFilter.ALL_CHANNELS;
+
+    MidiRoute(int routeId, int sourcePortHandle, int destinationPortHandle, Destination destination) {
+        this.routeId = routeId;
+        this.sourcePortHandle = sourcePortHandle;
+        this.destinationPortHandle = destinationPortHandle;
+        this.destination = destination;
+        for (int i = 0; i < channelMap.length; i++) {
+            channelMap[i] = (byte) i;
+        }
+    }
+
+    /**
+     * @param sourceChannel 0-15
+     * @param destinationChannel 0-15, or -1 to drop the messages of the source channel
+     */
+    void setChannelMap(int sourceChannel, int destinationChannel) {
+        channelMap[sourceChannel & 0xf] = (byte) (destinationChannel < 0 ? -1 : destinationChannel & 0xf);
+    }
+
+    /**
+     * Sets the transposition of Note On, Note Off and Polyphonic Aftertouch<br />
+     * The notes out of the range are dropped.
+     * Changing the transposition while the notes are held may leave them sounding.
+     *
+     * @param semitones the transposition
+     */
+    void setTranspose(int semitones) {
+        transpose = semitones;
+    }
+
+    /**
+     * @param velocityCurve the Note On velocity for each velocity 1-127, null to keep the velocity
+     */
+    void setVelocityCurve(byte[] velocityCurve) {
+        this.velocityCurve = velocityCurve;
+    }
+
+    /**
+     * Creates the velocity curve
+     *
+     * @param exponent the exponent of the curve, 1.0 for linear, less than 1.0 to increase the soft velocities
+     * @return the curve
+     */
+    static byte[] createVelocityCurve(float exponent) {
+        byte[] curve = new byte[128];
+        for (int i = 1; i < curve.length; i++) {
+            // Note On with the velocity 0 means Note Off, so keep at least 1
+            curve[i] = (byte) Math.max(1, Math.min(127, Math.round(127.0 * Math.pow(i / 127.0, exponent))));
+        }
+        return curve;
+    }
+
+    /**
+     * @param typeMask the combination of {@link MidiMessageFilter} type constants
+     * @param channelMask the bit {@code 1 << channel} for each source channel
+     */
+    void setFilter(int typeMask, int channelMask) {
+        this.typeMask = typeMask;
+        this.channelMask = channelMask;
+    }
+
+    /**
+     * Routes a received message
+     */
+    void route(int status, int data1, int data2, long timestamp) throws IOException {
+        if (!MidiMessageFilter.accepts(status, typeMask, channelMask)) {
+            return;
+        }
+
+        if (status < 0xf0) {
+            final int channel = channelMap[status & 0xf];
+            if (channel < 0) {
+                return;
+            }
+            final int type = status & 0xf0;
+            if (type == 0x80 || type == 0x90 || type == 0xa0) {
+                data1 += transpose;
+                if (data1 < 0 || data1 > 127) {
+                    return;
+                }
+                if (type == 0x90 && data2 > 0) {
+                    final byte[] curve = velocityCurve;
+                    if (curve != null) {
+                        data2 = curve[data2];
+                    }
+                }
+            }
+            status = type | channel;
+        }
+
+        destination.sendRouted(MidiMessageEncoder.pack(status, data1, data2), timestamp);
+    }
+
+    /**
+     * Routes a received System Exclusive message, or a part of it
+     *
+     * @param last true for the complete message, or the last part of the message
+     */
+    void routeSystemExclusive(byte[] data, int offset, int length, boolean last, long timestamp) throws IOException {
+        if ((typeMask & MidiMessageFilter.SYSTEM_EXCLUSIVE) == 0) {
+            if (last) {
+                // closes the message routed before the filter has been changed
+                destination.sendRouted(routeId, data, offset, 0, true, timestamp);
+            }
+            return;
+        }
+        if (length == 0 && !last) {
+            return;
+        }
+        destination.sendRouted(routeId, data, offset, length, last, timestamp);
+    }
+
+    /**
+     * Closes the System Exclusive message in the middle of routing, called when the route is removed
+     */
+    void close() {
+        try {
+            destination.sendRouted(routeId, EMPTY, 0, 0, true, System.nanoTime());
+        } catch (IOException ignored) {
+        }
+    }
+}
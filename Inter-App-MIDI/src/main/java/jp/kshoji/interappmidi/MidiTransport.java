@@ -0,0 +1,213 @@
+package jp.kshoji.interappmidi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Source of the MIDI devices and their ports, used by {@link InterAppMidiManager}<br />
+ * {@link AndroidMidiTransport} is backed by android.media.midi, and LoopbackMidiTransport of the test fixtures simulates the devices in the process.<br />
+ * The naming follows android.media.midi: the input port is used for sending to the device, and the output port for receiving from the device.<br />
+ * This interface depends only on the Java runtime, not on android.*.
+ */
+interface MidiTransport {
+    /**
+     * The protocol of the MIDI 1.0 byte stream device, the same value as MidiDeviceInfo.PROTOCOL_UNKNOWN
+     */
+    int PROTOCOL_UNKNOWN = -1;
+
+    /**
+     * Description of a device<br />
+     * The devices are identified with the id.
+     */
+    class DeviceInfo {
+        private final int id;
+        private final String name;
+        private final String product;
+        private final String manufacturer;
+        private final int inputPortCount;
+        private final int outputPortCount;
+        private final int protocol;
+        private final boolean virtual;
+
+        /**
+         * Constructor
+         *
+         * @param id the id, unique in the transport
+         * @param name the device name
+         * @param product the product name
+         * @param manufacturer the manufacturer name
+         * @param inputPortCount the number of the ports for sending
+         * @param outputPortCount the number of the ports for receiving
+         * @param protocol {@link #PROTOCOL_UNKNOWN} for the byte stream device, or one of the MidiDeviceInfo.PROTOCOL_UMP_* values for the Universal MIDI Packet device
+         * @param virtual true for the device provided by an application
+         */
+        public DeviceInfo(int id, String name, String product, String manufacturer, int inputPortCount, int outputPortCount, int protocol, boolean virtual) {
+            this.id = id;
+            this.name = name;
+            this.product = product;
+            this.manufacturer = manufacturer;
+            this.inputPortCount = inputPortCount;
+            this.outputPortCount = outputPortCount;
+            this.protocol = protocol;
+            this.virtual = virtual;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getProduct() {
+            return product;
+        }
+
+        public String getManufacturer() {
+            return manufacturer;
+        }
+
+        public int getInputPortCount() {
+            return inputPortCount;
+        }
+
+        public int getOutputPortCount() {
+            return outputPortCount;
+        }
+
+        public int getProtocol() {
+            return protocol;
+        }
+
+        public boolean isVirtual() {
+            return virtual;
+        }
+
+        @Override
+        public final boolean equals(Object o) {
+            return o instanceof DeviceInfo && ((DeviceInfo) o).id == id;
+        }
+
+        @Override
+        public final int hashCode() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + id + ")";
+        }
+    }
+
+    /**
+     * Receiver of the bytes from the output port<br />
+     * Called on the receiving thread of the port.
+     */
+    interface Receiver {
+        /**
+         * @param data the bytes, the contents are valid only while this call
+         * @param offset the offset
+         * @param count the length
+         * @param timestamp the timestamp, in {@link System#nanoTime()} base
+         */
+        void onSend(byte[] data, int offset, int count, long timestamp) throws IOException;
+
+        /**
+         * Discards the partial message
+         */
+        void onFlush() throws IOException;
+    }
+
+    /**
+     * The port for sending to the device
+     */
+    interface InputPort extends Closeable {
+        /**
+         * @return the maximum length of the bytes sent at once
+         */
+        int getMaxMessageSize();
+
+        /**
+         * @param data the bytes, not longer than {@link #getMaxMessageSize()}
+         * @param offset the offset
+         * @param count the length
+         * @param timestamp the timestamp, in {@link System#nanoTime()} base
+         * @throws IOException the port is closed, or failed to send
+         */
+        void send(byte[] data, int offset, int count, long timestamp) throws IOException;
+    }
+
+    /**
+     * The port for receiving from the device
+     */
+    interface OutputPort extends Closeable {
+        void connect(Receiver receiver);
+
+        void disconnect(Receiver receiver);
+    }
+
+    /**
+     * The opened device
+     */
+    interface Device extends Closeable {
+        DeviceInfo getInfo();
+
+        /**
+         * @param index the port index
+         * @return the opened port, null if failed
+         */
+        InputPort openInputPort(int index);
+
+        /**
+         * @param index the port index
+         * @return the opened port, null if failed
+         */
+        OutputPort openOutputPort(int index);
+    }
+
+    interface OnDeviceOpenedListener {
+        /**
+         * @param device the opened device, null if failed
+         */
+        void onDeviceOpened(Device device);
+    }
+
+    /**
+     * Listener for the device connections
+     */
+    interface DeviceCallback {
+        void onDeviceAdded(DeviceInfo device);
+
+        void onDeviceRemoved(DeviceInfo device);
+
+        /**
+         * Called when the status of the device has changed, the device may have become available
+         */
+        void onDeviceStatusChanged(DeviceInfo device);
+    }
+
+    /**
+     * @return the connected devices
+     */
+    Set<DeviceInfo> getDevices();
+
+    /**
+     * @param callback the callback
+     * @param executor runs the callback
+     */
+    void registerDeviceCallback(DeviceCallback callback, Executor executor);
+
+    void unregisterDeviceCallback(DeviceCallback callback);
+
+    /**
+     * Opens the device asynchronously
+     *
+     * @param device the device
+     * @param listener the listener
+     * @param executor runs the listener
+     */
+    void openDevice(DeviceInfo device, OnDeviceOpenedListener listener, Executor executor);
+}
@@ -0,0 +1,56 @@
+package jp.kshoji.interappmidi;
+
+/**
+ * Bounded pool of the fixed-size System Exclusive assembly buffers, shared by the ports<br />
+ * A buffer is held only while a System Exclusive message is being received, and returned to the pool after the delivery.<br />
+ * When the pool is empty, a new buffer is allocated; at most {@code maxPooledCount} buffers are retained.<br />
+ * This class depends only on the Java runtime, not on android.*.
+ */
+final class SystemExclusiveBufferPool {
+    private final int bufferSize;
+    private final byte[][] buffers;
+    private int count;
+
+    /**
+     * Constructor
+     *
+     * @param bufferSize the size of each buffer, the maximum length of a System Exclusive message delivered at once
+     * @param maxPooledCount the maximum number of the buffers retained by the pool
+     */
+    SystemExclusiveBufferPool(int bufferSize, int maxPooledCount) {
+        // at least 0xf0, a data byte and 0xf7
+        this.bufferSize = Math.max(bufferSize, 3);
+        buffers = new byte[Math.max(maxPooledCount, 0)][];
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Obtains a buffer
+     *
+     * @return the pooled buffer, or the new buffer if the pool is empty
+     */
+    synchronized byte[] acquire() {
+        if (count > 0) {
+            final byte[] buffer = buffers[--count];
+            buffers[count] = null;
+            return buffer;
+        }
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Returns the buffer to the pool<br />
+     * The buffer is discarded if the pool is full, or the size doesn't match.
+     *
+     * @param buffer the buffer obtained with {@link #acquire()}
+     */
+    synchronized void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize || count == buffers.length) {
+            return;
+        }
+        buffers[count++] = buffer;
+    }
+}
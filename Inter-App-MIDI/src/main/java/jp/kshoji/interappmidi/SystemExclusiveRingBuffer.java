@@ -0,0 +1,157 @@
+package jp.kshoji.interappmidi;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer / single-consumer ring buffer of the variable-length System Exclusive records<br />
+ * The records are stored in a direct {@link ByteBuffer} with the native byte order, aligned to 8 bytes.<br />
+ * <br />
+ * Record layout ({@link #HEADER_SIZE} bytes header, followed by the data):
+ * <pre>
+ * offset  size    content
+ *      0       4  port handle (int)
+ *      4       4  data length (int)
+ *      8       4  flags (int), see {@link #FLAG_CHUNK} and {@link #FLAG_LAST_CHUNK}
+ *     12       4  reserved (0)
+ *     16       8  timestamp, System.nanoTime() base (long)
+ *     24  length  data, padded with the unspecified bytes to the multiple of 8
+ * </pre>
+ */
+final class SystemExclusiveRingBuffer {
+    static final int HEADER_SIZE = 24;
+    /**
+     * The record is a part of the message longer than the maximum length
+     */
+    static final int FLAG_CHUNK = 1;
+    /**
+     * The record is the last chunk of the message, empty if the message has been interrupted
+     */
+    static final int FLAG_LAST_CHUNK = 2;
+
+    // marks the unused space at the end of the buffer
+    private static final int PADDING = -1;
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer writeBuffer;
+    private final ByteBuffer readBuffer;
+    private final int capacity;
+    private final int mask;
+
+    // written by the consumer only
+    private final AtomicLong head = new AtomicLong();
+    // written by the producer only
+    private final AtomicLong tail = new AtomicLong();
+    // written by the producer only
+    private volatile long droppedRecordCount;
+
+    /**
+     * Constructor
+     *
+     * @param capacity the size in bytes, rounded up to the power of two
+     */
+    SystemExclusiveRingBuffer(int capacity) {
+        int size = 64;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        writeBuffer = buffer.duplicate();
+        readBuffer = buffer.duplicate();
+    }
+
+    /**
+     * Obtains the size of the record
+     *
+     * @param length the data length
+     * @return the record size in bytes, includes the header and the padding
+     */
+    static int getRecordSize(int length) {
+        return (HEADER_SIZE + length + 7) & ~7;
+    }
+
+    /**
+     * Writes a record, called from the producer thread
+     *
+     * @return false if the buffer is full and the record has been dropped
+     */
+    boolean offer(int portHandle, byte[] data, int offset, int length, int flags, long timestamp) {
+        final int recordSize = getRecordSize(length);
+        long currentTail = tail.get();
+        int index = (int) (currentTail & mask);
+        final int toEnd = capacity - index;
+        final int required = toEnd < recordSize ? toEnd + recordSize : recordSize;
+        if (recordSize > capacity || currentTail + required - head.get() > capacity) {
+            // single writer: no need to be atomic
+            droppedRecordCount = droppedRecordCount + 1;
+            return false;
+        }
+
+        if (toEnd < recordSize) {
+            // the record doesn't fit at the end: skip to the beginning
+            buffer.putInt(index + 4, PADDING);
+            currentTail += toEnd;
+            index = 0;
+        }
+
+        buffer.putInt(index, portHandle);
+        buffer.putInt(index + 4, length);
+        buffer.putInt(index + 8, flags);
+        buffer.putInt(index + 12, 0);
+        buffer.putLong(index + 16, timestamp);
+        writeBuffer.limit(index + HEADER_SIZE + length).position(index + HEADER_SIZE);
+        writeBuffer.put(data, offset, length);
+        tail.lazySet(currentTail + recordSize);
+        return true;
+    }
+
+    /**
+     * Copies the records to the destination, called from the consumer thread<br />
+     * The destination's position is advanced by the copied bytes.
+     *
+     * @param destination the buffer to fill, records are written as long as the remaining space allows
+     * @return the number of the copied records
+     */
+    int drainTo(ByteBuffer destination) {
+        long currentHead = head.get();
+        final long currentTail = tail.get();
+        int count = 0;
+        while (currentHead < currentTail) {
+            final int index = (int) (currentHead & mask);
+            final int length = buffer.getInt(index + 4);
+            if (length == PADDING) {
+                currentHead += capacity - index;
+                continue;
+            }
+
+            final int recordSize = getRecordSize(length);
+            if (destination.remaining() < recordSize) {
+                break;
+            }
+            readBuffer.limit(index + recordSize).position(index);
+            destination.put(readBuffer);
+            currentHead += recordSize;
+            count++;
+        }
+
+        head.lazySet(currentHead);
+        return count;
+    }
+
+    /**
+     * @return the number of the bytes waiting to be drained, includes the headers and the padding
+     */
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * @return the number of the records dropped because the buffer was full
+     */
+    long getDroppedRecordCount() {
+        return droppedRecordCount;
+    }
+}
@@ -0,0 +1,109 @@
+package jp.kshoji.interappmidi;
+
+/**
+ * Handle of an asynchronous System Exclusive transfer<br />
+ * The state and the progress can be polled from any thread.
+ */
+public final class SystemExclusiveTransfer {
+    /**
+     * Waiting for the previous transfers of the port
+     */
+    public static final int STATE_QUEUED = 0;
+    /**
+     * Sending the chunks
+     */
+    public static final int STATE_SENDING = 1;
+    /**
+     * All data has been sent
+     */
+    public static final int STATE_COMPLETED = 2;
+    /**
+     * Cancelled, or the port has been closed
+     */
+    public static final int STATE_CANCELLED = 3;
+    /**
+     * Failed to send
+     */
+    public static final int STATE_FAILED = 4;
+
+    final byte[] data;
+    final int chunkSize;
+    final int bytesPerSecond;
+    private volatile int state = STATE_QUEUED;
+    private volatile int sentLength;
+
+    SystemExclusiveTransfer(byte[] data, int chunkSize, int bytesPerSecond) {
+        this.data = data;
+        this.chunkSize = Math.max(chunkSize, 1);
+        this.bytesPerSecond = Math.max(bytesPerSecond, 0);
+    }
+
+    /**
+     * @return the state, one of STATE_* constants
+     */
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * @return true if completed, cancelled or failed
+     */
+    public boolean isDone() {
+        return state >= STATE_COMPLETED;
+    }
+
+    /**
+     * @return the total length of the data
+     */
+    public int getLength() {
+        return data.length;
+    }
+
+    /**
+     * @return the length of the data already sent
+     */
+    public int getSentLength() {
+        return sentLength;
+    }
+
+    /**
+     * @return the progress, 0.0 - 1.0
+     */
+    public float getProgress() {
+        return data.length == 0 ? 1.0f : (float) sentLength / data.length;
+    }
+
+    /**
+     * Cancels the transfer<br />
+     * The chunk currently being sent is completed, and the rest of the data is discarded.
+     */
+    public void cancel() {
+        finish(STATE_CANCELLED);
+    }
+
+    void setSentLength(int sentLength) {
+        this.sentLength = sentLength;
+    }
+
+    /**
+     * Changes the state from {@link #STATE_QUEUED} to {@link #STATE_SENDING}
+     *
+     * @return false if already done
+     */
+    synchronized boolean start() {
+        if (state != STATE_QUEUED) {
+            return false;
+        }
+        state = STATE_SENDING;
+        return true;
+    }
+
+    /**
+     * Changes the state to the final state, if not done yet
+     */
+    synchronized void finish(int finalState) {
+        if (state < STATE_COMPLETED) {
+            state = finalState;
+        }
+    }
+}
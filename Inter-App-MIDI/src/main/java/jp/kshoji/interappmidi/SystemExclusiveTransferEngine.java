@@ -0,0 +1,158 @@
+package jp.kshoji.interappmidi;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends the System Exclusive data in chunks, paced to the target rate, from the worker threads<br />
+ * Each target has its own worker thread, so the transfers of the different targets run concurrently,
+ * and the transfers of the same target are sent in the submitted order.
+ * The worker thread exits when the target has no more transfers.<br />
+ * This class depends only on the Java runtime, not on android.*.
+ */
+final class SystemExclusiveTransferEngine {
+    /**
+     * Destination of the transfers
+     */
+    interface Target {
+        /**
+         * @param data the data of the transfer
+         * @param offset the offset of the chunk
+         * @param count the length of the chunk
+         * @param systemExclusiveOpen true if the chunk ends inside a System Exclusive message,
+         *                            so the other messages must not be sent to the target until the next chunk
+         */
+        void sendTransferChunk(byte[] data, int offset, int count, boolean systemExclusiveOpen) throws IOException;
+    }
+
+    private final Map<Target, Worker> workers = new HashMap<>();
+
+    /**
+     * Starts the transfer
+     *
+     * @param target the destination
+     * @param data the data, must not be modified until done
+     * @param chunkSize the maximum length of a chunk
+     * @param bytesPerSecond the target rate, 0 to send without pacing
+     * @return the transfer handle
+     */
+    SystemExclusiveTransfer submit(Target target, byte[] data, int chunkSize, int bytesPerSecond) {
+        final SystemExclusiveTransfer transfer = new SystemExclusiveTransfer(data, chunkSize, bytesPerSecond);
+        synchronized (workers) {
+            Worker worker = workers.get(target);
+            if (worker == null) {
+                worker = new Worker(target);
+                workers.put(target, worker);
+                worker.transfers.add(transfer);
+                new Thread(worker, "MidiSystemExclusiveTransfer").start();
+            } else {
+                worker.transfers.add(transfer);
+            }
+        }
+        return transfer;
+    }
+
+    /**
+     * Cancels the transfers for the target
+     *
+     * @param target the destination, or null to cancel all transfers
+     */
+    void cancel(Target target) {
+        synchronized (workers) {
+            for (Worker worker : workers.values()) {
+                if (target == null || worker.target == target) {
+                    for (SystemExclusiveTransfer transfer : worker.transfers) {
+                        transfer.cancel();
+                    }
+                }
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final Target target;
+        // guarded by workers
+        private final ArrayDeque<SystemExclusiveTransfer> transfers = new ArrayDeque<>();
+        private boolean systemExclusiveOpen;
+
+        private Worker(Target target) {
+            this.target = target;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final SystemExclusiveTransfer transfer;
+                synchronized (workers) {
+                    transfer = transfers.peek();
+                    if (transfer == null) {
+                        workers.remove(target);
+                        return;
+                    }
+                }
+
+                try {
+                    send(transfer);
+                } catch (IOException e) {
+                    transfer.finish(SystemExclusiveTransfer.STATE_FAILED);
+                }
+
+                if (systemExclusiveOpen) {
+                    // interrupted: the other messages terminate the partial System Exclusive on the receiving side
+                    systemExclusiveOpen = false;
+                    try {
+                        target.sendTransferChunk(transfer.data, 0, 0, false);
+                    } catch (IOException ignored) {
+                    }
+                }
+
+                synchronized (workers) {
+                    transfers.poll();
+                }
+            }
+        }
+
+        private void send(SystemExclusiveTransfer transfer) throws IOException {
+            if (!transfer.start()) {
+                return;
+            }
+
+            final byte[] data = transfer.data;
+            final long startTime = System.nanoTime();
+            int sentLength = 0;
+            while (sentLength < data.length) {
+                if (transfer.isDone()) {
+                    return;
+                }
+
+                if (transfer.bytesPerSecond > 0) {
+                    // wait until the sent bytes are within the rate
+                    final long deadline = startTime + sentLength * TimeUnit.SECONDS.toNanos(1) / transfer.bytesPerSecond;
+                    long remaining;
+                    while ((remaining = deadline - System.nanoTime()) > 0 && !transfer.isDone()) {
+                        LockSupport.parkNanos(remaining);
+                    }
+                    if (transfer.isDone()) {
+                        return;
+                    }
+                }
+
+                final int count = Math.min(transfer.chunkSize, data.length - sentLength);
+                for (int i = sentLength; i < sentLength + count; i++) {
+                    final int midiByte = data[i] & 0xff;
+                    if (midiByte >= 0x80 && midiByte < 0xf8) {
+                        systemExclusiveOpen = midiByte == 0xf0;
+                    }
+                }
+                target.sendTransferChunk(data, sentLength, count, systemExclusiveOpen);
+                sentLength += count;
+                transfer.setSentLength(sentLength);
+            }
+            transfer.finish(SystemExclusiveTransfer.STATE_COMPLETED);
+        }
+    }
+}
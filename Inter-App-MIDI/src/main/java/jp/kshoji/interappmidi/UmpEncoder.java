@@ -0,0 +1,340 @@
+package jp.kshoji.interappmidi;
+
+import java.io.IOException;
+
+/**
+ * Encodes the packed MIDI 1.0 messages and the System Exclusive to the Universal MIDI Packets<br />
+ * The packets are written big-endian to the reusable buffer, and sent when the buffer becomes full, so no objects are allocated.<br />
+ * With the MIDI 2.0 protocol, the channel messages are translated to the MIDI 2.0 Channel Voice Messages(64 bits),
+ * otherwise they are sent as the MIDI 1.0 Channel Voice Messages(32 bits).
+ * System Exclusive is split to the 7-bit System Exclusive packets(64 bits), and may be sent in the parts across the calls.<br />
+ * All packets are sent on the group 0.<br />
+ * This class is not thread-safe, and depends only on the Java runtime, not on android.*.
+ */
+final class UmpEncoder {
+    private static final int SYSTEM_EXCLUSIVE_COMPLETE = 0;
+    private static final int SYSTEM_EXCLUSIVE_START = 1;
+    private static final int SYSTEM_EXCLUSIVE_CONTINUE = 2;
+    private static final int SYSTEM_EXCLUSIVE_END = 3;
+
+    private final boolean midi2;
+    private final byte[] buffer;
+    private int length;
+    // the messages in the buffer, and the messages in the sent packets
+    private int packetMessageCount;
+    private int sentMessageCount;
+
+    // the System Exclusive bytes not sent yet, a packet is sent when its successor is known
+    private final byte[] systemExclusiveData = new byte[6];
+    private int systemExclusiveLength;
+    private boolean systemExclusiveOpen;
+    private boolean systemExclusiveStarted;
+
+    /**
+     * Constructor
+     *
+     * @param maxPacketSize the maximum size of a packet, at least 16
+     * @param midi2 true: the MIDI 2.0 protocol, false: the MIDI 1.0 protocol
+     */
+    UmpEncoder(int maxPacketSize, boolean midi2) {
+        this.midi2 = midi2;
+        buffer = new byte[Math.max(maxPacketSize & ~15, 16)];
+    }
+
+    /**
+     * Scales up the value, with the min-center-max scaling of the MIDI 2.0 specification
+     *
+     * @param value the value
+     * @param sourceBits the bits of the value
+     * @param destinationBits the bits of the result, up to 32
+     * @return the scaled value, the unsigned value for 32 bits
+     */
+    static int scaleUp(int value, int sourceBits, int destinationBits) {
+        final int scaleBits = destinationBits - sourceBits;
+        long bitShifted = (long) value << scaleBits;
+        if (value <= 1 << (sourceBits - 1)) {
+            return (int) bitShifted;
+        }
+
+        // above the center: repeat the lower bits to reach the maximum
+        final int repeatBits = sourceBits - 1;
+        long repeatValue = value & ((1 << repeatBits) - 1);
+        if (scaleBits > repeatBits) {
+            repeatValue <<= scaleBits - repeatBits;
+        } else {
+            repeatValue >>= repeatBits - scaleBits;
+        }
+        while (repeatValue != 0) {
+            bitShifted |= repeatValue;
+            repeatValue >>= repeatBits;
+        }
+        return (int) bitShifted;
+    }
+
+    /**
+     * Translates a MIDI 2.0 Channel Voice Message to the packed MIDI 1.0 message
+     *
+     * @param status the MIDI 2.0 status, the opcode(0x8-0xe) and the channel
+     * @param index the note number, the controller number, or the program number
+     * @param value the 16-bit velocity, or the 32-bit value
+     * @return the packed message, see {@link MidiMessageEncoder}, 0 if the message can't be translated
+     */
+    static int toMidi1Message(int status, int index, int value) {
+        switch (status & 0xf0) {
+            case 0x80:
+                return MidiMessageEncoder.pack(status, index, value >>> 9);
+            case 0x90:
+                // the velocity 0 is the Note Off in MIDI 1.0
+                return MidiMessageEncoder.pack(status, index, Math.max(value >>> 9, 1));
+            case 0xa0:
+            case 0xb0:
+                return MidiMessageEncoder.pack(status, index, value >>> 25);
+            case 0xc0:
+                return MidiMessageEncoder.pack(status, index, 0);
+            case 0xd0:
+                return MidiMessageEncoder.pack(status, value >>> 25, 0);
+            case 0xe0:
+                return MidiMessageEncoder.pack(status, (value >>> 18) & 0x7f, value >>> 25);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Encodes and sends the packed messages, with as few packets as possible
+     *
+     * @param messages the packed messages
+     * @param offset the offset of the messages
+     * @param count the number of the messages
+     * @param timestamp the timestamp of the packets
+     * @param sender the packet sender
+     * @return the number of the encoded messages, the invalid messages are skipped
+     * @throws IOException thrown by the sender, the rest of the messages are discarded, see {@link #getSentMessageCount()}
+     */
+    int encode(int[] messages, int offset, int count, long timestamp, MidiMessageEncoder.PacketSender sender) throws IOException {
+        length = 0;
+        sentMessageCount = 0;
+        try {
+            for (int i = offset; i < offset + count; i++) {
+                if (append(messages[i], timestamp, sender)) {
+                    packetMessageCount++;
+                }
+            }
+            flush(timestamp, sender);
+        } finally {
+            length = 0;
+            packetMessageCount = 0;
+        }
+        return sentMessageCount;
+    }
+
+    /**
+     * Obtains the number of the messages sent by the last {@link #encode(int[], int, int, long, MidiMessageEncoder.PacketSender)}<br />
+     * If the sender has thrown, the messages in the packets sent before the failure are counted.
+     *
+     * @return the number of the sent messages
+     */
+    int getSentMessageCount() {
+        return sentMessageCount;
+    }
+
+    /**
+     * Encodes and sends a message
+     *
+     * @param message the packed message
+     * @param timestamp the timestamp of the packet
+     * @param sender the packet sender
+     * @return false if the message is invalid
+     */
+    boolean encode(int message, long timestamp, MidiMessageEncoder.PacketSender sender) throws IOException {
+        length = 0;
+        try {
+            if (!append(message, timestamp, sender)) {
+                return false;
+            }
+            flush(timestamp, sender);
+            return true;
+        } finally {
+            length = 0;
+        }
+    }
+
+    /**
+     * Encodes and sends a MIDI 2.0 Channel Voice Message, translated to MIDI 1.0 with the MIDI 1.0 protocol
+     *
+     * @param status the MIDI 2.0 status, the opcode(0x8-0xe) and the channel
+     * @param index the note number, or the controller number
+     * @param value the 16-bit velocity, or the 32-bit value
+     * @param timestamp the timestamp of the packet
+     * @param sender the packet sender
+     * @return false if the message is invalid
+     */
+    boolean encodeMidi2(int status, int index, int value, long timestamp, MidiMessageEncoder.PacketSender sender) throws IOException {
+        if (!midi2) {
+            final int message = toMidi1Message(status, index, value);
+            return message != 0 && encode(message, timestamp, sender);
+        }
+
+        final int word0 = 0x40000000 | ((status & 0xff) << 16) | ((index & 0x7f) << 8);
+        switch (status & 0xf0) {
+            case 0x80:
+            case 0x90:
+                putPacket(word0, (value & 0xffff) << 16);
+                break;
+            case 0xa0:
+            case 0xb0:
+            case 0xd0:
+            case 0xe0:
+                putPacket(word0, value);
+                break;
+            case 0xc0:
+                putPacket(0x40000000 | ((status & 0xff) << 16), (index & 0x7f) << 24);
+                break;
+            default:
+                return false;
+        }
+        try {
+            flush(timestamp, sender);
+        } finally {
+            length = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Encodes and sends the System Exclusive, or a part of it<br />
+     * The last packet of the part is kept until the next part or 0xf7, to be marked as the end.
+     *
+     * @param data the data, starts with 0xf0 for the first part, ends with 0xf7 for the last part
+     * @param offset the offset of the data
+     * @param count the length of the data
+     * @param timestamp the timestamp of the packets
+     * @param sender the packet sender
+     */
+    void encodeSystemExclusive(byte[] data, int offset, int count, long timestamp, MidiMessageEncoder.PacketSender sender) throws IOException {
+        length = 0;
+        try {
+            for (int i = offset; i < offset + count; i++) {
+                final int value = data[i] & 0xff;
+                if (value == 0xf0) {
+                    if (systemExclusiveOpen && systemExclusiveStarted) {
+                        // interrupted: close the previous message
+                        putSystemExclusive(SYSTEM_EXCLUSIVE_END, timestamp, sender);
+                    }
+                    systemExclusiveOpen = true;
+                    systemExclusiveStarted = false;
+                    systemExclusiveLength = 0;
+                } else if (value == 0xf7) {
+                    if (systemExclusiveOpen) {
+                        putSystemExclusive(systemExclusiveStarted ? SYSTEM_EXCLUSIVE_END : SYSTEM_EXCLUSIVE_COMPLETE, timestamp, sender);
+                        systemExclusiveOpen = false;
+                    }
+                } else if (value < 0x80 && systemExclusiveOpen) {
+                    if (systemExclusiveLength == systemExclusiveData.length) {
+                        putSystemExclusive(systemExclusiveStarted ? SYSTEM_EXCLUSIVE_CONTINUE : SYSTEM_EXCLUSIVE_START, timestamp, sender);
+                        systemExclusiveStarted = true;
+                    }
+                    systemExclusiveData[systemExclusiveLength++] = (byte) value;
+                }
+            }
+            flush(timestamp, sender);
+        } finally {
+            length = 0;
+        }
+    }
+
+    private void putSystemExclusive(int status, long timestamp, MidiMessageEncoder.PacketSender sender) throws IOException {
+        ensureRemaining(8, timestamp, sender);
+        final byte[] bytes = systemExclusiveData;
+        final int count = systemExclusiveLength;
+        int word0 = 0x30000000 | (status << 20) | (count << 16);
+        int word1 = 0;
+        for (int i = 0; i < count; i++) {
+            if (i < 2) {
+                word0 |= (bytes[i] & 0x7f) << (8 - i * 8);
+            } else {
+                word1 |= (bytes[i] & 0x7f) << (24 - (i - 2) * 8);
+            }
+        }
+        putPacket(word0, word1);
+        systemExclusiveLength = 0;
+    }
+
+    private boolean append(int message, long timestamp, MidiMessageEncoder.PacketSender sender) throws IOException {
+        final int status = message & 0xff;
+        if (MidiMessageEncoder.getMessageLength(status) == 0) {
+            return false;
+        }
+        final int data1 = (message >> 8) & 0x7f;
+        final int data2 = (message >> 16) & 0x7f;
+
+        ensureRemaining(8, timestamp, sender);
+        if (status >= 0xf0) {
+            // System Common and System Realtime
+            putWord(0x10000000 | (status << 16) | (data1 << 8) | data2);
+            return true;
+        }
+        if (!midi2) {
+            putWord(0x20000000 | (status << 16) | (data1 << 8) | data2);
+            return true;
+        }
+
+        final int word0 = 0x40000000 | (status << 16) | (data1 << 8);
+        switch (status & 0xf0) {
+            case 0x90:
+                if (data2 == 0) {
+                    // Note On with the velocity 0: Note Off with the default velocity
+                    putPacket(0x40000000 | ((0x80 | (status & 0xf)) << 16) | (data1 << 8), scaleUp(64, 7, 16) << 16);
+                } else {
+                    putPacket(word0, scaleUp(data2, 7, 16) << 16);
+                }
+                break;
+            case 0x80:
+                putPacket(word0, scaleUp(data2, 7, 16) << 16);
+                break;
+            case 0xa0:
+            case 0xb0:
+                putPacket(word0, scaleUp(data2, 7, 32));
+                break;
+            case 0xc0:
+                putPacket(0x40000000 | (status << 16), data1 << 24);
+                break;
+            case 0xd0:
+                putPacket(0x40000000 | (status << 16), scaleUp(data1, 7, 32));
+                break;
+            default:
+                // 0xe0
+                putPacket(0x40000000 | (status << 16), scaleUp(data1 | (data2 << 7), 14, 32));
+                break;
+        }
+        return true;
+    }
+
+    private void ensureRemaining(int size, long timestamp, MidiMessageEncoder.PacketSender sender) throws IOException {
+        if (buffer.length - length < size) {
+            flush(timestamp, sender);
+        }
+    }
+
+    private void flush(long timestamp, MidiMessageEncoder.PacketSender sender) throws IOException {
+        if (length > 0) {
+            final int count = length;
+            length = 0;
+            sender.send(buffer, 0, count, timestamp);
+            sentMessageCount += packetMessageCount;
+            packetMessageCount = 0;
+        }
+    }
+
+    private void putPacket(int word0, int word1) {
+        putWord(word0);
+        putWord(word1);
+    }
+
+    private void putWord(int word) {
+        buffer[length++] = (byte) (word >>> 24);
+        buffer[length++] = (byte) (word >>> 16);
+        buffer[length++] = (byte) (word >>> 8);
+        buffer[length++] = (byte) word;
+    }
+}
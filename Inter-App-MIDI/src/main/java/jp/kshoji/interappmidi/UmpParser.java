@@ -0,0 +1,243 @@
+package jp.kshoji.interappmidi;
+
+/**
+ * Stateful Universal MIDI Packet parser<br />
+ * The received bytes are read as the big-endian 32-bit words, and the packets are dispatched by the message type of the first word.
+ * The words and the packets split across the received packets are kept.<br />
+ * System Common, System Realtime and the MIDI 1.0 Channel Voice Messages are delivered as MIDI 1.0 messages.
+ * The MIDI 2.0 Channel Voice Messages are delivered with the full resolution values, the listener may translate them with {@link #translate}.
+ * The 7-bit System Exclusive packets are reassembled with the {@link MidiParser}, so they are delivered as the MIDI 1.0 System Exclusive.<br />
+ * The utility messages, the 8-bit System Exclusive, the Flex Data and the UMP Stream messages are ignored, and the groups are merged.<br />
+ * No objects are allocated per event, and this class depends only on the Java runtime, not on android.*.
+ */
+final class UmpParser {
+    /**
+     * Listener for the parsed events<br />
+     * Called on the thread which calls {@link #parse(byte[], int, int, long)}.
+     */
+    interface OnUmpEventListener extends MidiParser.OnMidiEventListener {
+        /**
+         * Called when a MIDI 2.0 Channel Voice Message has been parsed
+         *
+         * @param group the group, 0-15
+         * @param status the MIDI 2.0 status, the opcode and the channel: 0x8n-0xen, 0x2n for RPN, 0x3n for NRPN
+         * @param index the note number, the controller number, the program number, or the RPN/NRPN index(LSB)
+         * @param bank the note attribute type, the bank valid flag of Program Change, or the RPN/NRPN bank(MSB)
+         * @param value the 16-bit velocity, the bank(MSB &lt;&lt; 7 | LSB) of Program Change, or the 32-bit value
+         * @param extra the note attribute data, 0 for the other messages
+         * @param timestamp the timestamp of the packet, in {@link System#nanoTime()} base
+         */
+        void onMidi2Message(int group, int status, int index, int bank, int value, int extra, long timestamp);
+    }
+
+    private final OnUmpEventListener listener;
+    private final MidiParser systemExclusiveParser;
+
+    private final int[] words = new int[4];
+    private int wordIndex;
+    private int wordCount;
+    // the bytes of the word split across the received packets
+    private int partialWord;
+    private int partialLength;
+    private final byte[] systemExclusiveBytes = new byte[8];
+
+    /**
+     * Constructor
+     *
+     * @param listener the listener
+     * @param systemExclusiveParser the parser to reassemble the System Exclusive, should deliver to the listener
+     */
+    UmpParser(OnUmpEventListener listener, MidiParser systemExclusiveParser) {
+        this.listener = listener;
+        this.systemExclusiveParser = systemExclusiveParser;
+    }
+
+    /**
+     * Obtains the number of the words of the packet
+     *
+     * @param word0 the first word of the packet
+     * @return 1 - 4
+     */
+    static int getWordCount(int word0) {
+        switch (word0 >>> 28) {
+            case 0x0:
+            case 0x1:
+            case 0x2:
+            case 0x6:
+            case 0x7:
+                return 1;
+            case 0x3:
+            case 0x4:
+            case 0x8:
+            case 0x9:
+            case 0xa:
+                return 2;
+            case 0xb:
+            case 0xc:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * Discards the partial packet
+     */
+    void reset() {
+        wordIndex = 0;
+        partialLength = 0;
+        systemExclusiveParser.reset();
+    }
+
+    /**
+     * Parses the received bytes
+     *
+     * @param data the bytes
+     * @param offset the offset
+     * @param count the length
+     * @param timestamp the timestamp of the packet, in {@link System#nanoTime()} base
+     */
+    void parse(byte[] data, int offset, int count, long timestamp) {
+        int i = offset;
+        final int end = offset + count;
+        while (partialLength > 0 && i < end) {
+            partialWord = (partialWord << 8) | (data[i++] & 0xff);
+            if (++partialLength == 4) {
+                partialLength = 0;
+                parseWord(partialWord, timestamp);
+            }
+        }
+
+        for (; i + 4 <= end; i += 4) {
+            parseWord(((data[i] & 0xff) << 24) | ((data[i + 1] & 0xff) << 16) | ((data[i + 2] & 0xff) << 8) | (data[i + 3] & 0xff), timestamp);
+        }
+
+        for (; i < end; i++) {
+            partialWord = (partialWord << 8) | (data[i] & 0xff);
+            partialLength++;
+        }
+    }
+
+    private void parseWord(int word, long timestamp) {
+        if (wordIndex == 0) {
+            wordCount = getWordCount(word);
+        }
+        words[wordIndex++] = word;
+        if (wordIndex == wordCount) {
+            wordIndex = 0;
+            parsePacket(timestamp);
+        }
+    }
+
+    private void parsePacket(long timestamp) {
+        final int word0 = words[0];
+        switch (word0 >>> 28) {
+            case 0x1: {
+                // System Common and System Realtime
+                final int status = (word0 >> 16) & 0xff;
+                if (status > 0xf0 && status != 0xf7) {
+                    listener.onMidiMessage(status, (word0 >> 8) & 0x7f, word0 & 0x7f, timestamp);
+                }
+                break;
+            }
+            case 0x2: {
+                // MIDI 1.0 Channel Voice
+                final int status = (word0 >> 16) & 0xff;
+                if (status >= 0x80 && status < 0xf0) {
+                    listener.onMidiMessage(status, (word0 >> 8) & 0x7f, word0 & 0x7f, timestamp);
+                }
+                break;
+            }
+            case 0x3:
+                parseSystemExclusive(word0, words[1], timestamp);
+                break;
+            case 0x4:
+                parseMidi2ChannelVoice(word0, words[1], timestamp);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void parseSystemExclusive(int word0, int word1, long timestamp) {
+        final int status = (word0 >> 20) & 0xf;
+        final int count = Math.min((word0 >> 16) & 0xf, 6);
+        int length = 0;
+        if (status == 0 || status == 1) {
+            // complete, or start
+            systemExclusiveBytes[length++] = (byte) 0xf0;
+        }
+        for (int i = 0; i < count; i++) {
+            final int value = i < 2 ? word0 >> (8 - i * 8) : word1 >> (24 - (i - 2) * 8);
+            systemExclusiveBytes[length++] = (byte) (value & 0x7f);
+        }
+        if (status == 0 || status == 3) {
+            // complete, or end
+            systemExclusiveBytes[length++] = (byte) 0xf7;
+        }
+        systemExclusiveParser.parse(systemExclusiveBytes, 0, length, timestamp);
+    }
+
+    private void parseMidi2ChannelVoice(int word0, int word1, long timestamp) {
+        final int group = (word0 >> 24) & 0xf;
+        final int status = (word0 >> 16) & 0xff;
+        switch (status & 0xf0) {
+            case 0x80:
+            case 0x90:
+                listener.onMidi2Message(group, status, (word0 >> 8) & 0x7f, word0 & 0xff, word1 >>> 16, word1 & 0xffff, timestamp);
+                break;
+            case 0xa0:
+            case 0xb0:
+                listener.onMidi2Message(group, status, (word0 >> 8) & 0x7f, 0, word1, 0, timestamp);
+                break;
+            case 0xc0:
+                listener.onMidi2Message(group, status, (word1 >> 24) & 0x7f, word0 & 1, ((word1 >> 8) & 0x7f) << 7 | (word1 & 0x7f), 0, timestamp);
+                break;
+            case 0xd0:
+            case 0xe0:
+                listener.onMidi2Message(group, status, 0, 0, word1, 0, timestamp);
+                break;
+            case 0x20:
+            case 0x30:
+                // Registered / Assignable Controller
+                listener.onMidi2Message(group, status, word0 & 0x7f, (word0 >> 8) & 0x7f, word1, 0, timestamp);
+                break;
+            default:
+                // the per-note and relative controllers and the per-note management are not supported
+                break;
+        }
+    }
+
+    /**
+     * Translates a MIDI 2.0 Channel Voice Message to MIDI 1.0, with the arguments of {@link OnUmpEventListener#onMidi2Message}
+     *
+     * @param listener the listener of the MIDI 1.0 messages
+     */
+    static void translate(int status, int index, int bank, int value, long timestamp, MidiParser.OnMidiEventListener listener) {
+        final int channel = status & 0xf;
+        switch (status & 0xf0) {
+            case 0x20:
+            case 0x30:
+                // RPN / NRPN: the controller sequence
+                final boolean registered = (status & 0xf0) == 0x20;
+                listener.onMidiMessage(0xb0 | channel, registered ? 101 : 99, bank & 0x7f, timestamp);
+                listener.onMidiMessage(0xb0 | channel, registered ? 100 : 98, index & 0x7f, timestamp);
+                listener.onMidiMessage(0xb0 | channel, 6, value >>> 25, timestamp);
+                listener.onMidiMessage(0xb0 | channel, 38, (value >>> 18) & 0x7f, timestamp);
+                return;
+            case 0xc0:
+                if (bank != 0) {
+                    listener.onMidiMessage(0xb0 | channel, 0, (value >> 7) & 0x7f, timestamp);
+                    listener.onMidiMessage(0xb0 | channel, 32, value & 0x7f, timestamp);
+                }
+                listener.onMidiMessage(status, index, 0, timestamp);
+                return;
+            default:
+                final int message = UmpEncoder.toMidi1Message(status, index, value);
+                if (message != 0) {
+                    listener.onMidiMessage(message & 0xff, (message >> 8) & 0x7f, (message >> 16) & 0x7f, timestamp);
+                }
+                break;
+        }
+    }
+}
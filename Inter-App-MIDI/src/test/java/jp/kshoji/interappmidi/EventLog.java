@@ -0,0 +1,91 @@
+package jp.kshoji.interappmidi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the events delivered to the listeners as the readable strings, for the tests<br />
+ * The bytes are written in the lower case hexadecimal separated by the spaces, such as "90 3c 64".
+ */
+final class EventLog implements UmpParser.OnUmpEventListener, MidiEventCoalescer.OnMidiMessageListener, MidiControllerAggregator.OnControllerEventListener, MidiMessageEncoder.PacketSender, MidiOutputScheduler.Target {
+    final List<String> events = new ArrayList<>();
+    final List<Long> timestamps = new ArrayList<>();
+
+    static String hex(byte[] data, int offset, int length) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = offset; i < offset + length; i++) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(String.format("%02x", data[i] & 0xff));
+        }
+        return builder.toString();
+    }
+
+    static byte[] bytes(int... values) {
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = (byte) values[i];
+        }
+        return data;
+    }
+
+    private synchronized void add(String event, long timestamp) {
+        events.add(event);
+        timestamps.add(timestamp);
+    }
+
+    synchronized List<String> events() {
+        return new ArrayList<>(events);
+    }
+
+    @Override
+    public void onMidiMessage(int status, int data1, int data2, long timestamp) {
+        add(String.format("%02x %02x %02x", status, data1, data2), timestamp);
+    }
+
+    @Override
+    public void onMidiSystemExclusive(byte[] data, int offset, int length, long timestamp) {
+        add("sysex " + hex(data, offset, length), timestamp);
+    }
+
+    @Override
+    public void onMidiSystemExclusiveChunk(byte[] data, int offset, int length, boolean last, long timestamp) {
+        add((last ? "last chunk " : "chunk ") + hex(data, offset, length), timestamp);
+    }
+
+    @Override
+    public void onMidi2Message(int group, int status, int index, int bank, int value, int extra, long timestamp) {
+        add(String.format("midi2 %x %02x %d %d %08x %d", group, status, index, bank, value, extra), timestamp);
+    }
+
+    @Override
+    public void onHighResolutionControlChange(int channel, int controller, int value, long timestamp) {
+        add("cc " + channel + " " + controller + " " + value, timestamp);
+    }
+
+    @Override
+    public void onParameterChange(int channel, boolean registered, int parameter, int value, long timestamp) {
+        add((registered ? "rpn " : "nrpn ") + channel + " " + parameter + " " + value, timestamp);
+    }
+
+    @Override
+    public void onParameterStep(int channel, boolean registered, int parameter, int step, long timestamp) {
+        add((registered ? "rpn step " : "nrpn step ") + channel + " " + parameter + " " + step, timestamp);
+    }
+
+    @Override
+    public void send(byte[] data, int offset, int count, long timestamp) {
+        add(hex(data, offset, count), timestamp);
+    }
+
+    @Override
+    public void sendScheduled(int message, long timestamp) {
+        add(String.format("%02x %02x %02x", message & 0xff, (message >> 8) & 0x7f, (message >> 16) & 0x7f), timestamp);
+    }
+
+    @Override
+    public void sendScheduled(byte[] data, long timestamp) {
+        add("sysex " + hex(data, 0, data.length), timestamp);
+    }
+}
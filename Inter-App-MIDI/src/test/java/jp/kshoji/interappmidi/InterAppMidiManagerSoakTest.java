@@ -0,0 +1,342 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static jp.kshoji.interappmidi.MidiMessageEncoder.pack;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link InterAppMidiManager} on the JVM against {@link LoopbackMidiTransport}, with the hot-plug churn and the concurrent sends
+ */
+public class InterAppMidiManagerSoakTest {
+    private static final int SENDER_COUNT = 4;
+    private static final int NOTES_PER_SENDER = 2000;
+    private static final int SYSTEM_EXCLUSIVE_COUNT = 100;
+    private static final int SYSTEM_EXCLUSIVE_LENGTH = 3000;
+
+    private JvmMidiHost host;
+    private LoopbackMidiTransport transport;
+    private InterAppMidiManager manager;
+    private final List<Throwable> threadFailures = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        host = new JvmMidiHost();
+        transport = new LoopbackMidiTransport();
+        manager = new InterAppMidiManager(host);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        manager.terminate();
+        host.awaitIdle();
+        host.quit();
+        assertEquals(new ArrayList<Throwable>(), host.failures);
+    }
+
+    /**
+     * Receives the notes and the System Exclusive messages of a port
+     */
+    private static final class Receiver extends InterAppMidiManager.MidiInputEventAdapter {
+        private final int portHandle;
+        // the next note number of each channel, written by the receiving thread
+        private final int[] nextNotes = new int[16];
+        private final AtomicInteger noteCount = new AtomicInteger();
+        private final AtomicInteger systemExclusiveCount = new AtomicInteger();
+        private final AtomicInteger clockCount = new AtomicInteger();
+        private volatile String error;
+
+        private Receiver(int portHandle) {
+            this.portHandle = portHandle;
+        }
+
+        @Override
+        public void onMidiNoteOn(int portHandle, int channel, int note, int velocity, long timestamp) {
+            if (portHandle != this.portHandle) {
+                return;
+            }
+            if (note != nextNotes[channel]) {
+                error = "channel " + channel + ": " + note + " received, expected " + nextNotes[channel];
+            }
+            nextNotes[channel] = (note + 1) & 0x7f;
+            noteCount.incrementAndGet();
+        }
+
+        @Override
+        public void onMidiSystemMessage(int portHandle, int status, int data1, int data2, long timestamp) {
+            if (portHandle == this.portHandle && status == 0xf8) {
+                clockCount.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onMidiSystemExclusive(int portHandle, byte[] data, int offset, int length, long timestamp) {
+            if (portHandle != this.portHandle) {
+                return;
+            }
+            byte[] expected = createSystemExclusive(data[offset + 1]);
+            byte[] received = new byte[length];
+            System.arraycopy(data, offset, received, 0, length);
+            assertArrayEquals(expected, received);
+            systemExclusiveCount.incrementAndGet();
+        }
+    }
+
+    private static byte[] createSystemExclusive(int index) {
+        byte[] data = new byte[SYSTEM_EXCLUSIVE_LENGTH];
+        data[0] = (byte) 0xf0;
+        data[1] = (byte) index;
+        for (int i = 2; i < data.length - 1; i++) {
+            data[i] = (byte) ((i + index) & 0x7f);
+        }
+        data[data.length - 1] = (byte) 0xf7;
+        return data;
+    }
+
+    private Thread startThread(final Runnable runnable) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (Throwable e) {
+                    synchronized (threadFailures) {
+                        threadFailures.add(e);
+                    }
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void join(List<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+            assertTrue(thread.getName() + " is not finished", !thread.isAlive());
+        }
+        synchronized (threadFailures) {
+            assertEquals(new ArrayList<Throwable>(), threadFailures);
+        }
+    }
+
+    private static void awaitCount(AtomicInteger count, int expected) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (count.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(expected, count.get());
+    }
+
+    private static String getSendingDeviceId(MidiTransport.DeviceInfo device) {
+        return "out:" + device.getId() + "-0";
+    }
+
+    private static String getReceivingDeviceId(MidiTransport.DeviceInfo device) {
+        return "in:" + device.getId() + "-0";
+    }
+
+    @Test
+    public void concurrentSends() throws InterruptedException {
+        manager.initialize(null, false, InterAppMidiManager.DISPATCH_HANDLER_THREAD, 1024, InterAppMidiManager.OVERFLOW_BLOCK, transport);
+        MidiTransport.DeviceInfo device = transport.addDevice("loopback", 1);
+        host.awaitIdle();
+        final int sendingPortHandle = manager.getPortHandle(getSendingDeviceId(device));
+        final int receivingPortHandle = manager.getPortHandle(getReceivingDeviceId(device));
+        assertTrue(manager.isMidiPortOpened(sendingPortHandle));
+        Receiver receiver = new Receiver(receivingPortHandle);
+        manager.addMidiInputEventListener(receiver);
+
+        final AtomicInteger sentClockCount = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < SENDER_COUNT; i++) {
+            final int channel = i;
+            threads.add(startThread(new Runnable() {
+                @Override
+                public void run() {
+                    int[] messages = new int[8];
+                    for (int note = 0; note < NOTES_PER_SENDER; ) {
+                        if ((note & 1) == 0) {
+                            manager.sendMidiNoteOn(sendingPortHandle, channel, note & 0x7f, 100);
+                            manager.sendMidiNoteOff(sendingPortHandle, channel, note & 0x7f, 0);
+                            note++;
+                        } else {
+                            // the batch of the notes
+                            int count = 0;
+                            for (; count < messages.length / 2 && note < NOTES_PER_SENDER; note++) {
+                                messages[count * 2] = pack(0x90 | channel, note & 0x7f, 100);
+                                messages[count * 2 + 1] = pack(0x80 | channel, note & 0x7f, 0);
+                                count++;
+                            }
+                            manager.sendMidiMessages(sendingPortHandle, messages, 0, count * 2);
+                        }
+                        // the System Realtime messages may be sent in the middle of the System Exclusive messages
+                        manager.sendMidiTimingClock(sendingPortHandle);
+                        sentClockCount.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        threads.add(startThread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < SYSTEM_EXCLUSIVE_COUNT; i++) {
+                    manager.sendMidiSystemExclusive(sendingPortHandle, createSystemExclusive(i));
+                }
+            }
+        }));
+        join(threads);
+
+        awaitCount(receiver.noteCount, SENDER_COUNT * NOTES_PER_SENDER);
+        awaitCount(receiver.systemExclusiveCount, SYSTEM_EXCLUSIVE_COUNT);
+        awaitCount(receiver.clockCount, sentClockCount.get());
+        assertEquals(null, receiver.error);
+        // the blocking dispatcher doesn't drop the messages to Unity
+        host.awaitIdle();
+        assertEquals(0, manager.getDispatchDroppedEventCount());
+        assertEquals(SENDER_COUNT * NOTES_PER_SENDER, host.getMessageCount("OnMidiNoteOn"));
+        assertEquals(sentClockCount.get(), host.getMessageCount("OnMidiTimingClock"));
+    }
+
+    @Test
+    public void hotPlugChurn() throws InterruptedException {
+        manager.initialize(null, false, InterAppMidiManager.DISPATCH_HANDLER_THREAD, 1024, InterAppMidiManager.OVERFLOW_DROP_OLDEST, transport);
+        manager.setIdlePortTimeout(1);
+        manager.setLazyPortOpeningEnabled(true);
+        final MidiTransport.DeviceInfo stableDevice = transport.addDevice("stable", 1);
+        host.awaitIdle();
+        final int stablePortHandle = manager.getPortHandle(getSendingDeviceId(stableDevice));
+        final int stableReceivingPortHandle = manager.getPortHandle(getReceivingDeviceId(stableDevice));
+        // the receiving port is opened explicitly, the sending port on the first send
+        manager.openMidiPort(stableReceivingPortHandle);
+        host.awaitIdle();
+        assertTrue(manager.isMidiPortOpened(stableReceivingPortHandle));
+        Receiver receiver = new Receiver(stableReceivingPortHandle);
+        manager.addMidiInputEventListener(receiver);
+
+        final List<MidiTransport.DeviceInfo> churnedDevices = new ArrayList<>();
+        final int churnCount = 300;
+        List<Thread> threads = new ArrayList<>();
+        final Thread churnThread = startThread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(1);
+                for (int i = 0; i < churnCount; i++) {
+                    MidiTransport.DeviceInfo device = transport.addDevice("churn" + i, 1 + random.nextInt(3));
+                    synchronized (churnedDevices) {
+                        churnedDevices.add(device);
+                    }
+                    if (random.nextBoolean()) {
+                        Thread.yield();
+                    }
+                    transport.removeDevice(device);
+                }
+            }
+        });
+        threads.add(churnThread);
+        // sends to the churned ports, the handles may be stale at any time
+        threads.add(startThread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] systemExclusive = createSystemExclusive(0);
+                int note = 0;
+                while (churnThread.isAlive()) {
+                    MidiTransport.DeviceInfo device;
+                    synchronized (churnedDevices) {
+                        if (churnedDevices.isEmpty()) {
+                            continue;
+                        }
+                        device = churnedDevices.get(churnedDevices.size() - 1);
+                    }
+                    int portHandle = manager.getPortHandle(getSendingDeviceId(device));
+                    manager.sendMidiNoteOn(portHandle, 0, note, 100);
+                    manager.sendMidiNoteOff(portHandle, 0, note, 0);
+                    note = (note + 1) & 0x7f;
+                    if (note == 0) {
+                        manager.sendMidiSystemExclusive(portHandle, systemExclusive);
+                    }
+                    transport.transmit(device, 0, new byte[]{(byte) 0x90, 0x3c, 0x64}, 0, 3, System.nanoTime());
+                }
+            }
+        }));
+        // the traffic of the stable device continues through the churn
+        threads.add(startThread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 1000; i++) {
+                    manager.sendMidiNoteOn(stablePortHandle, 1, i & 0x7f, 100);
+                    manager.sendMidiNoteOff(stablePortHandle, 1, i & 0x7f, 0);
+                    if ((i & 0x3f) == 0) {
+                        Thread.yield();
+                    }
+                }
+            }
+        }));
+        join(threads);
+        host.awaitIdle();
+
+        for (MidiTransport.DeviceInfo device : churnedDevices) {
+            assertEquals(-1, manager.getPortHandle(getSendingDeviceId(device)));
+            assertEquals(-1, manager.getPortHandle(getReceivingDeviceId(device)));
+        }
+        assertEquals(stablePortHandle, manager.getPortHandle(getSendingDeviceId(stableDevice)));
+        awaitCount(receiver.noteCount, 1000);
+        assertEquals(null, receiver.error);
+
+        // the port handles are reused after the churn
+        MidiTransport.DeviceInfo device = transport.addDevice("after", 1);
+        host.awaitIdle();
+        final int portHandle = manager.getPortHandle(getSendingDeviceId(device));
+        assertTrue(portHandle > 0);
+        assertEquals(getSendingDeviceId(device), manager.getDeviceId(portHandle));
+        final int receivingPortHandle = manager.getPortHandle(getReceivingDeviceId(device));
+        manager.openMidiPort(receivingPortHandle);
+        host.awaitIdle();
+        Receiver afterReceiver = new Receiver(receivingPortHandle);
+        manager.addMidiInputEventListener(afterReceiver);
+        manager.sendMidiSystemExclusive(portHandle, createSystemExclusive(1));
+        awaitCount(afterReceiver.systemExclusiveCount, 1);
+    }
+
+    @Test
+    public void terminateWhileDiscovering() throws InterruptedException {
+        final List<Throwable> uncaughtExceptions = new ArrayList<>();
+        Thread.UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable e) {
+                synchronized (uncaughtExceptions) {
+                    uncaughtExceptions.add(e);
+                }
+            }
+        });
+        try {
+            transport.addDevice("connected", 1);
+            for (int i = 0; i < 200; i++) {
+                // the polling connection watcher, and the device callbacks
+                manager.initialize(null, (i & 1) == 0, InterAppMidiManager.DISPATCH_HANDLER_THREAD, 1024, InterAppMidiManager.OVERFLOW_DROP_OLDEST, transport);
+                MidiTransport.DeviceInfo device = transport.addDevice("added" + i, 1);
+                manager.terminate();
+                transport.removeDevice(device);
+            }
+            host.awaitIdle();
+            // the watcher threads sleep for a second between the polls
+            Thread.sleep(1500);
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+        }
+        synchronized (uncaughtExceptions) {
+            assertEquals(new ArrayList<Throwable>(), uncaughtExceptions);
+        }
+    }
+}
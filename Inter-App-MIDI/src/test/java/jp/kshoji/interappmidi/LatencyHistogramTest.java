@@ -0,0 +1,78 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    private static final long MICROSECOND = 1000;
+
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        for (long value = 0; value < 32; value++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value * MICROSECOND);
+            assertEquals(value * MICROSECOND, histogram.getValueAtPercentile(100));
+        }
+    }
+
+    @Test
+    public void bucketErrorIsBelowOneSixteenth() {
+        for (long value = 32; value < (1L << 36); value = value * 5 / 4 + 1) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value * MICROSECOND);
+            final long bucketValue = histogram.getValueAtPercentile(100) / MICROSECOND;
+            assertTrue(value + " -> " + bucketValue, bucketValue >= value);
+            assertTrue(value + " -> " + bucketValue, bucketValue - value <= value / 16);
+        }
+    }
+
+    @Test
+    public void bucketBoundaries() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 32 and 33 share a bucket, 34 is in the next bucket
+        histogram.record(32 * MICROSECOND);
+        assertEquals(33 * MICROSECOND, histogram.getValueAtPercentile(100));
+        histogram.reset();
+        histogram.record(64 * MICROSECOND);
+        assertEquals(67 * MICROSECOND, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 100; value++) {
+            histogram.record(value * MICROSECOND);
+        }
+        assertEquals(100, histogram.getTotalCount());
+        assertEquals(1 * MICROSECOND, histogram.getValueAtPercentile(0));
+        assertEquals(51 * MICROSECOND, histogram.getValueAtPercentile(50));
+        assertEquals(103 * MICROSECOND, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void outOfRangeValuesAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5 * MICROSECOND);
+        assertEquals(0, histogram.getValueAtPercentile(100));
+        histogram.reset();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(((1L << 36) - 1) * MICROSECOND, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void resetClearsCounts() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10 * MICROSECOND);
+        histogram.reset();
+        assertEquals(0, histogram.getTotalCount());
+    }
+}
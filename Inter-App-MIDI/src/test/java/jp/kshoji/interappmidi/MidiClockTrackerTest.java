@@ -0,0 +1,101 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MidiClockTrackerTest {
+    // 120 BPM
+    private static final long CLOCK_INTERVAL = 60_000_000_000L / 120 / MidiClockTracker.CLOCKS_PER_BEAT;
+
+    private final List<String> events = new ArrayList<>();
+    private final List<Float> tempos = new ArrayList<>();
+    private MidiClockTracker tracker;
+    private long time;
+
+    @Before
+    public void setUp() {
+        tracker = new MidiClockTracker(new MidiClockTracker.OnClockEventListener() {
+            @Override
+            public void onBeat(long beat, long timestamp) {
+                events.add("beat " + beat);
+            }
+
+            @Override
+            public void onBar(long bar, long timestamp) {
+                events.add("bar " + bar);
+            }
+
+            @Override
+            public void onTempoChanged(float bpm, long timestamp) {
+                tempos.add(bpm);
+            }
+        }, 4);
+    }
+
+    private void clocks(int count, long interval, long jitter) {
+        for (int i = 0; i < count; i++) {
+            tracker.onMidiMessage(0xf8, 0, 0, time + (i % 2 == 0 ? jitter : -jitter));
+            time += interval;
+        }
+    }
+
+    @Test
+    public void tempoIsFittedOverJitter() {
+        clocks(6, CLOCK_INTERVAL, 0);
+        // too few clocks to estimate
+        assertEquals(0f, tracker.getTempo(), 0f);
+
+        // 1 millisecond of the jitter is 5% of the clock interval
+        clocks(MidiClockTracker.CLOCKS_PER_BEAT * 4, CLOCK_INTERVAL, 1_000_000);
+        assertEquals(120f, tracker.getTempo(), 0.25f);
+        // the tempo changes smaller than the threshold are not reported
+        assertTrue(tempos.size() < 10);
+        assertEquals(tracker.getTempo(), tempos.get(tempos.size() - 1), 0f);
+    }
+
+    @Test
+    public void pauseStartsOver() {
+        clocks(MidiClockTracker.CLOCKS_PER_BEAT * 2, CLOCK_INTERVAL, 0);
+        assertEquals(120f, tracker.getTempo(), 0.01f);
+
+        // longer than the clock interval at 10 BPM
+        time += 1_000_000_000L;
+        // 60 BPM, the clocks before the pause are not in the fit
+        clocks(7, CLOCK_INTERVAL * 2, 0);
+        assertEquals(60f, tracker.getTempo(), 0.01f);
+    }
+
+    @Test
+    public void songPositionPointer() {
+        // the position is not advanced before Start or Continue
+        clocks(MidiClockTracker.CLOCKS_PER_BEAT, CLOCK_INTERVAL, 0);
+        assertEquals(0, tracker.getClockPosition());
+
+        // 28 MIDI beats is the beat 7
+        tracker.onMidiMessage(0xf2, 28, 0, time);
+        assertEquals(7 * MidiClockTracker.CLOCKS_PER_BEAT, tracker.getClockPosition());
+        tracker.onMidiMessage(0xfb, 0, 0, time);
+        clocks(MidiClockTracker.CLOCKS_PER_BEAT * 2, CLOCK_INTERVAL, 0);
+        assertEquals(Arrays.asList("beat 7", "beat 8", "bar 2"), events);
+
+        tracker.onMidiMessage(0xfc, 0, 0, time);
+        clocks(MidiClockTracker.CLOCKS_PER_BEAT, CLOCK_INTERVAL, 0);
+        assertEquals(9 * MidiClockTracker.CLOCKS_PER_BEAT, tracker.getClockPosition());
+
+        // the 14 bit value, 0x81 MIDI beats
+        tracker.onMidiMessage(0xf2, 1, 1, time);
+        assertEquals(0x81 * 6, tracker.getClockPosition());
+
+        tracker.onMidiMessage(0xfa, 0, 0, time);
+        clocks(1, CLOCK_INTERVAL, 0);
+        assertEquals("bar 0", events.get(events.size() - 1));
+        assertEquals(1, tracker.getClockPosition());
+    }
+}
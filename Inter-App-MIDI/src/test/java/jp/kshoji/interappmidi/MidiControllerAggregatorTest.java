@@ -0,0 +1,157 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MidiControllerAggregatorTest {
+    private static final long TIMEOUT = 1000;
+
+    private EventLog log;
+    private MidiControllerAggregator aggregator;
+    private int expirationRequestCount;
+
+    @Before
+    public void setUp() {
+        log = new EventLog();
+        aggregator = new MidiControllerAggregator(TIMEOUT, new Runnable() {
+            @Override
+            public void run() {
+                expirationRequestCount++;
+            }
+        });
+    }
+
+    private boolean offer(int status, int data1, int data2, long timestamp) {
+        return aggregator.offer(status, data1, data2, timestamp, log);
+    }
+
+    @Test
+    public void sevenBitControllerUntilLsbReceived() {
+        assertTrue(offer(0xb0, 1, 64, 0));
+        assertEquals(Arrays.asList("cc 0 1 8192"), log.events);
+        assertEquals(0, expirationRequestCount);
+    }
+
+    @Test
+    public void msbAndLsbAreCombined() {
+        offer(0xb0, 1, 64, 0);
+        assertTrue(offer(0xb0, 33, 1, 1));
+        // the MSB is kept after the LSB has been received once
+        assertTrue(offer(0xb0, 1, 65, 2));
+        assertTrue(aggregator.hasPendingValues());
+        assertEquals(1, expirationRequestCount);
+        assertTrue(offer(0xb0, 33, 2, 3));
+        assertFalse(aggregator.hasPendingValues());
+        assertEquals(Arrays.asList("cc 0 1 8192", "cc 0 1 8193", "cc 0 1 8322"), log.events);
+        assertEquals(Arrays.asList(0L, 1L, 3L), log.timestamps);
+    }
+
+    @Test
+    public void keptMsbIsDeliveredBeforeOtherMessage() {
+        offer(0xb2, 7, 100, 0);
+        offer(0xb2, 39, 0, 0);
+        offer(0xb2, 7, 101, 10);
+        // the other message of the channel resolves the kept MSB
+        assertFalse(offer(0x92, 60, 100, 20));
+        assertEquals(Arrays.asList("cc 2 7 12800", "cc 2 7 12800", "cc 2 7 12928"), log.events);
+        assertEquals(Long.valueOf(10), log.timestamps.get(2));
+    }
+
+    @Test
+    public void keptMsbOfOtherChannelIsKept() {
+        offer(0xb2, 7, 100, 0);
+        offer(0xb2, 39, 0, 0);
+        offer(0xb2, 7, 101, 10);
+        assertFalse(offer(0x93, 60, 100, 20));
+        assertEquals(2, log.events.size());
+        assertTrue(aggregator.hasPendingValues());
+    }
+
+    @Test
+    public void flushExpired() {
+        offer(0xb0, 1, 64, 0);
+        offer(0xb0, 33, 0, 0);
+        offer(0xb0, 1, 70, 100);
+        offer(0xb1, 2, 64, 0);
+        offer(0xb1, 34, 0, 0);
+        offer(0xb1, 2, 70, 600);
+        log.events.clear();
+
+        assertEquals(0, aggregator.flushExpired(100 + TIMEOUT - 1, log, Integer.MAX_VALUE));
+        assertEquals(1, aggregator.flushExpired(100 + TIMEOUT, log, Integer.MAX_VALUE));
+        assertEquals(Arrays.asList("cc 0 1 8960"), log.events);
+        assertTrue(aggregator.hasPendingValues());
+
+        assertEquals(1, aggregator.flushExpired(600 + TIMEOUT, log, 1));
+        assertFalse(aggregator.hasPendingValues());
+        // the LSB after the expiration is combined with the last MSB
+        offer(0xb0, 33, 5, 2000);
+        assertEquals("cc 0 1 8965", log.events.get(2));
+    }
+
+    @Test
+    public void flushExpiredIsLimited() {
+        for (int controller = 0; controller < 3; controller++) {
+            offer(0xb0, controller, 1, 0);
+            offer(0xb0, controller + 32, 0, 0);
+            offer(0xb0, controller, 2, 0);
+        }
+        log.events.clear();
+        assertEquals(2, aggregator.flushExpired(TIMEOUT, log, 2));
+        assertEquals(1, aggregator.flushExpired(TIMEOUT, log, 2));
+        assertEquals(0, aggregator.flushExpired(TIMEOUT, log, 2));
+    }
+
+    @Test
+    public void registeredParameter() {
+        offer(0xb0, 101, 0, 0);
+        offer(0xb0, 100, 2, 0);
+        offer(0xb0, 6, 64, 1);
+        assertEquals(Arrays.asList("rpn 0 2 8192"), log.events);
+        log.events.clear();
+
+        // with the Data Entry LSB, the MSB is kept until the LSB
+        offer(0xb0, 38, 1, 2);
+        offer(0xb0, 6, 65, 3);
+        assertTrue(aggregator.hasPendingValues());
+        offer(0xb0, 38, 2, 4);
+        assertEquals(Arrays.asList("rpn 0 2 8193", "rpn 0 2 8322"), log.events);
+    }
+
+    @Test
+    public void nonRegisteredParameterAndSteps() {
+        offer(0xb5, 99, 1, 0);
+        offer(0xb5, 98, 2, 0);
+        offer(0xb5, 6, 10, 0);
+        offer(0xb5, 96, 0, 1);
+        offer(0xb5, 97, 0, 2);
+        assertEquals(Arrays.asList("nrpn 5 130 1280", "nrpn step 5 130 1", "nrpn step 5 130 -1"), log.events);
+    }
+
+    @Test
+    public void nullParameterDeselects() {
+        offer(0xb0, 101, 0, 0);
+        offer(0xb0, 100, 0, 0);
+        offer(0xb0, 101, 127, 0);
+        offer(0xb0, 100, 127, 0);
+        // the Data Entry without the parameter is a plain controller
+        offer(0xb0, 6, 64, 0);
+        assertFalse(offer(0xb0, 96, 0, 0));
+        assertEquals(Arrays.asList("cc 0 6 8192"), log.events);
+    }
+
+    @Test
+    public void otherMessagesArePassedThrough() {
+        assertFalse(offer(0xb0, 64, 127, 0));
+        assertFalse(offer(0xc0, 1, 0, 0));
+        assertFalse(offer(0xf8, 0, 0, 0));
+        assertEquals(Collections.<String>emptyList(), log.events);
+    }
+}
@@ -0,0 +1,99 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MidiControllerStateTest {
+    private static int controller(int channel, int controller) {
+        return MidiControllerState.CONTROLLER_OFFSET + channel * 128 + controller;
+    }
+
+    private static int note(int channel, int note) {
+        return MidiControllerState.NOTE_VELOCITY_OFFSET + channel * 128 + note;
+    }
+
+    @Test
+    public void channelMessages() {
+        MidiControllerState state = new MidiControllerState();
+        assertEquals(8192, state.get(MidiControllerState.PITCH_WHEEL_OFFSET + 3));
+
+        state.update(0x93, 60, 100);
+        state.update(0xb3, 7, 90);
+        state.update(0xc3, 5, 0);
+        state.update(0xd3, 40, 0);
+        state.update(0xe3, 0x7f, 0x7f);
+        assertEquals(100, state.get(note(3, 60)));
+        assertEquals(90, state.get(controller(3, 7)));
+        assertEquals(5, state.get(MidiControllerState.PROGRAM_OFFSET + 3));
+        assertEquals(40, state.get(MidiControllerState.CHANNEL_PRESSURE_OFFSET + 3));
+        assertEquals(16383, state.get(MidiControllerState.PITCH_WHEEL_OFFSET + 3));
+        assertEquals(5, state.getVersion());
+
+        state.update(0x83, 60, 64);
+        assertEquals(0, state.get(note(3, 60)));
+        // the system messages other than System Reset are not counted
+        state.update(0xf8, 0, 0);
+        assertEquals(6, state.getVersion());
+    }
+
+    @Test
+    public void resetAllControllers() {
+        MidiControllerState state = new MidiControllerState();
+        state.update(0x90, 60, 100);
+        state.update(0xb0, 1, 100);
+        state.update(0xb0, 7, 90);
+        state.update(0xb0, 11, 10);
+        state.update(0xb0, 64, 127);
+        state.update(0xb0, 67, 127);
+        state.update(0xc0, 5, 0);
+        state.update(0xd0, 40, 0);
+        state.update(0xe0, 0, 0);
+        state.update(0xb1, 1, 100);
+
+        state.update(0xb0, 121, 0);
+        assertEquals(0, state.get(controller(0, 1)));
+        assertEquals(127, state.get(controller(0, 11)));
+        assertEquals(0, state.get(controller(0, 64)));
+        assertEquals(0, state.get(controller(0, 67)));
+        assertEquals(8192, state.get(MidiControllerState.PITCH_WHEEL_OFFSET));
+        assertEquals(0, state.get(MidiControllerState.CHANNEL_PRESSURE_OFFSET));
+        // the volume, the program and the notes are kept, as recommended by RP-015
+        assertEquals(90, state.get(controller(0, 7)));
+        assertEquals(5, state.get(MidiControllerState.PROGRAM_OFFSET));
+        assertEquals(100, state.get(note(0, 60)));
+        // the other channels are kept
+        assertEquals(100, state.get(controller(1, 1)));
+    }
+
+    @Test
+    public void allNotesOff() {
+        MidiControllerState state = new MidiControllerState();
+        for (int controller : new int[]{120, 123, 124, 127}) {
+            state.update(0x92, 0, 1);
+            state.update(0x92, 127, 127);
+            state.update(0x93, 60, 100);
+            state.update(0xb2, controller, 0);
+            assertEquals(0, state.get(note(2, 0)));
+            assertEquals(0, state.get(note(2, 127)));
+            assertEquals(100, state.get(note(3, 60)));
+        }
+
+        long[] notes = new long[32];
+        state.copyActiveNotesTo(notes);
+        assertEquals(0, notes[2 * 2]);
+        assertEquals(0, notes[2 * 2 + 1]);
+        assertEquals(1L << 60, notes[3 * 2]);
+    }
+
+    @Test
+    public void systemReset() {
+        MidiControllerState state = new MidiControllerState();
+        state.update(0x95, 60, 100);
+        state.update(0xe5, 0, 0);
+        state.update(0xff, 0, 0);
+        assertEquals(0, state.get(note(5, 60)));
+        assertEquals(8192, state.get(MidiControllerState.PITCH_WHEEL_OFFSET + 5));
+        assertEquals(3, state.getVersion());
+    }
+}
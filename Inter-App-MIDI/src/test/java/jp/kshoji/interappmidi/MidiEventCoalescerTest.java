@@ -0,0 +1,98 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MidiEventCoalescerTest {
+    @Test
+    public void keepsLatestValueInOrderOfFirstUpdate() {
+        MidiEventCoalescer coalescer = new MidiEventCoalescer();
+        EventLog log = new EventLog();
+        long now = System.nanoTime();
+        assertTrue(coalescer.offer(0xb0, 7, 10, now));
+        assertTrue(coalescer.offer(0xb1, 10, 64, now));
+        assertTrue(coalescer.offer(0xb0, 7, 20, now));
+        assertTrue(coalescer.offer(0xd0, 30, 0, now));
+        assertTrue(coalescer.offer(0xa0, 60, 40, now));
+        assertEquals(4, coalescer.flush(log, Integer.MAX_VALUE));
+        assertEquals(Arrays.asList("b0 07 14", "b1 0a 40", "d0 1e 00", "a0 3c 28"), log.events);
+        assertEquals(1, coalescer.getCoalescedEventCount());
+        assertEquals(0, coalescer.flush(log, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void passesThroughOtherEvents() {
+        MidiEventCoalescer coalescer = new MidiEventCoalescer();
+        assertFalse(coalescer.offer(0x90, 60, 100, 0));
+        assertFalse(coalescer.offer(0x80, 60, 0, 0));
+        assertFalse(coalescer.offer(0xc0, 1, 0, 0));
+        assertFalse(coalescer.offer(0xf8, 0, 0, 0));
+    }
+
+    @Test
+    public void pitchWheelKeepsFourteenBits() {
+        MidiEventCoalescer coalescer = new MidiEventCoalescer();
+        EventLog log = new EventLog();
+        coalescer.offer(0xef, 0x12, 0x34, System.nanoTime());
+        coalescer.flush(log, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("ef 12 34"), log.events);
+    }
+
+    @Test
+    public void timestampIsRestored() {
+        MidiEventCoalescer coalescer = new MidiEventCoalescer();
+        EventLog log = new EventLog();
+        long timestamp = System.nanoTime() - 123456789L;
+        coalescer.offer(0xb0, 1, 2, timestamp);
+        coalescer.flush(log, Integer.MAX_VALUE);
+        assertEquals(Collections.singletonList(timestamp), log.timestamps);
+    }
+
+    @Test
+    public void flushKeepsRestOverMaxCount() {
+        MidiEventCoalescer coalescer = new MidiEventCoalescer();
+        EventLog log = new EventLog();
+        long now = System.nanoTime();
+        for (int controller = 0; controller < 5; controller++) {
+            coalescer.offer(0xb0, controller, 1, now);
+        }
+        assertEquals(2, coalescer.flush(log, 2));
+        assertEquals(3, coalescer.flush(log, 10));
+        assertEquals(Arrays.asList("b0 00 01", "b0 01 01", "b0 02 01", "b0 03 01", "b0 04 01"), log.events);
+    }
+
+    @Test
+    public void valueUpdatedAfterFlushIsQueuedAgain() {
+        MidiEventCoalescer coalescer = new MidiEventCoalescer();
+        EventLog log = new EventLog();
+        long now = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            coalescer.offer(0xb0, 7, i, now);
+            assertEquals(1, coalescer.flush(log, Integer.MAX_VALUE));
+        }
+        assertEquals(Arrays.asList("b0 07 00", "b0 07 01", "b0 07 02"), log.events);
+    }
+
+    @Test
+    public void flushChannelDeliversOnlyTheChannel() {
+        MidiEventCoalescer coalescer = new MidiEventCoalescer();
+        EventLog log = new EventLog();
+        long now = System.nanoTime();
+        coalescer.offer(0xb0, 7, 10, now);
+        coalescer.offer(0xb1, 7, 20, now);
+        coalescer.offer(0xe0, 0, 64, now);
+        assertEquals(2, coalescer.flushChannel(0, log));
+        assertEquals(Arrays.asList("b0 07 0a", "e0 00 40"), log.events);
+
+        // the flushed values are skipped by the next flush
+        assertEquals(1, coalescer.flush(log, Integer.MAX_VALUE));
+        assertEquals("b1 07 14", log.events.get(2));
+        assertEquals(0, coalescer.flushChannel(0, log));
+    }
+}
@@ -0,0 +1,87 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MidiEventDispatcherTest {
+    private static final int EVENT_COUNT = 1000;
+
+    /**
+     * Throws on every other note, and counts down the latch on the last one
+     */
+    private static final class FailingTarget implements MidiEventDispatcher.Target {
+        final List<Integer> notes = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch lastDelivered = new CountDownLatch(1);
+
+        @Override
+        public void dispatchMidiMessage(int status, int data1, int data2, long timestamp) {
+            if (timestamp == EVENT_COUNT - 1) {
+                lastDelivered.countDown();
+            }
+            if (timestamp % 2 == 1) {
+                throw new IllegalStateException("failing target");
+            }
+            notes.add((int) timestamp);
+        }
+
+        @Override
+        public void dispatchMessage(String method, String message) {
+        }
+
+        @Override
+        public void flushCoalescedEvents() {
+            throw new IllegalStateException("failing target");
+        }
+    }
+
+    private static void assertAllDelivered(MidiEventDispatcher dispatcher, FailingTarget target) throws InterruptedException {
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            // blocks forever if the dispatching has stopped
+            assertTrue(dispatcher.offer(target, 0x90, i & 0x7f, 100, i));
+            if (i % 100 == 0) {
+                dispatcher.requestFlush(target);
+            }
+        }
+        assertTrue(target.lastDelivered.await(10, TimeUnit.SECONDS));
+        assertEquals(EVENT_COUNT / 2, target.notes.size());
+        assertEquals(Integer.valueOf(EVENT_COUNT - 2), target.notes.get(EVENT_COUNT / 2 - 1));
+    }
+
+    @Test
+    public void dispatchingThreadSurvivesFailingTarget() throws InterruptedException {
+        MidiEventDispatcher dispatcher = new MidiEventDispatcher(4, MidiEventDispatcher.POLICY_BLOCK, null);
+        Thread thread = new Thread(dispatcher, "MidiEventDispatcher");
+        thread.start();
+        try {
+            assertAllDelivered(dispatcher, new FailingTarget());
+            assertTrue(thread.isAlive());
+        } finally {
+            dispatcher.close();
+            thread.join(10000);
+        }
+        assertEquals(0, dispatcher.getDroppedEventCount());
+    }
+
+    @Test
+    public void executorSurvivesFailingTarget() throws InterruptedException {
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            MidiEventDispatcher dispatcher = new MidiEventDispatcher(4, MidiEventDispatcher.POLICY_BLOCK, executorService);
+            assertAllDelivered(dispatcher, new FailingTarget());
+            dispatcher.close();
+            assertEquals(0, dispatcher.getDroppedEventCount());
+        } finally {
+            executorService.shutdown();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MidiEventRingBufferTest {
+    private static ByteBuffer allocate(int eventCount) {
+        return ByteBuffer.allocateDirect(eventCount * MidiEventRingBuffer.EVENT_SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    private static void assertEvent(ByteBuffer buffer, int index, int portHandle, int status, int data1, int data2, long timestamp) {
+        final int position = index * MidiEventRingBuffer.EVENT_SIZE;
+        assertEquals(portHandle, buffer.getInt(position));
+        assertEquals(status, buffer.get(position + 4) & 0xff);
+        assertEquals(data1, buffer.get(position + 5));
+        assertEquals(data2, buffer.get(position + 6));
+        assertEquals(0, buffer.get(position + 7));
+        assertEquals(timestamp, buffer.getLong(position + 8));
+    }
+
+    @Test
+    public void capacityIsRoundedUp() {
+        assertEquals(8, new MidiEventRingBuffer(5).getCapacity());
+        assertEquals(8, new MidiEventRingBuffer(8).getCapacity());
+    }
+
+    @Test
+    public void wraparound() {
+        MidiEventRingBuffer ringBuffer = new MidiEventRingBuffer(4);
+        ByteBuffer destination = allocate(4);
+        for (int round = 0; round < 5; round++) {
+            // 3 events each round, so the records wrap around the end of the buffer
+            for (int i = 0; i < 3; i++) {
+                assertTrue(ringBuffer.offer(round, 0x90, i, 100, round * 10L + i));
+            }
+            assertEquals(3, ringBuffer.size());
+            destination.clear();
+            assertEquals(3, ringBuffer.drainTo(destination));
+            assertEquals(3 * MidiEventRingBuffer.EVENT_SIZE, destination.position());
+            for (int i = 0; i < 3; i++) {
+                assertEvent(destination, i, round, 0x90, i, 100, round * 10L + i);
+            }
+        }
+        assertEquals(0, ringBuffer.size());
+    }
+
+    @Test
+    public void fullBufferDropsEvents() {
+        MidiEventRingBuffer ringBuffer = new MidiEventRingBuffer(2);
+        assertTrue(ringBuffer.offer(1, 0x90, 1, 1, 1));
+        assertTrue(ringBuffer.offer(1, 0x90, 2, 1, 2));
+        assertFalse(ringBuffer.offer(1, 0x90, 3, 1, 3));
+        assertEquals(1, ringBuffer.getDroppedEventCount());
+
+        ByteBuffer destination = allocate(2);
+        assertEquals(2, ringBuffer.drainTo(destination));
+        assertEvent(destination, 1, 1, 0x90, 2, 1, 2);
+        assertTrue(ringBuffer.offer(1, 0x90, 4, 1, 4));
+    }
+
+    @Test
+    public void drainIsLimitedByDestination() {
+        MidiEventRingBuffer ringBuffer = new MidiEventRingBuffer(8);
+        for (int i = 0; i < 5; i++) {
+            ringBuffer.offer(1, 0xb0, i, i, i);
+        }
+        ByteBuffer destination = allocate(2);
+        assertEquals(2, ringBuffer.drainTo(destination));
+        assertEquals(0, ringBuffer.drainTo(destination));
+        destination.clear();
+        assertEquals(2, ringBuffer.drainTo(destination));
+        assertEvent(destination, 0, 1, 0xb0, 2, 2, 2);
+        assertEquals(1, ringBuffer.size());
+    }
+
+    @Test
+    public void putEventWritesRecordLayout() {
+        ByteBuffer destination = allocate(1);
+        MidiEventRingBuffer.putEvent(destination, 7, 0xe0, 0x12, 0x34, 123456789L);
+        assertEquals(MidiEventRingBuffer.EVENT_SIZE, destination.position());
+        assertEvent(destination, 0, 7, 0xe0, 0x12, 0x34, 123456789L);
+    }
+}
@@ -0,0 +1,82 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static jp.kshoji.interappmidi.EventLog.bytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MidiFilePlayerTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * Writes a format 0 file with the track, 96 ticks per quarter note
+     */
+    private File writeFile(byte[] track) throws IOException {
+        File file = temporaryFolder.newFile();
+        byte[] data = Arrays.copyOf(bytes(0x4d, 0x54, 0x68, 0x64, 0, 0, 0, 6, 0, 0, 0, 1, 0, 0x60,
+                0x4d, 0x54, 0x72, 0x6b, 0, 0, 0, 0), 22 + track.length);
+        data[21] = (byte) track.length;
+        System.arraycopy(track, 0, data, 22, track.length);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static List<String> play(MidiFilePlayer player, EventLog log) throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch(1);
+        player.setOnPlaybackListener(new MidiFilePlayer.OnPlaybackListener() {
+            @Override
+            public void onPlaybackFinished() {
+                finished.countDown();
+            }
+        });
+        Thread thread = new Thread(player);
+        thread.start();
+        try {
+            player.play(log);
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+        } finally {
+            player.close();
+            thread.join(1000);
+        }
+        return log.events();
+    }
+
+    @Test
+    public void chaseSendsBankSelectBeforeProgramChange() throws IOException, InterruptedException {
+        MidiFilePlayer player = new MidiFilePlayer(writeFile(bytes(
+                0x00, 0xc0, 0x05,
+                0x00, 0xb0, 0x07, 0x64,
+                0x00, 0xb0, 0x20, 0x02,
+                0x00, 0xb0, 0x00, 0x01,
+                0x00, 0xe0, 0x00, 0x50,
+                0x60, 0x90, 0x3c, 0x64,
+                0x60, 0x80, 0x3c, 0x00,
+                0x00, 0xff, 0x2f, 0x00)));
+        player.seek(0x60);
+        assertEquals(Arrays.asList("b0 00 01", "b0 20 02", "c0 05 00", "b0 07 64", "e0 00 50", "90 3c 64", "80 3c 00"),
+                play(player, new EventLog()));
+    }
+
+    @Test
+    public void systemExclusiveLongerThanTrackEndsTrack() throws IOException, InterruptedException {
+        // the length 0x0fffffff of the System Exclusive is beyond the end of the track
+        MidiFilePlayer player = new MidiFilePlayer(writeFile(bytes(
+                0x00, 0x90, 0x3c, 0x64,
+                0x00, 0xf0, 0xff, 0xff, 0xff, 0x7f, 0x7e, 0xf7,
+                0x00, 0x80, 0x3c, 0x00,
+                0x00, 0xff, 0x2f, 0x00)));
+        assertEquals(Arrays.asList("90 3c 64", "80 3c 00"), play(player, new EventLog()));
+    }
+}
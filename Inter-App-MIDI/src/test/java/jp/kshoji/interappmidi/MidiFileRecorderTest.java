@@ -0,0 +1,82 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static jp.kshoji.interappmidi.EventLog.bytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class MidiFileRecorderTest {
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static String hex(File file) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        return EventLog.hex(data, 0, data.length);
+    }
+
+    @Test
+    public void writesTrackWithRunningStatus() throws IOException {
+        File file = temporaryFolder.newFile("recorded.mid");
+        final long startTime = System.nanoTime();
+        MidiFileRecorder recorder = new MidiFileRecorder(file, 1, startTime);
+        MidiFileRecorder.Source source = recorder.addSource("p");
+        recorder.start();
+
+        // 500 milliseconds is a quarter note, 960 ticks
+        source.events.offer(1, 0x90, 0x3c, 0x64, startTime);
+        source.events.offer(1, 0x90, 0x3e, 0x64, startTime + 500 * MILLISECOND);
+        source.events.offer(1, 0xf8, 0, 0, startTime + 500 * MILLISECOND);
+        byte[] systemExclusive = bytes(0xf0, 0x7e, 0x7f, 0xf7);
+        source.systemExclusives.offer(1, systemExclusive, 0, systemExclusive.length, 0, startTime + 500 * MILLISECOND);
+        source.events.offer(1, 0x90, 0x3c, 0x00, startTime + 1000 * MILLISECOND);
+        recorder.stop();
+
+        assertEquals("4d 54 68 64 00 00 00 06 00 01 00 01 03 c0"
+                + " 4d 54 72 6b 00 00 00 23"
+                // tempo, track name
+                + " 00 ff 51 03 07 a1 20 00 ff 03 01 70"
+                // the running status is omitted, the System Realtime is not recorded
+                + " 00 90 3c 64 87 40 3e 64"
+                + " 00 f0 03 7e 7f f7"
+                // the running status is cleared by the System Exclusive
+                + " 87 40 90 3c 00"
+                + " 00 ff 2f 00", hex(file));
+        assertFalse(new File(file.getPath() + ".track0").exists());
+    }
+
+    @Test
+    public void emptyRecording() throws IOException {
+        File file = temporaryFolder.newFile("empty.mid");
+        MidiFileRecorder recorder = new MidiFileRecorder(file, 0, System.nanoTime());
+        recorder.start();
+        recorder.stop();
+        assertEquals("4d 54 68 64 00 00 00 06 00 00 00 01 03 c0 4d 54 72 6b 00 00 00 0b 00 ff 51 03 07 a1 20 00 ff 2f 00", hex(file));
+    }
+
+    @Test
+    public void formatOneWritesTrackForEachSource() throws IOException {
+        File file = temporaryFolder.newFile("tracks.mid");
+        final long startTime = System.nanoTime();
+        MidiFileRecorder recorder = new MidiFileRecorder(file, 1, startTime);
+        MidiFileRecorder.Source first = recorder.addSource("a");
+        MidiFileRecorder.Source second = recorder.addSource("b");
+        recorder.start();
+        first.events.offer(1, 0xc0, 5, 0, startTime);
+        second.events.offer(2, 0xc1, 6, 0, startTime);
+        recorder.stop();
+
+        assertEquals("4d 54 68 64 00 00 00 06 00 01 00 02 03 c0"
+                + " 4d 54 72 6b 00 00 00 13 00 ff 51 03 07 a1 20 00 ff 03 01 61 00 c0 05 00 ff 2f 00"
+                + " 4d 54 72 6b 00 00 00 0c 00 ff 03 01 62 00 c1 06 00 ff 2f 00", hex(file));
+    }
+}
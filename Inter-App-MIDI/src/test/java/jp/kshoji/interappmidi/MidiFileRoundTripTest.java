@@ -0,0 +1,93 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records the events with {@link MidiFileRecorder}, and plays the file with {@link MidiFilePlayer}
+ */
+public class MidiFileRoundTripTest {
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static List<String> play(File file, final EventLog log) throws IOException, InterruptedException {
+        MidiFilePlayer player = new MidiFilePlayer(file);
+        final CountDownLatch finished = new CountDownLatch(1);
+        player.setOnPlaybackListener(new MidiFilePlayer.OnPlaybackListener() {
+            @Override
+            public void onPlaybackFinished() {
+                finished.countDown();
+            }
+        });
+        Thread thread = new Thread(player);
+        thread.start();
+        try {
+            player.play(log);
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+        } finally {
+            player.close();
+            thread.join(1000);
+        }
+        return log.events();
+    }
+
+    @Test
+    public void roundTrip() throws IOException, InterruptedException {
+        File file = temporaryFolder.newFile("roundtrip.mid");
+        final long startTime = System.nanoTime();
+        MidiFileRecorder recorder = new MidiFileRecorder(file, 1, startTime);
+        MidiFileRecorder.Source source = recorder.addSource("port");
+        recorder.start();
+
+        // the multiples of 25 milliseconds are the exact ticks at 120 BPM, 960 ticks per quarter note
+        byte[] systemExclusive = {(byte) 0xf0, 0x7e, 0x7f, 0x06, 0x01, (byte) 0xf7};
+        source.events.offer(1, 0xc0, 5, 0, startTime);
+        source.events.offer(1, 0x90, 60, 100, startTime + 25 * MILLISECOND);
+        source.systemExclusives.offer(1, systemExclusive, 0, systemExclusive.length, 0, startTime + 50 * MILLISECOND);
+        source.events.offer(1, 0xb0, 7, 64, startTime + 75 * MILLISECOND);
+        source.events.offer(1, 0xe0, 0x12, 0x34, startTime + 75 * MILLISECOND);
+        source.events.offer(1, 0x80, 60, 0, startTime + 100 * MILLISECOND);
+        // System Realtime is not recorded
+        source.events.offer(1, 0xf8, 0, 0, startTime + 100 * MILLISECOND);
+        recorder.stop();
+        assertEquals(0, recorder.getDroppedEventCount());
+
+        EventLog log = new EventLog();
+        assertEquals(Arrays.asList("c0 05 00", "90 3c 64", "sysex f0 7e 7f 06 01 f7", "b0 07 40", "e0 12 34", "80 3c 00"), play(file, log));
+        final long[] offsets = {0, 25, 50, 75, 75, 100};
+        for (int i = 0; i < offsets.length; i++) {
+            final long offset = log.timestamps.get(i) - log.timestamps.get(0);
+            assertTrue(i + ": " + offset, Math.abs(offset - offsets[i] * MILLISECOND) < TimeUnit.MICROSECONDS.toNanos(1));
+        }
+    }
+
+    @Test
+    public void formatZeroMergesSources() throws IOException, InterruptedException {
+        File file = temporaryFolder.newFile("merged.mid");
+        final long startTime = System.nanoTime();
+        MidiFileRecorder recorder = new MidiFileRecorder(file, 0, startTime);
+        MidiFileRecorder.Source first = recorder.addSource("first");
+        MidiFileRecorder.Source second = recorder.addSource("second");
+        recorder.start();
+        first.events.offer(1, 0x90, 60, 100, startTime);
+        second.events.offer(2, 0x91, 62, 100, startTime + 25 * MILLISECOND);
+        first.events.offer(1, 0x80, 60, 0, startTime + 50 * MILLISECOND);
+        second.events.offer(2, 0x81, 62, 0, startTime + 50 * MILLISECOND);
+        recorder.stop();
+
+        assertEquals(Arrays.asList("90 3c 64", "91 3e 64", "80 3c 00", "81 3e 00"), play(file, new EventLog()));
+    }
+}
@@ -0,0 +1,87 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static jp.kshoji.interappmidi.MidiMessageEncoder.pack;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class MidiMessageEncoderTest {
+    @Test
+    public void runningStatus() throws IOException {
+        EventLog log = new EventLog();
+        int[] messages = {pack(0x90, 0x3c, 0x64), pack(0x90, 0x3e, 0x64), pack(0x80, 0x3c, 0)};
+        assertEquals(3, new MidiMessageEncoder(64).encode(messages, 0, messages.length, 0, log));
+        assertEquals(Arrays.asList("90 3c 64 3e 64 80 3c 00"), log.events);
+    }
+
+    @Test
+    public void realtimeKeepsRunningStatus() throws IOException {
+        EventLog log = new EventLog();
+        int[] messages = {pack(0x90, 0x3c, 0x64), pack(0xf8, 0, 0), pack(0x90, 0x3e, 0x64)};
+        new MidiMessageEncoder(64).encode(messages, 0, messages.length, 0, log);
+        assertEquals(Arrays.asList("90 3c 64 f8 3e 64"), log.events);
+    }
+
+    @Test
+    public void systemCommonCancelsRunningStatus() throws IOException {
+        EventLog log = new EventLog();
+        int[] messages = {pack(0x90, 0x3c, 0x64), pack(0xf1, 0x10, 0), pack(0x90, 0x3e, 0x64)};
+        new MidiMessageEncoder(64).encode(messages, 0, messages.length, 0, log);
+        assertEquals(Arrays.asList("90 3c 64 f1 10 90 3e 64"), log.events);
+    }
+
+    @Test
+    public void runningStatusRestartsInEachPacket() throws IOException {
+        EventLog log = new EventLog();
+        int[] messages = {pack(0x90, 0x3c, 0x64), pack(0x90, 0x3e, 0x64), pack(0x90, 0x40, 0x64)};
+        assertEquals(3, new MidiMessageEncoder(4).encode(messages, 0, messages.length, 0, log));
+        assertEquals(Arrays.asList("90 3c 64", "90 3e 64", "90 40 64"), log.events);
+    }
+
+    @Test
+    public void invalidMessagesAreSkipped() throws IOException {
+        EventLog log = new EventLog();
+        int[] messages = {pack(0xf0, 0, 0), pack(0x3c, 0, 0), pack(0xc0, 0x05, 0x7f)};
+        assertEquals(1, new MidiMessageEncoder(64).encode(messages, 0, messages.length, 0, log));
+        assertEquals(Arrays.asList("c0 05"), log.events);
+        assertFalse(new MidiMessageEncoder(64).encode(pack(0xf4, 0, 0), 0, log));
+    }
+
+    @Test
+    public void singleMessage() throws IOException {
+        EventLog log = new EventLog();
+        MidiMessageEncoder encoder = new MidiMessageEncoder(64);
+        encoder.encode(pack(0x90, 0x3c, 0x64), 0, log);
+        encoder.encode(pack(0x90, 0x3e, 0x64), 0, log);
+        assertEquals(Arrays.asList("90 3c 64", "90 3e 64"), log.events);
+    }
+
+    @Test
+    public void sentMessageCountOnFailure() {
+        final EventLog log = new EventLog();
+        MidiMessageEncoder.PacketSender sender = new MidiMessageEncoder.PacketSender() {
+            @Override
+            public void send(byte[] data, int offset, int count, long timestamp) throws IOException {
+                if (!log.events.isEmpty()) {
+                    throw new IOException();
+                }
+                log.send(data, offset, count, timestamp);
+            }
+        };
+        MidiMessageEncoder encoder = new MidiMessageEncoder(6);
+        int[] messages = {pack(0x90, 0x3c, 0x64), pack(0x90, 0x3e, 0x64), pack(0x90, 0x40, 0x64), pack(0x90, 0x41, 0x64)};
+        try {
+            encoder.encode(messages, 0, messages.length, 0, sender);
+            fail();
+        } catch (IOException e) {
+            // the first packet has 2 messages with the running status
+            assertEquals(2, encoder.getSentMessageCount());
+        }
+        assertEquals(Arrays.asList("90 3c 64 3e 64"), log.events);
+    }
+}
@@ -0,0 +1,72 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MidiMessageFilterTest {
+    @Test
+    public void typeOfChannelMessages() {
+        // the channel is not in the type bit
+        assertEquals(MidiMessageFilter.NOTE_OFF, MidiMessageFilter.typeOf(0x8f));
+        assertEquals(MidiMessageFilter.NOTE_ON, MidiMessageFilter.typeOf(0x90));
+        assertEquals(MidiMessageFilter.POLYPHONIC_AFTERTOUCH, MidiMessageFilter.typeOf(0xa5));
+        assertEquals(MidiMessageFilter.CONTROL_CHANGE, MidiMessageFilter.typeOf(0xb0));
+        assertEquals(MidiMessageFilter.PROGRAM_CHANGE, MidiMessageFilter.typeOf(0xc0));
+        assertEquals(MidiMessageFilter.CHANNEL_AFTERTOUCH, MidiMessageFilter.typeOf(0xd0));
+        assertEquals(MidiMessageFilter.PITCH_WHEEL, MidiMessageFilter.typeOf(0xef));
+    }
+
+    @Test
+    public void typeOfSystemMessages() {
+        assertEquals(MidiMessageFilter.SYSTEM_EXCLUSIVE, MidiMessageFilter.typeOf(0xf0));
+        assertEquals(MidiMessageFilter.TIME_CODE_QUARTER_FRAME, MidiMessageFilter.typeOf(0xf1));
+        assertEquals(MidiMessageFilter.SONG_POSITION_POINTER, MidiMessageFilter.typeOf(0xf2));
+        assertEquals(MidiMessageFilter.SONG_SELECT, MidiMessageFilter.typeOf(0xf3));
+        assertEquals(MidiMessageFilter.TUNE_REQUEST, MidiMessageFilter.typeOf(0xf6));
+        assertEquals(MidiMessageFilter.TIMING_CLOCK, MidiMessageFilter.typeOf(0xf8));
+        assertEquals(MidiMessageFilter.START, MidiMessageFilter.typeOf(0xfa));
+        assertEquals(MidiMessageFilter.CONTINUE, MidiMessageFilter.typeOf(0xfb));
+        assertEquals(MidiMessageFilter.STOP, MidiMessageFilter.typeOf(0xfc));
+        assertEquals(MidiMessageFilter.ACTIVE_SENSING, MidiMessageFilter.typeOf(0xfe));
+        assertEquals(MidiMessageFilter.RESET, MidiMessageFilter.typeOf(0xff));
+    }
+
+    @Test
+    public void typeBitsAreDistinct() {
+        int mask = 0;
+        for (int status = 0x80; status <= 0xff; status += status < 0xf0 ? 0x10 : 1) {
+            final int type = MidiMessageFilter.typeOf(status);
+            assertEquals(1, Integer.bitCount(type));
+            assertEquals(0, mask & type);
+            mask |= type;
+        }
+        assertEquals(MidiMessageFilter.CHANNEL_MESSAGES, mask & 0xff);
+        final int defined = MidiMessageFilter.CHANNEL_MESSAGES | MidiMessageFilter.SYSTEM_EXCLUSIVE
+                | MidiMessageFilter.SYSTEM_COMMON_MESSAGES | MidiMessageFilter.SYSTEM_REALTIME_MESSAGES;
+        assertEquals(defined, mask & defined);
+    }
+
+    @Test
+    public void channelMask() {
+        final int channelMask = (1 << 0) | (1 << 15);
+        assertTrue(MidiMessageFilter.accepts(0x90, MidiMessageFilter.ALL_TYPES, channelMask));
+        assertTrue(MidiMessageFilter.accepts(0x9f, MidiMessageFilter.ALL_TYPES, channelMask));
+        assertFalse(MidiMessageFilter.accepts(0x91, MidiMessageFilter.ALL_TYPES, channelMask));
+        assertFalse(MidiMessageFilter.accepts(0x90, MidiMessageFilter.ALL_TYPES, 0));
+        // the channel mask is not applied to the system messages
+        assertTrue(MidiMessageFilter.accepts(0xf8, MidiMessageFilter.ALL_TYPES, 0));
+        assertTrue(MidiMessageFilter.accepts(0xf0, MidiMessageFilter.SYSTEM_EXCLUSIVE, 0));
+    }
+
+    @Test
+    public void typeMask() {
+        assertTrue(MidiMessageFilter.accepts(0xb3, MidiMessageFilter.CHANNEL_MESSAGES, MidiMessageFilter.ALL_CHANNELS));
+        assertFalse(MidiMessageFilter.accepts(0xf8, MidiMessageFilter.CHANNEL_MESSAGES, MidiMessageFilter.ALL_CHANNELS));
+        assertFalse(MidiMessageFilter.accepts(0x90, MidiMessageFilter.ALL_TYPES & ~MidiMessageFilter.NOTE_ON, MidiMessageFilter.ALL_CHANNELS));
+        assertTrue(MidiMessageFilter.accepts(0x80, MidiMessageFilter.ALL_TYPES & ~MidiMessageFilter.NOTE_ON, MidiMessageFilter.ALL_CHANNELS));
+        assertTrue(MidiMessageFilter.accepts(0xfe, MidiMessageFilter.SYSTEM_REALTIME_MESSAGES, 0));
+    }
+}
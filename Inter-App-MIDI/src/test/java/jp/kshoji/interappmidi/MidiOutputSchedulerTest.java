@@ -0,0 +1,143 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static jp.kshoji.interappmidi.MidiMessageEncoder.pack;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MidiOutputSchedulerTest {
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private MidiOutputScheduler scheduler;
+    private Thread thread;
+
+    @Before
+    public void setUp() {
+        scheduler = new MidiOutputScheduler();
+        thread = new Thread(scheduler);
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        scheduler.stop();
+        thread.join(1000);
+    }
+
+    private static void awaitSize(MidiOutputScheduler scheduler, int size) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (scheduler.size() > size && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(size, scheduler.size());
+    }
+
+    @Test
+    public void sendsInTimestampOrder() throws InterruptedException {
+        final EventLog log = new EventLog();
+        final long start = System.nanoTime() + 20 * MILLISECOND;
+        scheduler.schedule(log, pack(0x90, 3, 100), start + 30 * MILLISECOND);
+        scheduler.schedule(log, pack(0x90, 1, 100), start + 10 * MILLISECOND);
+        scheduler.schedule(log, new byte[]{(byte) 0xf0, 0x7e, (byte) 0xf7}, start + 20 * MILLISECOND);
+        scheduler.schedule(log, new int[]{pack(0x90, 0, 100), pack(0x90, 2, 100)}, new long[]{start, start + 20 * MILLISECOND}, 0, 2);
+        awaitSize(scheduler, 0);
+        Thread.sleep(10);
+
+        // the events with the same timestamp are sent in the scheduled order
+        assertEquals(Arrays.asList("90 00 64", "90 01 64", "sysex f0 7e f7", "90 02 64", "90 03 64"), log.events());
+        assertEquals(Arrays.asList(start, start + 10 * MILLISECOND, start + 20 * MILLISECOND, start + 20 * MILLISECOND, start + 30 * MILLISECOND), log.timestamps);
+    }
+
+    @Test
+    public void sendsNotBeforeTimestamp() throws InterruptedException {
+        final long[] sentTimes = new long[8];
+        final long[] timestamps = new long[8];
+        MidiOutputScheduler.Target target = new MidiOutputScheduler.Target() {
+            private int count;
+
+            @Override
+            public void sendScheduled(int message, long timestamp) {
+                sentTimes[count] = System.nanoTime();
+                timestamps[count++] = timestamp;
+            }
+
+            @Override
+            public void sendScheduled(byte[] data, long timestamp) {
+            }
+        };
+        final long start = System.nanoTime() + 10 * MILLISECOND;
+        for (int i = sentTimes.length - 1; i >= 0; i--) {
+            scheduler.schedule(target, pack(0xf8, 0, 0), start + i * 3 * MILLISECOND);
+        }
+        awaitSize(scheduler, 0);
+        Thread.sleep(10);
+        for (int i = 0; i < sentTimes.length; i++) {
+            assertEquals(start + i * 3 * MILLISECOND, timestamps[i]);
+            assertTrue(sentTimes[i] - timestamps[i] >= 0);
+        }
+    }
+
+    @Test
+    public void cancelRemovesEventsOfTarget() throws InterruptedException {
+        EventLog canceled = new EventLog();
+        EventLog kept = new EventLog();
+        final long time = System.nanoTime() + 50 * MILLISECOND;
+        for (int i = 0; i < 10; i++) {
+            scheduler.schedule(canceled, pack(0x90, i, 100), time + i);
+            scheduler.schedule(kept, pack(0x80, i, 0), time + i);
+        }
+        assertEquals(20, scheduler.size());
+        scheduler.cancel(canceled);
+        assertEquals(10, scheduler.size());
+        awaitSize(scheduler, 0);
+        Thread.sleep(10);
+        assertEquals(0, canceled.events().size());
+        assertEquals(10, kept.events().size());
+        assertEquals("80 00 00", kept.events().get(0));
+        assertEquals("80 09 00", kept.events().get(9));
+    }
+
+    @Test
+    public void stopReleasesThread() throws InterruptedException {
+        for (int i = 0; i < 1000; i++) {
+            MidiOutputScheduler stopped = new MidiOutputScheduler();
+            Thread stoppedThread = new Thread(stopped);
+            stoppedThread.start();
+            stopped.stop();
+            stoppedThread.join(5000);
+            assertFalse(stoppedThread.isAlive());
+        }
+    }
+
+    @Test
+    public void failingTargetDoesNotStopScheduler() throws InterruptedException {
+        final EventLog log = new EventLog();
+        MidiOutputScheduler.Target failing = new MidiOutputScheduler.Target() {
+            @Override
+            public void sendScheduled(int message, long timestamp) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public void sendScheduled(byte[] data, long timestamp) {
+                throw new IllegalStateException();
+            }
+        };
+        final long time = System.nanoTime() + 10 * MILLISECOND;
+        scheduler.schedule(failing, pack(0x90, 0, 100), time);
+        scheduler.schedule(log, pack(0x90, 1, 100), time);
+        scheduler.schedule(failing, new byte[]{(byte) 0xf0, (byte) 0xf7}, time + MILLISECOND);
+        scheduler.schedule(log, pack(0x90, 2, 100), time + 2 * MILLISECOND);
+        awaitSize(scheduler, 0);
+        Thread.sleep(10);
+        assertTrue(thread.isAlive());
+        assertEquals(Arrays.asList("90 01 64", "90 02 64"), log.events());
+    }
+}
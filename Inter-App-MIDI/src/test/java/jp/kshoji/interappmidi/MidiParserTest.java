@@ -0,0 +1,126 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static jp.kshoji.interappmidi.EventLog.bytes;
+import static org.junit.Assert.assertEquals;
+
+public class MidiParserTest {
+    private EventLog log;
+    private MidiParser parser;
+
+    @Before
+    public void setUp() {
+        log = new EventLog();
+        parser = new MidiParser(log, new SystemExclusiveBufferPool(4, 2));
+    }
+
+    private void parse(int... values) {
+        byte[] data = bytes(values);
+        parser.parse(data, 0, data.length, 0);
+    }
+
+    @Test
+    public void runningStatus() {
+        parse(0x90, 0x3c, 0x64, 0x3e, 0x64, 0xc0, 0x05, 0x06);
+        assertEquals(Arrays.asList("90 3c 64", "90 3e 64", "c0 05 00", "c0 06 00"), log.events);
+    }
+
+    @Test
+    public void systemCommonCancelsRunningStatus() {
+        parse(0x90, 0x3c, 0x64, 0xf1, 0x10, 0x3e, 0x64);
+        assertEquals(Arrays.asList("90 3c 64", "f1 10 00"), log.events);
+        assertEquals(2, parser.getSkippedByteCount());
+    }
+
+    @Test
+    public void realtimeInsideMessage() {
+        parse(0x90, 0x3c, 0xf8, 0x64, 0x3e, 0xfe, 0x64);
+        assertEquals(Arrays.asList("f8 00 00", "90 3c 64", "fe 00 00", "90 3e 64"), log.events);
+        assertEquals(0, parser.getErrorCount());
+    }
+
+    @Test
+    public void splitPackets() {
+        parse(0x90);
+        parse(0x3c);
+        parse(0x64, 0x3e);
+        parse(0x64);
+        assertEquals(Arrays.asList("90 3c 64", "90 3e 64"), log.events);
+    }
+
+    @Test
+    public void interruptedMessage() {
+        parse(0x90, 0x3c, 0x80, 0x3c, 0x00);
+        assertEquals(Arrays.asList("80 3c 00"), log.events);
+        assertEquals(1, parser.getErrorCount());
+    }
+
+    @Test
+    public void systemExclusive() {
+        parse(0xf0, 0x7e, 0xf7, 0x90, 0x3c, 0x64);
+        assertEquals(Arrays.asList("sysex f0 7e f7", "90 3c 64"), log.events);
+    }
+
+    @Test
+    public void systemExclusiveSplitAcrossPackets() {
+        parse(0xf0, 0x7e);
+        parse(0xf8, 0x7f);
+        parse(0xf7);
+        assertEquals(Arrays.asList("f8 00 00", "sysex f0 7e 7f f7"), log.events);
+    }
+
+    @Test
+    public void systemExclusiveChunks() {
+        // longer than the buffer of 4 bytes
+        parse(0xf0, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0xf7);
+        assertEquals(Arrays.asList("chunk f0 01 02 03", "chunk 04 05 06 07", "last chunk 08 f7"), log.events);
+    }
+
+    @Test
+    public void interruptedSystemExclusive() {
+        parse(0xf0, 0x01, 0x02, 0x90, 0x3c, 0x64);
+        assertEquals(Arrays.asList("90 3c 64"), log.events);
+        assertEquals(1, parser.getErrorCount());
+    }
+
+    @Test
+    public void interruptedSystemExclusiveChunks() {
+        parse(0xf0, 0x01, 0x02, 0x03, 0x04, 0x90, 0x3c, 0x64);
+        assertEquals(Arrays.asList("chunk f0 01 02 03", "last chunk ", "90 3c 64"), log.events);
+        assertEquals(1, parser.getErrorCount());
+    }
+
+    @Test
+    public void resetDiscardsSystemExclusiveChunks() {
+        parse(0xf0, 0x01, 0x02, 0x03, 0x04);
+        parser.reset();
+        parse(0x05, 0xf7, 0x90, 0x3c, 0x64);
+        assertEquals(Arrays.asList("chunk f0 01 02 03", "last chunk ", "90 3c 64"), log.events);
+    }
+
+    @Test
+    public void resetDiscardsRunningStatus() {
+        parse(0x90, 0x3c, 0x64, 0x3e);
+        parser.reset();
+        parse(0x64, 0x3e, 0x64);
+        assertEquals(Arrays.asList("90 3c 64"), log.events);
+    }
+
+    @Test
+    public void undefinedBytesAreSkipped() {
+        parse(0xf4, 0xf5, 0xf9, 0xfd, 0xf7, 0x90, 0x3c, 0x64);
+        assertEquals(Arrays.asList("90 3c 64"), log.events);
+        assertEquals(5, parser.getSkippedByteCount());
+    }
+
+    @Test
+    public void timestampOfLastByte() {
+        parser.parse(bytes(0x90, 0x3c), 0, 2, 100);
+        parser.parse(bytes(0x64), 0, 1, 200);
+        assertEquals(Arrays.asList(200L), log.timestamps);
+    }
+}
@@ -0,0 +1,96 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MidiPortTableTest {
+    @Test
+    public void putAndGet() {
+        MidiPortTable<String> table = new MidiPortTable<>();
+        int first = table.allocate();
+        table.put(first, "first");
+        int second = table.allocate();
+        table.put(second, "second");
+        assertNotEquals(first, second);
+        assertEquals("first", table.get(first));
+        assertEquals("second", table.get(second));
+        assertNull(table.get(-1));
+        assertNull(table.get(0xffff));
+    }
+
+    @Test
+    public void removedHandleIsNotReused() {
+        MidiPortTable<String> table = new MidiPortTable<>();
+        int handle = table.allocate();
+        table.put(handle, "old");
+        assertEquals("old", table.remove(handle));
+        assertNull(table.get(handle));
+        assertNull(table.remove(handle));
+
+        // the slot is reused with the next generation
+        int newHandle = table.allocate();
+        table.put(newHandle, "new");
+        assertEquals(handle & 0xffff, newHandle & 0xffff);
+        assertNotEquals(handle, newHandle);
+        assertNull(table.get(handle));
+        assertEquals("new", table.get(newHandle));
+    }
+
+    @Test
+    public void clearKeepsGenerations() {
+        MidiPortTable<String> table = new MidiPortTable<>();
+        int handle = table.allocate();
+        table.put(handle, "old");
+        table.clear();
+        assertNull(table.get(handle));
+        int newHandle = table.allocate();
+        table.put(newHandle, "new");
+        assertNotEquals(handle, newHandle);
+        assertNull(table.get(handle));
+    }
+
+    @Test
+    public void generationWrapsAroundPositive() {
+        MidiPortTable<String> table = new MidiPortTable<>();
+        int previous = -1;
+        for (int i = 0; i < 0x10000; i++) {
+            int handle = table.allocate();
+            assertTrue(handle > 0);
+            assertNotEquals(previous, handle);
+            table.put(handle, "port");
+            assertSame("port", table.get(handle));
+            table.remove(handle);
+            previous = handle;
+        }
+    }
+
+    @Test
+    public void tableGrows() {
+        MidiPortTable<Integer> table = new MidiPortTable<>();
+        int[] handles = new int[100];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = table.allocate();
+            table.put(handles[i], i);
+        }
+        for (int i = 0; i < handles.length; i++) {
+            assertEquals(Integer.valueOf(i), table.get(handles[i]));
+        }
+        assertTrue(table.entries().length >= handles.length);
+    }
+
+    @Test
+    public void entriesIsSnapshot() {
+        MidiPortTable<String> table = new MidiPortTable<>();
+        int handle = table.allocate();
+        table.put(handle, "port");
+        Object[] entries = table.entries();
+        table.remove(handle);
+        assertEquals("port", entries[handle & 0xffff]);
+        assertNull(table.entries()[handle & 0xffff]);
+    }
+}
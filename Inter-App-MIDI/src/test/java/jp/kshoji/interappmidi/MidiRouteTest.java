@@ -0,0 +1,95 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MidiRouteTest {
+    private final List<String> routed = new ArrayList<>();
+    private MidiRoute route;
+
+    @Before
+    public void setUp() {
+        route = new MidiRoute(1, 2, 3, new MidiRoute.Destination() {
+            @Override
+            public void sendRouted(int message, long timestamp) {
+                routed.add(String.format("%02x %02x %02x", message & 0xff, (message >> 8) & 0x7f, (message >> 16) & 0x7f));
+            }
+
+            @Override
+            public void sendRouted(int routeId, byte[] data, int offset, int length, boolean last, long timestamp) {
+                routed.add(("sysex " + EventLog.hex(data, offset, length)).trim() + (last ? " last" : ""));
+            }
+        });
+    }
+
+    @Test
+    public void transposedOutOfRangeIsDropped() throws IOException {
+        route.setTranspose(10);
+        route.route(0x90, 60, 100, 0);
+        route.route(0x90, 118, 100, 0);
+        route.route(0xa0, 117, 30, 0);
+        // the controllers are not transposed
+        route.route(0xb0, 120, 0, 0);
+        route.setTranspose(-10);
+        route.route(0x80, 9, 0, 0);
+        route.route(0x80, 10, 0, 0);
+        assertEquals(Arrays.asList("90 46 64", "a0 7f 1e", "b0 78 00", "80 00 00"), routed);
+    }
+
+    @Test
+    public void channelMap() throws IOException {
+        route.setChannelMap(1, 9);
+        route.setChannelMap(3, -1);
+        route.route(0x91, 60, 100, 0);
+        route.route(0xc3, 5, 0, 0);
+        route.route(0xe3, 0, 64, 0);
+        route.route(0xb2, 7, 100, 0);
+        // the system messages have no channel
+        route.route(0xf3, 1, 0, 0);
+        assertEquals(Arrays.asList("99 3c 64", "b2 07 64", "f3 01 00"), routed);
+
+        routed.clear();
+        route.setChannelMap(3, 3);
+        route.route(0xc3, 5, 0, 0);
+        assertEquals(Arrays.asList("c3 05 00"), routed);
+    }
+
+    @Test
+    public void velocityCurve() throws IOException {
+        route.setVelocityCurve(MidiRoute.createVelocityCurve(0.5f));
+        route.route(0x90, 60, 32, 0);
+        route.route(0x90, 60, 127, 0);
+        // Note On with the velocity 0, and the Note Off velocity are kept
+        route.route(0x90, 60, 0, 0);
+        route.route(0x80, 60, 32, 0);
+        route.setVelocityCurve(null);
+        route.route(0x90, 60, 32, 0);
+        assertEquals(Arrays.asList("90 3c 40", "90 3c 7f", "90 3c 00", "80 3c 20", "90 3c 20"), routed);
+
+        byte[] curve = MidiRoute.createVelocityCurve(3f);
+        // the soft velocities don't become Note Off
+        assertEquals(1, curve[1]);
+        assertEquals(127, curve[127]);
+    }
+
+    @Test
+    public void filter() throws IOException {
+        route.setFilter(MidiMessageFilter.NOTE_ON | MidiMessageFilter.SYSTEM_EXCLUSIVE, 1 << 2);
+        route.route(0x92, 60, 100, 0);
+        route.route(0x90, 60, 100, 0);
+        route.route(0x82, 60, 0, 0);
+        route.routeSystemExclusive(EventLog.bytes(0xf0, 0x7e), 0, 2, false, 0);
+
+        // the System Exclusive in the middle of routing is closed when filtered
+        route.setFilter(MidiMessageFilter.ALL_TYPES & ~MidiMessageFilter.SYSTEM_EXCLUSIVE, MidiMessageFilter.ALL_CHANNELS);
+        route.routeSystemExclusive(EventLog.bytes(0x7f, 0xf7), 0, 2, true, 0);
+        assertEquals(Arrays.asList("92 3c 64", "sysex f0 7e", "sysex last"), routed);
+    }
+}
@@ -0,0 +1,138 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SystemExclusiveTransferEngineTest {
+    private static final long MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Records the chunks, as "offset count" with " open" while the System Exclusive is open
+     */
+    private static class RecordingTarget implements SystemExclusiveTransferEngine.Target {
+        final List<String> chunks = Collections.synchronizedList(new ArrayList<String>());
+        final List<Long> times = Collections.synchronizedList(new ArrayList<Long>());
+
+        @Override
+        public void sendTransferChunk(byte[] data, int offset, int count, boolean systemExclusiveOpen) throws IOException {
+            times.add(System.nanoTime());
+            chunks.add(offset + " " + count + (systemExclusiveOpen ? " open" : ""));
+        }
+    }
+
+    private static byte[] systemExclusive(int length) {
+        byte[] data = new byte[length];
+        data[0] = (byte) 0xf0;
+        data[length - 1] = (byte) 0xf7;
+        return data;
+    }
+
+    private static void awaitDone(SystemExclusiveTransfer transfer) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!transfer.isDone()) {
+            assertTrue(System.nanoTime() - deadline < 0);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void chunksKeepSystemExclusiveOpen() throws InterruptedException {
+        RecordingTarget target = new RecordingTarget();
+        byte[] data = new byte[10];
+        System.arraycopy(systemExclusive(4), 0, data, 0, 4);
+        System.arraycopy(systemExclusive(6), 0, data, 4, 6);
+        SystemExclusiveTransfer transfer = new SystemExclusiveTransferEngine().submit(target, data, 3, 0);
+        awaitDone(transfer);
+
+        assertEquals(SystemExclusiveTransfer.STATE_COMPLETED, transfer.getState());
+        assertEquals(10, transfer.getSentLength());
+        assertEquals(1f, transfer.getProgress(), 0f);
+        assertEquals(Arrays.asList("0 3 open", "3 3 open", "6 3 open", "9 1"), target.chunks);
+    }
+
+    @Test
+    public void chunksArePaced() throws InterruptedException {
+        RecordingTarget target = new RecordingTarget();
+        // 100 bytes each 10 milliseconds
+        SystemExclusiveTransfer transfer = new SystemExclusiveTransferEngine().submit(target, systemExclusive(1000), 100, 10000);
+        awaitDone(transfer);
+
+        assertEquals(SystemExclusiveTransfer.STATE_COMPLETED, transfer.getState());
+        assertEquals(10, target.chunks.size());
+        final long startTime = target.times.get(0);
+        for (int i = 1; i < target.times.size(); i++) {
+            // the chunk is not sent before its time, measured from the first chunk
+            assertTrue(i + ": " + (target.times.get(i) - startTime), target.times.get(i) - startTime >= i * 10 * MILLISECOND - MILLISECOND);
+        }
+    }
+
+    @Test
+    public void cancelClosesInterruptedSystemExclusive() throws InterruptedException {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        RecordingTarget target = new RecordingTarget() {
+            @Override
+            public void sendTransferChunk(byte[] data, int offset, int count, boolean systemExclusiveOpen) throws IOException {
+                super.sendTransferChunk(data, offset, count, systemExclusiveOpen);
+                if (offset == 0 && count > 0) {
+                    sending.countDown();
+                    try {
+                        cancelled.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+            }
+        };
+        SystemExclusiveTransferEngine engine = new SystemExclusiveTransferEngine();
+        SystemExclusiveTransfer transfer = engine.submit(target, systemExclusive(100), 10, 0);
+        SystemExclusiveTransfer queued = engine.submit(target, systemExclusive(100), 10, 0);
+        assertTrue(sending.await(10, TimeUnit.SECONDS));
+        assertEquals(SystemExclusiveTransfer.STATE_QUEUED, queued.getState());
+        engine.cancel(target);
+        cancelled.countDown();
+        awaitDone(transfer);
+        awaitDone(queued);
+
+        assertEquals(SystemExclusiveTransfer.STATE_CANCELLED, transfer.getState());
+        assertEquals(SystemExclusiveTransfer.STATE_CANCELLED, queued.getState());
+        // the chunk being sent is completed, then the empty chunk closes the System Exclusive
+        Thread.sleep(100);
+        assertEquals(Arrays.asList("0 10 open", "0 0"), target.chunks);
+        assertEquals(0, queued.getSentLength());
+    }
+
+    @Test
+    public void failureClosesInterruptedSystemExclusive() throws InterruptedException {
+        RecordingTarget target = new RecordingTarget() {
+            @Override
+            public void sendTransferChunk(byte[] data, int offset, int count, boolean systemExclusiveOpen) throws IOException {
+                super.sendTransferChunk(data, offset, count, systemExclusiveOpen);
+                if (offset == 10) {
+                    throw new IOException("failing target");
+                }
+            }
+        };
+        SystemExclusiveTransferEngine engine = new SystemExclusiveTransferEngine();
+        SystemExclusiveTransfer transfer = engine.submit(target, systemExclusive(100), 10, 0);
+        awaitDone(transfer);
+        // the next transfer of the target is sent
+        SystemExclusiveTransfer next = engine.submit(target, systemExclusive(5), 10, 0);
+        awaitDone(next);
+
+        assertEquals(SystemExclusiveTransfer.STATE_FAILED, transfer.getState());
+        assertEquals(10, transfer.getSentLength());
+        assertEquals(SystemExclusiveTransfer.STATE_COMPLETED, next.getState());
+        assertEquals(Arrays.asList("0 10 open", "10 10 open", "0 0", "0 5"), target.chunks);
+    }
+}
@@ -0,0 +1,138 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static jp.kshoji.interappmidi.EventLog.bytes;
+import static jp.kshoji.interappmidi.MidiMessageEncoder.pack;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class UmpEncoderTest {
+    @Test
+    public void scaleUp() {
+        assertEquals(0, UmpEncoder.scaleUp(0, 7, 16));
+        assertEquals(0x0200, UmpEncoder.scaleUp(1, 7, 16));
+        assertEquals(0x8000, UmpEncoder.scaleUp(64, 7, 16));
+        assertEquals(0xffff, UmpEncoder.scaleUp(127, 7, 16));
+        assertEquals(0x80000000, UmpEncoder.scaleUp(64, 7, 32));
+        assertEquals(0xffffffff, UmpEncoder.scaleUp(127, 7, 32));
+        assertEquals(0x80000000, UmpEncoder.scaleUp(0x2000, 14, 32));
+        assertEquals(0xffffffff, UmpEncoder.scaleUp(0x3fff, 14, 32));
+    }
+
+    @Test
+    public void scaleUpIsMonotonic() {
+        int previous = -1;
+        for (int value = 0; value < 128; value++) {
+            final int scaled = UmpEncoder.scaleUp(value, 7, 16);
+            assertEquals(value, scaled >>> 9);
+            assertEquals(true, scaled > previous);
+            previous = scaled;
+        }
+    }
+
+    @Test
+    public void toMidi1Message() {
+        assertEquals(pack(0x90, 60, 127), UmpEncoder.toMidi1Message(0x90, 60, 0xffff));
+        // the velocity 0 is the Note Off in MIDI 1.0
+        assertEquals(pack(0x90, 60, 1), UmpEncoder.toMidi1Message(0x90, 60, 0));
+        assertEquals(pack(0xb3, 7, 64), UmpEncoder.toMidi1Message(0xb3, 7, 0x80000000));
+        assertEquals(pack(0xe0, 0x00, 0x40), UmpEncoder.toMidi1Message(0xe0, 0, 0x80000000));
+        assertEquals(pack(0xd0, 127, 0), UmpEncoder.toMidi1Message(0xd0, 0, 0xffffffff));
+        assertEquals(0, UmpEncoder.toMidi1Message(0x20, 0, 0));
+    }
+
+    @Test
+    public void midi1Protocol() throws IOException {
+        EventLog log = new EventLog();
+        UmpEncoder encoder = new UmpEncoder(64, false);
+        int[] messages = {pack(0x90, 0x3c, 0x64), pack(0xf8, 0, 0), pack(0xf2, 0x10, 0x20)};
+        assertEquals(3, encoder.encode(messages, 0, messages.length, 0, log));
+        assertEquals(Arrays.asList("20 90 3c 64 10 f8 00 00 10 f2 10 20"), log.events);
+    }
+
+    @Test
+    public void midi2Protocol() throws IOException {
+        EventLog log = new EventLog();
+        UmpEncoder encoder = new UmpEncoder(64, true);
+        encoder.encode(pack(0x91, 0x3c, 127), 0, log);
+        // Note On with the velocity 0 is sent as Note Off with the velocity 64
+        encoder.encode(pack(0x91, 0x3c, 0), 0, log);
+        encoder.encode(pack(0xb2, 7, 64), 0, log);
+        encoder.encode(pack(0xe0, 0, 0x40), 0, log);
+        encoder.encode(pack(0xc0, 5, 0), 0, log);
+        assertEquals(Arrays.asList(
+                "40 91 3c 00 ff ff 00 00",
+                "40 81 3c 00 80 00 00 00",
+                "40 b2 07 00 80 00 00 00",
+                "40 e0 00 00 80 00 00 00",
+                "40 c0 00 00 05 00 00 00"), log.events);
+    }
+
+    @Test
+    public void encodeMidi2() throws IOException {
+        EventLog log = new EventLog();
+        new UmpEncoder(64, true).encodeMidi2(0x90, 60, 0x1234, 0, log);
+        new UmpEncoder(64, false).encodeMidi2(0x90, 60, 0xffff, 0, log);
+        assertFalse(new UmpEncoder(64, true).encodeMidi2(0xf0, 0, 0, 0, log));
+        assertEquals(Arrays.asList("40 90 3c 00 12 34 00 00", "20 90 3c 7f"), log.events);
+    }
+
+    @Test
+    public void packetsAreSplitAtMaxSize() throws IOException {
+        EventLog log = new EventLog();
+        UmpEncoder encoder = new UmpEncoder(16, true);
+        int[] messages = {pack(0x90, 1, 1), pack(0x90, 2, 1), pack(0x90, 3, 1)};
+        assertEquals(3, encoder.encode(messages, 0, messages.length, 0, log));
+        assertEquals(2, log.events.size());
+        assertEquals(3, encoder.getSentMessageCount());
+    }
+
+    @Test
+    public void systemExclusiveComplete() throws IOException {
+        EventLog log = new EventLog();
+        byte[] data = bytes(0xf0, 0x7e, 0x7f, 0xf7);
+        new UmpEncoder(64, false).encodeSystemExclusive(data, 0, data.length, 0, log);
+        assertEquals(Arrays.asList("30 02 7e 7f 00 00 00 00"), log.events);
+    }
+
+    @Test
+    public void systemExclusiveSixBytesInOnePacket() throws IOException {
+        EventLog log = new EventLog();
+        byte[] data = bytes(0xf0, 1, 2, 3, 4, 5, 6, 0xf7);
+        new UmpEncoder(64, false).encodeSystemExclusive(data, 0, data.length, 0, log);
+        assertEquals(Arrays.asList("30 06 01 02 03 04 05 06"), log.events);
+    }
+
+    @Test
+    public void systemExclusiveStartContinueEnd() throws IOException {
+        EventLog log = new EventLog();
+        byte[] data = bytes(0xf0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 0xf7);
+        new UmpEncoder(64, false).encodeSystemExclusive(data, 0, data.length, 0, log);
+        assertEquals(Arrays.asList("30 16 01 02 03 04 05 06 30 26 07 08 09 0a 0b 0c 30 32 0d 0e 00 00 00 00"), log.events);
+    }
+
+    @Test
+    public void systemExclusiveAcrossCalls() throws IOException {
+        EventLog log = new EventLog();
+        UmpEncoder encoder = new UmpEncoder(64, false);
+        byte[] data = bytes(0xf0, 1, 2, 3, 4, 5, 6, 7, 0xf7);
+        encoder.encodeSystemExclusive(data, 0, 4, 0, log);
+        // the packet is kept until its successor is known
+        assertEquals(0, log.events.size());
+        encoder.encodeSystemExclusive(data, 4, 5, 0, log);
+        assertEquals(Arrays.asList("30 16 01 02 03 04 05 06 30 31 07 00 00 00 00 00"), log.events);
+    }
+
+    @Test
+    public void interruptedSystemExclusiveIsClosed() throws IOException {
+        EventLog log = new EventLog();
+        UmpEncoder encoder = new UmpEncoder(64, false);
+        byte[] data = bytes(0xf0, 1, 2, 3, 4, 5, 6, 7, 0xf0, 8, 0xf7);
+        encoder.encodeSystemExclusive(data, 0, data.length, 0, log);
+        assertEquals(Arrays.asList("30 16 01 02 03 04 05 06 30 31 07 00 00 00 00 00 30 01 08 00 00 00 00 00"), log.events);
+    }
+}
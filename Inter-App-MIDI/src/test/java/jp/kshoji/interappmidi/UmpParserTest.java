@@ -0,0 +1,116 @@
+package jp.kshoji.interappmidi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static jp.kshoji.interappmidi.EventLog.bytes;
+import static org.junit.Assert.assertEquals;
+
+public class UmpParserTest {
+    private EventLog log;
+    private UmpParser parser;
+
+    @Before
+    public void setUp() {
+        log = new EventLog();
+        parser = new UmpParser(log, new MidiParser(log, new SystemExclusiveBufferPool(256, 1)));
+    }
+
+    private void parse(int... values) {
+        byte[] data = bytes(values);
+        parser.parse(data, 0, data.length, 0);
+    }
+
+    @Test
+    public void midi1ChannelVoiceAndSystemMessages() {
+        parse(0x20, 0x90, 0x3c, 0x64, 0x10, 0xf8, 0x00, 0x00, 0x13, 0xf2, 0x10, 0x20);
+        assertEquals(Arrays.asList("90 3c 64", "f8 00 00", "f2 10 20"), log.events);
+    }
+
+    @Test
+    public void midi2ChannelVoice() {
+        parse(0x41, 0x92, 0x3c, 0x00, 0x12, 0x34, 0x00, 0x00,
+                0x40, 0xb0, 0x07, 0x00, 0x80, 0x00, 0x00, 0x00,
+                0x40, 0xc1, 0x00, 0x01, 0x05, 0x00, 0x02, 0x03,
+                0x40, 0x23, 0x01, 0x02, 0x80, 0x00, 0x00, 0x00);
+        assertEquals(Arrays.asList(
+                "midi2 1 92 60 0 00001234 0",
+                "midi2 0 b0 7 0 80000000 0",
+                "midi2 0 c1 5 1 00000103 0",
+                "midi2 0 23 2 1 80000000 0"), log.events);
+    }
+
+    @Test
+    public void wordsSplitAcrossPackets() {
+        int[] packet = {0x40, 0x90, 0x3c, 0x00, 0xff, 0xff, 0x00, 0x00, 0x20, 0x80, 0x3c, 0x00};
+        for (int value : packet) {
+            parse(value);
+        }
+        assertEquals(Arrays.asList("midi2 0 90 60 0 0000ffff 0", "80 3c 00"), log.events);
+    }
+
+    @Test
+    public void unsupportedPacketsAreSkipped() {
+        // utility(32 bits), 8-bit System Exclusive(128 bits), Flex Data(128 bits)
+        parse(0x00, 0x10, 0x00, 0x00,
+                0x50, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+                0xd0, 0x10, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+                0x20, 0x90, 0x3c, 0x64);
+        assertEquals(Arrays.asList("90 3c 64"), log.events);
+    }
+
+    @Test
+    public void systemExclusiveIsReassembled() {
+        parse(0x30, 0x16, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06,
+                0x30, 0x26, 0x07, 0x08, 0x09, 0x0a, 0x0b, 0x0c,
+                0x30, 0x32, 0x0d, 0x0e, 0x00, 0x00, 0x00, 0x00,
+                0x30, 0x02, 0x7e, 0x7f, 0x00, 0x00, 0x00, 0x00);
+        assertEquals(Arrays.asList("sysex f0 01 02 03 04 05 06 07 08 09 0a 0b 0c 0d 0e f7", "sysex f0 7e 7f f7"), log.events);
+    }
+
+    @Test
+    public void encoderRoundTrip() throws IOException {
+        byte[] data = new byte[100];
+        data[0] = (byte) 0xf0;
+        for (int i = 1; i < data.length - 1; i++) {
+            data[i] = (byte) (i & 0x7f);
+        }
+        data[data.length - 1] = (byte) 0xf7;
+        UmpEncoder encoder = new UmpEncoder(16, true);
+        MidiMessageEncoder.PacketSender sender = new MidiMessageEncoder.PacketSender() {
+            @Override
+            public void send(byte[] packet, int offset, int count, long timestamp) {
+                parser.parse(packet, offset, count, timestamp);
+            }
+        };
+        encoder.encodeSystemExclusive(data, 0, data.length, 0, sender);
+        encoder.encode(MidiMessageEncoder.pack(0xb0, 7, 127), 0, sender);
+        assertEquals(Arrays.asList("sysex " + EventLog.hex(data, 0, data.length), "midi2 0 b0 7 0 ffffffff 0"), log.events);
+    }
+
+    @Test
+    public void translate() {
+        UmpParser.translate(0x90, 60, 0, 0xffff, 0, log);
+        UmpParser.translate(0xb1, 7, 0, 0x80000000, 0, log);
+        // RPN: bank(MSB) 0, index(LSB) 1
+        UmpParser.translate(0x22, 1, 0, 0x80000000, 0, log);
+        // Program Change with the bank
+        UmpParser.translate(0xc3, 5, 1, (2 << 7) | 3, 0, log);
+        assertEquals(Arrays.asList(
+                "90 3c 7f",
+                "b1 07 40",
+                "b2 65 00", "b2 64 01", "b2 06 40", "b2 26 00",
+                "b3 00 02", "b3 20 03", "c3 05 00"), log.events);
+    }
+
+    @Test
+    public void resetDiscardsPartialPacket() {
+        parse(0x40, 0x90, 0x3c, 0x00, 0xff);
+        parser.reset();
+        parse(0x20, 0x80, 0x3c, 0x00);
+        assertEquals(Arrays.asList("80 3c 00"), log.events);
+    }
+}
@@ -0,0 +1,246 @@
+package jp.kshoji.interappmidi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link MidiHost} running the loops on the plain threads, and counting the messages sent to Unity<br />
+ * The exceptions thrown from the tasks are collected in {@link #failures}, instead of crashing the process.
+ */
+final class JvmMidiHost implements MidiHost {
+    final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+    private final ConcurrentHashMap<String, AtomicInteger> messageCounts = new ConcurrentHashMap<>();
+    private final AtomicInteger totalMessageCount = new AtomicInteger();
+    // keeps the last message reachable, so the formatting isn't optimized away in the benchmarks
+    private String lastMessage;
+    private final List<JvmEventLoop> eventLoops = new CopyOnWriteArrayList<>();
+    private final JvmEventLoop mainEventLoop;
+
+    JvmMidiHost() {
+        mainEventLoop = startEventLoop("main", 0);
+    }
+
+    private static final class Task implements Comparable<Task> {
+        private final Runnable runnable;
+        private final long time;
+        private final long sequence;
+
+        private Task(Runnable runnable, long time, long sequence) {
+            this.runnable = runnable;
+            this.time = time;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            if (time != o.time) {
+                return time - o.time < 0 ? -1 : 1;
+            }
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private final class JvmEventLoop implements EventLoop, Runnable {
+        // guarded by this
+        private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+        private long sequence;
+        private boolean quitting;
+        private final Thread thread;
+
+        private JvmEventLoop(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void post(Runnable task) {
+            postDelayed(task, 0);
+        }
+
+        @Override
+        public synchronized void postDelayed(Runnable task, long delayMillis) {
+            if (quitting) {
+                return;
+            }
+            tasks.add(new Task(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis), sequence++));
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void removeCallbacks(Runnable task) {
+            for (Iterator<Task> iterator = tasks.iterator(); iterator.hasNext(); ) {
+                if (iterator.next().runnable == task) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        @Override
+        public boolean isCurrentThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        @Override
+        public synchronized void quitSafely() {
+            quitting = true;
+            final long now = System.nanoTime();
+            for (Iterator<Task> iterator = tasks.iterator(); iterator.hasNext(); ) {
+                if (iterator.next().time - now > 0) {
+                    iterator.remove();
+                }
+            }
+            notifyAll();
+        }
+
+        private synchronized boolean hasDueTasks() {
+            Task head = tasks.peek();
+            return head != null && head.time - System.nanoTime() <= 0;
+        }
+
+        private synchronized Task take() throws InterruptedException {
+            while (true) {
+                Task head = tasks.peek();
+                if (head == null) {
+                    if (quitting) {
+                        return null;
+                    }
+                    wait();
+                    continue;
+                }
+                final long delay = head.time - System.nanoTime();
+                if (delay <= 0) {
+                    return tasks.poll();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, delay);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Task task;
+                while ((task = take()) != null) {
+                    try {
+                        task.runnable.run();
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            }
+            eventLoops.remove(this);
+        }
+
+        /**
+         * Waits until the tasks already due, and the tasks posted by them, have been processed
+         */
+        private void awaitIdle() throws InterruptedException {
+            do {
+                final CountDownLatch latch = new CountDownLatch(1);
+                synchronized (this) {
+                    if (quitting) {
+                        return;
+                    }
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            latch.countDown();
+                        }
+                    });
+                }
+                if (!latch.await(10, TimeUnit.SECONDS)) {
+                    throw new AssertionError(thread.getName() + " is not responding");
+                }
+            } while (hasDueTasks());
+        }
+    }
+
+    /**
+     * Waits until all the loops have processed the tasks already due
+     */
+    void awaitIdle() throws InterruptedException {
+        // the tasks of a loop may post to the other loops
+        for (int i = 0; i < 3; i++) {
+            for (JvmEventLoop eventLoop : eventLoops) {
+                eventLoop.awaitIdle();
+            }
+        }
+    }
+
+    /**
+     * Quits all the loops, including the main loop
+     */
+    void quit() {
+        for (JvmEventLoop eventLoop : eventLoops) {
+            eventLoop.quitSafely();
+        }
+    }
+
+    /**
+     * @param method the method name of UnitySendMessage
+     * @return the number of the messages sent
+     */
+    int getMessageCount(String method) {
+        AtomicInteger count = messageCounts.get(method);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * @return the number of the messages sent with UnitySendMessage, of all the methods
+     */
+    int getMessageCount() {
+        return totalMessageCount.get();
+    }
+
+    /**
+     * @return the last message sent with UnitySendMessage
+     */
+    String getLastMessage() {
+        return lastMessage;
+    }
+
+    @Override
+    public int getSdkVersion() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public EventLoop getMainEventLoop() {
+        return mainEventLoop;
+    }
+
+    @Override
+    public JvmEventLoop startEventLoop(String name, int priority) {
+        JvmEventLoop eventLoop = new JvmEventLoop(name);
+        eventLoops.add(eventLoop);
+        eventLoop.thread.start();
+        return eventLoop;
+    }
+
+    @Override
+    public void setThreadPriority(int priority) {
+    }
+
+    @Override
+    public void sendMessage(String gameObjectName, String method, String message) {
+        AtomicInteger count = messageCounts.get(method);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = messageCounts.putIfAbsent(method, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+        totalMessageCount.incrementAndGet();
+        lastMessage = message;
+    }
+}
@@ -0,0 +1,339 @@
+package jp.kshoji.interappmidi;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link MidiTransport} simulating the virtual devices in the process<br />
+ * Each device has the same number of the input and the output ports.
+ * The bytes sent to an input port are delivered to the receivers of the output port with the same index,
+ * and the bytes can be delivered from the device with {@link #transmit(MidiTransport.DeviceInfo, int, byte[], int, int, long)}, as if another application sent them.<br />
+ * The deliveries to an output port are serialized, and the receivers are called on the sending thread, like the receiving thread of the real port.
+ * The bytes from the input port and from {@link #transmit(MidiTransport.DeviceInfo, int, byte[], int, int, long)} are merged at the packet boundaries.<br />
+ * The devices can be added and removed at any time, to simulate the hot-plug. {@link MidiLoadGenerator} drives the traffic and the hot-plug from the threads.<br />
+ * This class depends only on the Java runtime, not on android.*, so {@link InterAppMidiManager} can be exercised on the JVM, with a {@link MidiHost} replacing the handler threads and Unity.
+ */
+final class LoopbackMidiTransport implements MidiTransport {
+    /**
+     * The maximum length of the bytes sent at once by default, the same as the virtual device of Android
+     */
+    static final int DEFAULT_MAX_MESSAGE_SIZE = 1015;
+
+    private static final Receiver[] NO_RECEIVERS = new Receiver[0];
+
+    private final int maxMessageSize;
+    private final AtomicInteger nextDeviceId = new AtomicInteger(1);
+    private final ConcurrentHashMap<Integer, LoopbackDevice> devices = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<CallbackEntry> callbacks = new CopyOnWriteArrayList<>();
+
+    LoopbackMidiTransport() {
+        this(DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxMessageSize the maximum length of the bytes sent at once
+     */
+    LoopbackMidiTransport(int maxMessageSize) {
+        this.maxMessageSize = Math.max(maxMessageSize, 4);
+    }
+
+    private static final class CallbackEntry {
+        private final DeviceCallback callback;
+        private final Executor executor;
+
+        private CallbackEntry(DeviceCallback callback, Executor executor) {
+            this.callback = callback;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * The port pair, the input port delivers to the receivers of the output port
+     */
+    private static final class LoopbackPort {
+        // copy-on-write, written with the lock of this
+        private volatile Receiver[] receivers = NO_RECEIVERS;
+        // serializes the deliveries, separated from the lock of this so a blocked receiver doesn't block the disconnection
+        private final Object deliveryLock = new Object();
+
+        private synchronized void connect(Receiver receiver) {
+            for (Receiver connected : receivers) {
+                if (connected == receiver) {
+                    return;
+                }
+            }
+            Receiver[] newReceivers = new Receiver[receivers.length + 1];
+            System.arraycopy(receivers, 0, newReceivers, 0, receivers.length);
+            newReceivers[receivers.length] = receiver;
+            receivers = newReceivers;
+        }
+
+        private synchronized void disconnect(Receiver receiver) {
+            for (int i = 0; i < receivers.length; i++) {
+                if (receivers[i] == receiver) {
+                    Receiver[] newReceivers = new Receiver[receivers.length - 1];
+                    System.arraycopy(receivers, 0, newReceivers, 0, i);
+                    System.arraycopy(receivers, i + 1, newReceivers, i, receivers.length - i - 1);
+                    receivers = newReceivers;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Delivers the bytes, serialized like the receiving thread of the port
+         */
+        private void deliver(byte[] data, int offset, int count, long timestamp) {
+            synchronized (deliveryLock) {
+                for (Receiver receiver : receivers) {
+                    try {
+                        receiver.onSend(data, offset, count, timestamp);
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private synchronized void disconnectAll() {
+            receivers = NO_RECEIVERS;
+        }
+    }
+
+    private static final class LoopbackDevice {
+        private final DeviceInfo deviceInfo;
+        private final LoopbackPort[] ports;
+        private volatile boolean removed;
+
+        private LoopbackDevice(DeviceInfo deviceInfo, int portCount) {
+            this.deviceInfo = deviceInfo;
+            ports = new LoopbackPort[portCount];
+            for (int i = 0; i < portCount; i++) {
+                ports[i] = new LoopbackPort();
+            }
+        }
+    }
+
+    /**
+     * Adds a MIDI 1.0 byte stream device
+     *
+     * @param name the device name
+     * @param portCount the number of the input and the output ports
+     * @return the added device
+     */
+    DeviceInfo addDevice(String name, int portCount) {
+        return addDevice(name, portCount, PROTOCOL_UNKNOWN);
+    }
+
+    /**
+     * Adds a device, the callbacks are notified of the added device
+     *
+     * @param name the device name
+     * @param portCount the number of the input and the output ports
+     * @param protocol {@link #PROTOCOL_UNKNOWN} for the byte stream device, or one of the MidiDeviceInfo.PROTOCOL_UMP_* values for the Universal MIDI Packet device
+     * @return the added device
+     */
+    DeviceInfo addDevice(String name, int portCount, int protocol) {
+        final DeviceInfo deviceInfo = new DeviceInfo(nextDeviceId.getAndIncrement(), name, name, "Loopback", portCount, portCount, protocol, true);
+        devices.put(deviceInfo.getId(), new LoopbackDevice(deviceInfo, portCount));
+        for (final CallbackEntry entry : callbacks) {
+            entry.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    entry.callback.onDeviceAdded(deviceInfo);
+                }
+            });
+        }
+        return deviceInfo;
+    }
+
+    /**
+     * Removes the device, the ports of the device are closed and the callbacks are notified of the removed device
+     *
+     * @param deviceInfo the device
+     * @return false if the device is not found
+     */
+    boolean removeDevice(final DeviceInfo deviceInfo) {
+        LoopbackDevice device = devices.remove(deviceInfo.getId());
+        if (device == null) {
+            return false;
+        }
+        device.removed = true;
+        for (LoopbackPort port : device.ports) {
+            port.disconnectAll();
+        }
+        for (final CallbackEntry entry : callbacks) {
+            entry.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    entry.callback.onDeviceRemoved(deviceInfo);
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Delivers the bytes from the output port of the device, as if another application sent them<br />
+     * The receivers are called on the calling thread.
+     *
+     * @param deviceInfo the device
+     * @param portIndex the index of the output port
+     * @param data the bytes
+     * @param offset the offset
+     * @param count the length
+     * @param timestamp the timestamp, in {@link System#nanoTime()} base
+     * @return false if the device is not found
+     */
+    boolean transmit(DeviceInfo deviceInfo, int portIndex, byte[] data, int offset, int count, long timestamp) {
+        LoopbackDevice device = devices.get(deviceInfo.getId());
+        if (device == null || portIndex < 0 || portIndex >= device.ports.length) {
+            return false;
+        }
+        device.ports[portIndex].deliver(data, offset, count, timestamp);
+        return true;
+    }
+
+    @Override
+    public Set<DeviceInfo> getDevices() {
+        Set<DeviceInfo> result = new HashSet<>();
+        for (LoopbackDevice device : devices.values()) {
+            result.add(device.deviceInfo);
+        }
+        return result;
+    }
+
+    @Override
+    public void registerDeviceCallback(DeviceCallback callback, Executor executor) {
+        callbacks.add(new CallbackEntry(callback, executor));
+    }
+
+    @Override
+    public void unregisterDeviceCallback(DeviceCallback callback) {
+        for (CallbackEntry entry : callbacks) {
+            if (entry.callback == callback) {
+                callbacks.remove(entry);
+            }
+        }
+    }
+
+    @Override
+    public void openDevice(final DeviceInfo deviceInfo, final OnDeviceOpenedListener listener, Executor executor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                LoopbackDevice device = devices.get(deviceInfo.getId());
+                listener.onDeviceOpened(device != null ? new OpenedDevice(device) : null);
+            }
+        });
+    }
+
+    private final class OpenedDevice implements Device {
+        private final LoopbackDevice device;
+        private volatile boolean closed;
+
+        private OpenedDevice(LoopbackDevice device) {
+            this.device = device;
+        }
+
+        private boolean isClosed() {
+            return closed || device.removed;
+        }
+
+        @Override
+        public DeviceInfo getInfo() {
+            return device.deviceInfo;
+        }
+
+        @Override
+        public InputPort openInputPort(int index) {
+            if (isClosed() || index < 0 || index >= device.ports.length) {
+                return null;
+            }
+            return new LoopbackInputPort(this, device.ports[index]);
+        }
+
+        @Override
+        public OutputPort openOutputPort(int index) {
+            if (isClosed() || index < 0 || index >= device.ports.length) {
+                return null;
+            }
+            return new LoopbackOutputPort(device.ports[index]);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private final class LoopbackInputPort implements InputPort {
+        private final OpenedDevice device;
+        private final LoopbackPort port;
+        private volatile boolean closed;
+
+        private LoopbackInputPort(OpenedDevice device, LoopbackPort port) {
+            this.device = device;
+            this.port = port;
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return maxMessageSize;
+        }
+
+        @Override
+        public void send(byte[] data, int offset, int count, long timestamp) throws IOException {
+            if (closed || device.isClosed()) {
+                throw new IOException("The port is closed");
+            }
+            if (count > maxMessageSize) {
+                throw new IOException("The message is too long");
+            }
+            port.deliver(data, offset, count, timestamp);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static final class LoopbackOutputPort implements OutputPort {
+        private final LoopbackPort port;
+        // guarded by this
+        private final Set<Receiver> connectedReceivers = new HashSet<>();
+
+        private LoopbackOutputPort(LoopbackPort port) {
+            this.port = port;
+        }
+
+        @Override
+        public synchronized void connect(Receiver receiver) {
+            if (connectedReceivers.add(receiver)) {
+                port.connect(receiver);
+            }
+        }
+
+        @Override
+        public synchronized void disconnect(Receiver receiver) {
+            if (connectedReceivers.remove(receiver)) {
+                port.disconnect(receiver);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            for (Receiver receiver : connectedReceivers) {
+                port.disconnect(receiver);
+            }
+            connectedReceivers.clear();
+        }
+    }
+}
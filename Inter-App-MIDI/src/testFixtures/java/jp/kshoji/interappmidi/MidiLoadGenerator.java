@@ -0,0 +1,352 @@
+package jp.kshoji.interappmidi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates the synthetic traffic from the devices of the {@link LoopbackMidiTransport}, and the hot-plug of the devices<br />
+ * Each added generator runs on its own thread, from {@link #start()} to {@link #stop()}.
+ * The bytes are delivered with {@link LoopbackMidiTransport#transmit(MidiTransport.DeviceInfo, int, byte[], int, int, long)},
+ * so the receiving side sees them as the traffic of another application, on the generator thread as the receiving thread of the port.<br />
+ * The generators of the same port don't split the messages of each other, except the System Realtime messages, as a real device sends a single stream.<br />
+ * The rate 0 sends as fast as possible, to reproduce the overload. The generator falling behind the rate sends the late packets immediately, up to 100 milliseconds.<br />
+ * This class depends only on the Java runtime, not on android.*.
+ */
+final class MidiLoadGenerator {
+    private static final long MAX_LAG = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final LoopbackMidiTransport transport;
+    // guarded by this
+    private final List<Generator> generators = new ArrayList<>();
+    // locked while sending a message in the fragments, guarded by this
+    private final Map<Long, Object> streamLocks = new HashMap<>();
+    private boolean running;
+
+    /**
+     * Constructor
+     *
+     * @param transport the transport of the devices
+     */
+    MidiLoadGenerator(LoopbackMidiTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Generator running on its own thread
+     */
+    private abstract class Generator implements Runnable {
+        private final long interval;
+        private Thread thread;
+        private volatile boolean generating;
+        // written by the generator thread only
+        private volatile long messageCount;
+        private volatile long byteCount;
+        private volatile long failedPacketCount;
+
+        /**
+         * @param ratePerSecond the number of the generations per second, 0 for as fast as possible
+         */
+        private Generator(double ratePerSecond) {
+            interval = ratePerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond) : 0;
+        }
+
+        /**
+         * Generates once, called on the generator thread
+         */
+        abstract void generate();
+
+        /**
+         * Called on the generator thread before stopping
+         */
+        void finish() {
+        }
+
+        /**
+         * Delivers the packet from the device
+         */
+        final void transmit(MidiTransport.DeviceInfo device, int portIndex, byte[] data, int offset, int count, int messages) {
+            if (transport.transmit(device, portIndex, data, offset, count, System.nanoTime())) {
+                messageCount = messageCount + messages;
+                byteCount = byteCount + count;
+            } else {
+                failedPacketCount = failedPacketCount + 1;
+            }
+        }
+
+        private void start() {
+            generating = true;
+            thread = new Thread(this, "MidiLoadGenerator");
+            thread.start();
+        }
+
+        private void stop() {
+            generating = false;
+            if (thread == null) {
+                return;
+            }
+            LockSupport.unpark(thread);
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+
+        @Override
+        public final void run() {
+            long next = System.nanoTime();
+            while (generating) {
+                if (interval > 0) {
+                    long wait;
+                    while (generating && (wait = next - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    if (!generating) {
+                        break;
+                    }
+                    next += interval;
+                    long now = System.nanoTime();
+                    if (now - next > MAX_LAG) {
+                        next = now;
+                    }
+                }
+                generate();
+            }
+            finish();
+        }
+    }
+
+    private synchronized void add(Generator generator) {
+        generators.add(generator);
+        if (running) {
+            generator.start();
+        }
+    }
+
+    private static void checkPort(MidiTransport.DeviceInfo device, int portIndex) {
+        if (portIndex < 0 || portIndex >= device.getOutputPortCount()) {
+            throw new IllegalArgumentException("Invalid port index: " + portIndex);
+        }
+    }
+
+    /**
+     * Obtains the lock of the stream of the port, the non-realtime messages are sent with the lock
+     */
+    private synchronized Object getStreamLock(MidiTransport.DeviceInfo device, int portIndex) {
+        final long key = ((long) device.getId() << 32) | portIndex;
+        Object lock = streamLocks.get(key);
+        if (lock == null) {
+            lock = new Object();
+            streamLocks.put(key, lock);
+        }
+        return lock;
+    }
+
+    /**
+     * Adds the MIDI clock, Start is sent first and Stop is sent when stopped
+     *
+     * @param device the device
+     * @param portIndex the index of the output port
+     * @param beatsPerMinute the tempo, the Timing Clock is sent 24 times per beat
+     */
+    void addClock(final MidiTransport.DeviceInfo device, final int portIndex, float beatsPerMinute) {
+        checkPort(device, portIndex);
+        add(new Generator(beatsPerMinute * 24 / 60.0) {
+            private final byte[] data = new byte[1];
+            private boolean started;
+
+            @Override
+            void generate() {
+                if (!started) {
+                    started = true;
+                    data[0] = (byte) 0xfa;
+                    transmit(device, portIndex, data, 0, 1, 1);
+                }
+                data[0] = (byte) 0xf8;
+                transmit(device, portIndex, data, 0, 1, 1);
+            }
+
+            @Override
+            void finish() {
+                data[0] = (byte) 0xfc;
+                transmit(device, portIndex, data, 0, 1, 1);
+            }
+        });
+    }
+
+    /**
+     * Adds the flood of the Control Change messages<br />
+     * The channels, the controllers(0-119) and the values are cycled, to spread the messages over the channels and the controllers.
+     *
+     * @param device the device
+     * @param portIndex the index of the output port
+     * @param packetsPerSecond the number of the packets per second, 0 for as fast as possible
+     * @param messagesPerPacket the number of the messages in a packet
+     */
+    void addControlChangeFlood(final MidiTransport.DeviceInfo device, final int portIndex, int packetsPerSecond, final int messagesPerPacket) {
+        checkPort(device, portIndex);
+        final int count = Math.max(messagesPerPacket, 1);
+        final Object streamLock = getStreamLock(device, portIndex);
+        add(new Generator(packetsPerSecond) {
+            private final byte[] data = new byte[count * 3];
+            private int sequence;
+
+            @Override
+            void generate() {
+                for (int i = 0; i < count; i++) {
+                    data[i * 3] = (byte) (0xb0 | (sequence & 0xf));
+                    data[i * 3 + 1] = (byte) ((sequence >>> 4) % 120);
+                    data[i * 3 + 2] = (byte) ((sequence >> 2) & 0x7f);
+                    sequence++;
+                }
+                synchronized (streamLock) {
+                    transmit(device, portIndex, data, 0, data.length, count);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds the System Exclusive messages split into the fragments<br />
+     * Each message has the non-commercial manufacturer id(0x7d), and is delivered in the fragments of the specified length.
+     * The Timing Clock can be interleaved between the fragments, as the System Realtime messages may be sent in the middle of the System Exclusive.
+     *
+     * @param device the device
+     * @param portIndex the index of the output port
+     * @param length the length of the message, including 0xf0 and 0xf7
+     * @param fragmentLength the length of the fragment
+     * @param messagesPerSecond the number of the messages per second, 0 for as fast as possible
+     * @param interleaveRealtime true to send the Timing Clock between the fragments
+     */
+    void addSystemExclusive(final MidiTransport.DeviceInfo device, final int portIndex, int length, int fragmentLength, int messagesPerSecond, final boolean interleaveRealtime) {
+        checkPort(device, portIndex);
+        final byte[] message = new byte[Math.max(length, 3)];
+        message[0] = (byte) 0xf0;
+        message[1] = 0x7d;
+        for (int i = 2; i < message.length - 1; i++) {
+            message[i] = (byte) (i & 0x7f);
+        }
+        message[message.length - 1] = (byte) 0xf7;
+        final int fragment = Math.max(fragmentLength, 1);
+        final Object streamLock = getStreamLock(device, portIndex);
+        add(new Generator(messagesPerSecond) {
+            private final byte[] clock = {(byte) 0xf8};
+
+            @Override
+            void generate() {
+                synchronized (streamLock) {
+                    for (int offset = 0; offset < message.length; offset += fragment) {
+                        final int count = Math.min(fragment, message.length - offset);
+                        transmit(device, portIndex, message, offset, count, offset + count == message.length ? 1 : 0);
+                        if (interleaveRealtime && offset + count < message.length) {
+                            transmit(device, portIndex, clock, 0, 1, 1);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds the hot-plug churn, a device is added and removed repeatedly<br />
+     * The device is attached for the interval, and detached for the interval.
+     *
+     * @param name the device name
+     * @param portCount the number of the ports of the device
+     * @param intervalMillis the interval, in milliseconds
+     */
+    void addHotPlugChurn(final String name, final int portCount, long intervalMillis) {
+        add(new Generator(TimeUnit.SECONDS.toMillis(1) / (double) Math.max(intervalMillis, 1)) {
+            private MidiTransport.DeviceInfo device;
+
+            @Override
+            void generate() {
+                if (device == null) {
+                    device = transport.addDevice(name, portCount);
+                } else {
+                    transport.removeDevice(device);
+                    device = null;
+                }
+            }
+
+            @Override
+            void finish() {
+                if (device != null) {
+                    transport.removeDevice(device);
+                    device = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts the generators
+     */
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (Generator generator : generators) {
+            generator.start();
+        }
+    }
+
+    /**
+     * Stops the generators, and waits for their threads
+     */
+    synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (Generator generator : generators) {
+            generator.stop();
+        }
+    }
+
+    /**
+     * @return the number of the generated messages, the System Exclusive is counted when the last fragment is delivered
+     */
+    synchronized long getGeneratedMessageCount() {
+        long count = 0;
+        for (Generator generator : generators) {
+            count += generator.messageCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of the generated bytes
+     */
+    synchronized long getGeneratedByteCount() {
+        long count = 0;
+        for (Generator generator : generators) {
+            count += generator.byteCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of the packets not delivered because the device has been removed
+     */
+    synchronized long getFailedPacketCount() {
+        long count = 0;
+        for (Generator generator : generators) {
+            count += generator.failedPacketCount;
+        }
+        return count;
+    }
+}
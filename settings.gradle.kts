@@ -14,5 +14,5 @@ dependencyResolutionManagement {
 }
 
 rootProject.name = "Inter App MIDI"
-include(":Inter-App-MIDI", ":UnityPlayerMock")
+include(":Inter-App-MIDI", ":UnityPlayerMock", ":Benchmark")
  
\ No newline at end of file